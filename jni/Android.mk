@@ -77,7 +77,9 @@ LOCAL_SHARED_LIBRARIES := QCAR-prebuilt
 # compute dependencies automatically for you; just list the source files
 # that will be passed directly to a compiler, and you should be good. 	
 	
-LOCAL_SRC_FILES := VirtualButtons.cpp SampleUtils.cpp Texture.cpp
+LOCAL_SRC_FILES := VirtualButtons.cpp SampleUtils.cpp Texture.cpp \
+                   OcclusionDetector.cpp FrameRecorder.cpp PoseFilter.cpp \
+                   KeyTargets.cpp
 
 # By default, ARM target binaries will be generated in 'thumb' mode, where
 # each instruction are 16-bit wide. You can define this variable to 'arm'
@@ -0,0 +1,278 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    FrameRecorder.cpp
+
+@brief
+    Implementation of class FrameRecorder.
+
+==============================================================================*/
+
+// Include files
+#include "FrameRecorder.h"
+
+#include <stdlib.h>
+#include <string.h>
+
+namespace
+{
+    const char MAGIC[4] = { 'V', 'P', 'R', 'C' };
+    const char FRAME_MARKER[4] = { 'F', 'R', 'M', 'E' };
+
+    /// The size of a frame without its key words and pixels.
+    const size_t FRAME_HEADER_SIZE = 4 + 4 + 8 + 4 + 12 * 4 + 4 * 4 +
+                                     2 * 4 + 4 * 4;
+
+    /// Appends raw bytes to a buffer.
+    unsigned char*
+    put(unsigned char* out, const void* data, size_t size)
+    {
+        memcpy(out, data, size);
+        return out + size;
+    }
+}
+
+
+FrameRecorder::FrameRecorder() :
+mRecording(false),
+mFile(0),
+mWords(0),
+mHead(0),
+mCount(0),
+mFramesWritten(0),
+mFramesDropped(0),
+mBytesWritten(0)
+{
+    pthread_mutex_init(&mMutex, NULL);
+    pthread_cond_init(&mCondition, NULL);
+    memset(mSlots, 0, sizeof(mSlots));
+}
+
+
+FrameRecorder::~FrameRecorder()
+{
+    stop();
+    pthread_cond_destroy(&mCondition);
+    pthread_mutex_destroy(&mMutex);
+}
+
+
+bool
+FrameRecorder::start(const char* path, int keyCount, const float* rectangles,
+                    const int* notes)
+{
+    stop();
+
+    FILE* file = fopen(path, "wb");
+    if (file == 0)
+        return false;
+
+    int version = VERSION;
+    bool written = fwrite(MAGIC, 4, 1, file) == 1 &&
+                   fwrite(&version, 4, 1, file) == 1 &&
+                   fwrite(&keyCount, 4, 1, file) == 1 &&
+                   fwrite(rectangles, 4, keyCount * 4, file) ==
+                                                (size_t) keyCount * 4 &&
+                   fwrite(notes, 4, keyCount, file) == (size_t) keyCount;
+    if (!written)
+    {
+        fclose(file);
+        return false;
+    }
+
+    pthread_mutex_lock(&mMutex);
+    mFile = file;
+    mWords = (keyCount + 63) / 64;
+    mHead = 0;
+    mCount = 0;
+    mFramesWritten = 0;
+    mFramesDropped = 0;
+    mBytesWritten = ftell(file);
+    mRecording = true;
+    pthread_mutex_unlock(&mMutex);
+
+    if (pthread_create(&mThread, NULL, writerThread, this) != 0)
+    {
+        pthread_mutex_lock(&mMutex);
+        mRecording = false;
+        mFile = 0;
+        pthread_mutex_unlock(&mMutex);
+        fclose(file);
+        return false;
+    }
+    return true;
+}
+
+
+void
+FrameRecorder::stop()
+{
+    pthread_mutex_lock(&mMutex);
+    bool recording = mRecording;
+    mRecording = false;
+    pthread_cond_signal(&mCondition);
+    pthread_mutex_unlock(&mMutex);
+
+    if (!recording)
+        return;
+
+    // The writer thread writes the queued frames before it exits:
+    pthread_join(mThread, NULL);
+    fclose(mFile);
+    mFile = 0;
+    freeSlots();
+}
+
+
+bool
+FrameRecorder::isRecording()
+{
+    pthread_mutex_lock(&mMutex);
+    bool recording = mRecording;
+    pthread_mutex_unlock(&mMutex);
+    return recording;
+}
+
+
+bool
+FrameRecorder::record(int frameIndex, long long trackerNanos, bool tracked,
+                    const float* pose, const float* camera, int imageWidth,
+                    int imageHeight, const unsigned char* pixels, int stride,
+                    const int* crop, const long long* pressed,
+                    const long long* enabled)
+{
+    pthread_mutex_lock(&mMutex);
+    if (!mRecording)
+    {
+        pthread_mutex_unlock(&mMutex);
+        return false;
+    }
+    if (mCount == SLOT_COUNT)
+    {
+        mFramesDropped++;
+        pthread_mutex_unlock(&mMutex);
+        return false;
+    }
+
+    int cropX = 0, cropY = 0, cropWidth = 0, cropHeight = 0;
+    if (pixels != 0 && crop != 0)
+    {
+        cropX = crop[0];
+        cropY = crop[1];
+        cropWidth = crop[2];
+        cropHeight = crop[3];
+    }
+
+    // The slot at mHead is not touched by the writer thread while mCount is
+    // below SLOT_COUNT. It only grows, so this allocates for the first
+    // frames only:
+    size_t pixelSize = (size_t) cropWidth * cropHeight;
+    size_t size = FRAME_HEADER_SIZE + mWords * 16 + ((pixelSize + 3) & ~3);
+    Slot& slot = mSlots[mHead];
+    if (slot.capacity < size)
+    {
+        unsigned char* data = (unsigned char*) realloc(slot.data, size);
+        if (data == 0)
+        {
+            mFramesDropped++;
+            pthread_mutex_unlock(&mMutex);
+            return false;
+        }
+        slot.data = data;
+        slot.capacity = size;
+    }
+
+    int trackedFlag = tracked ? 1 : 0;
+    int bounds[6] = { imageWidth, imageHeight, cropX, cropY, cropWidth,
+                      cropHeight };
+    unsigned char* out = slot.data;
+    out = put(out, FRAME_MARKER, 4);
+    out = put(out, &frameIndex, 4);
+    out = put(out, &trackerNanos, 8);
+    out = put(out, &trackedFlag, 4);
+    out = put(out, pose, 12 * 4);
+    out = put(out, camera, 4 * 4);
+    out = put(out, bounds, 6 * 4);
+    out = put(out, pressed, mWords * 8);
+    out = put(out, enabled, mWords * 8);
+    for (int row = 0; row < cropHeight; ++row)
+        out = put(out, pixels + (cropY + row) * stride + cropX, cropWidth);
+    while ((size_t) (out - slot.data) < size)
+        *out++ = 0;
+    slot.size = size;
+
+    mHead = (mHead + 1) % SLOT_COUNT;
+    mCount++;
+    pthread_cond_signal(&mCondition);
+    pthread_mutex_unlock(&mMutex);
+    return true;
+}
+
+
+void
+FrameRecorder::getStatistics(long long* statistics)
+{
+    pthread_mutex_lock(&mMutex);
+    statistics[0] = mFramesWritten;
+    statistics[1] = mFramesDropped;
+    statistics[2] = mBytesWritten;
+    pthread_mutex_unlock(&mMutex);
+}
+
+
+void*
+FrameRecorder::writerThread(void* recorder)
+{
+    static_cast<FrameRecorder*>(recorder)->writeFrames();
+    return NULL;
+}
+
+
+void
+FrameRecorder::writeFrames()
+{
+    pthread_mutex_lock(&mMutex);
+    while (true)
+    {
+        while (mCount == 0 && mRecording)
+            pthread_cond_wait(&mCondition, &mMutex);
+        if (mCount == 0)
+            break;
+
+        // The oldest slot belongs to this thread until mCount is decremented:
+        Slot& slot = mSlots[(mHead - mCount + SLOT_COUNT) % SLOT_COUNT];
+        pthread_mutex_unlock(&mMutex);
+
+        bool written = fwrite(slot.data, slot.size, 1, mFile) == 1;
+
+        pthread_mutex_lock(&mMutex);
+        mCount--;
+        if (written)
+        {
+            mFramesWritten++;
+            mBytesWritten += slot.size;
+        }
+        else
+        {
+            mFramesDropped++;
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+    fflush(mFile);
+}
+
+
+void
+FrameRecorder::freeSlots()
+{
+    for (int i = 0; i < SLOT_COUNT; ++i)
+    {
+        free(mSlots[i].data);
+        mSlots[i].data = 0;
+        mSlots[i].size = 0;
+        mSlots[i].capacity = 0;
+    }
+}
@@ -0,0 +1,109 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    FrameRecorder.h
+
+@brief
+    Records camera luminance frames, poses and button states to a file.
+
+==============================================================================*/
+#ifndef _QCAR_FRAME_RECORDER_H_
+#define _QCAR_FRAME_RECORDER_H_
+
+// Include files
+#include <pthread.h>
+#include <stdio.h>
+
+/// Records camera luminance frames, poses and button states to a file.
+///
+/// The file is little endian with 4 byte aligned fields, see
+/// tools/src/.../FrameReplay.java for the reader:
+///
+///     header  char magic[4] "VPRC", int version, int keyCount,
+///             float rectangles[keyCount * 4], int notes[keyCount]
+///     frame   int marker "FRME", int frameIndex, long long trackerNanos,
+///             int tracked, float pose[12], float camera[4] (focal length
+///             and principal point in pixels of the full image),
+///             int imageWidth, int imageHeight,
+///             int cropX, int cropY, int cropWidth, int cropHeight,
+///             long long pressed[(keyCount + 63) / 64],
+///             long long enabled[(keyCount + 63) / 64],
+///             unsigned char pixels[cropWidth * cropHeight], padding to 4
+///
+/// Only a crop of the image around the keys is kept, which is all the
+/// OcclusionDetector reads. record() copies a frame into one of SLOT_COUNT
+/// buffers and returns; a writer thread writes the buffers to the file, so
+/// the calling (tracking) thread never waits for storage. Frames arriving
+/// while all buffers are full are dropped and counted.
+class FrameRecorder
+{
+public:
+
+    enum { SLOT_COUNT = 8, VERSION = 1 };
+
+    /// Constructor
+    FrameRecorder();
+
+    /// Destructor, stops recording.
+    ~FrameRecorder();
+
+    /// Creates the file, writes the header and starts the writer thread.
+    bool start(const char* path, int keyCount, const float* rectangles,
+                const int* notes);
+
+    /// Writes the queued frames and closes the file.
+    void stop();
+
+    /// Returns true between start() and stop().
+    bool isRecording();
+
+    /// Queues a frame. The crop (x, y, width, height) of the image is
+    /// copied, pixels may be 0 if the frame has no image. The pressed keys
+    /// are the ground truth, the enabled keys those the detector looks at.
+    /// Returns false if the frame was dropped or nothing is recorded.
+    bool record(int frameIndex, long long trackerNanos, bool tracked,
+                const float* pose, const float* camera, int imageWidth,
+                int imageHeight, const unsigned char* pixels, int stride,
+                const int* crop, const long long* pressed,
+                const long long* enabled);
+
+    /// Copies frames written, frames dropped and bytes written.
+    void getStatistics(long long* statistics);
+
+private:
+
+    /// A serialized frame waiting for the writer thread.
+    struct Slot
+    {
+        unsigned char* data;
+        size_t size;
+        size_t capacity;
+    };
+
+    static void* writerThread(void* recorder);
+
+    void writeFrames();
+
+    void freeSlots();
+
+    pthread_mutex_t mMutex;
+    pthread_cond_t mCondition;
+    pthread_t mThread;
+
+    // Guarded by mMutex:
+    bool mRecording;
+    FILE* mFile;
+    int mWords;
+    Slot mSlots[SLOT_COUNT];
+    int mHead;
+    int mCount;
+    long long mFramesWritten;
+    long long mFramesDropped;
+    long long mBytesWritten;
+};
+
+
+#endif //_QCAR_FRAME_RECORDER_H_
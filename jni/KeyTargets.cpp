@@ -0,0 +1,217 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    KeyTargets.cpp
+
+@brief
+    Implementation of class KeyTargets.
+
+==============================================================================*/
+
+// Include files
+#include "KeyTargets.h"
+
+#include <string.h>
+
+namespace
+{
+    /// Returns the valid bits of word w of a target with the given keys.
+    unsigned long long
+    wordMask(int keyCount, int w)
+    {
+        int bits = keyCount - w * 64;
+        return bits >= 64 ? ~0ULL : (1ULL << bits) - 1;
+    }
+}
+
+
+KeyTargets::KeyTargets() :
+mTargetCount(0),
+mWords(0),
+mNames(0),
+mFirstKeys(0)
+{
+}
+
+
+KeyTargets::~KeyTargets()
+{
+    release();
+}
+
+
+bool
+KeyTargets::init(int targetCount, const char* const* names,
+                const int* firstKeys)
+{
+    release();
+    if (targetCount <= 0 || targetCount > MAX_TARGETS)
+        return false;
+
+    for (int t = 0; t < targetCount; ++t)
+    {
+        if (firstKeys[t] < 0 || firstKeys[t] > firstKeys[t + 1])
+            return false;
+    }
+
+    mTargetCount = targetCount;
+    mWords = (firstKeys[targetCount] + 63) / 64;
+    mNames = new char*[targetCount];
+    mFirstKeys = new int[targetCount + 1];
+    for (int t = 0; t < targetCount; ++t)
+    {
+        mNames[t] = new char[strlen(names[t]) + 1];
+        strcpy(mNames[t], names[t]);
+    }
+    memcpy(mFirstKeys, firstKeys, (targetCount + 1) * sizeof(int));
+    return true;
+}
+
+
+void
+KeyTargets::release()
+{
+    for (int t = 0; t < mTargetCount; ++t)
+        delete[] mNames[t];
+
+    delete[] mNames;
+    delete[] mFirstKeys;
+    mNames = 0;
+    mFirstKeys = 0;
+    mTargetCount = 0;
+    mWords = 0;
+}
+
+
+int
+KeyTargets::getTargetCount() const
+{
+    return mTargetCount;
+}
+
+
+int
+KeyTargets::getWords() const
+{
+    return mWords;
+}
+
+
+const char*
+KeyTargets::getName(int target) const
+{
+    return mNames[target];
+}
+
+
+int
+KeyTargets::getFirstKey(int target) const
+{
+    return mFirstKeys[target];
+}
+
+
+int
+KeyTargets::getKeyCount(int target) const
+{
+    return mFirstKeys[target + 1] - mFirstKeys[target];
+}
+
+
+int
+KeyTargets::getTargetWords(int target) const
+{
+    return (getKeyCount(target) + 63) / 64;
+}
+
+
+int
+KeyTargets::getMaxKeyCount() const
+{
+    int maxKeyCount = 0;
+    for (int t = 0; t < mTargetCount; ++t)
+    {
+        if (getKeyCount(t) > maxKeyCount)
+            maxKeyCount = getKeyCount(t);
+    }
+    return maxKeyCount;
+}
+
+
+int
+KeyTargets::getTarget(int key) const
+{
+    for (int t = 0; t < mTargetCount; ++t)
+    {
+        if (key >= mFirstKeys[t] && key < mFirstKeys[t + 1])
+            return t;
+    }
+    return -1;
+}
+
+
+int
+KeyTargets::find(int* trackableIds, int trackableId, const char* name) const
+{
+    for (int t = 0; t < mTargetCount; ++t)
+    {
+        if (trackableIds[t] == trackableId)
+            return t;
+    }
+
+    // Trackables are only created when the dataset is loaded:
+    for (int t = 0; t < mTargetCount; ++t)
+    {
+        if (strcmp(name, mNames[t]) == 0)
+        {
+            trackableIds[t] = trackableId;
+            return t;
+        }
+    }
+    return -1;
+}
+
+
+void
+KeyTargets::merge(long long* keys, int target,
+                const long long* targetKeys) const
+{
+    unsigned long long* words = (unsigned long long*) keys;
+    int keyCount = getKeyCount(target);
+    int first = mFirstKeys[target];
+    int shift = first & 63;
+    for (int w = 0; w < getTargetWords(target); ++w)
+    {
+        unsigned long long mask = wordMask(keyCount, w);
+        unsigned long long value = (unsigned long long) targetKeys[w] & mask;
+
+        // Word w of the target straddles up to two words of the layout:
+        int index = (first >> 6) + w;
+        words[index] = (words[index] & ~(mask << shift)) | (value << shift);
+        if (shift != 0 && index + 1 < mWords)
+            words[index + 1] = (words[index + 1] & ~(mask >> (64 - shift))) |
+                               (value >> (64 - shift));
+    }
+}
+
+
+void
+KeyTargets::extract(const long long* keys, int target,
+                    long long* targetKeys) const
+{
+    const unsigned long long* words = (const unsigned long long*) keys;
+    int keyCount = getKeyCount(target);
+    int first = mFirstKeys[target];
+    int shift = first & 63;
+    for (int w = 0; w < getTargetWords(target); ++w)
+    {
+        int index = (first >> 6) + w;
+        unsigned long long value = words[index] >> shift;
+        if (shift != 0 && index + 1 < mWords)
+            value |= words[index + 1] << (64 - shift);
+        targetKeys[w] = (long long) (value & wordMask(keyCount, w));
+    }
+}
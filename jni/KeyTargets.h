@@ -0,0 +1,96 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    KeyTargets.h
+
+@brief
+    Maps the image targets of the dataset to their keys in the layout.
+
+==============================================================================*/
+#ifndef _QCAR_KEY_TARGETS_H_
+#define _QCAR_KEY_TARGETS_H_
+
+/// Maps the image targets of the dataset to their keys in the layout.
+///
+/// Every target, e.g. a printed octave sheet, holds a run of consecutive
+/// keys of the layout, see KeyLayout.java. A trackable is matched to its
+/// target by name the first time it is seen and by its ID afterwards, and
+/// the keys of a target are moved between the words of the layout and
+/// words of its own, so that per-target state such as an OcclusionDetector
+/// is indexed from 0. All of this is bounded by the keys of the target.
+///
+/// The IDs matched so far are kept by the caller, one array per thread.
+///
+/// The class has no dependency on QCAR or JNI and does not allocate after
+/// init(), so it can be used in desktop benchmarks.
+class KeyTargets
+{
+public:
+
+    /// The most targets of a layout, all of them may be tracked at once.
+    enum { MAX_TARGETS = 4 };
+
+    /// Constructor
+    KeyTargets();
+
+    /// Destructor.
+    ~KeyTargets();
+
+    /// Sizes the map for the given targets. firstKeys holds the first key
+    /// of every target and the key count of the layout at the end.
+    bool init(int targetCount, const char* const* names,
+                const int* firstKeys);
+
+    /// Releases all buffers.
+    void release();
+
+    /// Returns the number of targets.
+    int getTargetCount() const;
+
+    /// Returns the number of words of the key sets of the layout.
+    int getWords() const;
+
+    /// Returns the name of a target.
+    const char* getName(int target) const;
+
+    /// Returns the first key of a target in the layout.
+    int getFirstKey(int target) const;
+
+    /// Returns the number of keys of a target.
+    int getKeyCount(int target) const;
+
+    /// Returns the number of words of the key sets of a target.
+    int getTargetWords(int target) const;
+
+    /// Returns the largest key count of all targets.
+    int getMaxKeyCount() const;
+
+    /// Returns the target of a key, or -1.
+    int getTarget(int key) const;
+
+    /// Returns the target of a trackable, or -1 if no target has its name.
+    /// trackableIds holds the ID matched for every target, -1 for none.
+    int find(int* trackableIds, int trackableId, const char* name) const;
+
+    /// Sets the keys of a target in the words of the layout from the words
+    /// of the target, bit k for its key k. Other keys are left alone.
+    void merge(long long* keys, int target,
+                const long long* targetKeys) const;
+
+    /// Copies the keys of a target out of the words of the layout into
+    /// the words of the target.
+    void extract(const long long* keys, int target,
+                long long* targetKeys) const;
+
+private:
+
+    int mTargetCount;
+    int mWords;
+    char** mNames;
+    int* mFirstKeys;
+};
+
+#endif //_QCAR_KEY_TARGETS_H_
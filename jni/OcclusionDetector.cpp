@@ -0,0 +1,457 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    OcclusionDetector.cpp
+
+@brief
+    Implementation of class OcclusionDetector.
+
+==============================================================================*/
+
+// Include files
+#include "OcclusionDetector.h"
+
+#include <math.h>
+#include <string.h>
+
+namespace
+{
+    /// Frames a key learns its reference before it can be pressed.
+    const int LEARN_FRAMES = 8;
+
+    /// Frames a key may stay pressed before the scene is assumed to have
+    /// changed and the reference is learned again (20 s at 30 fps).
+    const int MAX_PRESSED_FRAMES = 600;
+
+    /// Frames a pressed key may not be sampled, e.g. while it is outside
+    /// the image, before it is released (0.5 s at 30 fps).
+    const int MAX_UNSAMPLED_FRAMES = 15;
+
+    /// The smallest luminance difference of an occluded sample.
+    const float MIN_SAMPLE_DELTA = 12.0f;
+
+    /// Occluded samples differ by this many times the key's noise.
+    const float NOISE_FACTOR = 4.0f;
+
+    /// Adaption rates of the reference and noise while learning and while
+    /// released.
+    const float LEARN_RATE = 1.0f / 4.0f;
+    const float ADAPT_RATE = 1.0f / 32.0f;
+
+    /// Occluded fraction pressing a key, per SENSITIVITY.
+    const float PRESS_THRESHOLDS[] = { 0.3f, 0.45f, 0.6f };
+
+    /// A key is released below this fraction of its press threshold.
+    const float RELEASE_RATIO = 0.5f;
+}
+
+
+OcclusionDetector::OcclusionDetector() :
+mKeyCount(0),
+mWords(0),
+mKeys(0),
+mPressedKeys(0),
+mFocalX(0),
+mFocalY(0),
+mPrincipalX(0),
+mPrincipalY(0)
+{
+    memset(mHomography, 0, sizeof(mHomography));
+}
+
+
+OcclusionDetector::~OcclusionDetector()
+{
+    release();
+}
+
+
+bool
+OcclusionDetector::init(int keyCount, const float* rectangles)
+{
+    release();
+    if (keyCount <= 0)
+        return false;
+
+    mKeyCount = keyCount;
+    mWords = (keyCount + 63) / 64;
+    mKeys = new Key[keyCount];
+    mPressedKeys = new long long[mWords];
+    memset(mPressedKeys, 0, mWords * sizeof(long long));
+
+    for (int k = 0; k < keyCount; ++k)
+    {
+        Key& key = mKeys[k];
+        memcpy(key.rectangle, &rectangles[k * 4], sizeof(key.rectangle));
+        key.pressThreshold = PRESS_THRESHOLDS[MEDIUM];
+        key.pressed = false;
+        startLearning(key);
+    }
+    return true;
+}
+
+
+void
+OcclusionDetector::release()
+{
+    delete[] mKeys;
+    delete[] mPressedKeys;
+    mKeys = 0;
+    mPressedKeys = 0;
+    mKeyCount = 0;
+    mWords = 0;
+}
+
+
+int
+OcclusionDetector::getKeyCount() const
+{
+    return mKeyCount;
+}
+
+
+void
+OcclusionDetector::setCamera(float focalX, float focalY, float principalX,
+                            float principalY)
+{
+    mFocalX = focalX;
+    mFocalY = focalY;
+    mPrincipalX = principalX;
+    mPrincipalY = principalY;
+}
+
+
+void
+OcclusionDetector::setRectangle(int key, const float* rectangle)
+{
+    if (key < 0 || key >= mKeyCount)
+        return;
+
+    memcpy(mKeys[key].rectangle, rectangle, sizeof(mKeys[key].rectangle));
+    setPressed(key, false);
+    startLearning(mKeys[key]);
+}
+
+
+void
+OcclusionDetector::setSensitivity(int key, int sensitivity)
+{
+    if (key < 0 || key >= mKeyCount || sensitivity < HIGH ||
+        sensitivity > LOW)
+        return;
+
+    mKeys[key].pressThreshold = PRESS_THRESHOLDS[sensitivity];
+}
+
+
+void
+OcclusionDetector::setPose(const float* pose)
+{
+    // Points on the target plane have z = 0, so the projection reduces to a
+    // homography of the x, y and translation columns of the pose:
+    float* h = mHomography;
+    h[0] = mFocalX * pose[0] + mPrincipalX * pose[8];
+    h[1] = mFocalX * pose[1] + mPrincipalX * pose[9];
+    h[2] = mFocalX * pose[3] + mPrincipalX * pose[11];
+    h[3] = mFocalY * pose[4] + mPrincipalY * pose[8];
+    h[4] = mFocalY * pose[5] + mPrincipalY * pose[9];
+    h[5] = mFocalY * pose[7] + mPrincipalY * pose[11];
+    h[6] = pose[8];
+    h[7] = pose[9];
+    h[8] = pose[11];
+}
+
+
+bool
+OcclusionDetector::getKeyBounds(int width, int height, int margin,
+                                int* bounds) const
+{
+    const float* h = mHomography;
+    float minU = (float) width, minV = (float) height, maxU = 0, maxV = 0;
+    bool found = false;
+
+    for (int k = 0; k < mKeyCount; ++k)
+    {
+        const float* r = mKeys[k].rectangle;
+        for (int corner = 0; corner < 4; ++corner)
+        {
+            float x = r[(corner & 1) ? 2 : 0];
+            float y = r[(corner & 2) ? 3 : 1];
+            float w = h[6] * x + h[7] * y + h[8];
+            if (w <= 1e-6f)
+                continue;
+
+            float u = (h[0] * x + h[1] * y + h[2]) / w;
+            float v = (h[3] * x + h[4] * y + h[5]) / w;
+            minU = u < minU ? u : minU;
+            minV = v < minV ? v : minV;
+            maxU = u > maxU ? u : maxU;
+            maxV = v > maxV ? v : maxV;
+            found = true;
+        }
+    }
+
+    int left = (int) minU - margin;
+    int top = (int) minV - margin;
+    int right = (int) maxU + margin + 1;
+    int bottom = (int) maxV + margin + 1;
+    left = left < 0 ? 0 : left;
+    top = top < 0 ? 0 : top;
+    right = right > width ? width : right;
+    bottom = bottom > height ? height : bottom;
+    if (!found || right <= left || bottom <= top)
+        return false;
+
+    bounds[0] = left;
+    bounds[1] = top;
+    bounds[2] = right - left;
+    bounds[3] = bottom - top;
+    return true;
+}
+
+
+int
+OcclusionDetector::update(const unsigned char* pixels, int width, int height,
+                        int stride, const float* pose,
+                        const long long* enabledKeys)
+{
+    if (pixels == 0 || pose == 0 || mKeyCount == 0)
+        return 0;
+
+    setPose(pose);
+
+    int evaluated = 0;
+    for (int k = 0; k < mKeyCount; ++k)
+    {
+        if (enabledKeys != 0 && ((enabledKeys[k >> 6] >> (k & 63)) & 1) == 0)
+        {
+            setPressed(k, false);
+            continue;
+        }
+
+        // A key leaving the image while pressed must not stay down:
+        Key& key = mKeys[k];
+        if (!sample(key, pixels, width, height, stride))
+        {
+            if (key.pressed && ++key.unsampledFrames > MAX_UNSAMPLED_FRAMES)
+                setPressed(k, false);
+            continue;
+        }
+
+        key.unsampledFrames = 0;
+        evaluate(k);
+        evaluated++;
+    }
+    return evaluated;
+}
+
+
+bool
+OcclusionDetector::sample(const Key& key, const unsigned char* pixels,
+                        int width, int height, int stride) const
+{
+    const float* h = mHomography;
+    const float* r = key.rectangle;
+
+    // All corners must be in front of the camera and inside the image, the
+    // samples then are as well:
+    for (int corner = 0; corner < 4; ++corner)
+    {
+        float x = r[(corner & 1) ? 2 : 0];
+        float y = r[(corner & 2) ? 3 : 1];
+        float w = h[6] * x + h[7] * y + h[8];
+        if (w <= 1e-6f)
+            return false;
+
+        float u = (h[0] * x + h[1] * y + h[2]) / w;
+        float v = (h[3] * x + h[4] * y + h[5]) / w;
+        if (u < 0 || v < 0 || u >= width - 1 || v >= height - 1)
+            return false;
+    }
+
+    // Walk each row of the grid in homogeneous coordinates:
+    float dx = (r[2] - r[0]) / GRID_SIZE;
+    float dy = (r[3] - r[1]) / GRID_SIZE;
+    float du = h[0] * dx;
+    float dv = h[3] * dx;
+    float dw = h[6] * dx;
+    float x0 = r[0] + 0.5f * dx;
+    int maxX = width - 2;
+    int maxY = height - 2;
+
+    float* samples = mSamples;
+    for (int j = 0; j < GRID_SIZE; ++j)
+    {
+        float y = r[1] + (j + 0.5f) * dy;
+        float u = h[0] * x0 + h[1] * y + h[2];
+        float v = h[3] * x0 + h[4] * y + h[5];
+        float w = h[6] * x0 + h[7] * y + h[8];
+
+        for (int i = 0; i < GRID_SIZE; ++i)
+        {
+            float inverse = 1.0f / w;
+            int px = (int) (u * inverse);
+            int py = (int) (v * inverse);
+            px = px < 0 ? 0 : (px > maxX ? maxX : px);
+            py = py < 0 ? 0 : (py > maxY ? maxY : py);
+
+            // Average 2x2 pixels against sensor noise:
+            const unsigned char* p = pixels + py * stride + px;
+            *samples++ = (p[0] + p[1] + p[stride] + p[stride + 1]) * 0.25f;
+
+            u += du;
+            v += dv;
+            w += dw;
+        }
+    }
+    return true;
+}
+
+
+void
+OcclusionDetector::evaluate(int k)
+{
+    Key& key = mKeys[k];
+    const float* samples = mSamples;
+
+    if (key.learnFrames > 0)
+    {
+        if (key.learnFrames == LEARN_FRAMES)
+        {
+            memcpy(key.reference, samples, sizeof(key.reference));
+            key.noise = 0;
+        }
+        else
+        {
+            float deviation = 0;
+            for (int i = 0; i < SAMPLE_COUNT; ++i)
+            {
+                float d = samples[i] - key.reference[i];
+                key.reference[i] += d * LEARN_RATE;
+                deviation += fabsf(d);
+            }
+            key.noise += (deviation / SAMPLE_COUNT - key.noise) * LEARN_RATE;
+        }
+
+        key.learnFrames--;
+        key.score = 0;
+        return;
+    }
+
+    float delta = NOISE_FACTOR * key.noise;
+    if (delta < MIN_SAMPLE_DELTA)
+        delta = MIN_SAMPLE_DELTA;
+
+    int occluded = 0;
+    float deviation = 0;
+    for (int i = 0; i < SAMPLE_COUNT; ++i)
+    {
+        float d = fabsf(samples[i] - key.reference[i]);
+        deviation += d;
+        if (d > delta)
+            occluded++;
+    }
+
+    float score = (float) occluded / SAMPLE_COUNT;
+    float releaseThreshold = key.pressThreshold * RELEASE_RATIO;
+    key.score = score;
+
+    if (!key.pressed)
+    {
+        if (score >= key.pressThreshold)
+        {
+            setPressed(k, true);
+            key.pressedFrames = 0;
+        }
+        else if (score < releaseThreshold)
+        {
+            // Follow slow changes of lighting and pose jitter:
+            for (int i = 0; i < SAMPLE_COUNT; ++i)
+                key.reference[i] += (samples[i] - key.reference[i]) *
+                                    ADAPT_RATE;
+            key.noise += (deviation / SAMPLE_COUNT - key.noise) * ADAPT_RATE;
+        }
+    }
+    else if (score < releaseThreshold)
+    {
+        setPressed(k, false);
+    }
+    else if (++key.pressedFrames > MAX_PRESSED_FRAMES)
+    {
+        setPressed(k, false);
+        startLearning(key);
+    }
+}
+
+
+void
+OcclusionDetector::startLearning(Key& key)
+{
+    key.learnFrames = LEARN_FRAMES;
+    key.pressedFrames = 0;
+    key.unsampledFrames = 0;
+    key.noise = 0;
+    key.score = 0;
+}
+
+
+void
+OcclusionDetector::setPressed(int key, bool pressed)
+{
+    mKeys[key].pressed = pressed;
+    long long bit = (long long) 1 << (key & 63);
+    if (pressed)
+        mPressedKeys[key >> 6] |= bit;
+    else
+        mPressedKeys[key >> 6] &= ~bit;
+}
+
+
+void
+OcclusionDetector::lost()
+{
+    for (int k = 0; k < mKeyCount; ++k)
+        mKeys[k].pressed = false;
+    if (mPressedKeys != 0)
+        memset(mPressedKeys, 0, mWords * sizeof(long long));
+}
+
+
+void
+OcclusionDetector::relearn()
+{
+    lost();
+    for (int k = 0; k < mKeyCount; ++k)
+        startLearning(mKeys[k]);
+}
+
+
+const long long*
+OcclusionDetector::getPressedKeys() const
+{
+    return mPressedKeys;
+}
+
+
+bool
+OcclusionDetector::isPressed(int key) const
+{
+    return key >= 0 && key < mKeyCount && mKeys[key].pressed;
+}
+
+
+float
+OcclusionDetector::getScore(int key) const
+{
+    return key >= 0 && key < mKeyCount ? mKeys[key].score : 0;
+}
+
+
+float
+OcclusionDetector::getPressThreshold(int key) const
+{
+    return key >= 0 && key < mKeyCount ? mKeys[key].pressThreshold : 0;
+}
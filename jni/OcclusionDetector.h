@@ -0,0 +1,154 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    OcclusionDetector.h
+
+@brief
+    Detects keys covered by a finger in the camera luminance image.
+
+==============================================================================*/
+#ifndef _QCAR_OCCLUSION_DETECTOR_H_
+#define _QCAR_OCCLUSION_DETECTOR_H_
+
+// Include files
+#include <stddef.h>
+
+/// Detects keys covered by a finger in the camera luminance image.
+///
+/// Each key is a rectangle on the target plane (z = 0, target units, as in
+/// the dataset XML). For every frame the rectangle is projected through the
+/// target pose and the camera intrinsics, and a GRID_SIZE x GRID_SIZE grid of
+/// 2x2 pixel samples is taken inside it. Only these regions of interest are
+/// read, so the cost depends on the number of keys, not on the image size.
+///
+/// A key keeps a reference of its samples and an estimate of their noise,
+/// both learned while it is released. A sample counts as occluded if it
+/// differs from the reference by more than the key's noise allows; the key
+/// is pressed when the occluded fraction reaches the threshold of its
+/// sensitivity and released again below half of that.
+///
+/// The class has no dependency on QCAR or JNI and does not allocate after
+/// init(), so it can be fed recorded frames and poses on a desktop.
+class OcclusionDetector
+{
+public:
+
+    /// The samples per key are GRID_SIZE x GRID_SIZE.
+    enum { GRID_SIZE = 8, SAMPLE_COUNT = GRID_SIZE * GRID_SIZE };
+
+    /// Sensitivities, same values as QCAR::VirtualButton::SENSITIVITY.
+    enum SENSITIVITY { HIGH = 0, MEDIUM = 1, LOW = 2 };
+
+    /// Constructor
+    OcclusionDetector();
+
+    /// Destructor.
+    ~OcclusionDetector();
+
+    /// Sizes the detector for the given keys, four floats (left, top, right,
+    /// bottom) per key. All keys start enabled with MEDIUM sensitivity.
+    bool init(int keyCount, const float* rectangles);
+
+    /// Releases all buffers.
+    void release();
+
+    /// Returns the number of keys.
+    int getKeyCount() const;
+
+    /// Sets the focal length and principal point, in pixels of the images
+    /// passed to update().
+    void setCamera(float focalX, float focalY, float principalX,
+                    float principalY);
+
+    /// Moves a key, it learns its reference again.
+    void setRectangle(int key, const float* rectangle);
+
+    /// Sets the sensitivity of a key.
+    void setSensitivity(int key, int sensitivity);
+
+    /// Sets the pose used to project the keys, see update().
+    void setPose(const float* pose);
+
+    /// Returns the bounding box of all keys projected with the last pose,
+    /// grown by margin pixels and clipped to the image, as x, y, width and
+    /// height. Returns false if no key is in front of the camera.
+    bool getKeyBounds(int width, int height, int margin, int* bounds) const;
+
+    /// Detects the pressed keys in a luminance image.
+    ///
+    /// The pose is the row-major 3x4 transformation from the target to the
+    /// camera (x right, y down, z forward). Keys whose bit is not set in
+    /// enabledKeys, if given, are released and skipped. Returns the number
+    /// of keys evaluated, keys projecting outside the image keep their
+    /// state for a few frames and are released after that.
+    int update(const unsigned char* pixels, int width, int height,
+                int stride, const float* pose,
+                const long long* enabledKeys = NULL);
+
+    /// Releases all keys, e.g. while the target is not tracked.
+    void lost();
+
+    /// Makes every key learn its reference again.
+    void relearn();
+
+    /// Returns the pressed keys, bit k of word k / 64 for key k.
+    const long long* getPressedKeys() const;
+
+    /// Returns true if the key is pressed.
+    bool isPressed(int key) const;
+
+    /// Returns the occluded fraction of the key's samples in the last
+    /// frame it was evaluated.
+    float getScore(int key) const;
+
+    /// Returns the occluded fraction at which the key is pressed.
+    float getPressThreshold(int key) const;
+
+private:
+
+    /// The state of a key.
+    struct Key
+    {
+        float rectangle[4];
+        float reference[SAMPLE_COUNT];
+        float noise;
+        float score;
+        float pressThreshold;
+        int learnFrames;
+        int pressedFrames;
+        int unsampledFrames;
+        bool pressed;
+    };
+
+    /// Samples a key into mSamples, returns false if it is not fully
+    /// inside the image.
+    bool sample(const Key& key, const unsigned char* pixels, int width,
+                int height, int stride) const;
+
+    /// Updates the state of a key from mSamples.
+    void evaluate(int key);
+
+    /// Starts learning the reference of a key.
+    void startLearning(Key& key);
+
+    void setPressed(int key, bool pressed);
+
+    int mKeyCount;
+    int mWords;
+    Key* mKeys;
+    long long* mPressedKeys;
+
+    /// The homography from the target plane to the image of this frame.
+    float mHomography[9];
+
+    float mFocalX, mFocalY, mPrincipalX, mPrincipalY;
+
+    /// Scratch buffer of the samples of one key.
+    mutable float mSamples[SAMPLE_COUNT];
+};
+
+
+#endif //_QCAR_OCCLUSION_DETECTOR_H_
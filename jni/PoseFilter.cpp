@@ -0,0 +1,221 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    PoseFilter.cpp
+
+@brief
+    Implementation of class PoseFilter.
+
+==============================================================================*/
+
+// Include files
+#include "PoseFilter.h"
+
+#include <math.h>
+#include <string.h>
+
+namespace
+{
+    /// Default gains, beta = alpha^2 / (2 - alpha) damps critically.
+    const float DEFAULT_ALPHA = 0.6f;
+    const float DEFAULT_BETA = 0.26f;
+
+    /// The velocity kept per extrapolated frame, so that a prediction
+    /// settles instead of drifting away.
+    const float VELOCITY_DAMPING = 0.95f;
+
+    /// Frame intervals are clamped to this range, in seconds.
+    const float MIN_INTERVAL = 0.001f;
+    const float MAX_INTERVAL = 0.25f;
+
+    /// The filter restarts if the target moved by more than this fraction
+    /// of its distance since the last frame.
+    const float JUMP_RATIO = 0.2f;
+}
+
+
+PoseFilter::PoseFilter() :
+mSeconds(0),
+mAlpha(DEFAULT_ALPHA),
+mBeta(DEFAULT_BETA),
+mHoldFrames(DEFAULT_HOLD_FRAMES),
+mPredictedFrames(0),
+mHasPose(false),
+mInitialized(false)
+{
+    memset(mPose, 0, sizeof(mPose));
+    memset(mVelocity, 0, sizeof(mVelocity));
+}
+
+
+void
+PoseFilter::setGains(float alpha, float beta)
+{
+    mAlpha = alpha;
+    mBeta = beta;
+}
+
+
+void
+PoseFilter::setHoldFrames(int frames)
+{
+    mHoldFrames = frames < 0 ? 0 : frames;
+}
+
+
+int
+PoseFilter::getHoldFrames() const
+{
+    return mHoldFrames;
+}
+
+
+void
+PoseFilter::update(const float* pose, double seconds)
+{
+    // The renderer may draw the same camera frame more than once:
+    if (mInitialized && mPredictedFrames == 0 && seconds == mSeconds)
+        return;
+
+    float dt = (float) (seconds - mSeconds);
+    bool restart = !mInitialized || mPredictedFrames > mHoldFrames ||
+                   dt < 0 || dt > MAX_INTERVAL;
+    dt = dt < MIN_INTERVAL ? MIN_INTERVAL : dt;
+    if (!restart)
+    {
+        advance(dt);
+
+        float dx = pose[3] - mPose[3];
+        float dy = pose[7] - mPose[7];
+        float dz = pose[11] - mPose[11];
+        float distance2 = pose[3] * pose[3] + pose[7] * pose[7] +
+                          pose[11] * pose[11];
+        restart = dx * dx + dy * dy + dz * dz >
+                  JUMP_RATIO * JUMP_RATIO * distance2;
+    }
+
+    if (restart)
+    {
+        memcpy(mPose, pose, sizeof(mPose));
+        memset(mVelocity, 0, sizeof(mVelocity));
+        mInitialized = true;
+    }
+    else
+    {
+        float betaRate = mBeta / dt;
+        for (int i = 0; i < 12; ++i)
+        {
+            float residual = pose[i] - mPose[i];
+            mPose[i] += mAlpha * residual;
+            mVelocity[i] += betaRate * residual;
+        }
+        orthonormalize();
+    }
+
+    mSeconds = seconds;
+    mPredictedFrames = 0;
+    mHasPose = true;
+}
+
+
+bool
+PoseFilter::predict(double seconds)
+{
+    if (mInitialized && seconds == mSeconds)
+        return mHasPose;
+
+    // A pose from before the camera was stopped is of no use:
+    if (!mInitialized || mPredictedFrames >= mHoldFrames ||
+        seconds < mSeconds || seconds - mSeconds > MAX_INTERVAL)
+    {
+        mPredictedFrames++;
+        mHasPose = false;
+        return false;
+    }
+
+    float dt = (float) (seconds - mSeconds);
+    dt = dt < MIN_INTERVAL ? MIN_INTERVAL : (dt > MAX_INTERVAL ? MAX_INTERVAL
+                                                              : dt);
+    for (int i = 0; i < 12; ++i)
+        mVelocity[i] *= VELOCITY_DAMPING;
+    advance(dt);
+    orthonormalize();
+
+    mSeconds = seconds;
+    mPredictedFrames++;
+    mHasPose = true;
+    return true;
+}
+
+
+void
+PoseFilter::reset()
+{
+    mInitialized = false;
+    mHasPose = false;
+    mPredictedFrames = 0;
+}
+
+
+const float*
+PoseFilter::getPose() const
+{
+    return mPose;
+}
+
+
+bool
+PoseFilter::hasPose() const
+{
+    return mHasPose;
+}
+
+
+int
+PoseFilter::getPredictedFrames() const
+{
+    return mPredictedFrames;
+}
+
+
+void
+PoseFilter::advance(float dt)
+{
+    for (int i = 0; i < 12; ++i)
+        mPose[i] += mVelocity[i] * dt;
+}
+
+
+void
+PoseFilter::orthonormalize()
+{
+    // Gram-Schmidt on the x and y columns, which place the keys, and z as
+    // their cross product:
+    float* p = mPose;
+    float x[3] = { p[0], p[4], p[8] };
+    float y[3] = { p[1], p[5], p[9] };
+
+    float length = sqrtf(x[0] * x[0] + x[1] * x[1] + x[2] * x[2]);
+    if (length < 1e-6f)
+        return;
+    for (int i = 0; i < 3; ++i)
+        x[i] /= length;
+
+    float dot = x[0] * y[0] + x[1] * y[1] + x[2] * y[2];
+    for (int i = 0; i < 3; ++i)
+        y[i] -= dot * x[i];
+    length = sqrtf(y[0] * y[0] + y[1] * y[1] + y[2] * y[2]);
+    if (length < 1e-6f)
+        return;
+    for (int i = 0; i < 3; ++i)
+        y[i] /= length;
+
+    p[0] = x[0]; p[4] = x[1]; p[8] = x[2];
+    p[1] = y[0]; p[5] = y[1]; p[9] = y[2];
+    p[2] = x[1] * y[2] - x[2] * y[1];
+    p[6] = x[2] * y[0] - x[0] * y[2];
+    p[10] = x[0] * y[1] - x[1] * y[0];
+}
@@ -0,0 +1,89 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    PoseFilter.h
+
+@brief
+    Smooths the target pose and extrapolates it across tracking dropouts.
+
+==============================================================================*/
+#ifndef _QCAR_POSE_FILTER_H_
+#define _QCAR_POSE_FILTER_H_
+
+/// Smooths the target pose and extrapolates it across tracking dropouts.
+///
+/// An alpha-beta filter runs on each of the twelve elements of the
+/// row-major 3x4 pose, with the velocity per second. A measured pose
+/// corrects the prediction by alpha and the velocity by beta of the
+/// residual; afterwards the rotation is made orthonormal again. While the
+/// target is lost, predict() moves the pose on with a damped velocity for
+/// up to the hold frames, so that keys stay in place when a hand briefly
+/// covers the target.
+///
+/// The class has no dependency on QCAR and does not allocate, so it can be
+/// fed synthetic pose traces on a desktop.
+class PoseFilter
+{
+public:
+
+    enum { DEFAULT_HOLD_FRAMES = 10 };
+
+    /// Constructor
+    PoseFilter();
+
+    /// Sets the gains of the position and velocity correction, both in
+    /// (0, 1]. alpha = 1 and beta = 0 pass the measurements through.
+    void setGains(float alpha, float beta);
+
+    /// Sets the frames predict() extrapolates after tracking is lost,
+    /// 0 disables the extrapolation.
+    void setHoldFrames(int frames);
+
+    /// Returns the frames predict() extrapolates.
+    int getHoldFrames() const;
+
+    /// Filters the measured pose of a tracked frame taken at the given
+    /// time. The filter restarts from the measurement after a dropout
+    /// longer than the hold frames or if the target jumped. A frame with
+    /// the time of the last one is ignored, here and in predict().
+    void update(const float* pose, double seconds);
+
+    /// Extrapolates the pose to a frame without measurement. Returns false
+    /// if there is no pose, e.g. after more than the hold frames.
+    bool predict(double seconds);
+
+    /// Forgets the pose.
+    void reset();
+
+    /// Returns the filtered or extrapolated pose.
+    const float* getPose() const;
+
+    /// Returns true if getPose() is valid.
+    bool hasPose() const;
+
+    /// Returns the frames extrapolated since the last measurement.
+    int getPredictedFrames() const;
+
+private:
+
+    /// Moves the pose by the velocity over dt seconds.
+    void advance(float dt);
+
+    /// Makes the rotation orthonormal again.
+    void orthonormalize();
+
+    float mPose[12];
+    float mVelocity[12];
+    double mSeconds;
+    float mAlpha, mBeta;
+    int mHoldFrames;
+    int mPredictedFrames;
+    bool mHasPose;
+    bool mInitialized;
+};
+
+
+#endif //_QCAR_POSE_FILTER_H_
@@ -15,21 +15,20 @@
 #include "Texture.h"
 #include "SampleUtils.h"
 
-#include <string.h>
-
 Texture::Texture() :
 mWidth(0),
 mHeight(0),
 mChannelCount(0),
 mData(0),
+mDataSize(0),
+mCompressedFormat(0),
 mTextureID(0)
 {}
 
 
 Texture::~Texture()
 {
-    if (mData != 0)
-        delete[]mData;
+    // mData points into a direct buffer owned by Java
 }
 
 
@@ -60,45 +59,60 @@ Texture::create(JNIEnv* env, jobject textureObject)
     }
     newTexture->mHeight = env->GetIntField(textureObject, heightID);
 
-    // Always use RGBA channels:
-    newTexture->mChannelCount = 4;
+    // Get the compressed format, 0 for RGBA:
+    jfieldID formatID = env->GetFieldID(textureClass, "mCompressedFormat", "I");
+    if (!formatID)
+    {
+        LOG("Field mCompressedFormat not found.");
+        return 0;
+    }
+    newTexture->mCompressedFormat = env->GetIntField(textureObject, formatID);
+
+    // Uncompressed textures always use RGBA channels, ETC1 has RGB only:
+    newTexture->mChannelCount = newTexture->mCompressedFormat ? 3 : 4;
 
     // Get data:
-    jmethodID texBufferMethodId = env->GetMethodID(textureClass , "getData", "()[B");
+    jmethodID texBufferMethodId = env->GetMethodID(textureClass , "getData", "()Ljava/nio/ByteBuffer;");
     if (!texBufferMethodId)
     {
         LOG("Function GetTextureBuffer() not found.");
         return 0;
     }
     
-    jbyteArray pixelBuffer = (jbyteArray)env->CallObjectMethod(textureObject, texBufferMethodId);    
+    jobject pixelBuffer = env->CallObjectMethod(textureObject, texBufferMethodId);    
     if (pixelBuffer == NULL)
     {
         LOG("Get image buffer returned zero pointer");
         return 0;
     }
 
-    jboolean isCopy;
-    jbyte* pixels = env->GetByteArrayElements(pixelBuffer, &isCopy);
-    if (pixels == NULL)
+    // The Java side has already converted the texels to RGBA and flipped
+    // them into OpenGL row order, so the direct buffer is used as is.
+    //
+    // NOTE: The buffer is owned by the Java Texture object, which must stay
+    // referenced for as long as this texture is used.
+    newTexture->mData = (unsigned char*) env->GetDirectBufferAddress(pixelBuffer);
+    if (newTexture->mData == NULL)
     {
         LOG("Failed to get texture buffer.");
         return 0;
     }
 
-    newTexture->mData = new unsigned char[newTexture->mWidth * newTexture->mHeight * newTexture->mChannelCount];
-
-    unsigned char* textureData = (unsigned char*) pixels;
+    // ETC1 stores each 4x4 block in 8 bytes:
+    if (newTexture->mCompressedFormat)
+        newTexture->mDataSize = ((newTexture->mWidth + 3) / 4) *
+                                ((newTexture->mHeight + 3) / 4) * 8;
+    else
+        newTexture->mDataSize = newTexture->mWidth * newTexture->mHeight *
+                                newTexture->mChannelCount;
 
-    int rowSize = newTexture->mWidth * newTexture->mChannelCount;
-    for (int r = 0; r < newTexture->mHeight; ++r)
+    if (env->GetDirectBufferCapacity(pixelBuffer) < (jlong) newTexture->mDataSize)
     {
-        memcpy(newTexture->mData + rowSize * r, pixels + rowSize * (newTexture->mHeight - 1 - r), newTexture->mWidth * 4);
+        LOG("Texture buffer is too small.");
+        newTexture->mData = 0;
+        return 0;
     }
 
-    // Release:
-    env->ReleaseByteArrayElements(pixelBuffer, pixels, 0);
-    
     return newTexture;
 }
 
@@ -47,9 +47,18 @@ public:
     /// The number of channels of the texture.
     unsigned int mChannelCount;
 
-    /// The pointer to the raw texture data.
+    /// The pointer to the raw texture data, in OpenGL row order.
+    ///
+    /// This is the address of the direct buffer held by the Java Texture
+    /// object, it is not owned by this class.
     unsigned char* mData;
 
+    /// The size of mData in bytes.
+    unsigned int mDataSize;
+
+    /// The compressed OpenGL format of mData, 0 for uncompressed RGBA.
+    unsigned int mCompressedFormat;
+
     /// The ID of the texture
     unsigned int mTextureID;
 };
@@ -16,6 +16,8 @@
 #include <stdio.h>
 #include <string.h>
 #include <assert.h>
+#include <pthread.h>
+#include <time.h>
 
 #include <GLES2/gl2.h>
 #include <GLES2/gl2ext.h>
@@ -24,6 +26,8 @@
 #include <QCAR/UpdateCallback.h>
 #include <QCAR/CameraDevice.h>
 #include <QCAR/Renderer.h>
+#include <QCAR/Frame.h>
+#include <QCAR/Image.h>
 #include <QCAR/Area.h>
 #include <QCAR/Rectangle.h>
 #include <QCAR/VideoBackgroundConfig.h>
@@ -42,6 +46,10 @@
 #include "CubeShaders.h"
 #include "LineShaders.h"
 #include "Teapot.h"
+#include "OcclusionDetector.h"
+#include "FrameRecorder.h"
+#include "PoseFilter.h"
+#include "KeyTargets.h"
 
 #ifdef __cplusplus
 extern "C" {
@@ -77,17 +85,193 @@ static const float kTeapotScale = 3.f;
 
 QCAR::DataSet* dataSet = 0;
 
-// Enumeration for masking button indices into single integer:
-enum BUTTONS {
-	BUTTON_1 = 1, BUTTON_2 = 2, BUTTON_3 = 4, BUTTON_4 = 8
+// Key layout registered by VirtualButtons.setKeyLayout(), see KeyLayout.java.
+// Every per-frame buffer is allocated from it once, when it is set:
+int keyCount = 0;
+int keyStateWords = 0;
+char** keyNames = 0;
+float* keyRectangles = 0;	// left, top, right, bottom of each key
+jint* keyNotes = 0;
+GLfloat* vbVertices = 0;	// 24 floats (8 line vertices) per key
+
+// Maps the i-th virtual button of a target to its key. A slot is valid while
+// the button ID matches, so names are only compared when buttons change.
+// Each thread has its own cache:
+struct ButtonKeyCache
+{
+	int* keys;
+	int* buttonIds;
 };
 
-int buttonMask = 0;
+ButtonKeyCache trackerKeyCache = { 0, 0 };
+ButtonKeyCache renderKeyCache = { 0, 0 };
+
+// Key presses detected in the camera image instead of polling the Virtual
+// Buttons, see OcclusionDetector.h. The tracking thread runs the detector
+// on the keys that have a button and publishes the result for renderFrame():
+volatile bool occlusionDetection = true;
+bool occlusionDetectorActive = false;		// tracking thread only
+jlong* detectedKeys = 0;
+jlong* renderDetectedKeys = 0;
+volatile unsigned int detectedKeysSequence = 0;	// odd while written
+volatile bool detectedKeysValid = false;
+
+// Target pose filters, see PoseFilter.h. Each thread has its own, fed with
+// the same tracker states. While a target is briefly lost, e.g. under a
+// hand, its keys are drawn and detected at the extrapolated pose:
+volatile int poseHoldFrames = PoseFilter::DEFAULT_HOLD_FRAMES;
+
+// The image targets of the layout, e.g. printed octaves side by side, see
+// KeyTargets.h. Every target has its own pose filters and detector, indexed
+// by its own keys, and the keys of all targets are merged into the words of
+// the layout. The work of a frame grows with the targets tracked:
+struct TargetState
+{
+	PoseFilter trackerPoseFilter;
+	PoseFilter renderPoseFilter;
+	OcclusionDetector occlusionDetector;	// tracking thread only
+	long long* enabledKeys;			// keys with a button
+	bool detectorLost;			// released since the target was lost
+	bool idle;				// lost and its keys released
+	int renderVertexCount;			// vbVertices of the last tracked frame
+};
 
-// Virtual Button runtime creation:
-bool updateBtns = false;
-const char* virtualButtonColors[] = { "red", "blue", "yellow", "green" };
-const int NUM_BUTTONS = 4;
+KeyTargets keyTargets;
+TargetState targetStates[KeyTargets::MAX_TARGETS];
+int trackerTrackableIds[KeyTargets::MAX_TARGETS];
+int renderTrackableIds[KeyTargets::MAX_TARGETS];
+long long* trackerTargetKeys = 0;	// words of one target
+long long* trackerTargetPrevious = 0;
+
+// Pose filter counters, written by the tracking thread only:
+enum POSE_STAT {
+	POSE_STAT_DROPOUTS = 0,
+	POSE_STAT_LOST_FRAMES = 1,
+	POSE_STAT_PREDICTED_FRAMES = 2,
+	POSE_STAT_RECOVERED_PRESSES = 3,
+	POSE_STAT_COUNT
+};
+jlong poseFilterStats[POSE_STAT_COUNT];
+
+// Recording of the luminance image around the keys, the pose and the polled
+// Virtual Button states of every tracker update for offline replay, see
+// FrameRecorder.h. The polled states are the ground truth of the detector.
+// Only the keys of the first target are recorded:
+FrameRecorder frameRecorder;
+jlong* trackerPolledKeys = 0;
+static const int kRecordMargin = 16;	// pixels around the projected keys
+
+// Virtual Button runtime reconfiguration, see ButtonCommandQueue.java.
+//
+// Commands are enqueued lock-free from any thread into a bounded ring and
+// drained by the tracking thread, which coalesces them per key and applies
+// them in a single deactivate/activate cycle of the data set.
+enum BUTTON_COMMAND {
+	BUTTON_COMMAND_CREATE = 0,
+	BUTTON_COMMAND_DESTROY = 1,
+	BUTTON_COMMAND_TOGGLE = 2,
+	BUTTON_COMMAND_RESIZE = 3,
+	BUTTON_COMMAND_SENSITIVITY = 4
+};
+
+// Pending updates of a key after coalescing:
+enum BUTTON_UPDATE {
+	BUTTON_UPDATE_AREA = 1, BUTTON_UPDATE_SENSITIVITY = 2
+};
+
+struct ButtonCommand
+{
+	volatile unsigned int sequence;
+	jint type;
+	jint key;
+	float rectangle[4];
+	jint sensitivity;
+	jlong enqueueNanos;
+};
+
+const unsigned int BUTTON_COMMAND_CAPACITY = 256;
+
+// Bounded multi-producer, single-consumer ring. A slot is free for the
+// producer at position p while its sequence is p, and holds a command for
+// the consumer at position p while its sequence is p + 1:
+struct ButtonCommandRing
+{
+	ButtonCommand slots[BUTTON_COMMAND_CAPACITY];
+	volatile unsigned int enqueuePosition;
+	unsigned int dequeuePosition;
+
+	ButtonCommandRing() : enqueuePosition(0), dequeuePosition(0)
+	{
+		for (unsigned int i = 0; i < BUTTON_COMMAND_CAPACITY; ++i)
+			slots[i].sequence = i;
+	}
+} buttonCommandRing;
+
+// Reconfiguration statistics, in the order of ButtonCommandQueue.STAT_*:
+enum BUTTON_COMMAND_STAT {
+	STAT_BATCHES, STAT_COMMANDS, STAT_APPLIED_KEYS, STAT_DROPPED,
+	STAT_MAX_BATCH_SIZE, STAT_LAST_APPLY_NANOS, STAT_MAX_APPLY_NANOS,
+	STAT_TOTAL_APPLY_NANOS, STAT_MAX_LATENCY_NANOS, STAT_TOTAL_LATENCY_NANOS,
+	STAT_COUNT
+};
+
+jlong buttonCommandStats[STAT_COUNT];
+
+// Counted by the producers, 32 bit because armeabi has no 64 bit atomics:
+volatile int buttonCommandsDropped = 0;
+
+// Coalesced commands of the current batch, bit k is set if key k has any:
+jlong* commandKeys = 0;
+jint* pendingExistence = 0;		// -1 none, or a BUTTON_COMMAND
+unsigned char* pendingUpdates = 0;	// BUTTON_UPDATE bits
+jint* keySensitivities = 0;		// QCAR::VirtualButton::SENSITIVITY
+
+// Note events published from the tracking thread into the Java NoteEventRing:
+const int NOTE_EVENT_OFF = 0;
+const int NOTE_EVENT_ON = 1;
+const int NOTE_EVENT_VELOCITY = 100;
+
+// Per-frame key state snapshot shared with KeyStateDecoder.java:
+struct KeyStateHeader
+{
+	jint sequence;
+	jint keyCount;
+	jlong timestampNanos;
+	jlong trackerNanos;
+	jlong captureNanos;
+};
+
+// Stamps of the recent camera frames, written by the tracking thread in
+// QCAR_onUpdate() and looked up by renderFrame() through the frame index:
+struct FrameStamp
+{
+	volatile jint frameIndex;	// -1 while being written
+	jlong trackerNanos;
+	jlong captureNanos;
+};
+
+const int FRAME_STAMP_COUNT = 8;
+FrameStamp frameStamps[FRAME_STAMP_COUNT];
+
+// Smallest difference between the monotonic clock and the camera clock,
+// used to map frame time stamps onto the monotonic clock:
+bool captureClockValid = false;
+jlong captureClockOffset = 0;
+
+unsigned char* keyStateBuffer = 0;
+jint keyStateSequence = 0;
+jlong* keyStatePrevious = 0;
+jlong* renderPressedKeys = 0;
+
+// The ring is replaced and released on the Java threads while the tracking
+// thread publishes into it, both hold the mutex:
+JavaVM* javaVM = 0;
+pthread_mutex_t noteEventRingMutex = PTHREAD_MUTEX_INITIALIZER;
+jobject noteEventRing = 0;
+jmethodID noteEventOfferMethodID = 0;
+pthread_key_t trackerEnvKey;
+jlong* trackerPressedKeys = 0;
+jlong* trackerCurrentKeys = 0;
 
 JNIEXPORT void JNICALL
 Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_setActivityPortraitMode(JNIEnv *, jobject, jboolean isPortrait)
@@ -154,6 +338,13 @@ Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_loadTrackerData(JNIE
 		return 0;
 	}
 
+	// Track every target of the data set at once, e.g. printed octaves side
+	// by side, see KeyTargets.h:
+	int targetCount = dataSet->getNumTrackables();
+	if (targetCount > KeyTargets::MAX_TARGETS)
+		targetCount = KeyTargets::MAX_TARGETS;
+	QCAR::setHint(QCAR::HINT_MAX_SIMULTANEOUS_IMAGE_TARGETS, targetCount);
+
 	// Activate the data set:
 	if (!imageTracker->activateDataSet(dataSet))
 	{
@@ -205,281 +396,1234 @@ Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_destroyTrackerData(J
 	return 0;
 }
 
-// Add a button to the list of buttons which are toggled in the next update call
+// Allocate a zeroed array of key state words
+jlong* newKeyWords()
+{
+	jlong* words = new jlong[keyStateWords];
+	memset(words, 0, keyStateWords * sizeof(jlong));
+	return words;
+}
+
+// Allocate an empty button to key cache
+void initButtonKeyCache(ButtonKeyCache& cache)
+{
+	cache.keys = new int[keyCount];
+	cache.buttonIds = new int[keyCount];
+	for (int i = 0; i < keyCount; ++i)
+	{
+		cache.keys[i] = -1;
+		cache.buttonIds[i] = -1;
+	}
+}
+
+// Release the key layout and all buffers sized from it
+void freeKeyLayout()
+{
+	for (int i = 0; i < keyCount; ++i)
+		delete[] keyNames[i];
+
+	delete[] keyNames;
+	delete[] keyRectangles;
+	delete[] keyNotes;
+	delete[] vbVertices;
+	delete[] trackerKeyCache.keys;
+	delete[] trackerKeyCache.buttonIds;
+	delete[] renderKeyCache.keys;
+	delete[] renderKeyCache.buttonIds;
+	delete[] commandKeys;
+	delete[] pendingExistence;
+	delete[] pendingUpdates;
+	delete[] keySensitivities;
+	delete[] keyStatePrevious;
+	delete[] renderPressedKeys;
+	delete[] trackerPressedKeys;
+	delete[] trackerCurrentKeys;
+	delete[] detectedKeys;
+	delete[] renderDetectedKeys;
+	delete[] trackerPolledKeys;
+	delete[] trackerTargetKeys;
+	delete[] trackerTargetPrevious;
+	for (int t = 0; t < keyTargets.getTargetCount(); ++t)
+	{
+		TargetState& targetState = targetStates[t];
+		delete[] targetState.enabledKeys;
+		targetState.enabledKeys = 0;
+		targetState.occlusionDetector.release();
+		targetState.trackerPoseFilter.reset();
+		targetState.renderPoseFilter.reset();
+		targetState.renderVertexCount = 0;
+	}
+	keyTargets.release();
+
+	keyNames = 0;
+	keyRectangles = 0;
+	keyNotes = 0;
+	vbVertices = 0;
+	trackerKeyCache.keys = trackerKeyCache.buttonIds = 0;
+	renderKeyCache.keys = renderKeyCache.buttonIds = 0;
+	commandKeys = 0;
+	pendingExistence = 0;
+	pendingUpdates = 0;
+	keySensitivities = 0;
+	keyStatePrevious = renderPressedKeys = 0;
+	trackerPressedKeys = trackerCurrentKeys = 0;
+	detectedKeys = renderDetectedKeys = 0;
+	detectedKeysValid = false;
+	trackerPolledKeys = 0;
+	trackerTargetKeys = trackerTargetPrevious = 0;
+	keyCount = 0;
+	keyStateWords = 0;
+}
+
+// Register the key layout and size all per-frame buffers from it, the keys
+// of target t are targetFirstKeys[t] up to targetFirstKeys[t + 1]
+//
+// Note: This must be called before the camera is started and before the
+// renderer is created, the tracking and rendering threads read the layout
+// without locking.
 JNIEXPORT void JNICALL
-Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_addButtonToToggle(JNIEnv */*env*/,
-		jobject /*obj*/,
-		jint virtualButtonIdx)
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_setKeyLayout(JNIEnv* env,
+		jobject, jobjectArray names, jfloatArray rectangles, jintArray notes,
+		jobjectArray targetNames, jintArray targetFirstKeys)
 {
-	LOG("Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_addButtonToToggle");
+	LOG("Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_setKeyLayout");
 
-	assert(virtualButtonIdx >= 0 && virtualButtonIdx < NUM_BUTTONS);
+	freeKeyLayout();
 
-	switch (virtualButtonIdx)
+	int count = env->GetArrayLength(names);
+	int targetCount = env->GetArrayLength(targetNames);
+	if (env->GetArrayLength(rectangles) != count * 4 ||
+		env->GetArrayLength(notes) != count ||
+		env->GetArrayLength(targetFirstKeys) != targetCount + 1)
 	{
-		case 0:
-		buttonMask |= BUTTON_1;
-		break;
+		LOG("Inconsistent key layout.");
+		return;
+	}
 
-		case 1:
-		buttonMask |= BUTTON_2;
-		break;
+	// The targets, checked before anything is sized from the keys:
+	const char* targetChars[KeyTargets::MAX_TARGETS];
+	jstring targetStrings[KeyTargets::MAX_TARGETS];
+	jint firstKeys[KeyTargets::MAX_TARGETS + 1];
+	if (targetCount > KeyTargets::MAX_TARGETS)
+	{
+		LOG("Too many targets in the key layout.");
+		return;
+	}
 
-		case 2:
-		buttonMask |= BUTTON_3;
-		break;
+	env->GetIntArrayRegion(targetFirstKeys, 0, targetCount + 1, firstKeys);
+	for (int t = 0; t < targetCount; ++t)
+	{
+		targetStrings[t] = (jstring) env->GetObjectArrayElement(targetNames, t);
+		targetChars[t] = env->GetStringUTFChars(targetStrings[t], NULL);
+	}
 
-		case 3:
-		buttonMask |= BUTTON_4;
-		break;
+	bool targetsValid = firstKeys[0] == 0 && firstKeys[targetCount] == count &&
+			keyTargets.init(targetCount, targetChars, (const int*) firstKeys);
+	for (int t = 0; t < targetCount; ++t)
+	{
+		env->ReleaseStringUTFChars(targetStrings[t], targetChars[t]);
+		env->DeleteLocalRef(targetStrings[t]);
 	}
-	updateBtns = true;
-}
 
-// Create/destroy a Virtual Button at runtime
-//
-// Note: This will NOT work if the tracker is active!
-bool toggleVirtualButton(QCAR::ImageTarget* imageTarget, const char* name,
-		float left, float top, float right, float bottom) {
-	LOG("toggleVirtualButton");
+	if (!targetsValid)
+	{
+		keyTargets.release();
+		LOG("Inconsistent key layout targets.");
+		return;
+	}
 
-	bool buttonToggleSuccess = false;
+	keyNames = new char*[count];
+	for (int i = 0; i < count; ++i)
+	{
+		jstring name = (jstring) env->GetObjectArrayElement(names, i);
+		const char* chars = env->GetStringUTFChars(name, NULL);
+		keyNames[i] = new char[strlen(chars) + 1];
+		strcpy(keyNames[i], chars);
+		env->ReleaseStringUTFChars(name, chars);
+		env->DeleteLocalRef(name);
+	}
 
-	QCAR::VirtualButton* virtualButton = imageTarget->getVirtualButton(name);
-	if (virtualButton != NULL) {
-		LOG("Destroying Virtual Button");
-		buttonToggleSuccess = imageTarget->destroyVirtualButton(virtualButton);
-	} else {
-		LOG("Creating Virtual Button");
-		QCAR::Rectangle vbRectangle(left, top, right, bottom);
-		QCAR::VirtualButton* virtualButton = imageTarget->createVirtualButton(
-				name, vbRectangle);
+	keyRectangles = new float[count * 4];
+	env->GetFloatArrayRegion(rectangles, 0, count * 4, keyRectangles);
+	keyNotes = new jint[count];
+	env->GetIntArrayRegion(notes, 0, count, keyNotes);
+
+	keyCount = count;
+	keyStateWords = (count + 63) / 64;
+
+	vbVertices = new GLfloat[count * 24];
+	initButtonKeyCache(trackerKeyCache);
+	initButtonKeyCache(renderKeyCache);
+	commandKeys = newKeyWords();
+	pendingExistence = new jint[count];
+	pendingUpdates = new unsigned char[count];
+	keySensitivities = new jint[count];
+	for (int i = 0; i < count; ++i)
+	{
+		pendingExistence[i] = -1;
+		pendingUpdates[i] = 0;
+		keySensitivities[i] = QCAR::VirtualButton::MEDIUM;
+	}
+	keyStatePrevious = newKeyWords();
+	renderPressedKeys = newKeyWords();
+	trackerPressedKeys = newKeyWords();
+	trackerCurrentKeys = newKeyWords();
+	detectedKeys = newKeyWords();
+	renderDetectedKeys = newKeyWords();
+	trackerPolledKeys = newKeyWords();
+
+	int targetWords = (keyTargets.getMaxKeyCount() + 63) / 64;
+	trackerTargetKeys = new long long[targetWords];
+	trackerTargetPrevious = new long long[targetWords];
+	for (int t = 0; t < targetCount; ++t)
+	{
+		TargetState& targetState = targetStates[t];
+		targetState.enabledKeys = new long long[keyTargets.getTargetWords(t)];
+		memset(targetState.enabledKeys, 0,
+				keyTargets.getTargetWords(t) * sizeof(long long));
+		targetState.occlusionDetector.init(keyTargets.getKeyCount(t),
+				&keyRectangles[keyTargets.getFirstKey(t) * 4]);
+		targetState.detectorLost = false;
+		targetState.idle = false;
+		trackerTrackableIds[t] = -1;
+		renderTrackableIds[t] = -1;
+	}
 
-		// This is just a showcase. The values used here a set by default on Virtual Button creation
-		virtualButton->setEnabled(true);
-		virtualButton->setSensitivity(QCAR::VirtualButton::MEDIUM);
+	LOG("Key layout with %d keys on %d targets.", keyCount, targetCount);
+}
 
-		if (virtualButton != NULL)
-			buttonToggleSuccess = true;
+// Return the key of the i-th virtual button of a target, or -1. Only the keys
+// of the target are searched, its slots start at its first key.
+int findKey(ButtonKeyCache& cache, int target, int slot,
+		const QCAR::VirtualButton* button)
+{
+	int firstKey = keyTargets.getFirstKey(target);
+	int targetKeyCount = keyTargets.getKeyCount(target);
+	int buttonId = button->getID();
+	if (slot < targetKeyCount && cache.buttonIds[firstKey + slot] == buttonId)
+		return cache.keys[firstKey + slot];
+
+	// Buttons are only created or destroyed on reconfiguration:
+	int key = -1;
+	for (int k = firstKey; k < firstKey + targetKeyCount; ++k)
+	{
+		if (strcmp(button->getName(), keyNames[k]) == 0)
+		{
+			key = k;
+			break;
+		}
 	}
 
-	return buttonToggleSuccess;
+	if (slot < targetKeyCount)
+	{
+		cache.keys[firstKey + slot] = key;
+		cache.buttonIds[firstKey + slot] = buttonId;
+	}
+	return key;
 }
 
-// Object to receive update callbacks from QCAR SDK
-class VirtualButton_UpdateCallback: public QCAR::UpdateCallback {
-	virtual void QCAR_onUpdate(QCAR::State& /*state*/) {
-		if (updateBtns) {
-			// Update runs in the tracking thread therefore it is guaranteed that the tracker is
-			// not doing anything at this point. => Reconfiguration is possible.
+// Match the active trackables to the targets of the layout, targets[t] is 0
+// if target t is not tracked. Returns the number of targets tracked.
+int findTargets(const QCAR::State& state, int* trackableIds,
+		const QCAR::ImageTarget** targets)
+{
+	int targetCount = keyTargets.getTargetCount();
+	for (int t = 0; t < targetCount; ++t)
+		targets[t] = 0;
 
-			QCAR::ImageTracker* it =
-					reinterpret_cast<QCAR::ImageTracker*>(QCAR::TrackerManager::getInstance().getTracker(
-							QCAR::Tracker::IMAGE_TRACKER));
-			assert(dataSet);
+	int activeCount = state.getNumActiveTrackables();
+	if (activeCount > KeyTargets::MAX_TARGETS)
+		activeCount = KeyTargets::MAX_TARGETS;
 
-			// Deactivate the data set prior to reconfiguration:
-			it->deactivateDataSet(dataSet);
+	int tracked = 0;
+	for (int i = 0; i < activeCount; ++i)
+	{
+		const QCAR::Trackable* trackable = state.getActiveTrackable(i);
+		assert(trackable->getType() == QCAR::Trackable::IMAGE_TARGET);
+		int t = keyTargets.find(trackableIds, trackable->getId(),
+				trackable->getName());
+		if (t < 0 || targets[t] != 0)
+			continue;
 
-			assert(dataSet->getNumTrackables() > 0);
-			QCAR::Trackable* trackable = dataSet->getTrackable(0);
+		targets[t] = static_cast<const QCAR::ImageTarget*>(trackable);
+		tracked++;
+	}
+	return tracked;
+}
 
-			assert(trackable);
-			assert(trackable->getType() == QCAR::Trackable::IMAGE_TARGET);
-			QCAR::ImageTarget* imageTarget =
-					static_cast<QCAR::ImageTarget*>(trackable);
+// Detach the tracking thread from the VM when it exits
+void detachTrackerThread(void*)
+{
+	javaVM->DetachCurrentThread();
+}
 
-			if (buttonMask & BUTTON_1) {
-				LOG("Toggle Button 1");
+// Register the ring that receives note events from the tracking thread
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_setNoteEventRing(JNIEnv* env,
+		jobject, jobject ring)
+{
+	LOG("Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_setNoteEventRing");
 
-				toggleVirtualButton(imageTarget, virtualButtonColors[0],
-						-62, 35.5f, -42, -35.5f);
+	if (javaVM == 0)
+	{
+		env->GetJavaVM(&javaVM);
+		pthread_key_create(&trackerEnvKey, detachTrackerThread);
+	}
 
-			}
-			if (buttonMask & BUTTON_2) {
-				LOG("Toggle Button 2");
+	jmethodID offerMethodID = 0;
+	if (ring != NULL)
+	{
+		jclass ringClass = env->GetObjectClass(ring);
+		offerMethodID = env->GetMethodID(ringClass, "offer", "(IIIJ)Z");
+		if (offerMethodID == 0)
+			LOG("Function offer() not found.");
+	}
 
-				toggleVirtualButton(imageTarget, virtualButtonColors[1],
-						-45.28f, -53.52f, -12.35f, -65.87f);
-			}
-			if (buttonMask & BUTTON_3) {
-				LOG("Toggle Button 3");
+	pthread_mutex_lock(&noteEventRingMutex);
+	if (noteEventRing != 0)
+	{
+		env->DeleteGlobalRef(noteEventRing);
+		noteEventRing = 0;
+	}
 
-				toggleVirtualButton(imageTarget, virtualButtonColors[2], 14.82f,
-						-53.52f, 47.75f, -65.87f);
-			}
-			if (buttonMask & BUTTON_4) {
-				LOG("Toggle Button 4");
+	if (offerMethodID != 0)
+	{
+		noteEventOfferMethodID = offerMethodID;
+		noteEventRing = env->NewGlobalRef(ring);
+	}
+	pthread_mutex_unlock(&noteEventRingMutex);
+}
 
-				toggleVirtualButton(imageTarget, virtualButtonColors[3], 76.57f,
-						-53.52f, 109.50f, -65.87f);
-			}
+// Returns CLOCK_MONOTONIC in nanoseconds, the clock behind System.nanoTime()
+jlong getMonotonicNanos()
+{
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (jlong) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+// Stamp the frame of a tracker update, returns the monotonic update time
+//
+// Note: This runs on the tracking thread, the only writer of the stamps.
+jlong stampFrame(const QCAR::State& state)
+{
+	jlong trackerNanos = getMonotonicNanos();
+	QCAR::Frame frame = state.getFrame();
+	jlong frameNanos = (jlong) (frame.getTimeStamp() * 1e9);
+
+	// Capture happens before the update, so the smallest offset is the
+	// closest estimate of the clock difference:
+	jlong offset = trackerNanos - frameNanos;
+	if (!captureClockValid || offset < captureClockOffset)
+	{
+		captureClockOffset = offset;
+		captureClockValid = true;
+	}
+
+	FrameStamp& stamp = frameStamps[frame.getIndex() & (FRAME_STAMP_COUNT - 1)];
+	stamp.frameIndex = -1;
+	__sync_synchronize();
+	stamp.trackerNanos = trackerNanos;
+	stamp.captureNanos = frameNanos + captureClockOffset;
+	__sync_synchronize();
+	stamp.frameIndex = frame.getIndex();
+
+	return trackerNanos;
+}
+
+// Look up the stamps of a frame, both are 0 if it is no longer known
+void findFrameStamp(int frameIndex, jlong& trackerNanos, jlong& captureNanos)
+{
+	const FrameStamp& stamp = frameStamps[frameIndex & (FRAME_STAMP_COUNT - 1)];
+	if (stamp.frameIndex == frameIndex)
+	{
+		__sync_synchronize();
+		trackerNanos = stamp.trackerNanos;
+		captureNanos = stamp.captureNanos;
+		__sync_synchronize();
+		if (stamp.frameIndex == frameIndex)
+			return;
+	}
+	trackerNanos = 0;
+	captureNanos = 0;
+}
 
-			// Reactivate the data set:
-			it->activateDataSet(dataSet);
+// Enqueue a button command, returns false if the ring is full
+//
+// Note: This may be called from any thread.
+bool enqueueButtonCommand(jint type, jint key, const float* rectangle,
+		jint sensitivity)
+{
+	ButtonCommandRing& ring = buttonCommandRing;
+	unsigned int position = ring.enqueuePosition;
+	for (;;)
+	{
+		ButtonCommand& slot =
+				ring.slots[position & (BUTTON_COMMAND_CAPACITY - 1)];
+		unsigned int sequence = slot.sequence;
+		__sync_synchronize();
 
-			buttonMask = 0;
-			updateBtns = false;
+		int difference = (int) (sequence - position);
+		if (difference == 0)
+		{
+			// Claim the slot:
+			if (__sync_bool_compare_and_swap(&ring.enqueuePosition, position,
+					position + 1))
+			{
+				slot.type = type;
+				slot.key = key;
+				memcpy(slot.rectangle, rectangle, sizeof(slot.rectangle));
+				slot.sensitivity = sensitivity;
+				slot.enqueueNanos = getMonotonicNanos();
+
+				// Publish the command:
+				__sync_synchronize();
+				slot.sequence = position + 1;
+				return true;
+			}
+		}
+		else if (difference < 0)
+		{
+			__sync_fetch_and_add(&buttonCommandsDropped, 1);
+			return false;
 		}
+
+		position = ring.enqueuePosition;
 	}
-} qcarUpdate;
+}
 
-JNIEXPORT void JNICALL
-Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtonsRenderer_renderFrame(JNIEnv *, jobject)
+// Dequeue the next button command, returns false if there is none
+//
+// Note: This must only be called from the tracking thread.
+bool dequeueButtonCommand(ButtonCommand& command)
 {
-	//LOG("Java_com_qualcomm_QCARSamples_VirtualButtons_GLRenderer_renderFrame");
+	ButtonCommandRing& ring = buttonCommandRing;
+	ButtonCommand& slot =
+			ring.slots[ring.dequeuePosition & (BUTTON_COMMAND_CAPACITY - 1)];
+	unsigned int sequence = slot.sequence;
+	__sync_synchronize();
+	if (sequence != ring.dequeuePosition + 1)
+		return false;
+
+	command.type = slot.type;
+	command.key = slot.key;
+	memcpy(command.rectangle, slot.rectangle, sizeof(command.rectangle));
+	command.sensitivity = slot.sensitivity;
+	command.enqueueNanos = slot.enqueueNanos;
+
+	// Hand the slot back to the producers:
+	__sync_synchronize();
+	slot.sequence = ring.dequeuePosition + BUTTON_COMMAND_CAPACITY;
+	ring.dequeuePosition++;
+	return true;
+}
 
-	// Clear color and depth buffer
-	glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+// Returns true if a button command is waiting, without dequeuing it
+bool hasButtonCommands()
+{
+	ButtonCommandRing& ring = buttonCommandRing;
+	unsigned int sequence = ring.slots[ring.dequeuePosition &
+			(BUTTON_COMMAND_CAPACITY - 1)].sequence;
+	return sequence == ring.dequeuePosition + 1;
+}
 
-	// Get the state from QCAR and mark the beginning of a rendering section
-	QCAR::State state = QCAR::Renderer::getInstance().begin();
+JNIEXPORT jboolean JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_ButtonCommandQueue_enqueue(JNIEnv*,
+		jobject, jint type, jint key, jfloat left, jfloat top, jfloat right,
+		jfloat bottom, jint sensitivity)
+{
+	if (key < 0 || key >= keyCount || type < BUTTON_COMMAND_CREATE ||
+		type > BUTTON_COMMAND_SENSITIVITY)
+	{
+		LOG("Invalid button command %d for key %d.", type, key);
+		return JNI_FALSE;
+	}
 
-	// Explicitly render the Video Background
-	QCAR::Renderer::getInstance().drawVideoBackground();
+	float rectangle[4] = { left, top, right, bottom };
+	return enqueueButtonCommand(type, key, rectangle, sensitivity) ?
+			JNI_TRUE : JNI_FALSE;
+}
 
-	glEnable(GL_DEPTH_TEST);
-	glEnable(GL_CULL_FACE);
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_ButtonCommandQueue_getStatistics(
+		JNIEnv* env, jobject, jlongArray statistics)
+{
+	// The counters are written by the tracking thread only, a snapshot may
+	// be slightly inconsistent but never blocks the tracker:
+	jlong snapshot[STAT_COUNT];
+	memcpy(snapshot, buttonCommandStats, sizeof(snapshot));
+	snapshot[STAT_DROPPED] = buttonCommandsDropped;
+
+	jsize count = env->GetArrayLength(statistics);
+	env->SetLongArrayRegion(statistics, 0, count < STAT_COUNT ? count : STAT_COUNT,
+			snapshot);
+}
+
+// Publish the detected keys for renderFrame(), valid is false if the detector
+// did not run
+void publishDetectedKeys(const jlong* keys, bool valid)
+{
+	__sync_fetch_and_add(&detectedKeysSequence, 1);
+	for (int w = 0; w < keyStateWords; ++w)
+		detectedKeys[w] = keys[w];
+	detectedKeysValid = valid;
+	__sync_fetch_and_add(&detectedKeysSequence, 1);
+}
 
-	// Did we find any trackables this frame?
-	if (state.getNumActiveTrackables())
+// Copy the detected keys published last, returns false if there are none or
+// the tracking thread keeps overwriting them
+bool readDetectedKeys(jlong* keys)
+{
+	for (int attempt = 0; attempt < 4; ++attempt)
 	{
-		// Get the trackable:
-		const QCAR::Trackable* trackable = state.getActiveTrackable(0);
-		QCAR::Matrix44F modelViewMatrix =
-		QCAR::Tool::convertPose2GLMatrix(trackable->getPose());
+		unsigned int sequence = detectedKeysSequence;
+		if (sequence & 1)
+			continue;
+
+		__sync_synchronize();
+		for (int w = 0; w < keyStateWords; ++w)
+			keys[w] = detectedKeys[w];
+		bool valid = detectedKeysValid;
+		__sync_synchronize();
+
+		if (sequence == detectedKeysSequence)
+			return valid;
+	}
+	return false;
+}
 
-		// The image target:
-		assert(trackable->getType() == QCAR::Trackable::IMAGE_TARGET);
-		const QCAR::ImageTarget* target =
-		static_cast<const QCAR::ImageTarget*>(trackable);
+// Return the luminance image of the frame, or 0 if it has none
+const QCAR::Image* findLuminanceImage(const QCAR::Frame& frame)
+{
+	for (int i = 0; i < frame.getNumImages(); ++i)
+	{
+		if (frame.getImage(i)->getFormat() == QCAR::GRAYSCALE)
+			return frame.getImage(i);
+	}
+	return 0;
+}
+
+// Get the focal length and principal point in pixels of the image
+void getCameraIntrinsics(const QCAR::Image* image, float* camera)
+{
+	// The calibration is for the full camera resolution:
+	const QCAR::CameraCalibration& calibration =
+			QCAR::CameraDevice::getInstance().getCameraCalibration();
+	float scale = image->getWidth() / calibration.getSize().data[0];
+	camera[0] = calibration.getFocalLength().data[0] * scale;
+	camera[1] = calibration.getFocalLength().data[1] * scale;
+	camera[2] = calibration.getPrincipalPoint().data[0] * scale;
+	camera[3] = calibration.getPrincipalPoint().data[1] * scale;
+}
 
-		// Set transformations:
-		QCAR::Matrix44F modelViewProjection;
-		SampleUtils::multiplyMatrix(&projectionMatrix.data[0],
-				&modelViewMatrix.data[0],
-				&modelViewProjection.data[0]);
+// Run the occlusion detector of a target on the luminance image of the frame
+void detectKeys(TargetState& targetState, const QCAR::Image* image,
+		const float* camera, const float* pose)
+{
+	OcclusionDetector& detector = targetState.occlusionDetector;
+	detector.setCamera(camera[0], camera[1], camera[2], camera[3]);
+	detector.update((const unsigned char*) image->getPixels(),
+			image->getWidth(), image->getHeight(), image->getStride(),
+			pose, targetState.enabledKeys);
+	targetState.detectorLost = false;
+}
+
+// Record the frame with the polled button states of the first target, only
+// the part of the image around its keys is kept
+void recordFrame(const QCAR::State& state, const QCAR::Trackable* trackable,
+		jlong trackerNanos)
+{
+	QCAR::Frame frame = state.getFrame();
+	const QCAR::Image* image = findLuminanceImage(frame);
+	OcclusionDetector& detector = targetStates[0].occlusionDetector;
+	float pose[12];
+	float camera[4];
+	int crop[4];
+	memset(pose, 0, sizeof(pose));
+	memset(camera, 0, sizeof(camera));
+
+	bool cropped = false;
+	if (image != 0 && trackable != 0)
+	{
+		memcpy(pose, trackable->getPose().data, sizeof(pose));
+		getCameraIntrinsics(image, camera);
+
+		// The detector may not have run on this frame:
+		detector.setCamera(camera[0], camera[1], camera[2], camera[3]);
+		detector.setPose(pose);
+		cropped = detector.getKeyBounds(image->getWidth(),
+				image->getHeight(), kRecordMargin, crop);
+	}
 
-		// Set the texture used for the teapot model:
-		int textureIndex = 0;
+	keyTargets.extract((const long long*) trackerPolledKeys, 0,
+			trackerTargetKeys);
+	frameRecorder.record(frame.getIndex(), trackerNanos, trackable != 0, pose,
+			camera, image ? image->getWidth() : 0, image ? image->getHeight() : 0,
+			cropped ? (const unsigned char*) image->getPixels() : 0,
+			image ? image->getStride() : 0, cropped ? crop : 0,
+			trackerTargetKeys, targetStates[0].enabledKeys);
+}
 
-		GLfloat vbVertices[96];
-		unsigned char vbCounter=0;
+// Poll or detect the keys of a target into trackerTargetKeys, bit k for its
+// key k. target is 0 while it is not tracked, image is 0 while the detector
+// does not run.
+//
+// Note: The work is bounded by the keys of the target. A target that is
+// neither tracked nor extrapolated releases its keys once and is marked idle,
+// publishButtonEdges() skips it until it is tracked again.
+void updateTargetKeys(int t, const QCAR::ImageTarget* target,
+		double frameSeconds, const QCAR::Image* image, const float* camera,
+		bool detection)
+{
+	TargetState& targetState = targetStates[t];
+	PoseFilter& poseFilter = targetState.trackerPoseFilter;
+	int firstKey = keyTargets.getFirstKey(t);
+	int words = keyTargets.getTargetWords(t);
+	memset(trackerTargetKeys, 0, words * sizeof(long long));
+	poseFilter.setHoldFrames(poseHoldFrames);
+
+	if (target != 0)
+	{
+		targetState.idle = false;
+		poseFilter.update(target->getPose().data, frameSeconds);
 
-		// Iterate through this targets virtual buttons:
+		// Keys without a button are neither polled nor detected:
+		memset(targetState.enabledKeys, 0, words * sizeof(long long));
 		for (int i = 0; i < target->getNumVirtualButtons(); ++i)
 		{
 			const QCAR::VirtualButton* button = target->getVirtualButton(i);
+			int key = findKey(trackerKeyCache, t, i, button);
+			if (key < 0)
+				continue;
 
-			// If the button is pressed, than use this texture:
+			key -= firstKey;
+			targetState.enabledKeys[key >> 6] |= (long long) 1 << (key & 63);
 			if (button->isPressed())
+				trackerTargetKeys[key >> 6] |= (long long) 1 << (key & 63);
+		}
+
+		keyTargets.merge((long long*) trackerPolledKeys, t, trackerTargetKeys);
+
+		if (image != 0)
+		{
+			detectKeys(targetState, image, camera, poseFilter.getPose());
+			memcpy(trackerTargetKeys,
+					targetState.occlusionDetector.getPressedKeys(),
+					words * sizeof(long long));
+		}
+		return;
+	}
+
+	// Keep detecting the keys of the last tracked frame at the extrapolated
+	// pose:
+	keyTargets.merge((long long*) trackerPolledKeys, t, trackerTargetKeys);
+	bool predicted = poseFilter.predict(frameSeconds);
+	if (poseFilter.getPredictedFrames() == 1)
+		poseFilterStats[POSE_STAT_DROPOUTS]++;
+	if (predicted)
+		poseFilterStats[POSE_STAT_PREDICTED_FRAMES]++;
+
+	if (predicted && image != 0)
+	{
+		detectKeys(targetState, image, camera, poseFilter.getPose());
+		memcpy(trackerTargetKeys, targetState.occlusionDetector.getPressedKeys(),
+				words * sizeof(long long));
+		keyTargets.extract((const long long*) trackerPressedKeys, t,
+				trackerTargetPrevious);
+		for (int w = 0; w < words; ++w)
+			poseFilterStats[POSE_STAT_RECOVERED_PRESSES] +=
+					__builtin_popcountll(trackerTargetKeys[w] &
+							~trackerTargetPrevious[w]);
+	}
+	else
+	{
+		if (detection && !targetState.detectorLost)
+		{
+			targetState.occlusionDetector.lost();
+			targetState.detectorLost = true;
+		}
+
+		// The released keys are merged by the caller once more:
+		targetState.idle = !predicted;
+	}
+}
+
+// Publish press/release edges of the virtual buttons into the note event ring.
+//
+// Note: This runs on the tracking thread, which is attached to the VM once and
+// detached again by the thread-specific key destructor when it exits. The
+// events carry the time of the tracker update.
+void publishButtonEdges(QCAR::State& state, jlong timestamp)
+{
+	if (noteEventRing == 0 || keyCount == 0)
+		return;
+
+	// Start from scratch whenever the detector is switched on or off:
+	int targetCount = keyTargets.getTargetCount();
+	bool detection = occlusionDetection;
+	if (detection != occlusionDetectorActive)
+	{
+		for (int t = 0; t < targetCount; ++t)
+			targetStates[t].occlusionDetector.relearn();
+		occlusionDetectorActive = detection;
+	}
+
+	const QCAR::ImageTarget* targets[KeyTargets::MAX_TARGETS];
+	int tracked = findTargets(state, trackerTrackableIds, targets);
+	if (tracked == 0)
+		poseFilterStats[POSE_STAT_LOST_FRAMES]++;
+
+	// The image is shared by the detectors of all targets:
+	const QCAR::Image* image = 0;
+	float camera[4];
+	if (detection)
+	{
+		image = findLuminanceImage(state.getFrame());
+		if (image != 0)
+			getCameraIntrinsics(image, camera);
+	}
+
+	// The keys of every target are merged into the words of the layout, the
+	// words of idle targets are released already:
+	double frameSeconds = state.getFrame().getTimeStamp();
+	for (int t = 0; t < targetCount; ++t)
+	{
+		if (targets[t] == 0 && targetStates[t].idle)
+			continue;
+		updateTargetKeys(t, targets[t], frameSeconds, image, camera, detection);
+		keyTargets.merge((long long*) trackerCurrentKeys, t, trackerTargetKeys);
+	}
+
+	// Without an image the polled keys of the tracked targets are used:
+	bool detected = detection && (image != 0 || tracked == 0);
+	if (detection)
+		publishDetectedKeys(trackerCurrentKeys, detected);
+
+	if (frameRecorder.isRecording())
+		recordFrame(state, targets[0], timestamp);
+
+	// Most updates do not change any key:
+	bool changed = false;
+	for (int w = 0; w < keyStateWords && !changed; ++w)
+		changed = trackerCurrentKeys[w] != trackerPressedKeys[w];
+	if (!changed)
+		return;
+
+	JNIEnv* env = (JNIEnv*) pthread_getspecific(trackerEnvKey);
+	if (env == 0)
+	{
+		if (javaVM->AttachCurrentThread(&env, NULL) != JNI_OK)
+		{
+			LOG("Failed to attach the tracking thread.");
+			return;
+		}
+		pthread_setspecific(trackerEnvKey, env);
+	}
+
+	// The ring may have been released since the check above:
+	pthread_mutex_lock(&noteEventRingMutex);
+	if (noteEventRing == 0)
+	{
+		pthread_mutex_unlock(&noteEventRingMutex);
+		return;
+	}
+
+	for (int w = 0; w < keyStateWords; ++w)
+	{
+		jlong changedKeys = trackerCurrentKeys[w] ^ trackerPressedKeys[w];
+		while (changedKeys != 0)
+		{
+			int bit = __builtin_ctzll(changedKeys);
+			int key = (w << 6) + bit;
+			jint type = ((trackerCurrentKeys[w] >> bit) & 1) ?
+					NOTE_EVENT_ON : NOTE_EVENT_OFF;
+			env->CallBooleanMethod(noteEventRing, noteEventOfferMethodID, type,
+					keyNotes[key], NOTE_EVENT_VELOCITY, timestamp);
+
+			// No JNI call may follow with an exception pending:
+			if (env->ExceptionCheck())
 			{
-				// Run through button name array to find texture index
-				for (int j = 0; j < NUM_BUTTONS; ++j)
-				{
-					if (strcmp(button->getName(), virtualButtonColors[j]) == 0)
-					{
-						textureIndex = j+1;
-						break;
-					}
-				}
+				LOG("NoteEventRing.offer() threw, event of key %d lost.", key);
+				env->ExceptionDescribe();
+				env->ExceptionClear();
 			}
+			changedKeys &= changedKeys - 1;
+		}
+		trackerPressedKeys[w] = trackerCurrentKeys[w];
+	}
+	pthread_mutex_unlock(&noteEventRingMutex);
+}
 
-			const QCAR::Area* vbArea = &button->getArea();
-			assert(vbArea->getType() == QCAR::Area::RECTANGLE);
-			const QCAR::Rectangle* vbRectangle = static_cast<const QCAR::Rectangle*>(vbArea);
-
-			// We add the vertices to a common array in order to have one single
-			// draw call. This is more efficient than having multiple glDrawArray calls
-			vbVertices[vbCounter ]=vbRectangle->getLeftTopX();
-			vbVertices[vbCounter+ 1]=vbRectangle->getLeftTopY();
-			vbVertices[vbCounter+ 2]=0.0f;
-			vbVertices[vbCounter+ 3]=vbRectangle->getRightBottomX();
-			vbVertices[vbCounter+ 4]=vbRectangle->getLeftTopY();
-			vbVertices[vbCounter+ 5]=0.0f;
-			vbVertices[vbCounter+ 6]=vbRectangle->getRightBottomX();
-			vbVertices[vbCounter+ 7]=vbRectangle->getLeftTopY();
-			vbVertices[vbCounter+ 8]=0.0f;
-			vbVertices[vbCounter+ 9]=vbRectangle->getRightBottomX();
-			vbVertices[vbCounter+10]=vbRectangle->getRightBottomY();
-			vbVertices[vbCounter+11]=0.0f;
-			vbVertices[vbCounter+12]=vbRectangle->getRightBottomX();
-			vbVertices[vbCounter+13]=vbRectangle->getRightBottomY();
-			vbVertices[vbCounter+14]=0.0f;
-			vbVertices[vbCounter+15]=vbRectangle->getLeftTopX();
-			vbVertices[vbCounter+16]=vbRectangle->getRightBottomY();
-			vbVertices[vbCounter+17]=0.0f;
-			vbVertices[vbCounter+18]=vbRectangle->getLeftTopX();
-			vbVertices[vbCounter+19]=vbRectangle->getRightBottomY();
-			vbVertices[vbCounter+20]=0.0f;
-			vbVertices[vbCounter+21]=vbRectangle->getLeftTopX();
-			vbVertices[vbCounter+22]=vbRectangle->getLeftTopY();
-			vbVertices[vbCounter+23]=0.0f;
-			vbCounter+=24;
+// Merge a command into the pending state of its key, later commands win
+void coalesceButtonCommand(const ButtonCommand& command)
+{
+	int key = command.key;
+	if (key < 0 || key >= keyCount)
+		return;
+
+	commandKeys[key >> 6] |= (jlong) 1 << (key & 63);
+
+	switch (command.type)
+	{
+		case BUTTON_COMMAND_CREATE:
+		case BUTTON_COMMAND_DESTROY:
+		pendingExistence[key] = command.type;
+		break;
 
+		case BUTTON_COMMAND_TOGGLE:
+		// Two toggles cancel out, a toggle inverts a pending create/destroy:
+		if (pendingExistence[key] == BUTTON_COMMAND_TOGGLE)
+			pendingExistence[key] = -1;
+		else if (pendingExistence[key] == BUTTON_COMMAND_CREATE)
+			pendingExistence[key] = BUTTON_COMMAND_DESTROY;
+		else if (pendingExistence[key] == BUTTON_COMMAND_DESTROY)
+			pendingExistence[key] = BUTTON_COMMAND_CREATE;
+		else
+			pendingExistence[key] = BUTTON_COMMAND_TOGGLE;
+		break;
+
+		case BUTTON_COMMAND_RESIZE:
+		// Buttons created later use the new geometry as well:
+		memcpy(&keyRectangles[key * 4], command.rectangle, 4 * sizeof(float));
+		pendingUpdates[key] |= BUTTON_UPDATE_AREA;
+		break;
+
+		case BUTTON_COMMAND_SENSITIVITY:
+		keySensitivities[key] = command.sensitivity;
+		pendingUpdates[key] |= BUTTON_UPDATE_SENSITIVITY;
+		break;
+	}
+}
+
+// Apply the pending state of a key to its Virtual Button on the image target
+// of the key
+//
+// Note: This will NOT work if the tracker is active!
+void applyButtonCommands(QCAR::ImageTarget* imageTarget, int target, int key)
+{
+	// The detector of the target counts its keys from 0:
+	OcclusionDetector& detector = targetStates[target].occlusionDetector;
+	int targetKey = key - keyTargets.getFirstKey(target);
+
+	QCAR::VirtualButton* virtualButton =
+			imageTarget->getVirtualButton(keyNames[key]);
+	const float* rectangle = &keyRectangles[key * 4];
+
+	int existence = pendingExistence[key];
+	if (existence == BUTTON_COMMAND_TOGGLE)
+		existence = virtualButton ? BUTTON_COMMAND_DESTROY : BUTTON_COMMAND_CREATE;
+
+	if (existence == BUTTON_COMMAND_DESTROY && virtualButton != NULL)
+	{
+		LOG("Destroying Virtual Button %s", keyNames[key]);
+		imageTarget->destroyVirtualButton(virtualButton);
+		virtualButton = NULL;
+	}
+	else if (existence == BUTTON_COMMAND_CREATE && virtualButton == NULL)
+	{
+		LOG("Creating Virtual Button %s", keyNames[key]);
+		QCAR::Rectangle vbRectangle(rectangle[0], rectangle[1], rectangle[2],
+				rectangle[3]);
+		virtualButton = imageTarget->createVirtualButton(keyNames[key],
+				vbRectangle);
+		if (virtualButton != NULL)
+		{
+			virtualButton->setEnabled(true);
+			virtualButton->setSensitivity(
+					(QCAR::VirtualButton::SENSITIVITY) keySensitivities[key]);
+			detector.setRectangle(targetKey, rectangle);
+			detector.setSensitivity(targetKey, keySensitivities[key]);
+		}
+	}
+	else if (virtualButton != NULL)
+	{
+		if (pendingUpdates[key] & BUTTON_UPDATE_AREA)
+		{
+			QCAR::Rectangle vbRectangle(rectangle[0], rectangle[1],
+					rectangle[2], rectangle[3]);
+			virtualButton->setArea(vbRectangle);
+			detector.setRectangle(targetKey, rectangle);
 		}
 
-		// We only render if there is something on the array
-		if (vbCounter>0)
+		if (pendingUpdates[key] & BUTTON_UPDATE_SENSITIVITY)
 		{
-			// Render frame around button
-			glUseProgram(vbShaderProgramID);
+			virtualButton->setSensitivity(
+					(QCAR::VirtualButton::SENSITIVITY) keySensitivities[key]);
+			detector.setSensitivity(targetKey, keySensitivities[key]);
+		}
+	}
+
+	pendingExistence[key] = -1;
+	pendingUpdates[key] = 0;
+}
+
+// Drain the command ring and apply all commands in one reconfiguration
+void applyButtonCommandBatch()
+{
+	if (keyCount == 0)
+		return;
 
-			glVertexAttribPointer(vbVertexHandle, 3, GL_FLOAT, GL_FALSE, 0,
-					(const GLvoid*) &vbVertices[0]);
+	// Coalesce everything enqueued so far, bounded by the ring capacity so
+	// that a busy producer cannot stall the tracker:
+	ButtonCommand command;
+	jlong batchSize = 0;
+	jlong oldestEnqueueNanos = 0;
+	jlong totalEnqueueNanos = 0;
+	while (batchSize < BUTTON_COMMAND_CAPACITY && dequeueButtonCommand(command))
+	{
+		coalesceButtonCommand(command);
+		if (batchSize == 0)
+			oldestEnqueueNanos = command.enqueueNanos;
+		totalEnqueueNanos += command.enqueueNanos;
+		batchSize++;
+	}
+
+	if (batchSize == 0)
+		return;
 
-			glEnableVertexAttribArray(vbVertexHandle);
+	// Update runs in the tracking thread therefore it is guaranteed that the
+	// tracker is not doing anything at this point. => Reconfiguration is
+	// possible.
+	jlong startNanos = getMonotonicNanos();
 
-			glUniformMatrix4fv(mvpMatrixHandle, 1, GL_FALSE,
-					(GLfloat*)&modelViewProjection.data[0] );
+	QCAR::ImageTracker* it =
+			reinterpret_cast<QCAR::ImageTracker*>(QCAR::TrackerManager::getInstance().getTracker(
+					QCAR::Tracker::IMAGE_TRACKER));
+	assert(dataSet);
 
-			// We multiply by 8 because that's the number of vertices per button
-			// The reason is that GL_LINES considers only pairs. So some vertices
-			// must be repeated.
-			glDrawArrays(GL_LINES, 0, target->getNumVirtualButtons()*8);
+	// Deactivate the data set prior to reconfiguration:
+	it->deactivateDataSet(dataSet);
 
-			SampleUtils::checkGlError("VirtualButtons drawButton");
+	// The image targets of the layout, looked up once per batch:
+	QCAR::ImageTarget* imageTargets[KeyTargets::MAX_TARGETS];
+	for (int t = 0; t < keyTargets.getTargetCount(); ++t)
+	{
+		imageTargets[t] = 0;
+		for (int i = 0; i < dataSet->getNumTrackables(); ++i)
+		{
+			QCAR::Trackable* trackable = dataSet->getTrackable(i);
+			assert(trackable->getType() == QCAR::Trackable::IMAGE_TARGET);
+			if (strcmp(trackable->getName(), keyTargets.getName(t)) == 0)
+				imageTargets[t] = static_cast<QCAR::ImageTarget*>(trackable);
+		}
+		if (imageTargets[t] == 0)
+			LOG("Image target %s not found.", keyTargets.getName(t));
+	}
 
-			glDisableVertexAttribArray(vbVertexHandle);
+	jlong appliedKeys = 0;
+	for (int w = 0; w < keyStateWords; ++w)
+	{
+		jlong keys = commandKeys[w];
+		while (keys != 0)
+		{
+			int key = (w << 6) + __builtin_ctzll(keys);
+			int target = keyTargets.getTarget(key);
+			if (imageTargets[target] != 0)
+			{
+				applyButtonCommands(imageTargets[target], target, key);
+				appliedKeys++;
+			}
+			else
+			{
+				pendingExistence[key] = -1;
+				pendingUpdates[key] = 0;
+			}
+			keys &= keys - 1;
 		}
+		commandKeys[w] = 0;
+	}
 
-		// Assumptions:
-		assert(textureIndex < textureCount);
-		const Texture* const thisTexture = textures[textureIndex];
+	// Reactivate the data set:
+	it->activateDataSet(dataSet);
+
+	// Statistics:
+	jlong endNanos = getMonotonicNanos();
+	jlong applyNanos = endNanos - startNanos;
+	jlong* stats = buttonCommandStats;
+	stats[STAT_BATCHES]++;
+	stats[STAT_COMMANDS] += batchSize;
+	stats[STAT_APPLIED_KEYS] += appliedKeys;
+	if (batchSize > stats[STAT_MAX_BATCH_SIZE])
+		stats[STAT_MAX_BATCH_SIZE] = batchSize;
+	stats[STAT_LAST_APPLY_NANOS] = applyNanos;
+	if (applyNanos > stats[STAT_MAX_APPLY_NANOS])
+		stats[STAT_MAX_APPLY_NANOS] = applyNanos;
+	stats[STAT_TOTAL_APPLY_NANOS] += applyNanos;
+	if (endNanos - oldestEnqueueNanos > stats[STAT_MAX_LATENCY_NANOS])
+		stats[STAT_MAX_LATENCY_NANOS] = endNanos - oldestEnqueueNanos;
+	stats[STAT_TOTAL_LATENCY_NANOS] += batchSize * endNanos - totalEnqueueNanos;
+}
 
-		// Scale 3D model
-		QCAR::Matrix44F modelViewScaled = modelViewMatrix;
-		SampleUtils::scalePoseMatrix(kTeapotScale, kTeapotScale, kTeapotScale,
-				&modelViewScaled.data[0]);
+// Object to receive update callbacks from QCAR SDK
+class VirtualButton_UpdateCallback: public QCAR::UpdateCallback {
+	virtual void QCAR_onUpdate(QCAR::State& state) {
+		// Stamp the frame for the latency measurements:
+		jlong trackerNanos = stampFrame(state);
 
-		QCAR::Matrix44F modelViewProjectionScaled;
-		SampleUtils::multiplyMatrix(&projectionMatrix.data[0],
-				&modelViewScaled.data[0],
-				&modelViewProjectionScaled.data[0]);
+		// Apply queued button reconfigurations in one batch:
+		if (hasButtonCommands())
+			applyButtonCommandBatch();
 
-		// Render 3D model
-		glUseProgram(shaderProgramID);
+		// Turn button changes into note events as early as possible:
+		publishButtonEdges(state, trackerNanos);
+	}
+} qcarUpdate;
 
-		glVertexAttribPointer(vertexHandle, 3, GL_FLOAT, GL_FALSE, 0,
-				(const GLvoid*) &teapotVertices[0]);
-		glVertexAttribPointer(normalHandle, 3, GL_FLOAT, GL_FALSE, 0,
-				(const GLvoid*) &teapotNormals[0]);
-		glVertexAttribPointer(textureCoordHandle, 2, GL_FLOAT, GL_FALSE, 0,
-				(const GLvoid*) &teapotTexCoords[0]);
+// Register the direct buffer receiving the key state snapshot of every frame
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtonsRenderer_setKeyStateBuffer(
+		JNIEnv* env, jobject, jobject buffer)
+{
+	LOG("Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtonsRenderer_setKeyStateBuffer");
 
-		glEnableVertexAttribArray(vertexHandle);
-		glEnableVertexAttribArray(normalHandle);
-		glEnableVertexAttribArray(textureCoordHandle);
+	keyStateBuffer = 0;
+	if (buffer == NULL || keyCount == 0)
+		return;
+
+	jlong capacity = env->GetDirectBufferCapacity(buffer);
+	if (capacity < (jlong) (sizeof(KeyStateHeader) + 3 * keyStateWords * sizeof(jlong)))
+	{
+		LOG("Key state buffer is too small.");
+		return;
+	}
+
+	memset(keyStatePrevious, 0, keyStateWords * sizeof(jlong));
+	keyStateBuffer = (unsigned char*) env->GetDirectBufferAddress(buffer);
+}
+
+// Return the lowest key set in the key state words, or -1
+int lowestKey(const jlong* keys)
+{
+	for (int w = 0; w < keyStateWords; ++w)
+	{
+		if (keys[w] != 0)
+			return (w << 6) + __builtin_ctzll(keys[w]);
+	}
+	return -1;
+}
+
+// Write the pressed keys and their edges since the previous frame, with the
+// stamps of the tracker update and camera capture of the frame
+void writeKeyState(const jlong* pressed, jlong trackerNanos, jlong captureNanos)
+{
+	if (keyStateBuffer == 0 || keyCount == 0)
+		return;
+
+	KeyStateHeader* header = (KeyStateHeader*) keyStateBuffer;
+	jlong* pressedWords = (jlong*) (keyStateBuffer + sizeof(KeyStateHeader));
+	jlong* pressEdges = pressedWords + keyStateWords;
+	jlong* releaseEdges = pressEdges + keyStateWords;
+
+	for (int w = 0; w < keyStateWords; ++w)
+	{
+		jlong changed = pressed[w] ^ keyStatePrevious[w];
+		pressedWords[w] = pressed[w];
+		pressEdges[w] = changed & pressed[w];
+		releaseEdges[w] = changed & keyStatePrevious[w];
+		keyStatePrevious[w] = pressed[w];
+	}
+
+	header->keyCount = keyCount;
+	header->timestampNanos = getMonotonicNanos();
+	header->trackerNanos = trackerNanos;
+	header->captureNanos = captureNanos;
+	header->sequence = ++keyStateSequence;
+}
+
+// Collect the pressed buttons of a tracked target into the key state words and
+// the outlines of its buttons into its part of vbVertices
+void collectTargetButtons(int t, const QCAR::ImageTarget* target,
+		jlong* pressedKeys)
+{
+	// The layout holds vertices for every key:
+	GLfloat* vertices = &vbVertices[keyTargets.getFirstKey(t) * 24];
+	int vbCounter = 0;
+	int buttonCount = target->getNumVirtualButtons();
+	if (buttonCount > keyTargets.getKeyCount(t))
+		buttonCount = keyTargets.getKeyCount(t);
+
+	for (int i = 0; i < buttonCount; ++i)
+	{
+		const QCAR::VirtualButton* button = target->getVirtualButton(i);
+
+		// Collect every pressed key, several may be held as a chord:
+		if (button->isPressed())
+		{
+			int key = findKey(renderKeyCache, t, i, button);
+			if (key >= 0)
+				pressedKeys[key >> 6] |= (jlong) 1 << (key & 63);
+		}
+
+		const QCAR::Area* vbArea = &button->getArea();
+		assert(vbArea->getType() == QCAR::Area::RECTANGLE);
+		const QCAR::Rectangle* vbRectangle = static_cast<const QCAR::Rectangle*>(vbArea);
+
+		// We add the vertices to a common array in order to have one single
+		// draw call per target. This is more efficient than having multiple
+		// glDrawArray calls
+		vertices[vbCounter ]=vbRectangle->getLeftTopX();
+		vertices[vbCounter+ 1]=vbRectangle->getLeftTopY();
+		vertices[vbCounter+ 2]=0.0f;
+		vertices[vbCounter+ 3]=vbRectangle->getRightBottomX();
+		vertices[vbCounter+ 4]=vbRectangle->getLeftTopY();
+		vertices[vbCounter+ 5]=0.0f;
+		vertices[vbCounter+ 6]=vbRectangle->getRightBottomX();
+		vertices[vbCounter+ 7]=vbRectangle->getLeftTopY();
+		vertices[vbCounter+ 8]=0.0f;
+		vertices[vbCounter+ 9]=vbRectangle->getRightBottomX();
+		vertices[vbCounter+10]=vbRectangle->getRightBottomY();
+		vertices[vbCounter+11]=0.0f;
+		vertices[vbCounter+12]=vbRectangle->getRightBottomX();
+		vertices[vbCounter+13]=vbRectangle->getRightBottomY();
+		vertices[vbCounter+14]=0.0f;
+		vertices[vbCounter+15]=vbRectangle->getLeftTopX();
+		vertices[vbCounter+16]=vbRectangle->getRightBottomY();
+		vertices[vbCounter+17]=0.0f;
+		vertices[vbCounter+18]=vbRectangle->getLeftTopX();
+		vertices[vbCounter+19]=vbRectangle->getRightBottomY();
+		vertices[vbCounter+20]=0.0f;
+		vertices[vbCounter+21]=vbRectangle->getLeftTopX();
+		vertices[vbCounter+22]=vbRectangle->getLeftTopY();
+		vertices[vbCounter+23]=0.0f;
+		vbCounter+=24;
+	}
+
+	targetStates[t].renderVertexCount = vbCounter;
+}
+
+// Draw the button outlines and the teapot of a target at its filtered pose
+void drawTarget(int t, const Texture* texture)
+{
+	QCAR::Matrix34F pose;
+	memcpy(pose.data, targetStates[t].renderPoseFilter.getPose(),
+			sizeof(pose.data));
+	QCAR::Matrix44F modelViewMatrix =
+	QCAR::Tool::convertPose2GLMatrix(pose);
+
+	// Set transformations:
+	QCAR::Matrix44F modelViewProjection;
+	SampleUtils::multiplyMatrix(&projectionMatrix.data[0],
+			&modelViewMatrix.data[0],
+			&modelViewProjection.data[0]);
+
+	// Without a target the outlines of the last tracked frame are drawn
+	// again:
+	GLfloat* vertices = &vbVertices[keyTargets.getFirstKey(t) * 24];
+	int vbCounter = targetStates[t].renderVertexCount;
+
+	// We only render if there is something on the array
+	if (vbCounter>0)
+	{
+		// Render frame around button
+		glUseProgram(vbShaderProgramID);
+
+		glVertexAttribPointer(vbVertexHandle, 3, GL_FLOAT, GL_FALSE, 0,
+				(const GLvoid*) &vertices[0]);
+
+		glEnableVertexAttribArray(vbVertexHandle);
 
-		glActiveTexture(GL_TEXTURE0);
-		glBindTexture(GL_TEXTURE_2D, thisTexture->mTextureID);
 		glUniformMatrix4fv(mvpMatrixHandle, 1, GL_FALSE,
-				(GLfloat*)&modelViewProjectionScaled.data[0] );
-		glDrawElements(GL_TRIANGLES, NUM_TEAPOT_OBJECT_INDEX, GL_UNSIGNED_SHORT,
-				(const GLvoid*) &teapotIndices[0]);
+				(GLfloat*)&modelViewProjection.data[0] );
+
+		// There are 8 vertices of 3 floats per button. The reason is that
+		// GL_LINES considers only pairs. So some vertices must be repeated.
+		glDrawArrays(GL_LINES, 0, vbCounter / 3);
+
+		SampleUtils::checkGlError("VirtualButtons drawButton");
+
+		glDisableVertexAttribArray(vbVertexHandle);
+	}
+
+	// Scale 3D model
+	QCAR::Matrix44F modelViewScaled = modelViewMatrix;
+	SampleUtils::scalePoseMatrix(kTeapotScale, kTeapotScale, kTeapotScale,
+			&modelViewScaled.data[0]);
+
+	QCAR::Matrix44F modelViewProjectionScaled;
+	SampleUtils::multiplyMatrix(&projectionMatrix.data[0],
+			&modelViewScaled.data[0],
+			&modelViewProjectionScaled.data[0]);
+
+	// Render 3D model
+	glUseProgram(shaderProgramID);
+
+	glVertexAttribPointer(vertexHandle, 3, GL_FLOAT, GL_FALSE, 0,
+			(const GLvoid*) &teapotVertices[0]);
+	glVertexAttribPointer(normalHandle, 3, GL_FLOAT, GL_FALSE, 0,
+			(const GLvoid*) &teapotNormals[0]);
+	glVertexAttribPointer(textureCoordHandle, 2, GL_FLOAT, GL_FALSE, 0,
+			(const GLvoid*) &teapotTexCoords[0]);
+
+	glEnableVertexAttribArray(vertexHandle);
+	glEnableVertexAttribArray(normalHandle);
+	glEnableVertexAttribArray(textureCoordHandle);
+
+	glActiveTexture(GL_TEXTURE0);
+	glBindTexture(GL_TEXTURE_2D, texture->mTextureID);
+	glUniformMatrix4fv(mvpMatrixHandle, 1, GL_FALSE,
+			(GLfloat*)&modelViewProjectionScaled.data[0] );
+	glDrawElements(GL_TRIANGLES, NUM_TEAPOT_OBJECT_INDEX, GL_UNSIGNED_SHORT,
+			(const GLvoid*) &teapotIndices[0]);
+
+	SampleUtils::checkGlError("VirtualButtons renderFrame");
+}
+
+// Render the frame, returns the number of targets tracked
+JNIEXPORT jint JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtonsRenderer_renderFrame(JNIEnv *, jobject)
+{
+	//LOG("Java_com_qualcomm_QCARSamples_VirtualButtons_GLRenderer_renderFrame");
+
+	// Clear color and depth buffer
+	glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
-		SampleUtils::checkGlError("VirtualButtons renderFrame");
+	// Get the state from QCAR and mark the beginning of a rendering section
+	QCAR::State state = QCAR::Renderer::getInstance().begin();
+
+	// Explicitly render the Video Background
+	QCAR::Renderer::getInstance().drawVideoBackground();
+
+	glEnable(GL_DEPTH_TEST);
+	glEnable(GL_CULL_FACE);
+
+	// Bit k is set while key k of the layout is pressed:
+	jlong* pressedKeys = renderPressedKeys;
+	if (pressedKeys != 0)
+		memset(pressedKeys, 0, keyStateWords * sizeof(jlong));
+
+	// Which targets did we find this frame? The filtered pose of each is
+	// drawn, which is extrapolated for a few frames after it is lost:
+	const QCAR::ImageTarget* targets[KeyTargets::MAX_TARGETS];
+	int tracked = findTargets(state, renderTrackableIds, targets);
+	int targetCount = keyTargets.getTargetCount();
+	double frameSeconds = state.getFrame().getTimeStamp();
+	for (int t = 0; t < targetCount; ++t)
+	{
+		PoseFilter& poseFilter = targetStates[t].renderPoseFilter;
+		poseFilter.setHoldFrames(poseHoldFrames);
+		if (targets[t] != 0)
+		{
+			poseFilter.update(targets[t]->getPose().data, frameSeconds);
+			collectTargetButtons(t, targets[t], pressedKeys);
+		}
+		else
+			poseFilter.predict(frameSeconds);
+	}
+
+	// The lowest key of the chord selects the texture of every target:
+	int textureIndex = 0;
+	int chordRoot = pressedKeys != 0 ? lowestKey(pressedKeys) : -1;
+	if (chordRoot >= 0 && textureCount > 1)
+		textureIndex = 1 + chordRoot % (textureCount - 1);
+
+	// Assumptions:
+	assert(textureIndex < textureCount);
+	const Texture* const thisTexture = textures[textureIndex];
 
+	for (int t = 0; t < targetCount; ++t)
+	{
+		if (targetStates[t].renderPoseFilter.hasPose())
+			drawTarget(t, thisTexture);
 	}
 
 	glDisable(GL_DEPTH_TEST);
@@ -489,6 +1633,21 @@ Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtonsRenderer_renderFrame(
 	glDisableVertexAttribArray(textureCoordHandle);
 
 	QCAR::Renderer::getInstance().end();
+
+	// Prefer the keys found by the occlusion detector of the tracking thread:
+	if (pressedKeys != 0 && occlusionDetection &&
+		readDetectedKeys(renderDetectedKeys))
+		memcpy(pressedKeys, renderDetectedKeys, keyStateWords * sizeof(jlong));
+
+	// Publish the key state of this frame to Java:
+	if (pressedKeys != 0)
+	{
+		jlong trackerNanos, captureNanos;
+		findFrameStamp(state.getFrame().getIndex(), trackerNanos, captureNanos);
+		writeKeyState(pressedKeys, trackerNanos, captureNanos);
+	}
+
+	return tracked;
 }
 
 void configureVideoBackground() {
@@ -614,6 +1773,83 @@ Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_deinitApplicationNat
 
 		textureCount = 0;
 	}
+
+	// Stop publishing note events:
+	pthread_mutex_lock(&noteEventRingMutex);
+	if (noteEventRing != 0)
+	{
+		env->DeleteGlobalRef(noteEventRing);
+		noteEventRing = 0;
+	}
+	pthread_mutex_unlock(&noteEventRingMutex);
+
+	// Release the key layout:
+	frameRecorder.stop();
+	keyStateBuffer = 0;
+	freeKeyLayout();
+}
+
+// Switch between the occlusion detector and polling the Virtual Buttons
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_setOcclusionDetection(
+		JNIEnv*, jobject, jboolean enabled)
+{
+	LOG("Occlusion detection %s", enabled ? "on" : "off");
+	occlusionDetection = enabled == JNI_TRUE;
+}
+
+// Start recording the tracker updates to a file, see FrameRecorder.h
+JNIEXPORT jboolean JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_startRecording(
+		JNIEnv* env, jobject, jstring path)
+{
+	if (keyCount == 0)
+		return JNI_FALSE;
+
+	const char* chars = env->GetStringUTFChars(path, NULL);
+	bool started = frameRecorder.start(chars, keyTargets.getKeyCount(0),
+			keyRectangles, (const int*) keyNotes);
+	LOG("Recording to %s %s", chars, started ? "started" : "failed");
+	env->ReleaseStringUTFChars(path, chars);
+	return started ? JNI_TRUE : JNI_FALSE;
+}
+
+// Stop recording and copy frames written, frames dropped and bytes written
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_stopRecording(
+		JNIEnv* env, jobject, jlongArray statistics)
+{
+	frameRecorder.stop();
+
+	long long snapshot[3];
+	frameRecorder.getStatistics(snapshot);
+	jlong values[3] = { snapshot[0], snapshot[1], snapshot[2] };
+	int count = env->GetArrayLength(statistics);
+	env->SetLongArrayRegion(statistics, 0, count < 3 ? count : 3, values);
+}
+
+// Set the frames the target pose is extrapolated after tracking is lost
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_setPoseHoldFrames(
+		JNIEnv*, jobject, jint frames)
+{
+	poseHoldFrames = frames;
+}
+
+// Copy the tracking dropouts, frames lost, frames extrapolated and presses
+// detected at an extrapolated pose
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_getPoseFilterStatistics(
+		JNIEnv* env, jobject, jlongArray statistics)
+{
+	// The counters are written by the tracking thread only, a snapshot may
+	// be slightly inconsistent but never blocks the tracker:
+	jlong snapshot[POSE_STAT_COUNT];
+	memcpy(snapshot, poseFilterStats, sizeof(snapshot));
+
+	jsize count = env->GetArrayLength(statistics);
+	env->SetLongArrayRegion(statistics, 0,
+			count < POSE_STAT_COUNT ? count : POSE_STAT_COUNT, snapshot);
 }
 
 JNIEXPORT void JNICALL
@@ -634,6 +1870,9 @@ Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtons_startCamera(JNIEnv *
 					QCAR::CameraDevice::MODE_DEFAULT))
 	return;
 
+	// Request luminance images for the occlusion detector:
+	QCAR::setFrameFormat(QCAR::GRAYSCALE, true);
+
 	// Start the camera:
 	if (!QCAR::CameraDevice::getInstance().start())
 	return;
@@ -701,9 +1940,17 @@ Java_com_qualcomm_QCARSamples_VirtualButtons_VirtualButtonsRenderer_initRenderin
 		glBindTexture(GL_TEXTURE_2D, textures[i]->mTextureID);
 		glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
 		glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, textures[i]->mWidth,
-				textures[i]->mHeight, 0, GL_RGBA, GL_UNSIGNED_BYTE,
-				(GLvoid*) textures[i]->mData);
+
+		// ETC1 blocks are uploaded as they are stored in the APK:
+		if (textures[i]->mCompressedFormat)
+			glCompressedTexImage2D(GL_TEXTURE_2D, 0,
+					textures[i]->mCompressedFormat, textures[i]->mWidth,
+					textures[i]->mHeight, 0, textures[i]->mDataSize,
+					(GLvoid*) textures[i]->mData);
+		else
+			glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, textures[i]->mWidth,
+					textures[i]->mHeight, 0, GL_RGBA, GL_UNSIGNED_BYTE,
+					(GLvoid*) textures[i]->mData);
 	}
 
 	// OpenGL setup for 3D model
@@ -0,0 +1,1193 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** AudioEngine is a polyphonic piano synthesizer driven by key presses.
+ *
+ *  All voice state lives in preallocated primitive arrays. Voices are
+ *  rendered block by block into a float mix buffer which is streamed into
+ *  an AudioSink. Nothing is allocated once the engine has been constructed.
+ *  A voice plays the sample of a SampleBank zone if a bank is set and has
+ *  one for the note and velocity, otherwise it is synthesized, from
+ *  decaying partials or by the strings of a StringSynth. With a voice
+ *  budget set, the engine lowers the string quality while a voice costs
+ *  more than the budget and raises it again once it has been well below.
+ *
+ *  noteOn() / noteOff() may be called from any thread. Requests are parked
+ *  in a per-key mailbox and picked up by the audio thread at the start of
+ *  the next block. Timestamped events from the tracking thread arrive
+ *  through a NoteEventRing which is drained at the same point. Events of
+ *  an EventScheduler start and release voices at the exact sample they
+ *  are due at, within the block.
+ *
+ *  suspend() silences the voices and parks the render thread with the sink
+ *  paused but open, and the tables and samples in memory, so that resume()
+ *  is heard within a block rather than after the sink was reopened.
+ *
+ * */
+
+public class AudioEngine implements Runnable, NoteEventRing.Handler
+{
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    public static final int DEFAULT_BLOCK_SIZE  = 256;
+    public static final int DEFAULT_MAX_VOICES  = 16;
+
+    public static final int NUM_NOTES = 128;
+
+    // Synthesis of the voices without a sample:
+    public static final int SYNTHESIS_PARTIALS = 0;
+    public static final int SYNTHESIS_STRINGS = 1;
+
+    /** Called on the audio thread right before a block is rendered. */
+    public interface BlockListener
+    {
+        public void onBlock(AudioEngine engine, long sampleTime);
+    }
+
+    // Voice states:
+    private static final int VOICE_IDLE         = 0;
+    private static final int VOICE_ACTIVE       = 1;
+    private static final int VOICE_RELEASING    = 2;
+
+    // Voice types:
+    private static final int TYPE_PARTIALS      = 0;
+    private static final int TYPE_SAMPLE        = 1;
+    private static final int TYPE_STRINGS       = 2;
+
+    // Load control: the cost per voice is averaged over about 16 blocks,
+    // the quality rises after 200 blocks below half the budget:
+    private static final float COST_SMOOTHING   = 1.0f / 16;
+    private static final int RECOVERY_BLOCKS    = 200;
+
+    // Synthesis constants:
+    private static final int NUM_PARTIALS       = 6;
+    private static final int SINE_TABLE_BITS    = 12;
+    private static final int SINE_TABLE_SIZE    = 1 << SINE_TABLE_BITS;
+    private static final int SINE_TABLE_MASK    = SINE_TABLE_SIZE - 1;
+    private static final float INHARMONICITY    = 0.0004f;
+    private static final float ATTACK_TIME      = 0.002f;
+    private static final float RELEASE_TIME     = 0.25f;
+    private static final float SILENCE_LEVEL    = 0.0001f;
+    private static final float MASTER_GAIN      = 0.25f;
+
+    // The sine table shared by all engines:
+    private static final float[] SINE_TABLE = new float[SINE_TABLE_SIZE + 1];
+
+    static
+    {
+        for (int i = 0; i <= SINE_TABLE_SIZE; ++i)
+            SINE_TABLE[i] = (float) Math.sin(2.0 * Math.PI * i /
+                                                SINE_TABLE_SIZE);
+    }
+
+    private final int mSampleRate;
+    private final int mBlockSize;
+    private final int mMaxVoices;
+
+    // Per-key mailbox filled by noteOn() / noteOff() from any thread, with
+    // the time of each request and whether the release came last:
+    private final AtomicIntegerArray mPendingOn;
+    private final AtomicIntegerArray mPendingOff;
+    private final AtomicLongArray mPendingTime;
+    private final AtomicLongArray mPendingOffTime;
+    private final AtomicIntegerArray mPendingOffLast;
+    private final AtomicBoolean mPendingDirty = new AtomicBoolean(false);
+
+    // Per-voice state:
+    private final int[] mVoiceState;
+    private final int[] mVoiceNote;
+    private final long[] mVoiceStartTime;
+    private final long[] mVoicePressTime;
+    private final float[] mVoiceGain;
+    private final float[] mVoiceAttackStep;
+    private final float[] mVoiceReleaseFactor;
+
+    // Per-voice sample playback, the position is in frames with 32
+    // fraction bits:
+    private final int[] mVoiceType;
+    private final int[] mVoiceZone;
+    private final long[] mVoicePosition;
+    private final long[] mVoiceIncrement;
+    private final float[] mVoiceSampleGain;
+
+    // Per-partial state, NUM_PARTIALS consecutive entries per voice:
+    private final float[] mPartialPhase;
+    private final float[] mPartialIncrement;
+    private final float[] mPartialAmplitude;
+    private final float[] mPartialDecay;
+
+    // Scratch buffers:
+    private final float[] mVoiceBuffer;
+    private final float[] mMixBuffer;
+
+    private final float mReleaseFactor;
+
+    // The number of frames rendered so far:
+    private long mSampleTime = 0;
+
+    private BlockListener mBlockListener;
+
+    // Events published by the tracking thread:
+    private volatile NoteEventRing mNoteEventRing;
+
+    // Receives the latencies of the key presses, from the audio thread:
+    private volatile LatencyMonitor mLatencyMonitor;
+
+    // The recorded notes, if any:
+    private volatile SampleBank mSampleBank;
+
+    // The string voices and their load control:
+    private final StringSynth mStringSynth;
+    private volatile int mSynthesis = SYNTHESIS_PARTIALS;
+    private volatile int mMaxQuality = StringSynth.QUALITY_HIGH;
+    private volatile long mVoiceBudgetNanos = 0;
+    private float mVoiceCostNanos = 0.0f;
+    private int mStringVoices = 0;
+    private int mBlocksBelowBudget = 0;
+
+    // Events due at a sample time:
+    private volatile EventScheduler mScheduler;
+
+    // Optional recording of the notes played:
+    private volatile MidiRecorder mMidiRecorder;
+
+    // The render thread:
+    private Thread mThread;
+    private AudioSink mSink;
+    private volatile boolean mRunning = false;
+    private volatile boolean mSuspended = false;
+    private final Object mSuspendLock = new Object();
+
+    // The last resume(), written by the caller, and the time from it to the
+    // first block written, by the audio thread:
+    private volatile long mResumeNanos = 0;
+    private volatile long mResumeLatencyNanos = 0;
+
+    // Statistics, written by the audio thread only:
+    private volatile long mBlocksRendered = 0;
+    private volatile long mVoiceBlocksRendered = 0;
+    private volatile long mRenderNanos = 0;
+    private volatile int mActiveVoices = 0;
+    private volatile long mVoicesStolen = 0;
+    private volatile long mQualityDrops = 0;
+    private volatile long mStringsDropped = 0;
+    private volatile long mLatencyCount = 0;
+    private volatile long mLatencySumNanos = 0;
+    private volatile long mLatencyMaxNanos = 0;
+    private volatile long mLatencyLastNanos = 0;
+
+
+    /** Constructor using the default configuration. */
+    public AudioEngine()
+    {
+        this(DEFAULT_SAMPLE_RATE, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_VOICES);
+    }
+
+
+    /** Constructor. */
+    public AudioEngine(int sampleRate, int blockSize, int maxVoices)
+    {
+        if (sampleRate <= 0 || blockSize <= 0 || maxVoices <= 0)
+            throw new IllegalArgumentException("Invalid engine configuration");
+
+        mSampleRate = sampleRate;
+        mBlockSize = blockSize;
+        mMaxVoices = maxVoices;
+
+        mPendingOn = new AtomicIntegerArray(NUM_NOTES);
+        mPendingOff = new AtomicIntegerArray(NUM_NOTES);
+        mPendingTime = new AtomicLongArray(NUM_NOTES);
+        mPendingOffTime = new AtomicLongArray(NUM_NOTES);
+        mPendingOffLast = new AtomicIntegerArray(NUM_NOTES);
+
+        mVoiceState = new int[maxVoices];
+        mVoiceNote = new int[maxVoices];
+        mVoiceStartTime = new long[maxVoices];
+        mVoicePressTime = new long[maxVoices];
+        mVoiceGain = new float[maxVoices];
+        mVoiceAttackStep = new float[maxVoices];
+        mVoiceReleaseFactor = new float[maxVoices];
+
+        mVoiceType = new int[maxVoices];
+        mVoiceZone = new int[maxVoices];
+        mVoicePosition = new long[maxVoices];
+        mVoiceIncrement = new long[maxVoices];
+        mVoiceSampleGain = new float[maxVoices];
+
+        mPartialPhase = new float[maxVoices * NUM_PARTIALS];
+        mPartialIncrement = new float[maxVoices * NUM_PARTIALS];
+        mPartialAmplitude = new float[maxVoices * NUM_PARTIALS];
+        mPartialDecay = new float[maxVoices * NUM_PARTIALS];
+
+        mVoiceBuffer = new float[blockSize];
+        mMixBuffer = new float[blockSize];
+
+        mReleaseFactor = decayFactor(RELEASE_TIME);
+        mStringSynth = new StringSynth(sampleRate, blockSize, maxVoices);
+    }
+
+
+    /** Requests a note to start. Velocity ranges from 1 to 127. */
+    public void noteOn(int note, int velocity)
+    {
+        if (note < 0 || note >= NUM_NOTES)
+            return;
+
+        mPendingTime.set(note, System.nanoTime());
+        mPendingOffLast.set(note, 0);
+        mPendingOn.set(note, Math.max(1, Math.min(127, velocity)));
+        mPendingDirty.set(true);
+    }
+
+
+    /** Requests a note to be released. */
+    public void noteOff(int note)
+    {
+        if (note < 0 || note >= NUM_NOTES)
+            return;
+
+        mPendingOffTime.set(note, System.nanoTime());
+        mPendingOffLast.set(note, 1);
+        mPendingOff.set(note, 1);
+        mPendingDirty.set(true);
+    }
+
+
+    /** Releases every sounding note. */
+    public void allNotesOff()
+    {
+        long timestampNanos = System.nanoTime();
+        for (int note = 0; note < NUM_NOTES; ++note)
+        {
+            mPendingOffTime.set(note, timestampNanos);
+            mPendingOffLast.set(note, 1);
+            mPendingOff.set(note, 1);
+        }
+        mPendingDirty.set(true);
+    }
+
+
+    /** Sets the listener invoked before every block. */
+    public void setBlockListener(BlockListener listener)
+    {
+        mBlockListener = listener;
+    }
+
+
+    /** Sets the ring drained by the audio thread before every block. */
+    public void setNoteEventRing(NoteEventRing ring)
+    {
+        mNoteEventRing = ring;
+    }
+
+
+    /** Sets the monitor receiving the enqueue and first sample latencies
+     *  of the note events. */
+    public void setLatencyMonitor(LatencyMonitor monitor)
+    {
+        mLatencyMonitor = monitor;
+    }
+
+
+    /** Sets the bank the notes started from now on are played from, null
+     *  to synthesize all of them. A bank must only be set on one engine. */
+    public void setSampleBank(SampleBank bank)
+    {
+        mSampleBank = bank;
+    }
+
+
+    /** Sets how notes without a sample are synthesized, SYNTHESIS_PARTIALS
+     *  or SYNTHESIS_STRINGS. */
+    public void setSynthesis(int synthesis)
+    {
+        mSynthesis = synthesis;
+    }
+
+
+    /** Sets the highest StringSynth quality level, which is also used
+     *  while there is no voice budget. */
+    public void setMaxStringQuality(int quality)
+    {
+        mMaxQuality = Math.max(StringSynth.QUALITY_LOW,
+                                Math.min(StringSynth.QUALITY_HIGH, quality));
+    }
+
+
+    /** Sets the render time a string voice may take per block on average,
+     *  0 for no limit. Above it, new notes get fewer strings and sounding
+     *  ones drop theirs. */
+    public void setVoiceBudgetNanos(long nanos)
+    {
+        mVoiceBudgetNanos = nanos;
+    }
+
+
+    /** Sets the scheduler whose events are applied at their sample time.
+     *  It must only be used by the audio thread once the engine runs, see
+     *  EventScheduler. */
+    public void setScheduler(EventScheduler scheduler)
+    {
+        mScheduler = scheduler;
+    }
+
+
+    /** Sets the recorder receiving every note started and released by the
+     *  audio thread, null for none. */
+    public void setMidiRecorder(MidiRecorder recorder)
+    {
+        mMidiRecorder = recorder;
+    }
+
+
+    /** Starts the render thread streaming into the given sink. */
+    public synchronized void start(AudioSink sink)
+    {
+        if (mThread != null)
+            return;
+
+        mSink = sink;
+        mSuspended = false;
+        mRunning = true;
+        mThread = new Thread(this, "AudioEngine");
+        mThread.start();
+    }
+
+
+    /** Stops the render thread and waits for it to close the sink. */
+    public synchronized void stop()
+    {
+        if (mThread == null)
+            return;
+
+        mRunning = false;
+        synchronized (mSuspendLock)
+        {
+            mSuspended = false;
+            mSuspendLock.notifyAll();
+        }
+        try
+        {
+            mThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mSink = null;
+    }
+
+
+    /** Returns true while the render thread is running, also while it is
+     *  suspended. */
+    public boolean isRunning()
+    {
+        return mRunning;
+    }
+
+
+    /** Parks the render thread after the current block and pauses the sink,
+     *  which stays open. Events pending by then are applied and every voice
+     *  still sounding is cut, so that resume() starts from silence. */
+    public void suspend()
+    {
+        mSuspended = true;
+    }
+
+
+    /** Restarts a suspended render thread. */
+    public void resume()
+    {
+        synchronized (mSuspendLock)
+        {
+            if (!mSuspended)
+                return;
+            mResumeNanos = System.nanoTime();
+            mSuspended = false;
+            mSuspendLock.notifyAll();
+        }
+    }
+
+
+    public boolean isSuspended()
+    {
+        return mSuspended;
+    }
+
+
+    /** Returns the time from the last resume() to the first block written
+     *  to the sink after it. */
+    public long getResumeLatencyNanos()
+    {
+        return mResumeLatencyNanos;
+    }
+
+
+    /** The render loop executed by the audio thread. */
+    public void run()
+    {
+        AudioSink sink = mSink;
+        Tracer.register();
+        try
+        {
+            sink.open(mSampleRate, mBlockSize);
+            while (mRunning)
+            {
+                if (!mSuspended)
+                {
+                    processBlock(sink);
+                    continue;
+                }
+
+                silenceVoices();
+                sink.pause();
+                if (!waitWhileSuspended())
+                    break;
+                sink.resume();
+                long resumeNanos = mResumeNanos;
+                processBlock(sink);
+                mResumeLatencyNanos = System.nanoTime() - resumeNanos;
+            }
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("AudioEngine::run: audio output failed");
+            DebugLog.LOGI(e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                sink.close();
+            }
+            catch (IOException e)
+            {
+                DebugLog.LOGE("AudioEngine::run: failed to close audio output");
+            }
+        }
+    }
+
+
+    /** Applies the pending events and stops every voice at once, on the
+     *  audio thread. */
+    private void silenceVoices()
+    {
+        NoteEventRing ring = mNoteEventRing;
+        if (ring != null)
+            ring.drain(this);
+        applyPendingEvents();
+
+        SampleBank bank = mSampleBank;
+        for (int v = 0; v < mMaxVoices; ++v)
+        {
+            if (mVoiceState[v] == VOICE_IDLE)
+                continue;
+            if (mVoiceType[v] == TYPE_SAMPLE && bank != null)
+                bank.release(v);
+            mVoiceState[v] = VOICE_IDLE;
+            mVoicePressTime[v] = 0;
+        }
+        mActiveVoices = 0;
+    }
+
+
+    /** Waits until resume() or stop(), returns false on stop(). */
+    private boolean waitWhileSuspended()
+    {
+        synchronized (mSuspendLock)
+        {
+            while (mSuspended && mRunning)
+            {
+                try
+                {
+                    mSuspendLock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return mRunning;
+    }
+
+
+    /** Renders one block and hands it to the sink.
+     *
+     *  This is what the render thread does in a loop. It is public so that
+     *  the engine can be driven synchronously, e.g. to render into a file
+     *  faster than real time. The sink must have been opened. */
+    public void processBlock(AudioSink sink) throws IOException
+    {
+        Tracer.begin("renderBlock");
+        float[] block = renderBlock();
+        Tracer.end("renderBlock");
+
+        // Blocks until the output has room:
+        Tracer.begin("write");
+        sink.write(block, mBlockSize);
+        Tracer.end("write");
+
+        // The first samples of the newly started voices are out now:
+        long now = System.nanoTime();
+        LatencyMonitor monitor = mLatencyMonitor;
+        for (int v = 0; v < mMaxVoices; ++v)
+        {
+            long pressTime = mVoicePressTime[v];
+            if (pressTime != 0)
+            {
+                recordLatency(now - pressTime);
+                if (monitor != null)
+                    monitor.record(LatencyMonitor.STAGE_TRACKER_TO_SOUND,
+                                    now - pressTime);
+                mVoicePressTime[v] = 0;
+            }
+        }
+    }
+
+
+    /** Renders one block into the internal mix buffer and returns it.
+     *
+     *  The returned array is reused by the next call. */
+    public float[] renderBlock()
+    {
+        long startNanos = System.nanoTime();
+
+        if (mBlockListener != null)
+            mBlockListener.onBlock(this, mSampleTime);
+
+        NoteEventRing ring = mNoteEventRing;
+        if (ring != null)
+            ring.drain(this);
+
+        applyPendingEvents();
+
+        float[] mix = mMixBuffer;
+        for (int i = 0; i < mBlockSize; ++i)
+            mix[i] = 0.0f;
+
+        // Render up to every scheduled event, then apply it:
+        EventScheduler scheduler = mScheduler;
+        int due = scheduler != null ? scheduler.collect(mSampleTime,
+                                                        mBlockSize) : 0;
+        int offset = 0;
+        int activeVoices = 0;
+        for (int e = 0; e < due; ++e)
+        {
+            int eventOffset = (int) Math.max(0, scheduler.getTime(e) -
+                                                mSampleTime);
+            if (eventOffset > offset)
+            {
+                activeVoices = Math.max(activeVoices, renderVoices(mix,
+                                        offset, eventOffset - offset));
+                offset = eventOffset;
+            }
+
+            int note = scheduler.getNote(e);
+            if (note < 0 || note >= NUM_NOTES)
+                continue;
+            if (scheduler.getType(e) == EventScheduler.NOTE_ON)
+                startNote(note, Math.max(1, scheduler.getVelocity(e)), 0);
+            else
+                releaseNote(note);
+        }
+        activeVoices = Math.max(activeVoices, renderVoices(mix, offset,
+                                                mBlockSize - offset));
+
+        long nanos = System.nanoTime() - startNanos;
+        if (mStringVoices > 0)
+            controlLoad((float) nanos / activeVoices);
+
+        mSampleTime += mBlockSize;
+        mActiveVoices = activeVoices;
+        mVoiceBlocksRendered += activeVoices;
+        mBlocksRendered++;
+        mRenderNanos += nanos;
+
+        return mix;
+    }
+
+
+    /** Adds frames of all sounding voices to the mix, starting at offset.
+     *  Returns the number of voices. */
+    private int renderVoices(float[] mix, int offset, int frames)
+    {
+        int activeVoices = 0;
+        int stringVoices = 0;
+        for (int v = 0; v < mMaxVoices; ++v)
+        {
+            if (mVoiceState[v] != VOICE_IDLE)
+            {
+                if (mVoiceType[v] == TYPE_STRINGS)
+                    ++stringVoices;
+                renderVoice(v, mix, offset, frames);
+                ++activeVoices;
+            }
+        }
+        mStringVoices = stringVoices;
+        return activeVoices;
+    }
+
+
+    /** Starts a voice on the audio thread, bypassing the mailbox. */
+    public void startNote(int note, int velocity, long pressTime)
+    {
+        int v = findVoice(note);
+        startVoice(v, note, velocity, pressTime);
+    }
+
+
+    /** Releases all voices playing the given note on the audio thread. */
+    public void releaseNote(int note)
+    {
+        for (int v = 0; v < mMaxVoices; ++v)
+        {
+            if (mVoiceState[v] == VOICE_ACTIVE && mVoiceNote[v] == note)
+                mVoiceState[v] = VOICE_RELEASING;
+        }
+    }
+
+
+    /** Applies an event drained from the NoteEventRing. */
+    public void onNoteEvent(int type, int note, int velocity,
+                            long timestampNanos)
+    {
+        if (note < 0 || note >= NUM_NOTES)
+            return;
+
+        if (type == NoteEventRing.NOTE_ON)
+        {
+            LatencyMonitor monitor = mLatencyMonitor;
+            if (monitor != null)
+                monitor.record(LatencyMonitor.STAGE_TRACKER_TO_ENQUEUE,
+                                System.nanoTime() - timestampNanos);
+            startNote(note, Math.max(1, velocity), timestampNanos);
+        }
+        else
+            releaseNote(note);
+
+        MidiRecorder recorder = mMidiRecorder;
+        if (recorder != null)
+        {
+            if (type == NoteEventRing.NOTE_ON)
+                recorder.noteOn(note, velocity, timestampNanos);
+            else
+                recorder.noteOff(note, timestampNanos);
+        }
+    }
+
+
+    /** Moves pending mailbox requests into the voice pool. A key both
+     *  pressed and released since the last block is applied in the order
+     *  the requests came in, so that a release followed by a re-press
+     *  leaves the note sounding. */
+    private void applyPendingEvents()
+    {
+        if (!mPendingDirty.getAndSet(false))
+            return;
+
+        MidiRecorder recorder = mMidiRecorder;
+        for (int note = 0; note < NUM_NOTES; ++note)
+        {
+            int velocity = mPendingOn.getAndSet(note, 0);
+            boolean off = mPendingOff.getAndSet(note, 0) != 0;
+            if (velocity == 0 && !off)
+                continue;
+
+            boolean offLast = mPendingOffLast.get(note) != 0;
+            if (off && !offLast)
+                applyPendingOff(note, recorder);
+
+            if (velocity != 0)
+            {
+                long timestampNanos = mPendingTime.get(note);
+                startNote(note, velocity, timestampNanos);
+                if (recorder != null)
+                    recorder.noteOn(note, velocity, timestampNanos);
+            }
+
+            if (off && offLast)
+                applyPendingOff(note, recorder);
+        }
+    }
+
+
+    /** Releases a note from the mailbox, at the time it was requested. */
+    private void applyPendingOff(int note, MidiRecorder recorder)
+    {
+        releaseNote(note);
+        if (recorder != null)
+            recorder.noteOff(note, mPendingOffTime.get(note));
+    }
+
+
+    /** Picks the voice for a new note, stealing one if needed. */
+    private int findVoice(int note)
+    {
+        // Re-strike a voice already playing this note:
+        for (int v = 0; v < mMaxVoices; ++v)
+        {
+            if (mVoiceState[v] != VOICE_IDLE && mVoiceNote[v] == note)
+                return v;
+        }
+
+        for (int v = 0; v < mMaxVoices; ++v)
+        {
+            if (mVoiceState[v] == VOICE_IDLE)
+                return v;
+        }
+
+        // Steal the quietest releasing voice, otherwise the oldest one:
+        int quietest = -1;
+        int oldest = 0;
+        for (int v = 0; v < mMaxVoices; ++v)
+        {
+            if (mVoiceState[v] == VOICE_RELEASING &&
+                (quietest < 0 || mVoiceGain[v] < mVoiceGain[quietest]))
+                quietest = v;
+
+            if (mVoiceStartTime[v] < mVoiceStartTime[oldest])
+                oldest = v;
+        }
+
+        mVoicesStolen++;
+        return quietest >= 0 ? quietest : oldest;
+    }
+
+
+    /** Initializes the partials of a voice for the given note. */
+    private void startVoice(int v, int note, int velocity, long pressTime)
+    {
+        float frequency = (float) (440.0 * Math.pow(2.0, (note - 69) / 12.0));
+        float velocityGain = velocity / 127.0f;
+        float brightness = 1.6f - velocityGain;
+
+        mVoiceState[v] = VOICE_ACTIVE;
+        mVoiceNote[v] = note;
+        mVoiceStartTime[v] = mSampleTime;
+        mVoicePressTime[v] = pressTime;
+        mVoiceReleaseFactor[v] = mReleaseFactor;
+
+        // Voices beyond the cursors of the bank synthesize:
+        SampleBank bank = mSampleBank;
+        int zone = -1;
+        if (bank != null && v < SampleBank.MAX_CURSORS)
+        {
+            bank.release(v);
+            zone = bank.findZone(note, velocity);
+        }
+        mVoiceZone[v] = zone;
+
+        // Low notes ring longer than high notes:
+        float sustainTime = (float) (8.0 * Math.pow(2.0, -(note - 21) / 24.0));
+
+        if (zone >= 0)
+        {
+            mVoiceType[v] = TYPE_SAMPLE;
+
+            // The sample brings its own attack:
+            double ratio = Math.pow(2.0, (note - bank.getRootNote(zone)) /
+                                    12.0) * bank.getSampleRate() / mSampleRate;
+            mVoicePosition[v] = 0;
+            mVoiceIncrement[v] = (long) (ratio * (1L << 32));
+            mVoiceSampleGain[v] = velocity /
+                                    (32768.0f * bank.getHighVelocity(zone));
+            mVoiceGain[v] = 1.0f;
+            return;
+        }
+
+        if (mSynthesis == SYNTHESIS_STRINGS)
+        {
+            // The strike is the attack:
+            mVoiceType[v] = TYPE_STRINGS;
+            mStringSynth.start(v, note, velocity, sustainTime);
+            mVoiceGain[v] = 1.0f;
+            return;
+        }
+        mVoiceType[v] = TYPE_PARTIALS;
+
+        int base = v * NUM_PARTIALS;
+        for (int k = 0; k < NUM_PARTIALS; ++k)
+        {
+            int harmonic = k + 1;
+            float partialFrequency = harmonic * frequency *
+                (float) Math.sqrt(1.0f + INHARMONICITY * harmonic * harmonic);
+
+            mPartialPhase[base + k] = 0.0f;
+            mPartialIncrement[base + k] = partialFrequency * SINE_TABLE_SIZE /
+                                            mSampleRate;
+
+            if (partialFrequency < 0.45f * mSampleRate)
+            {
+                mPartialAmplitude[base + k] = velocityGain /
+                    (float) Math.pow(harmonic, brightness);
+            }
+            else
+            {
+                mPartialAmplitude[base + k] = 0.0f;
+            }
+
+            mPartialDecay[base + k] = decayFactor(sustainTime /
+                                                (1.0f + 0.5f * k));
+        }
+
+        mVoiceGain[v] = 0.0f;
+        mVoiceAttackStep[v] = 1.0f / (ATTACK_TIME * mSampleRate);
+    }
+
+
+    /** Adds frames of the given voice to the mix, starting at offset. */
+    private void renderVoice(int v, float[] mix, int offset, int frames)
+    {
+        float[] buffer = mVoiceBuffer;
+
+        float level;
+        int type = mVoiceType[v];
+        if (type == TYPE_SAMPLE)
+            level = renderSamples(v, buffer, frames);
+        else if (type == TYPE_STRINGS)
+            level = mStringSynth.render(v, buffer, frames);
+        else
+            level = renderPartials(v, buffer, frames);
+
+        // Apply the attack / release envelope while mixing:
+        float gain = mVoiceGain[v];
+        if (mVoiceState[v] == VOICE_RELEASING)
+        {
+            float release = mVoiceReleaseFactor[v];
+            for (int i = 0; i < frames; ++i)
+            {
+                mix[offset + i] += MASTER_GAIN * gain * buffer[i];
+                gain *= release;
+            }
+        }
+        else if (gain < 1.0f)
+        {
+            float step = mVoiceAttackStep[v];
+            for (int i = 0; i < frames; ++i)
+            {
+                mix[offset + i] += MASTER_GAIN * gain * buffer[i];
+                gain = Math.min(1.0f, gain + step);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < frames; ++i)
+                mix[offset + i] += MASTER_GAIN * buffer[i];
+        }
+        mVoiceGain[v] = gain;
+
+        if (level * gain < SILENCE_LEVEL)
+        {
+            mVoiceState[v] = VOICE_IDLE;
+            SampleBank bank = mSampleBank;
+            if (type == TYPE_SAMPLE && bank != null)
+                bank.release(v);
+        }
+    }
+
+
+    /** Plays frames of the sample of a voice into the buffer, resampled
+     *  to the note by linear interpolation. Blocks the loader has not
+     *  loaded yet play as silence. Returns 1, or 0 once the sample has
+     *  ended. */
+    private float renderSamples(int v, float[] buffer, int frames)
+    {
+        SampleBank bank = mSampleBank;
+        int zone = mVoiceZone[v];
+        if (bank == null)
+        {
+            for (int i = 0; i < frames; ++i)
+                buffer[i] = 0.0f;
+            return 0.0f;
+        }
+
+        int length = bank.getFrames(zone);
+        int shift = Integer.numberOfTrailingZeros(bank.getBlockFrames());
+        int mask = bank.getBlockFrames() - 1;
+        long position = mVoicePosition[v];
+        long increment = mVoiceIncrement[v];
+        float gain = mVoiceSampleGain[v];
+        short[] data = null;
+        int current = -1;
+
+        int i = 0;
+        for (; i < frames; ++i)
+        {
+            int frame = (int) (position >>> 32);
+            if (frame >= length)
+                break;
+            if (frame >> shift != current)
+            {
+                current = frame >> shift;
+                data = bank.getBlock(v, zone, current);
+            }
+            if (data == null)
+            {
+                buffer[i] = 0.0f;
+                position += increment;
+                continue;
+            }
+
+            int index = frame & mask;
+            float fraction = (position & 0xffffffffL) * (1.0f / 4294967296.0f);
+            float sample = data[index];
+            buffer[i] = gain * (sample + fraction * (data[index + 1] - sample));
+            position += increment;
+        }
+        mVoicePosition[v] = position;
+
+        for (int j = i; j < frames; ++j)
+            buffer[j] = 0.0f;
+        return i < frames ? 0.0f : 1.0f;
+    }
+
+
+    /** Synthesizes frames of the partials of a voice into the buffer.
+     *  Returns the summed amplitude of the partials. */
+    private float renderPartials(int v, float[] buffer, int frames)
+    {
+        for (int i = 0; i < frames; ++i)
+            buffer[i] = 0.0f;
+
+        float level = 0.0f;
+        int base = v * NUM_PARTIALS;
+        for (int k = base; k < base + NUM_PARTIALS; ++k)
+        {
+            float amplitude = mPartialAmplitude[k];
+            if (amplitude < SILENCE_LEVEL)
+                continue;
+
+            float phase = mPartialPhase[k];
+            float increment = mPartialIncrement[k];
+            float decay = mPartialDecay[k];
+
+            for (int i = 0; i < frames; ++i)
+            {
+                buffer[i] += amplitude * SINE_TABLE[(int) phase];
+                amplitude *= decay;
+                phase += increment;
+                if (phase >= SINE_TABLE_SIZE)
+                    phase -= SINE_TABLE_SIZE;
+            }
+
+            mPartialPhase[k] = phase;
+            mPartialAmplitude[k] = amplitude;
+            level += amplitude;
+        }
+        return level;
+    }
+
+
+    /** Adapts the string quality to the render time per voice. */
+    private void controlLoad(float voiceNanos)
+    {
+        StringSynth synth = mStringSynth;
+        long budget = mVoiceBudgetNanos;
+        int maxQuality = mMaxQuality;
+        if (budget <= 0)
+        {
+            synth.setQuality(maxQuality);
+            return;
+        }
+
+        // A single slow block, e.g. a page fault, must not count much:
+        voiceNanos = Math.min(voiceNanos, 2.0f * budget);
+        mVoiceCostNanos += COST_SMOOTHING * (voiceNanos - mVoiceCostNanos);
+        int quality = synth.getQuality();
+        if (mVoiceCostNanos > budget)
+        {
+            // Over budget: fewer strings for new and for sounding notes,
+            // then measure again from scratch:
+            if (quality > StringSynth.QUALITY_LOW)
+            {
+                synth.setQuality(--quality);
+                mQualityDrops++;
+            }
+            mStringsDropped += synth.dropStrings(mMaxVoices, quality + 1);
+            mVoiceCostNanos = 0.0f;
+            mBlocksBelowBudget = 0;
+        }
+        else if (mVoiceCostNanos < 0.5f * budget && quality < maxQuality)
+        {
+            if (++mBlocksBelowBudget >= RECOVERY_BLOCKS)
+            {
+                synth.setQuality(quality + 1);
+                mBlocksBelowBudget = 0;
+            }
+        }
+        else
+        {
+            mBlocksBelowBudget = 0;
+            if (quality > maxQuality)
+                synth.setQuality(maxQuality);
+        }
+    }
+
+
+    /** Returns the per-sample factor reaching -60 dB after the given time. */
+    private float decayFactor(float seconds)
+    {
+        return (float) Math.exp(Math.log(0.001) / (seconds * mSampleRate));
+    }
+
+
+    private void recordLatency(long nanos)
+    {
+        mLatencyCount++;
+        mLatencySumNanos += nanos;
+        mLatencyLastNanos = nanos;
+        if (nanos > mLatencyMaxNanos)
+            mLatencyMaxNanos = nanos;
+    }
+
+
+    /** Resets all statistics counters. */
+    public void resetStatistics()
+    {
+        mBlocksRendered = 0;
+        mVoiceBlocksRendered = 0;
+        mRenderNanos = 0;
+        mVoicesStolen = 0;
+        mQualityDrops = 0;
+        mStringsDropped = 0;
+        mLatencyCount = 0;
+        mLatencySumNanos = 0;
+        mLatencyMaxNanos = 0;
+        mLatencyLastNanos = 0;
+    }
+
+
+    public int getSampleRate()
+    {
+        return mSampleRate;
+    }
+
+
+    public int getBlockSize()
+    {
+        return mBlockSize;
+    }
+
+
+    public int getMaxVoices()
+    {
+        return mMaxVoices;
+    }
+
+
+    /** Returns the number of frames rendered so far. */
+    public long getSampleTime()
+    {
+        return mSampleTime;
+    }
+
+
+    /** Returns the number of voices sounding in the last block. */
+    public int getActiveVoiceCount()
+    {
+        return mActiveVoices;
+    }
+
+
+    public long getBlocksRendered()
+    {
+        return mBlocksRendered;
+    }
+
+
+    public long getVoicesStolen()
+    {
+        return mVoicesStolen;
+    }
+
+
+    /** Returns the StringSynth quality level of new notes. */
+    public int getStringQuality()
+    {
+        return mStringSynth.getQuality();
+    }
+
+
+    /** Returns how often the string quality was lowered for the budget. */
+    public long getQualityDrops()
+    {
+        return mQualityDrops;
+    }
+
+
+    /** Returns the strings taken from sounding notes for the budget. */
+    public long getStringsDropped()
+    {
+        return mStringsDropped;
+    }
+
+
+    /** Returns the duration of a block in nanoseconds. */
+    public long getBlockNanos()
+    {
+        return 1000000000L * mBlockSize / mSampleRate;
+    }
+
+
+    /** Returns the CPU time spent rendering, excluding the sink. */
+    public long getRenderNanos()
+    {
+        return mRenderNanos;
+    }
+
+
+    /** Returns how many voice-blocks are rendered per millisecond of CPU. */
+    public double getVoiceBlocksPerCpuMs()
+    {
+        long nanos = mRenderNanos;
+        return nanos > 0 ? mVoiceBlocksRendered * 1000000.0 / nanos : 0.0;
+    }
+
+
+    /** Returns how many voices could be sustained in real time on one core,
+     *  extrapolated from the measured render cost. */
+    public double getRealtimeVoiceCapacity()
+    {
+        double blockMs = 1000.0 * mBlockSize / mSampleRate;
+        return getVoiceBlocksPerCpuMs() * blockMs;
+    }
+
+
+    /** Returns the number of presses whose first sample reached the sink. */
+    public long getLatencyCount()
+    {
+        return mLatencyCount;
+    }
+
+
+    /** Returns the mean press-to-first-sample latency in nanoseconds. */
+    public long getMeanLatencyNanos()
+    {
+        long count = mLatencyCount;
+        return count > 0 ? mLatencySumNanos / count : 0;
+    }
+
+
+    public long getMaxLatencyNanos()
+    {
+        return mLatencyMaxNanos;
+    }
+
+
+    public long getLastLatencyNanos()
+    {
+        return mLatencyLastNanos;
+    }
+}
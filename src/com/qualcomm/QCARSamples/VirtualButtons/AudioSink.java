@@ -0,0 +1,36 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.IOException;
+
+/** AudioSink is the streaming output of the AudioEngine.
+ *
+ *  The engine hands over blocks of mono float samples in the range
+ *  [-1, 1]. Implementations must not allocate in write() as it is called
+ *  from the audio render loop.
+ *
+ * */
+
+public interface AudioSink
+{
+    /** Prepares the sink, called on the audio thread before the first block. */
+    public void open(int sampleRate, int blockSize) throws IOException;
+
+    /** Consumes the first numFrames samples of the given block. */
+    public void write(float[] block, int numFrames) throws IOException;
+
+    /** Stops the output while the engine is suspended, keeping the sink
+     *  open; called on the audio thread. Queued samples may be dropped. */
+    public void pause() throws IOException;
+
+    /** Restarts the output after pause(), called on the audio thread. */
+    public void resume() throws IOException;
+
+    /** Flushes and releases the sink, called on the audio thread. */
+    public void close() throws IOException;
+}
@@ -0,0 +1,84 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+
+/** AudioTrackSink plays the engine output through a streaming AudioTrack.
+ *
+ *  The hardware buffer is kept at two engine blocks (or the device minimum
+ *  if that is larger) so that a key press is heard as early as possible.
+ *
+ * */
+
+public class AudioTrackSink implements AudioSink
+{
+    private AudioTrack mAudioTrack;
+    private short[] mPcm;
+
+
+    public void open(int sampleRate, int blockSize)
+    {
+        // open() runs on the audio thread, raise its priority:
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        int minBufferBytes = AudioTrack.getMinBufferSize(sampleRate,
+                                    AudioFormat.CHANNEL_OUT_MONO,
+                                    AudioFormat.ENCODING_PCM_16BIT);
+        int bufferBytes = Math.max(minBufferBytes, blockSize * 2 * 2);
+
+        mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                                    AudioFormat.CHANNEL_OUT_MONO,
+                                    AudioFormat.ENCODING_PCM_16BIT,
+                                    bufferBytes, AudioTrack.MODE_STREAM);
+        mPcm = new short[blockSize];
+
+        DebugLog.LOGD("AudioTrackSink::open: {} Hz, {} bytes buffer",
+                        sampleRate, bufferBytes);
+
+        mAudioTrack.play();
+    }
+
+
+    public void write(float[] block, int numFrames)
+    {
+        for (int i = 0; i < numFrames; ++i)
+            mPcm[i] = WavFileSink.toPcm16(block[i]);
+
+        // Blocks until the hardware has room, this paces the render loop:
+        mAudioTrack.write(mPcm, 0, numFrames);
+    }
+
+
+    /** Pauses the track and drops what it has queued, so that nothing
+     *  stale is heard on resume; the track and its buffer stay allocated. */
+    public void pause()
+    {
+        mAudioTrack.pause();
+        mAudioTrack.flush();
+    }
+
+
+    public void resume()
+    {
+        mAudioTrack.play();
+    }
+
+
+    public void close()
+    {
+        if (mAudioTrack == null)
+            return;
+
+        mAudioTrack.stop();
+        mAudioTrack.release();
+        mAudioTrack = null;
+    }
+}
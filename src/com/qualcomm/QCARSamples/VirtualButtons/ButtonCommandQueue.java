@@ -0,0 +1,124 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** ButtonCommandQueue reconfigures the virtual buttons of the key layout.
+ *
+ *  Commands may be enqueued from any thread. They go into a bounded
+ *  lock-free ring in native code which the tracking thread drains in
+ *  QCAR_onUpdate(): all commands waiting there are coalesced per key (the
+ *  last one wins, two toggles cancel out) and applied within a single
+ *  deactivate/activate cycle of the data set, so reconfiguring a whole
+ *  octave costs one tracker stall instead of one per key.
+ *
+ *  Enqueuing fails, without blocking, if the ring is full or the key is
+ *  not part of the layout.
+ *
+ * */
+
+public class ButtonCommandQueue
+{
+    // Command types, must match BUTTON_COMMAND in VirtualButtons.cpp:
+    public static final int COMMAND_CREATE      = 0;
+    public static final int COMMAND_DESTROY     = 1;
+    public static final int COMMAND_TOGGLE      = 2;
+    public static final int COMMAND_RESIZE      = 3;
+    public static final int COMMAND_SENSITIVITY = 4;
+
+    // Sensitivities, must match QCAR::VirtualButton::SENSITIVITY:
+    public static final int SENSITIVITY_HIGH    = 0;
+    public static final int SENSITIVITY_MEDIUM  = 1;
+    public static final int SENSITIVITY_LOW     = 2;
+
+    // Statistics, must match BUTTON_COMMAND_STAT in VirtualButtons.cpp:
+    public static final int STAT_BATCHES                = 0;
+    public static final int STAT_COMMANDS               = 1;
+    public static final int STAT_APPLIED_KEYS           = 2;
+    public static final int STAT_DROPPED                = 3;
+    public static final int STAT_MAX_BATCH_SIZE         = 4;
+    public static final int STAT_LAST_APPLY_NANOS       = 5;
+    public static final int STAT_MAX_APPLY_NANOS        = 6;
+    public static final int STAT_TOTAL_APPLY_NANOS      = 7;
+    public static final int STAT_MAX_LATENCY_NANOS      = 8;
+    public static final int STAT_TOTAL_LATENCY_NANOS    = 9;
+    public static final int STAT_COUNT                  = 10;
+
+
+    /** Creates the button of a key, with the rectangle of its last resize
+     *  or that of the layout. */
+    public boolean create(int key)
+    {
+        return enqueue(COMMAND_CREATE, key, 0, 0, 0, 0, 0);
+    }
+
+
+    /** Destroys the button of a key. */
+    public boolean destroy(int key)
+    {
+        return enqueue(COMMAND_DESTROY, key, 0, 0, 0, 0, 0);
+    }
+
+
+    /** Creates the button of a key if it does not exist, destroys it
+     *  otherwise. */
+    public boolean toggle(int key)
+    {
+        return enqueue(COMMAND_TOGGLE, key, 0, 0, 0, 0, 0);
+    }
+
+
+    /** Moves the button of a key to a new rectangle on the target. */
+    public boolean resize(int key, float left, float top, float right,
+                        float bottom)
+    {
+        return enqueue(COMMAND_RESIZE, key, left, top, right, bottom, 0);
+    }
+
+
+    /** Sets the sensitivity of the button of a key, see SENSITIVITY_*. It
+     *  also selects the press threshold of the occlusion detector. */
+    public boolean setSensitivity(int key, int sensitivity)
+    {
+        return enqueue(COMMAND_SENSITIVITY, key, 0, 0, 0, 0, sensitivity);
+    }
+
+
+    /** Native function to enqueue a command. */
+    private native boolean enqueue(int type, int key, float left, float top,
+                                float right, float bottom, int sensitivity);
+
+
+    /** Native function to copy the statistics, indexed by STAT_*. */
+    public native void getStatistics(long[] statistics);
+
+
+    /** Returns a summary of batch sizes and the time spent applying them. */
+    public String getReport()
+    {
+        long[] stats = new long[STAT_COUNT];
+        getStatistics(stats);
+        return formatReport(stats);
+    }
+
+
+    /** Formats statistics as returned by getStatistics(). */
+    public static String formatReport(long[] stats)
+    {
+        long batches = stats[STAT_BATCHES];
+        long commands = stats[STAT_COMMANDS];
+        return String.format(
+            "Button commands: %d in %d batches (max %d), %d keys applied, " +
+            "%d dropped; apply %.2f ms mean, %.2f ms max; " +
+            "latency %.2f ms mean, %.2f ms max",
+            commands, batches, stats[STAT_MAX_BATCH_SIZE],
+            stats[STAT_APPLIED_KEYS], stats[STAT_DROPPED],
+            batches > 0 ? stats[STAT_TOTAL_APPLY_NANOS] / 1e6 / batches : 0.0,
+            stats[STAT_MAX_APPLY_NANOS] / 1e6,
+            commands > 0 ? stats[STAT_TOTAL_LATENCY_NANOS] / 1e6 / commands : 0.0,
+            stats[STAT_MAX_LATENCY_NANOS] / 1e6);
+    }
+}
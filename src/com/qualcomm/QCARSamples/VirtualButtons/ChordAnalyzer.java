@@ -0,0 +1,321 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** ChordAnalyzer names the chord of the keys held, e.g. for display or an
+ *  accompaniment.
+ *
+ *  The held keys are folded into a 12 bit pitch-class set a byte of the
+ *  KeySet at a time, through tables of the pitch classes and the lowest
+ *  note of every byte value, so any voicing spread across octaves costs
+ *  the same. The set, rotated so that the bass is bit 0, indexes a table of
+ *  all 4096 sets built at class initialization, which holds the quality,
+ *  the root above the bass and the inversion. The names of every quality,
+ *  root and bass are built then as well; analyze() does not allocate.
+ *
+ *  A set only matches a quality with exactly its pitch classes. When it
+ *  matches with several roots (C6 and Am7, Csus2 and Gsus4, the diminished
+ *  seventh), the bass as root wins, otherwise the quality listed first.
+ *
+ * */
+
+public class ChordAnalyzer
+{
+    public static final int QUALITY_NONE = 0;
+    public static final int QUALITY_NOTE = 1;
+
+    public static final int PITCH_CLASSES = 12;
+
+    private static final String[] PITCH_CLASS_NAMES = {
+        "C", "C#", "D", "Eb", "E", "F", "F#", "G", "Ab", "A", "Bb", "B"
+    };
+
+    /** The name suffixes and chord tones of the qualities, the tones in
+     *  semitones above the root, in the order of the inversions. Earlier
+     *  qualities are preferred. */
+    private static final String[] SUFFIXES = {
+        "", "", "5", "", "m", "7", "m7", "maj7", "dim", "aug", "sus4",
+        "sus2", "6", "m6", "dim7", "m7b5", "mMaj7", "7sus4", "add9",
+        "madd9", "9", "m9", "maj9", "7", "m7", "maj7"
+    };
+    private static final int[][] TONES = {
+        {}, { 0 }, { 0, 7 }, { 0, 4, 7 }, { 0, 3, 7 }, { 0, 4, 7, 10 },
+        { 0, 3, 7, 10 }, { 0, 4, 7, 11 }, { 0, 3, 6 }, { 0, 4, 8 },
+        { 0, 5, 7 }, { 0, 2, 7 }, { 0, 4, 7, 9 }, { 0, 3, 7, 9 },
+        { 0, 3, 6, 9 }, { 0, 3, 6, 10 }, { 0, 3, 7, 11 }, { 0, 5, 7, 10 },
+        { 0, 4, 7, 2 }, { 0, 3, 7, 2 }, { 0, 4, 7, 10, 2 },
+        { 0, 3, 7, 10, 2 }, { 0, 4, 7, 11, 2 }, { 0, 4, 10 }, { 0, 3, 10 },
+        { 0, 4, 11 }
+    };
+
+    public static final int QUALITY_COUNT = TONES.length;
+
+    // Table entries: the quality, the root above the bass and the
+    // inversion, 8, 4 and 4 bits:
+    private static final int ROOT_SHIFT = 8;
+    private static final int INVERSION_SHIFT = 12;
+    private static final int[] TABLE = new int[1 << PITCH_CLASSES];
+
+    // Indexed by (quality * 12 + root) * 12 + bass:
+    private static final String[] NAMES =
+        new String[QUALITY_COUNT * PITCH_CLASSES * PITCH_CLASSES];
+
+    static
+    {
+        int[] masks = new int[QUALITY_COUNT];
+        for (int q = 0; q < QUALITY_COUNT; ++q)
+        {
+            for (int tone : TONES[q])
+                masks[q] |= 1 << tone;
+        }
+
+        for (int set = 1; set < TABLE.length; set += 2)
+        {
+            // The bass as root first, then the other pitch classes:
+            int entry = match(set, masks);
+            if (entry == QUALITY_NONE)
+                entry = bestOtherRoot(set, masks);
+            TABLE[set] = entry;
+        }
+
+        for (int q = 0; q < QUALITY_COUNT; ++q)
+        {
+            for (int root = 0; root < PITCH_CLASSES; ++root)
+            {
+                for (int bass = 0; bass < PITCH_CLASSES; ++bass)
+                {
+                    String name = "";
+                    if (q != QUALITY_NONE)
+                    {
+                        name = PITCH_CLASS_NAMES[root] + SUFFIXES[q];
+                        if (bass != root)
+                            name += "/" + PITCH_CLASS_NAMES[bass];
+                    }
+                    NAMES[(q * PITCH_CLASSES + root) * PITCH_CLASSES + bass] =
+                        name;
+                }
+            }
+        }
+    }
+
+    // Folding tables, per byte of the key words and value:
+    private final int mBytes;
+    private final short[] mFoldPitchClasses;
+    private final byte[] mFoldLowest;
+
+    // The last result:
+    private int mPitchClasses = 0;
+    private int mQuality = QUALITY_NONE;
+    private int mRoot = -1;
+    private int mBass = -1;
+    private int mBassNote = -1;
+    private int mInversion = 0;
+
+
+    /** Constructor, notes holds the MIDI note of every key, see
+     *  KeyLayout.getNotes(). */
+    public ChordAnalyzer(int[] notes)
+    {
+        mBytes = (notes.length + 7) >>> 3;
+        mFoldPitchClasses = new short[mBytes * 256];
+        mFoldLowest = new byte[mBytes * 256];
+
+        for (int b = 0; b < mBytes; ++b)
+        {
+            for (int value = 0; value < 256; ++value)
+            {
+                int pitchClasses = 0;
+                int lowest = KeyLayout.NUM_NOTES - 1;
+                for (int bit = 0; bit < 8; ++bit)
+                {
+                    int key = b * 8 + bit;
+                    if ((value & (1 << bit)) == 0 || key >= notes.length)
+                        continue;
+                    pitchClasses |= 1 << (notes[key] % PITCH_CLASSES);
+                    lowest = Math.min(lowest, notes[key]);
+                }
+                mFoldPitchClasses[b * 256 + value] = (short) pitchClasses;
+                mFoldLowest[b * 256 + value] = (byte) lowest;
+            }
+        }
+    }
+
+
+    /** Analyzes the held keys, returns the quality of their chord. */
+    public int analyze(KeySet keys)
+    {
+        return analyze(keys.getWords());
+    }
+
+
+    /** Analyzes held keys given as words, bit k of word k / 64 for key k.
+     *  Returns the quality of their chord. */
+    public int analyze(long[] words)
+    {
+        int pitchClasses = 0;
+        int lowest = KeyLayout.NUM_NOTES - 1;
+        int bytes = Math.min(mBytes, words.length << 3);
+        for (int b = 0; b < bytes; ++b)
+        {
+            int value = (int) (words[b >>> 3] >>> ((b & 7) << 3)) & 0xff;
+            if (value == 0)
+                continue;
+            int index = (b << 8) | value;
+            pitchClasses |= mFoldPitchClasses[index];
+            lowest = Math.min(lowest, mFoldLowest[index]);
+        }
+
+        mPitchClasses = pitchClasses;
+        if (pitchClasses == 0)
+        {
+            mQuality = QUALITY_NONE;
+            mRoot = -1;
+            mBass = -1;
+            mBassNote = -1;
+            mInversion = 0;
+            return QUALITY_NONE;
+        }
+
+        int bass = lowest % PITCH_CLASSES;
+        int entry = TABLE[rotate(pitchClasses, bass)];
+        mQuality = entry & 0xff;
+        mRoot = (bass + ((entry >>> ROOT_SHIFT) & 0xf)) % PITCH_CLASSES;
+        mBass = bass;
+        mBassNote = lowest;
+        mInversion = (entry >>> INVERSION_SHIFT) & 0xf;
+        return mQuality;
+    }
+
+
+    /** Returns the pitch classes held, bit 0 for C. */
+    public int getPitchClasses()
+    {
+        return mPitchClasses;
+    }
+
+
+    public int getQuality()
+    {
+        return mQuality;
+    }
+
+
+    /** Returns the pitch class of the root, or -1 if nothing is held. The
+     *  root of an unknown chord is its bass. */
+    public int getRoot()
+    {
+        return mRoot;
+    }
+
+
+    /** Returns the pitch class of the lowest note, or -1. */
+    public int getBass()
+    {
+        return mBass;
+    }
+
+
+    /** Returns the lowest note held, or -1. */
+    public int getBassNote()
+    {
+        return mBassNote;
+    }
+
+
+    /** Returns the chord tone in the bass: 0 for the root, 1 for the
+     *  third, 2 for the fifth and so on. */
+    public int getInversion()
+    {
+        return mInversion;
+    }
+
+
+    /** Returns the chord name, e.g. "Am7/G", or "" if it is unknown. */
+    public String getName()
+    {
+        if (mQuality == QUALITY_NONE)
+            return "";
+        return NAMES[(mQuality * PITCH_CLASSES + mRoot) * PITCH_CLASSES +
+                     mBass];
+    }
+
+
+    /** Returns the number of chord tones of a quality. */
+    public static int getToneCount(int quality)
+    {
+        return TONES[quality].length;
+    }
+
+
+    /** Returns a chord tone of a quality in semitones above the root, in
+     *  the order of the inversions. */
+    public static int getTone(int quality, int i)
+    {
+        return TONES[quality][i];
+    }
+
+
+    /** Returns the name suffix of a quality, e.g. "m7". */
+    public static String getSuffix(int quality)
+    {
+        return SUFFIXES[quality];
+    }
+
+
+    /** Returns the name of a pitch class. */
+    public static String getPitchClassName(int pitchClass)
+    {
+        return PITCH_CLASS_NAMES[pitchClass];
+    }
+
+
+    /** Rotates a pitch-class set down, so that pitch class shift becomes
+     *  bit 0. */
+    private static int rotate(int set, int shift)
+    {
+        return ((set >>> shift) | (set << (PITCH_CLASSES - shift))) &
+               ((1 << PITCH_CLASSES) - 1);
+    }
+
+
+    /** Returns the first quality with exactly the pitch classes of a set
+     *  rooted at bit 0. */
+    private static int match(int set, int[] masks)
+    {
+        for (int q = QUALITY_NOTE; q < QUALITY_COUNT; ++q)
+        {
+            if (masks[q] == set)
+                return q;
+        }
+        return QUALITY_NONE;
+    }
+
+
+    /** Returns the table entry of a set with the bass at bit 0 rooted
+     *  elsewhere: the first quality, at the lowest root of it. */
+    private static int bestOtherRoot(int set, int[] masks)
+    {
+        int entry = QUALITY_NONE;
+        for (int root = 1; root < PITCH_CLASSES; ++root)
+        {
+            if ((set & (1 << root)) == 0)
+                continue;
+            int quality = match(rotate(set, root), masks);
+            if (quality == QUALITY_NONE ||
+                (entry != QUALITY_NONE && quality >= (entry & 0xff)))
+                continue;
+
+            int bassTone = PITCH_CLASSES - root;
+            int inversion = 0;
+            while (TONES[quality][inversion] != bassTone)
+                ++inversion;
+            entry = quality | (root << ROOT_SHIFT) |
+                    (inversion << INVERSION_SHIFT);
+        }
+        return entry;
+    }
+}
@@ -6,38 +6,457 @@
 
 package com.qualcomm.QCARSamples.VirtualButtons;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
 import android.util.Log;
 import cz.marax.virtualpiano.R;
 
 /** DebugLog is a support class for the QCAR samples applications.
- * 
+ *
  *  Exposes functionality for logging.
- *  
+ *
+ *  A message is a template with a "{}" for every argument, e.g.
+ *  LOGD("Key {} pressed", key), and up to three long, double or object
+ *  arguments. The level is checked first; a call that passes records the
+ *  template and the arguments in a preallocated ring of RING_SIZE records,
+ *  and the DebugLog thread formats them and writes them to the Sink,
+ *  logcat unless set otherwise. Nothing is allocated per call, also on the
+ *  key event, frame and audio paths, as long as primitives go to the
+ *  primitive overloads. Messages without arguments are written as they
+ *  are. Any number of threads may log; when the ring is full, messages are
+ *  dropped and counted.
+ *
+ *  Objects are only formatted on the DebugLog thread, so they must not
+ *  change after the call. flush() waits until everything logged is
+ *  written.
+ *
  * */
 
 public class DebugLog
 {
     private static final String LOGTAG = "QCAR";
 
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+
+    public static final int RING_SIZE = 1024;
+    public static final int MAX_ARGS = 3;
+
+    /** The ring is written at least this often. */
+    public static final long DRAIN_INTERVAL_NANOS = 50000000L;
+
+    /** Receives the formatted messages on the DebugLog thread. */
+    public interface Sink
+    {
+        /** The message is only valid during the call. */
+        public void write(int level, long timestampNanos, long threadId,
+                            CharSequence message);
+    }
+
+    // Argument types, two bits per argument:
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_DOUBLE = 2;
+    private static final int TYPE_OBJECT = 3;
+
+    private static final int MASK = RING_SIZE - 1;
+
+    // The records. A slot is free for the producer of sequence number s
+    // while its sequence is s, and written when it is s + 1:
+    private static final AtomicLongArray sSequence =
+                                        new AtomicLongArray(RING_SIZE);
+    private static final int[] sLevel = new int[RING_SIZE];
+    private static final int[] sTypes = new int[RING_SIZE];
+    private static final String[] sTemplate = new String[RING_SIZE];
+    private static final long[] sTimestamp = new long[RING_SIZE];
+    private static final long[] sThreadId = new long[RING_SIZE];
+    private static final long[] sLongArgs = new long[RING_SIZE * MAX_ARGS];
+    private static final Object[] sObjectArgs =
+                                        new Object[RING_SIZE * MAX_ARGS];
+
+    private static final AtomicLong sTail = new AtomicLong(0);
+    private static final AtomicLong sDropped = new AtomicLong(0);
+    private static volatile long sHead = 0;
+
+    private static volatile int sMinLevel = DEBUG;
+    private static volatile Sink sSink = new LogcatSink();
+    private static final Thread sThread;
+
+    static
+    {
+        for (int i = 0; i < RING_SIZE; ++i)
+            sSequence.set(i, i);
+
+        sThread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                drain();
+            }
+        }, "DebugLog");
+        sThread.setDaemon(true);
+        sThread.start();
+    }
+
+
+    /** Sets the lowest level written. */
+    public static void setLevel(int level)
+    {
+        sMinLevel = level;
+    }
+
+
+    /** Returns true if messages of the level are written, e.g. to skip
+     *  computing their arguments. */
+    public static boolean isLoggable(int level)
+    {
+        return level >= sMinLevel;
+    }
+
+
+    /** Sets where messages are written, logcat by default. */
+    public static void setSink(Sink sink)
+    {
+        sSink = sink;
+    }
+
+
+    /** Returns the number of messages dropped because the ring was full. */
+    public static long getDropped()
+    {
+        return sDropped.get();
+    }
+
+
+    /** Waits until the messages logged so far are written. */
+    public static void flush()
+    {
+        long tail = sTail.get();
+        while (sHead < tail)
+        {
+            LockSupport.unpark(sThread);
+            LockSupport.parkNanos(100000);
+        }
+    }
+
     /** Logging functions to generate ADB logcat messages. */
 
     public static final void LOGE(String nMessage)
     {
-        Log.e(LOGTAG, nMessage);
+        log(ERROR, nMessage, 0, 0, 0, 0, null, null);
     }
-    
+
     public static final void LOGW(String nMessage)
     {
-        Log.w(LOGTAG, nMessage);
+        log(WARN, nMessage, 0, 0, 0, 0, null, null);
     }
-    
+
     public static final void LOGD(String nMessage)
     {
-        Log.d(LOGTAG, nMessage);
+        log(DEBUG, nMessage, 0, 0, 0, 0, null, null);
     }
-    
+
     public static final void LOGI(String nMessage)
     {
-        Log.i(LOGTAG, nMessage);
+        log(INFO, nMessage, 0, 0, 0, 0, null, null);
+    }
+
+    /** Parameterized logging functions, see the class comment. */
+
+    public static final void LOGE(String template, long a)
+    {
+        log(ERROR, template, TYPE_LONG, a, 0, 0, null, null);
+    }
+
+    public static final void LOGE(String template, Object a)
+    {
+        log(ERROR, template, TYPE_OBJECT, 0, 0, 0, a, null);
+    }
+
+    public static final void LOGW(String template, long a)
+    {
+        log(WARN, template, TYPE_LONG, a, 0, 0, null, null);
+    }
+
+    public static final void LOGW(String template, Object a)
+    {
+        log(WARN, template, TYPE_OBJECT, 0, 0, 0, a, null);
+    }
+
+    public static final void LOGI(String template, long a)
+    {
+        log(INFO, template, TYPE_LONG, a, 0, 0, null, null);
+    }
+
+    public static final void LOGI(String template, long a, long b)
+    {
+        log(INFO, template, TYPE_LONG | TYPE_LONG << 2, a, b, 0, null,
+            null);
+    }
+
+    public static final void LOGI(String template, long a, long b, long c)
+    {
+        log(INFO, template, TYPE_LONG | TYPE_LONG << 2 | TYPE_LONG << 4,
+            a, b, c, null, null);
+    }
+
+    public static final void LOGI(String template, double a)
+    {
+        log(INFO, template, TYPE_DOUBLE, Double.doubleToRawLongBits(a), 0,
+            0, null, null);
+    }
+
+    public static final void LOGI(String template, Object a)
+    {
+        log(INFO, template, TYPE_OBJECT, 0, 0, 0, a, null);
+    }
+
+    public static final void LOGI(String template, Object a, long b)
+    {
+        log(INFO, template, TYPE_OBJECT | TYPE_LONG << 2, 0, b, 0, a, null);
+    }
+
+    public static final void LOGI(String template, Object a, Object b)
+    {
+        log(INFO, template, TYPE_OBJECT | TYPE_OBJECT << 2, 0, 0, 0, a, b);
+    }
+
+    public static final void LOGD(String template, long a)
+    {
+        log(DEBUG, template, TYPE_LONG, a, 0, 0, null, null);
+    }
+
+    public static final void LOGD(String template, long a, long b)
+    {
+        log(DEBUG, template, TYPE_LONG | TYPE_LONG << 2, a, b, 0, null,
+            null);
+    }
+
+    public static final void LOGD(String template, long a, long b, long c)
+    {
+        log(DEBUG, template, TYPE_LONG | TYPE_LONG << 2 | TYPE_LONG << 4,
+            a, b, c, null, null);
+    }
+
+    public static final void LOGD(String template, double a)
+    {
+        log(DEBUG, template, TYPE_DOUBLE, Double.doubleToRawLongBits(a), 0,
+            0, null, null);
+    }
+
+    public static final void LOGD(String template, Object a)
+    {
+        log(DEBUG, template, TYPE_OBJECT, 0, 0, 0, a, null);
+    }
+
+    public static final void LOGD(String template, Object a, long b)
+    {
+        log(DEBUG, template, TYPE_OBJECT | TYPE_LONG << 2, 0, b, 0, a, null);
+    }
+
+    public static final void LOGD(String template, Object a, Object b)
+    {
+        log(DEBUG, template, TYPE_OBJECT | TYPE_OBJECT << 2, 0, 0, 0, a, b);
+    }
+
+
+    /** Claims a record, fills it in and publishes it. */
+    private static void log(int level, String template, int types,
+                            long a, long b, long c, Object objectA,
+                            Object objectB)
+    {
+        if (level < sMinLevel)
+            return;
+
+        long sequence;
+        int slot;
+        while (true)
+        {
+            sequence = sTail.get();
+            slot = (int) sequence & MASK;
+            long available = sSequence.get(slot);
+            if (available == sequence)
+            {
+                if (sTail.compareAndSet(sequence, sequence + 1))
+                    break;
+            }
+            else if (available < sequence)
+            {
+                sDropped.incrementAndGet();
+                return;
+            }
+        }
+
+        sLevel[slot] = level;
+        sTypes[slot] = types;
+        sTemplate[slot] = template;
+        sTimestamp[slot] = System.nanoTime();
+        sThreadId[slot] = Thread.currentThread().getId();
+        int args = slot * MAX_ARGS;
+        sLongArgs[args] = a;
+        sLongArgs[args + 1] = b;
+        sLongArgs[args + 2] = c;
+        sObjectArgs[args] = objectA;
+        sObjectArgs[args + 1] = objectB;
+
+        // Publish the record; set() rather than lazySet(), which API level
+        // 8 lacks:
+        sSequence.set(slot, sequence + 1);
+
+        // Wake the thread for warnings and once the ring is half full:
+        if (level >= WARN || sequence - sHead == RING_SIZE / 2)
+            LockSupport.unpark(sThread);
+    }
+
+
+    /** The DebugLog thread, formats and writes the records in order. */
+    private static void drain()
+    {
+        StringBuilder message = new StringBuilder(256);
+        long head = 0;
+        while (true)
+        {
+            int slot = (int) head & MASK;
+            if (sSequence.get(slot) != head + 1)
+            {
+                LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+                continue;
+            }
+
+            format(message, slot);
+            try
+            {
+                sSink.write(sLevel[slot], sTimestamp[slot], sThreadId[slot],
+                            message);
+            }
+            catch (RuntimeException e)
+            {
+                Log.e(LOGTAG, "DebugLog: the sink failed");
+            }
+
+            // Release the record and its objects:
+            sTemplate[slot] = null;
+            sObjectArgs[slot * MAX_ARGS] = null;
+            sObjectArgs[slot * MAX_ARGS + 1] = null;
+            sSequence.set(slot, head + RING_SIZE);
+            sHead = ++head;
+        }
+    }
+
+
+    /** Replaces the "{}" of a record's template with its arguments. */
+    private static void format(StringBuilder message, int slot)
+    {
+        message.setLength(0);
+        String template = sTemplate[slot];
+        int types = sTypes[slot];
+        if (types == 0)
+        {
+            message.append(template);
+            return;
+        }
+
+        int args = slot * MAX_ARGS;
+        int start = 0;
+        for (int i = 0; i < MAX_ARGS && (types >>> (2 * i)) != 0; ++i)
+        {
+            int placeholder = template.indexOf("{}", start);
+            if (placeholder < 0)
+                break;
+            message.append(template, start, placeholder);
+            start = placeholder + 2;
+
+            long value = sLongArgs[args + i];
+            switch ((types >>> (2 * i)) & 3)
+            {
+                case TYPE_LONG:
+                    message.append(value);
+                    break;
+                case TYPE_DOUBLE:
+                    message.append(Double.longBitsToDouble(value));
+                    break;
+                default:
+                    message.append(sObjectArgs[args + i]);
+                    break;
+            }
+        }
+        message.append(template, start, template.length());
+    }
+
+
+    /** Writes the messages to logcat. */
+    public static class LogcatSink implements Sink
+    {
+        public void write(int level, long timestampNanos, long threadId,
+                            CharSequence message)
+        {
+            String string = message.toString();
+            switch (level)
+            {
+                case ERROR:
+                    Log.e(LOGTAG, string);
+                    break;
+                case WARN:
+                    Log.w(LOGTAG, string);
+                    break;
+                case INFO:
+                    Log.i(LOGTAG, string);
+                    break;
+                default:
+                    Log.d(LOGTAG, string);
+                    break;
+            }
+        }
+    }
+
+
+    /** Appends the messages to a file, a line each with the time in
+     *  milliseconds, the level and the thread. The file is flushed when
+     *  the ring is empty. */
+    public static class FileSink implements Sink
+    {
+        private static final String LEVELS = "??VDIWE";
+
+        private final Writer mWriter;
+
+
+        /** Constructor, opens the file for appending. */
+        public FileSink(File file) throws IOException
+        {
+            mWriter = new FileWriter(file, true);
+        }
+
+
+        public void write(int level, long timestampNanos, long threadId,
+                            CharSequence message)
+        {
+            try
+            {
+                mWriter.write(String.format("%.3f %c %d ",
+                                timestampNanos / 1e6,
+                                LEVELS.charAt(Math.min(level, ERROR)),
+                                threadId));
+                mWriter.append(message).append('\n');
+                if (sHead + 1 == sTail.get())
+                    mWriter.flush();
+            }
+            catch (IOException e)
+            {
+                Log.e(LOGTAG, "DebugLog: failed to write the log file");
+            }
+        }
+
+
+        public void close() throws IOException
+        {
+            mWriter.close();
+        }
     }
 }
@@ -0,0 +1,374 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Etc1Codec encodes and decodes ETC1 compressed textures and parses the
+ *  PKM container they are stored in.
+ *
+ *  ETC1 stores every 4x4 pixel block in 8 bytes, i.e. half a byte per texel
+ *  instead of four for RGBA. The encoder is used offline (see Etc1Tool in
+ *  tools/) and by desktop checks, the device only parses the PKM header and
+ *  passes the blocks to glCompressedTexImage2D() untouched.
+ *
+ *  PKM header (16 bytes, big endian):
+ *
+ *      char[4] magic         "PKM "
+ *      char[2] version       "10"
+ *      short   format        0 = ETC1_RGB_NO_MIPMAPS
+ *      short   width, height padded to multiples of 4
+ *      short   width, height of the original image
+ *
+ * */
+
+public class Etc1Codec
+{
+    /** OpenGL ES format enum of ETC1 (GL_ETC1_RGB8_OES). */
+    public static final int GL_ETC1_RGB8_OES = 0x8D64;
+
+    public static final int PKM_HEADER_SIZE = 16;
+    public static final int BLOCK_SIZE = 8;
+
+    private static final int PKM_MAGIC = 0x504b4d20;        // "PKM "
+    private static final short PKM_VERSION = 0x3130;        // "10"
+    private static final short PKM_FORMAT_ETC1 = 0;
+
+    // Intensity modifier tables, small and large magnitude per codeword:
+    private static final int[][] MODIFIERS = {
+        { 2, 8 }, { 5, 17 }, { 9, 29 }, { 13, 42 },
+        { 18, 60 }, { 24, 80 }, { 33, 106 }, { 47, 183 }
+    };
+
+    // Modifier signs and magnitudes by pixel index (msb << 1 | lsb):
+    private static final int[] INDEX_SIGN = { 1, 1, -1, -1 };
+    private static final int[] INDEX_MAGNITUDE = { 0, 1, 0, 1 };
+
+
+    /** Returns the number of bytes of the encoded blocks of an image. */
+    public static int encodedSize(int width, int height)
+    {
+        return ((width + 3) >> 2) * ((height + 3) >> 2) * BLOCK_SIZE;
+    }
+
+
+    /** Returns the padded width stored in a PKM header, or -1 if the
+     *  buffer does not start with a valid ETC1 PKM header. The buffer
+     *  position is not modified. */
+    public static int getPkmWidth(ByteBuffer pkm)
+    {
+        if (!isValidPkm(pkm))
+            return -1;
+
+        return getBigEndianShort(pkm, pkm.position() + 8);
+    }
+
+
+    /** Returns the padded height stored in a PKM header, or -1. */
+    public static int getPkmHeight(ByteBuffer pkm)
+    {
+        if (!isValidPkm(pkm))
+            return -1;
+
+        return getBigEndianShort(pkm, pkm.position() + 10);
+    }
+
+
+    /** Reads an unsigned big endian short whatever the buffer order. */
+    private static int getBigEndianShort(ByteBuffer buffer, int index)
+    {
+        return ((buffer.get(index) & 0xff) << 8) |
+                (buffer.get(index + 1) & 0xff);
+    }
+
+
+    /** Checks the magic, version, format and size of a PKM buffer. */
+    public static boolean isValidPkm(ByteBuffer pkm)
+    {
+        int base = pkm.position();
+        if (pkm.remaining() < PKM_HEADER_SIZE)
+            return false;
+
+        ByteBuffer header = pkm.duplicate();
+        header.order(ByteOrder.BIG_ENDIAN);
+        if (header.getInt(base) != PKM_MAGIC ||
+            header.getShort(base + 4) != PKM_VERSION ||
+            header.getShort(base + 6) != PKM_FORMAT_ETC1)
+            return false;
+
+        int width = header.getShort(base + 8) & 0xffff;
+        int height = header.getShort(base + 10) & 0xffff;
+        return width > 0 && height > 0 &&
+               (width & 3) == 0 && (height & 3) == 0 &&
+               pkm.remaining() >= PKM_HEADER_SIZE + encodedSize(width, height);
+    }
+
+
+    /** Writes a PKM header for an image of the given size. */
+    public static void writePkmHeader(ByteBuffer out, int width, int height)
+    {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.BIG_ENDIAN);
+        out.putInt(PKM_MAGIC);
+        out.putShort(PKM_VERSION);
+        out.putShort(PKM_FORMAT_ETC1);
+        out.putShort((short) ((width + 3) & ~3));
+        out.putShort((short) ((height + 3) & ~3));
+        out.putShort((short) width);
+        out.putShort((short) height);
+        out.order(order);
+    }
+
+
+    /** Encodes an ARGB image into ETC1 blocks, rows top to bottom, blocks
+     *  left to right. Alpha is ignored. Edge blocks repeat the last
+     *  row / column. */
+    public static void encodeImage(int[] argb, int width, int height,
+                                    ByteBuffer out)
+    {
+        int[] block = new int[16];
+
+        ByteOrder order = out.order();
+        out.order(ByteOrder.BIG_ENDIAN);
+        for (int by = 0; by < height; by += 4)
+        {
+            for (int bx = 0; bx < width; bx += 4)
+            {
+                for (int y = 0; y < 4; ++y)
+                {
+                    int sy = Math.min(by + y, height - 1);
+                    for (int x = 0; x < 4; ++x)
+                    {
+                        int sx = Math.min(bx + x, width - 1);
+                        block[y * 4 + x] = argb[sy * width + sx];
+                    }
+                }
+                out.putLong(encodeBlock(block));
+            }
+        }
+        out.order(order);
+    }
+
+
+    /** Encodes one 4x4 block of ARGB pixels (row-major) into 64 bits. */
+    public static long encodeBlock(int[] pixels)
+    {
+        long best = 0;
+        long bestError = Long.MAX_VALUE;
+
+        for (int flip = 0; flip < 2; ++flip)
+        {
+            // Average colour of both sub-blocks:
+            int[] sum = new int[6];
+            for (int i = 0; i < 16; ++i)
+            {
+                int s = subBlock(i & 3, i >> 2, flip) * 3;
+                sum[s]     += (pixels[i] >> 16) & 0xff;
+                sum[s + 1] += (pixels[i] >> 8) & 0xff;
+                sum[s + 2] += pixels[i] & 0xff;
+            }
+
+            // Try differential mode first, fall back to individual mode:
+            int[] base = new int[6];
+            boolean differential = true;
+            for (int c = 0; c < 3; ++c)
+            {
+                int c1 = quantize(sum[c] / 8.0f, 5);
+                int c2 = quantize(sum[c + 3] / 8.0f, 5);
+                int delta = c2 - c1;
+                if (delta < -4 || delta > 3)
+                    differential = false;
+                base[c] = c1;
+                base[c + 3] = c2;
+            }
+
+            long bits;
+            int[] expanded = new int[6];
+            if (differential)
+            {
+                bits = 1L << 33;
+                for (int c = 0; c < 3; ++c)
+                {
+                    int delta = base[c + 3] - base[c];
+                    bits |= (long) base[c] << (59 - 8 * c);
+                    bits |= (long) (delta & 7) << (56 - 8 * c);
+                    expanded[c] = (base[c] << 3) | (base[c] >> 2);
+                    expanded[c + 3] = (base[c + 3] << 3) | (base[c + 3] >> 2);
+                }
+            }
+            else
+            {
+                bits = 0;
+                for (int c = 0; c < 3; ++c)
+                {
+                    int c1 = quantize(sum[c] / 8.0f, 4);
+                    int c2 = quantize(sum[c + 3] / 8.0f, 4);
+                    bits |= (long) c1 << (60 - 8 * c);
+                    bits |= (long) c2 << (56 - 8 * c);
+                    expanded[c] = (c1 << 4) | c1;
+                    expanded[c + 3] = (c2 << 4) | c2;
+                }
+            }
+            bits |= (long) flip << 32;
+
+            // Pick the best modifier table and indices per sub-block:
+            long error = 0;
+            for (int s = 0; s < 2; ++s)
+            {
+                long subBest = Long.MAX_VALUE;
+                int subTable = 0;
+                for (int table = 0; table < 8; ++table)
+                {
+                    long subError = 0;
+                    for (int i = 0; i < 16; ++i)
+                    {
+                        if (subBlock(i & 3, i >> 2, flip) != s)
+                            continue;
+
+                        int bestIndex = 0;
+                        int bestPixelError = Integer.MAX_VALUE;
+                        for (int index = 0; index < 4; ++index)
+                        {
+                            int e = pixelError(pixels[i], expanded, s * 3,
+                                                modifier(table, index));
+                            if (e < bestPixelError)
+                            {
+                                bestPixelError = e;
+                                bestIndex = index;
+                            }
+                        }
+                        subError += bestPixelError;
+                    }
+
+                    if (subError < subBest)
+                    {
+                        subBest = subError;
+                        subTable = table;
+                    }
+                }
+
+                // Recompute the indices of the winning table:
+                for (int i = 0; i < 16; ++i)
+                {
+                    if (subBlock(i & 3, i >> 2, flip) != s)
+                        continue;
+
+                    int bestIndex = 0;
+                    int bestPixelError = Integer.MAX_VALUE;
+                    for (int index = 0; index < 4; ++index)
+                    {
+                        int e = pixelError(pixels[i], expanded, s * 3,
+                                            modifier(subTable, index));
+                        if (e < bestPixelError)
+                        {
+                            bestPixelError = e;
+                            bestIndex = index;
+                        }
+                    }
+
+                    // Pixel indices are stored column-major:
+                    int bit = (i & 3) * 4 + (i >> 2);
+                    bits |= (long) (bestIndex >> 1) << (16 + bit);
+                    bits |= (long) (bestIndex & 1) << bit;
+                }
+
+                bits |= (long) subTable << (s == 0 ? 37 : 34);
+                error += subBest;
+            }
+
+            if (error < bestError)
+            {
+                bestError = error;
+                best = bits;
+            }
+        }
+
+        return best;
+    }
+
+
+    /** Decodes one block into 16 RGB pixels (row-major, 0xRRGGBB). */
+    public static void decodeBlock(long bits, int[] out)
+    {
+        int[] base = new int[6];
+        boolean differential = ((bits >>> 33) & 1) != 0;
+        int flip = (int) (bits >>> 32) & 1;
+
+        for (int c = 0; c < 3; ++c)
+        {
+            if (differential)
+            {
+                int c1 = (int) (bits >>> (59 - 8 * c)) & 0x1f;
+                int delta = ((int) (bits >>> (56 - 8 * c)) & 7) << 29 >> 29;
+                int c2 = c1 + delta;
+                base[c] = (c1 << 3) | (c1 >> 2);
+                base[c + 3] = (c2 << 3) | (c2 >> 2);
+            }
+            else
+            {
+                int c1 = (int) (bits >>> (60 - 8 * c)) & 0xf;
+                int c2 = (int) (bits >>> (56 - 8 * c)) & 0xf;
+                base[c] = (c1 << 4) | c1;
+                base[c + 3] = (c2 << 4) | c2;
+            }
+        }
+
+        int table1 = (int) (bits >>> 37) & 7;
+        int table2 = (int) (bits >>> 34) & 7;
+
+        for (int i = 0; i < 16; ++i)
+        {
+            int x = i & 3;
+            int y = i >> 2;
+            int bit = x * 4 + y;
+            int index = (((int) (bits >>> (16 + bit)) & 1) << 1) |
+                        ((int) (bits >>> bit) & 1);
+            int s = subBlock(x, y, flip);
+            int m = modifier(s == 0 ? table1 : table2, index);
+
+            out[i] = (clamp(base[s * 3] + m) << 16) |
+                     (clamp(base[s * 3 + 1] + m) << 8) |
+                     clamp(base[s * 3 + 2] + m);
+        }
+    }
+
+
+    private static int subBlock(int x, int y, int flip)
+    {
+        return flip == 0 ? (x >> 1) : (y >> 1);
+    }
+
+
+    private static int modifier(int table, int index)
+    {
+        return INDEX_SIGN[index] * MODIFIERS[table][INDEX_MAGNITUDE[index]];
+    }
+
+
+    private static int quantize(float value, int bits)
+    {
+        int max = (1 << bits) - 1;
+        return Math.max(0, Math.min(max, Math.round(value * max / 255.0f)));
+    }
+
+
+    private static int clamp(int value)
+    {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+
+    private static int pixelError(int pixel, int[] expanded, int offset,
+                                int modifier)
+    {
+        int dr = ((pixel >> 16) & 0xff) - clamp(expanded[offset] + modifier);
+        int dg = ((pixel >> 8) & 0xff) - clamp(expanded[offset + 1] + modifier);
+        int db = (pixel & 0xff) - clamp(expanded[offset + 2] + modifier);
+        return dr * dr + dg * dg + db * db;
+    }
+}
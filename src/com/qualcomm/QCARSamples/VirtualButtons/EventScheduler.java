@@ -0,0 +1,352 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.util.Arrays;
+
+/** EventScheduler holds note events for the AudioEngine until the sample
+ *  they are due at.
+ *
+ *  Time is the engine's sample time, so a metronome, the playback of a
+ *  recorded session or an accompaniment is placed to the sample rather
+ *  than to the precision of a Handler. The pending events are kept in a
+ *  hierarchical timing wheel of LEVELS levels of 256 buckets; level 0 has a
+ *  bucket per sample, every further level a bucket per 256 of the level
+ *  below. Events further ahead than the wheel reaches (2^32 samples, 27
+ *  hours at 44.1 kHz) wait in its last level. Every bucket is a FIFO list
+ *  through preallocated primitive slots, so schedule() and the expiry of
+ *  an event are O(1), and an event moves down at most LEVELS - 1 times.
+ *
+ *  collect() advances the wheel by one render block and lists the events
+ *  due in it, ordered by time, with note offs before note ons of the same
+ *  sample. The engine splits the block at their offsets.
+ *
+ *  The scheduler belongs to the audio thread: schedule() from an
+ *  AudioEngine.BlockListener, which runs right before collect(), or before
+ *  the engine is started.
+ *
+ * */
+
+public class EventScheduler
+{
+    public static final int NOTE_OFF = NoteEventRing.NOTE_OFF;
+    public static final int NOTE_ON = NoteEventRing.NOTE_ON;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int LEVELS = 4;
+
+    private static final int BUCKET_BITS = 8;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int BUCKET_MASK = BUCKETS - 1;
+
+    // Event slots, chained through mNext, -1 ends a list:
+    private final long[] mTime;
+    private final int[] mType;
+    private final int[] mNote;
+    private final int[] mVelocity;
+    private final int[] mNext;
+    private int mFree;
+
+    // First and last slot of every bucket, LEVELS * BUCKETS of each:
+    private final int[] mHead;
+    private final int[] mTail;
+
+    // The events of the last collect():
+    private final int[] mDue;
+    private int mDueCount = 0;
+
+    // The next sample the wheel has not expired yet:
+    private long mNow = 0;
+
+    // Statistics:
+    private volatile int mPending = 0;
+    private volatile int mMaxPending = 0;
+    private volatile long mScheduled = 0;
+    private volatile long mDelivered = 0;
+    private volatile long mLate = 0;
+    private volatile long mDropped = 0;
+    private volatile long mCascaded = 0;
+
+
+    /** Constructor using the default capacity. */
+    public EventScheduler()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /** Constructor, capacity is the number of pending events. */
+    public EventScheduler(int capacity)
+    {
+        mTime = new long[capacity];
+        mType = new int[capacity];
+        mNote = new int[capacity];
+        mVelocity = new int[capacity];
+        mNext = new int[capacity];
+        for (int i = 0; i < capacity; ++i)
+            mNext[i] = i + 1 < capacity ? i + 1 : -1;
+        mFree = capacity > 0 ? 0 : -1;
+
+        mHead = new int[LEVELS * BUCKETS];
+        mTail = new int[LEVELS * BUCKETS];
+        Arrays.fill(mHead, -1);
+        Arrays.fill(mTail, -1);
+        mDue = new int[capacity];
+    }
+
+
+    /** Schedules an event at the given sample time. Events in the past are
+     *  delivered at the start of the next block and counted as late.
+     *  Returns false if all slots are taken and the event was dropped. */
+    public boolean schedule(long sampleTime, int type, int note, int velocity)
+    {
+        int slot = mFree;
+        if (slot < 0)
+        {
+            mDropped++;
+            return false;
+        }
+        mFree = mNext[slot];
+
+        mTime[slot] = sampleTime;
+        mType[slot] = type;
+        mNote[slot] = note;
+        mVelocity[slot] = velocity;
+        insert(slot);
+
+        int pending = mPending + 1;
+        mPending = pending;
+        if (pending > mMaxPending)
+            mMaxPending = pending;
+        mScheduled++;
+        return true;
+    }
+
+
+    /** Drops all pending events. */
+    public void clear()
+    {
+        releaseDue();
+        for (int bucket = 0; bucket < LEVELS * BUCKETS; ++bucket)
+        {
+            int slot = mHead[bucket];
+            while (slot >= 0)
+            {
+                int next = mNext[slot];
+                free(slot);
+                slot = next;
+            }
+            mHead[bucket] = -1;
+            mTail[bucket] = -1;
+        }
+        mPending = 0;
+    }
+
+
+    /** Expires the events of the block of frames starting at blockStart and
+     *  returns their number, see getTime() etc. The previous block's events
+     *  are released. Blocks must follow each other. */
+    public int collect(long blockStart, int frames)
+    {
+        releaseDue();
+
+        // Events scheduled in the past wait in the bucket of mNow, which
+        // comes first:
+        long end = blockStart + frames;
+        while (mNow < end)
+        {
+            long now = mNow;
+            if ((now & BUCKET_MASK) == 0)
+                cascade(now);
+
+            int bucket = (int) (now & BUCKET_MASK);
+            int slot = mHead[bucket];
+            if (slot >= 0)
+            {
+                mHead[bucket] = -1;
+                mTail[bucket] = -1;
+                while (slot >= 0)
+                {
+                    int next = mNext[slot];
+                    addDue(slot, blockStart);
+                    slot = next;
+                }
+            }
+            mNow = now + 1;
+        }
+
+        mPending -= mDueCount;
+        mDelivered += mDueCount;
+        return mDueCount;
+    }
+
+
+    /** Returns the sample time event i of the last collect() was due at. */
+    public long getTime(int i)
+    {
+        return mTime[mDue[i]];
+    }
+
+
+    public int getType(int i)
+    {
+        return mType[mDue[i]];
+    }
+
+
+    public int getNote(int i)
+    {
+        return mNote[mDue[i]];
+    }
+
+
+    public int getVelocity(int i)
+    {
+        return mVelocity[mDue[i]];
+    }
+
+
+    /** Returns the next sample time collect() expires. */
+    public long getNow()
+    {
+        return mNow;
+    }
+
+
+    /** Puts a slot into the bucket of its time. */
+    private void insert(int slot)
+    {
+        long tick = Math.max(mTime[slot], mNow);
+
+        // The level is that of the highest 8 bits that differ from now:
+        long difference = tick ^ mNow;
+        int level = difference == 0 ? 0 :
+                    (63 - Long.numberOfLeadingZeros(difference)) / BUCKET_BITS;
+        if (level >= LEVELS)
+            level = LEVELS - 1;
+        int bucket = level * BUCKETS +
+                     (int) ((tick >>> (level * BUCKET_BITS)) & BUCKET_MASK);
+
+        mNext[slot] = -1;
+        int tail = mTail[bucket];
+        if (tail >= 0)
+            mNext[tail] = slot;
+        else
+            mHead[bucket] = slot;
+        mTail[bucket] = slot;
+    }
+
+
+    /** Moves the events of the upper buckets now reaches into the lower
+     *  levels, starting at the highest level that wrapped. */
+    private void cascade(long now)
+    {
+        int top = 1;
+        while (top < LEVELS - 1 &&
+               ((now >>> (top * BUCKET_BITS)) & BUCKET_MASK) == 0)
+            ++top;
+
+        for (int level = top; level > 0; --level)
+        {
+            int bucket = level * BUCKETS +
+                         (int) ((now >>> (level * BUCKET_BITS)) & BUCKET_MASK);
+            int slot = mHead[bucket];
+            mHead[bucket] = -1;
+            mTail[bucket] = -1;
+            while (slot >= 0)
+            {
+                int next = mNext[slot];
+                insert(slot);
+                mCascaded++;
+                slot = next;
+            }
+        }
+    }
+
+
+    /** Appends a slot to the due list, a note off moving before the note
+     *  ons of its sample. */
+    private void addDue(int slot, long blockStart)
+    {
+        if (mTime[slot] < blockStart)
+            mLate++;
+
+        int i = mDueCount++;
+        if (mType[slot] == NOTE_OFF)
+        {
+            long time = Math.max(mTime[slot], blockStart);
+            while (i > 0 && mType[mDue[i - 1]] != NOTE_OFF &&
+                   Math.max(mTime[mDue[i - 1]], blockStart) == time)
+            {
+                mDue[i] = mDue[i - 1];
+                --i;
+            }
+        }
+        mDue[i] = slot;
+    }
+
+
+    private void releaseDue()
+    {
+        for (int i = 0; i < mDueCount; ++i)
+            free(mDue[i]);
+        mDueCount = 0;
+    }
+
+
+    private void free(int slot)
+    {
+        mNext[slot] = mFree;
+        mFree = slot;
+    }
+
+
+    /** Returns the number of events waiting. */
+    public int getPending()
+    {
+        return mPending;
+    }
+
+
+    public int getMaxPending()
+    {
+        return mMaxPending;
+    }
+
+
+    public long getScheduled()
+    {
+        return mScheduled;
+    }
+
+
+    public long getDelivered()
+    {
+        return mDelivered;
+    }
+
+
+    /** Returns the number of events delivered after their time. */
+    public long getLate()
+    {
+        return mLate;
+    }
+
+
+    /** Returns the number of events dropped for want of a slot. */
+    public long getDropped()
+    {
+        return mDropped;
+    }
+
+
+    /** Returns how often events moved down a level. */
+    public long getCascaded()
+    {
+        return mCascaded;
+    }
+}
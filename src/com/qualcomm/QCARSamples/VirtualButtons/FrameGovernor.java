@@ -0,0 +1,209 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** FrameGovernor lowers the render rate while there is nothing to play, to
+ *  keep the device cool over long sessions.
+ *
+ *  After every frame the GL thread reports whether a target was tracked
+ *  and whether the held keys changed. The governor answers with the number
+ *  of display refreshes until the next frame:
+ *
+ *  - 1, rendering continuously, while playing;
+ *  - IDLE_PERIODS once a target was tracked for IDLE_DELAY_NANOS without
+ *    a key change. A press is then seen at most one frame later;
+ *  - LOST_PERIODS once no target was tracked for LOST_DELAY_NANOS. The
+ *    camera image still moves and a target is found again within a
+ *    frame;
+ *  - 0 while the renderer is inactive, no frames at all.
+ *
+ *  A key change or a target found brings back continuous rendering at
+ *  that frame. The QCAR tracker itself keeps running on every camera
+ *  frame; only the rendering and the polling of the buttons is slowed.
+ *
+ *  The decision is handed to a Pacer, e.g. QCARSampleGLView, which
+ *  switches to RENDERMODE_WHEN_DIRTY and requests the frames. Time is
+ *  passed in by the caller, so the policy can be driven by a simulated
+ *  clock. The governor belongs to the GL thread; the statistics may be
+ *  read from any thread.
+ *
+ * */
+
+public class FrameGovernor
+{
+    public static final int IDLE_PERIODS = 2;
+    public static final int LOST_PERIODS = 6;
+
+    public static final long IDLE_DELAY_NANOS = 5000000000L;
+    public static final long LOST_DELAY_NANOS = 1000000000L;
+
+    /** Applies the decisions of the governor to a render loop. */
+    public interface Pacer
+    {
+        /** Switches between continuous and on-demand rendering. */
+        public void setContinuous(boolean continuous);
+
+        /** Requests an on-demand frame at the given System.nanoTime(). */
+        public void requestFrameAt(long nanos);
+    }
+
+    private Pacer mPacer;
+    private boolean mEnabled = true;
+    private long mRefreshPeriodNanos;
+
+    private long mLastFrameNanos = 0;
+    private long mLastTrackedNanos = 0;
+    private long mLastChangeNanos = 0;
+    private boolean mTracked = false;
+
+    // Statistics, written by the GL thread only:
+    private volatile int mPeriods = 1;
+    private volatile long mFrames = 0;
+    private volatile long mFramesSaved = 0;
+    private volatile long mModeChanges = 0;
+
+
+    /** Constructor. */
+    public FrameGovernor(float refreshRate)
+    {
+        setRefreshRate(refreshRate);
+    }
+
+
+    /** Sets the display refresh rate in Hz. */
+    public void setRefreshRate(float refreshRate)
+    {
+        if (refreshRate <= 0)
+            refreshRate = FrameStats.DEFAULT_REFRESH_RATE;
+        mRefreshPeriodNanos = (long) (1e9 / refreshRate);
+    }
+
+
+    /** Sets the pacer the decisions are applied to, null for none. */
+    public void setPacer(Pacer pacer)
+    {
+        mPacer = pacer;
+    }
+
+
+    /** Turns the governor on or off; off, every frame is rendered. */
+    public void setEnabled(boolean enabled)
+    {
+        mEnabled = enabled;
+    }
+
+
+    public boolean isEnabled()
+    {
+        return mEnabled;
+    }
+
+
+    /** Reports a frame rendered at the given time, returns the refreshes
+     *  until the next one. */
+    public int onFrame(long nowNanos, boolean tracked, boolean keysChanged)
+    {
+        if (mLastFrameNanos == 0)
+        {
+            mLastTrackedNanos = nowNanos;
+            mLastChangeNanos = nowNanos;
+        }
+        else if (mPeriods > 1)
+        {
+            // The refreshes skipped on purpose, not those missed:
+            long periods = (nowNanos - mLastFrameNanos +
+                            mRefreshPeriodNanos / 2) / mRefreshPeriodNanos;
+            mFramesSaved += Math.max(0, Math.min(periods, mPeriods) - 1);
+        }
+        mLastFrameNanos = nowNanos;
+        mFrames++;
+
+        if (tracked)
+        {
+            if (!mTracked)
+                mLastChangeNanos = nowNanos;
+            mLastTrackedNanos = nowNanos;
+        }
+        if (keysChanged)
+            mLastChangeNanos = nowNanos;
+        mTracked = tracked;
+
+        int periods = 1;
+        if (!mEnabled)
+            periods = 1;
+        else if (!tracked)
+        {
+            if (nowNanos - mLastTrackedNanos >= LOST_DELAY_NANOS)
+                periods = LOST_PERIODS;
+        }
+        else if (nowNanos - mLastChangeNanos >= IDLE_DELAY_NANOS)
+            periods = IDLE_PERIODS;
+
+        apply(periods, nowNanos);
+        return periods;
+    }
+
+
+    /** Forgets the last frame, e.g. after a pause; the next frame starts
+     *  over at full rate. */
+    public void restart()
+    {
+        mLastFrameNanos = 0;
+    }
+
+
+    /** Reports that the renderer is inactive: no frames until the pacer is
+     *  woken otherwise, e.g. by a new surface. */
+    public void onInactive()
+    {
+        mLastFrameNanos = 0;
+        apply(0, 0);
+    }
+
+
+    private void apply(int periods, long nowNanos)
+    {
+        if (periods != mPeriods)
+        {
+            mModeChanges++;
+            if (mPacer != null && (periods == 1 || mPeriods == 1))
+                mPacer.setContinuous(periods == 1);
+        }
+        mPeriods = periods;
+
+        if (mPacer != null && periods > 1)
+            mPacer.requestFrameAt(nowNanos + periods * mRefreshPeriodNanos);
+    }
+
+
+    /** Returns the refreshes per frame of the last decision, 0 for none. */
+    public int getPeriods()
+    {
+        return mPeriods;
+    }
+
+
+    public long getFrames()
+    {
+        return mFrames;
+    }
+
+
+    /** Returns the number of refreshes not rendered by the governor's
+     *  choice. */
+    public long getFramesSaved()
+    {
+        return mFramesSaved;
+    }
+
+
+    /** Returns how often the render rate changed. */
+    public long getModeChanges()
+    {
+        return mModeChanges;
+    }
+}
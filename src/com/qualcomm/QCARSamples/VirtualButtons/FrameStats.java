@@ -0,0 +1,326 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** FrameStats measures the pacing of the render loop.
+ *
+ *  For every frame the GL thread records when it started, how long native
+ *  renderFrame() took and how many targets were tracked. The interval to
+ *  the previous frame is compared with the display refresh period: an
+ *  interval of n periods means n - 1 refreshes went by without a new
+ *  frame, i.e. missed frames.
+ *
+ *  The last WINDOW_SIZE frames are kept in ring buffers with running sums,
+ *  next to totals since the last reset, which include the mean render time
+ *  by the number of targets tracked. After restart(resumeNanos), the
+ *  time to the first tracked frame is the resume latency. Neither
+ *  recording nor getSnapshot() allocates, both synchronize on the
+ *  instance.
+ *
+ * */
+
+public class FrameStats
+{
+    /** The number of frames in the rolling window. */
+    public static final int WINDOW_SIZE = 128;
+
+    /** Refresh rate assumed until the display reports one. */
+    public static final float DEFAULT_REFRESH_RATE = 60.0f;
+
+    /** The most targets counted apart, more count as this many. */
+    public static final int MAX_TARGETS = KeyLayout.MAX_TARGETS;
+
+    /** The statistics at one point in time, filled by getSnapshot(). */
+    public static class Snapshot
+    {
+        // Totals since the last reset:
+        public long frames;
+        public long missedFrames;
+        public long trackedFrames;
+        public long trackingLost;
+
+        // The rolling window:
+        public int windowFrames;
+        public int windowMissedFrames;
+        public int windowTrackedFrames;
+        public float framesPerSecond;
+        public float meanIntervalMs;
+        public float maxIntervalMs;
+        public float meanRenderMs;
+        public float maxRenderMs;
+
+        // The mean render time as a fraction of the refresh period:
+        public float renderLoad;
+        public float refreshRate;
+
+        // From the last restart(resumeNanos) to the first tracked frame:
+        public long resumes;
+        public float resumeLatencyMs;
+        public float maxResumeLatencyMs;
+
+        // Totals by the number of targets tracked, 0 to MAX_TARGETS:
+        public final long[] targetFrames = new long[MAX_TARGETS + 1];
+        public final float[] targetRenderMs = new float[MAX_TARGETS + 1];
+
+        public String toString()
+        {
+            StringBuilder targets = new StringBuilder();
+            for (int t = 0; t <= MAX_TARGETS; ++t)
+            {
+                if (targetFrames[t] > 0)
+                    targets.append(String.format(" %d:%.2f", t,
+                                                targetRenderMs[t]));
+            }
+
+            return String.format(
+                "%.1f fps (%.0f Hz), interval %.1f/%.1f ms, " +
+                "render %.1f/%.1f ms (%.0f%%), missed %d/%d (%d total), " +
+                "tracked %d/%d, lost %d times",
+                framesPerSecond, refreshRate, meanIntervalMs, maxIntervalMs,
+                meanRenderMs, maxRenderMs, 100 * renderLoad,
+                windowMissedFrames, windowFrames, missedFrames,
+                windowTrackedFrames, windowFrames, trackingLost) +
+                (resumes > 0 ? String.format(", resumed in %.0f/%.0f ms",
+                                resumeLatencyMs, maxResumeLatencyMs) : "") +
+                ", render by targets" + targets + " ms";
+        }
+    }
+
+    private long mRefreshPeriodNanos;
+    private int mFramePeriods = 1;
+
+    // The rolling window, slot frame % WINDOW_SIZE:
+    private final long[] mIntervals = new long[WINDOW_SIZE];
+    private final long[] mRenderTimes = new long[WINDOW_SIZE];
+    private final byte[] mMissed = new byte[WINDOW_SIZE];
+    private final boolean[] mTracked = new boolean[WINDOW_SIZE];
+    private int mWindowFrames = 0;
+    private int mNextSlot = 0;
+    private long mIntervalSum = 0;
+    private long mRenderSum = 0;
+    private int mMissedSum = 0;
+    private int mTrackedSum = 0;
+
+    // Totals:
+    private long mFrames = 0;
+    private long mMissedFrames = 0;
+    private long mTrackedFrames = 0;
+    private long mTrackingLost = 0;
+    private final long[] mTargetFrames = new long[MAX_TARGETS + 1];
+    private final long[] mTargetRenderNanos = new long[MAX_TARGETS + 1];
+
+    private long mLastStartNanos = 0;
+    private boolean mLastTracked = false;
+
+    // The pending resume, 0 for none:
+    private long mResumeNanos = 0;
+    private long mResumes = 0;
+    private long mResumeLatencyNanos = 0;
+    private long mMaxResumeLatencyNanos = 0;
+
+
+    /** Constructor. */
+    public FrameStats(float refreshRate)
+    {
+        setRefreshRate(refreshRate);
+    }
+
+
+    /** Sets the display refresh rate in Hz the intervals are compared to. */
+    public synchronized void setRefreshRate(float refreshRate)
+    {
+        if (refreshRate <= 0)
+            refreshRate = DEFAULT_REFRESH_RATE;
+        mRefreshPeriodNanos = (long) (1e9 / refreshRate);
+    }
+
+
+    /** Sets the refresh periods the next frames are meant to take, e.g.
+     *  while a FrameGovernor lowers the rate; the refreshes skipped on
+     *  purpose are not missed. 1 by default. */
+    public synchronized void setFramePeriods(int periods)
+    {
+        mFramePeriods = Math.max(1, periods);
+    }
+
+
+    /** Records a frame that started at the given time. The first frame
+     *  after a reset or restart() only counts towards the render times. */
+    public void recordFrame(long startNanos, long renderNanos, boolean tracked)
+    {
+        recordFrame(startNanos, renderNanos, tracked ? 1 : 0);
+    }
+
+
+    /** Records a frame with the number of targets tracked in it. */
+    public synchronized void recordFrame(long startNanos, long renderNanos,
+                                        int targets)
+    {
+        boolean tracked = targets > 0;
+        int targetSlot = Math.min(targets, MAX_TARGETS);
+        mTargetFrames[targetSlot]++;
+        mTargetRenderNanos[targetSlot] += renderNanos;
+
+        long interval = mLastStartNanos != 0 ? startNanos - mLastStartNanos : 0;
+        mLastStartNanos = startNanos;
+
+        int missed = 0;
+        if (interval > 0)
+        {
+            long periods = (interval + mRefreshPeriodNanos / 2) /
+                            mRefreshPeriodNanos;
+            missed = (int) Math.min(Math.max(periods - mFramePeriods, 0),
+                                    Byte.MAX_VALUE);
+        }
+
+        // Evict the oldest frame of a full window:
+        int slot = mNextSlot;
+        if (mWindowFrames == WINDOW_SIZE)
+        {
+            mIntervalSum -= mIntervals[slot];
+            mRenderSum -= mRenderTimes[slot];
+            mMissedSum -= mMissed[slot];
+            if (mTracked[slot])
+                mTrackedSum--;
+        }
+        else
+        {
+            mWindowFrames++;
+        }
+
+        mIntervals[slot] = interval;
+        mRenderTimes[slot] = renderNanos;
+        mMissed[slot] = (byte) missed;
+        mTracked[slot] = tracked;
+        mIntervalSum += interval;
+        mRenderSum += renderNanos;
+        mMissedSum += missed;
+        if (tracked)
+            mTrackedSum++;
+        mNextSlot = (slot + 1) % WINDOW_SIZE;
+
+        mFrames++;
+        mMissedFrames += missed;
+        if (tracked)
+            mTrackedFrames++;
+        else if (mLastTracked)
+            mTrackingLost++;
+        mLastTracked = tracked;
+
+        if (tracked && mResumeNanos != 0)
+        {
+            long latency = startNanos + renderNanos - mResumeNanos;
+            mResumeNanos = 0;
+            mResumes++;
+            mResumeLatencyNanos = latency;
+            mMaxResumeLatencyNanos = Math.max(mMaxResumeLatencyNanos, latency);
+        }
+    }
+
+
+    /** Forgets the start of the last frame, so that a pause in rendering
+     *  (e.g. while the activity is paused) does not count as missed frames. */
+    public synchronized void restart()
+    {
+        mLastStartNanos = 0;
+    }
+
+
+    /** Like restart(), and measures the time from resumeNanos to the end
+     *  of the next tracked frame. */
+    public synchronized void restart(long resumeNanos)
+    {
+        mLastStartNanos = 0;
+        mResumeNanos = resumeNanos;
+    }
+
+
+    /** Returns the last resume latency, 0 before the first. */
+    public synchronized long getResumeLatencyNanos()
+    {
+        return mResumeLatencyNanos;
+    }
+
+
+    /** Clears the window and the totals. */
+    public synchronized void reset()
+    {
+        for (int i = 0; i < WINDOW_SIZE; ++i)
+        {
+            mIntervals[i] = 0;
+            mRenderTimes[i] = 0;
+            mMissed[i] = 0;
+            mTracked[i] = false;
+        }
+        mWindowFrames = 0;
+        mNextSlot = 0;
+        mIntervalSum = 0;
+        mRenderSum = 0;
+        mMissedSum = 0;
+        mTrackedSum = 0;
+        mFrames = 0;
+        mMissedFrames = 0;
+        mTrackedFrames = 0;
+        mTrackingLost = 0;
+        mLastStartNanos = 0;
+        mLastTracked = false;
+        mResumeNanos = 0;
+        mResumes = 0;
+        mResumeLatencyNanos = 0;
+        mMaxResumeLatencyNanos = 0;
+        for (int t = 0; t <= MAX_TARGETS; ++t)
+        {
+            mTargetFrames[t] = 0;
+            mTargetRenderNanos[t] = 0;
+        }
+    }
+
+
+    /** Fills the snapshot and returns it. */
+    public synchronized Snapshot getSnapshot(Snapshot snapshot)
+    {
+        snapshot.frames = mFrames;
+        snapshot.missedFrames = mMissedFrames;
+        snapshot.trackedFrames = mTrackedFrames;
+        snapshot.trackingLost = mTrackingLost;
+        snapshot.windowFrames = mWindowFrames;
+        snapshot.windowMissedFrames = mMissedSum;
+        snapshot.windowTrackedFrames = mTrackedSum;
+        snapshot.refreshRate = 1e9f / mRefreshPeriodNanos;
+        snapshot.resumes = mResumes;
+        snapshot.resumeLatencyMs = mResumeLatencyNanos / 1e6f;
+        snapshot.maxResumeLatencyMs = mMaxResumeLatencyNanos / 1e6f;
+        for (int t = 0; t <= MAX_TARGETS; ++t)
+        {
+            snapshot.targetFrames[t] = mTargetFrames[t];
+            snapshot.targetRenderMs[t] = mTargetFrames[t] > 0 ?
+                    mTargetRenderNanos[t] / 1e6f / mTargetFrames[t] : 0;
+        }
+
+        long maxInterval = 0;
+        long maxRender = 0;
+        int intervals = 0;
+        for (int i = 0; i < mWindowFrames; ++i)
+        {
+            if (mIntervals[i] > 0)
+                intervals++;
+            maxInterval = Math.max(maxInterval, mIntervals[i]);
+            maxRender = Math.max(maxRender, mRenderTimes[i]);
+        }
+
+        float meanInterval = intervals > 0 ? (float) mIntervalSum / intervals : 0;
+        float meanRender = mWindowFrames > 0 ?
+                            (float) mRenderSum / mWindowFrames : 0;
+        snapshot.framesPerSecond = meanInterval > 0 ? 1e9f / meanInterval : 0;
+        snapshot.meanIntervalMs = meanInterval / 1e6f;
+        snapshot.maxIntervalMs = maxInterval / 1e6f;
+        snapshot.meanRenderMs = meanRender / 1e6f;
+        snapshot.maxRenderMs = maxRender / 1e6f;
+        snapshot.renderLoad = meanRender / mRefreshPeriodNanos;
+        return snapshot;
+    }
+}
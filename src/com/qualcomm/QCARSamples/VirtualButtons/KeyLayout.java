@@ -0,0 +1,427 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import android.content.res.AssetManager;
+
+/** KeyLayout is the key geometry of the piano, read from the dataset XML.
+ *
+ *  Every VirtualButton of the dataset becomes a key with a dense index in
+ *  document order, its rectangle on the target and a MIDI note. Buttons
+ *  named after a note (e.g. "C4", "F#3" or "Fs3") play that note, all others
+ *  continue upwards on the white keys, starting at middle C. The four colour
+ *  buttons of Piano2.xml therefore play C4, D4, E4 and F4.
+ *
+ *  A dataset may hold up to MAX_TARGETS ImageTargets, e.g. the same octave
+ *  sheet printed several times and laid side by side. The buttons following
+ *  an ImageTarget belong to it, so the keys of a target are consecutive.
+ *  Its unnamed keys start an octave above those of the target before it,
+ *  its named keys play the note they are named after. Button names only
+ *  need to be unique within their target.
+ *
+ *  The layout is immutable once loaded. Native code receives a copy of it
+ *  and sizes all its per-frame buffers from the key count.
+ *
+ * */
+
+public class KeyLayout
+{
+    /** The note of the first key without a note name (middle C). */
+    public static final int DEFAULT_FIRST_NOTE = 60;
+
+    /** The number of MIDI notes. */
+    public static final int NUM_NOTES = 128;
+
+    /** The most ImageTargets of a layout, see KeyTargets.h. */
+    public static final int MAX_TARGETS = 4;
+
+    /** The semitones the unnamed keys of every target start above those
+     *  of the one before it. */
+    public static final int TARGET_OFFSET = 12;
+
+    // Semitones of the pitch classes C, D, E, F, G, A, B:
+    private static final int[] PITCH_CLASSES = { 9, 11, 0, 2, 4, 5, 7 };
+
+    private final String[] mTargetNames;
+    private final int[] mTargetFirstKeys;
+    private final String[] mNames;
+    private final float[] mRectangles;
+    private final int[] mNotes;
+
+    // Index lookups:
+    private final HashMap<String, Integer> mIndexByName;
+    private final int[] mKeyByNote = new int[NUM_NOTES];
+
+
+    private KeyLayout(ArrayList<String> targetNames,
+                    ArrayList<Integer> targetFirstKeys, ArrayList<String> names,
+                    ArrayList<float[]> rectangles)
+    {
+        int count = names.size();
+        int targetCount = targetNames.size();
+        mTargetNames = targetNames.toArray(new String[targetCount]);
+        mTargetFirstKeys = new int[targetCount + 1];
+        for (int t = 0; t < targetCount; ++t)
+            mTargetFirstKeys[t] = targetFirstKeys.get(t);
+        mTargetFirstKeys[targetCount] = count;
+        mNames = names.toArray(new String[count]);
+        mRectangles = new float[count * 4];
+        mNotes = new int[count];
+        mIndexByName = new HashMap<String, Integer>(count * 2);
+
+        for (int i = 0; i < NUM_NOTES; ++i)
+            mKeyByNote[i] = -1;
+
+        int nextNote = DEFAULT_FIRST_NOTE;
+        int target = -1;
+        for (int i = 0; i < count; ++i)
+        {
+            System.arraycopy(rectangles.get(i), 0, mRectangles, i * 4, 4);
+            if (!mIndexByName.containsKey(mNames[i]))
+                mIndexByName.put(mNames[i], i);
+
+            // The unnamed keys of every target start over an octave higher:
+            while (i == mTargetFirstKeys[target + 1])
+            {
+                target++;
+                nextNote = DEFAULT_FIRST_NOTE + target * TARGET_OFFSET;
+            }
+
+            int note = parseNoteName(mNames[i]);
+            if (note < 0)
+                note = Math.min(nextNote, NUM_NOTES - 1);
+            mNotes[i] = note;
+            nextNote = nextWhiteKey(note);
+
+            if (mKeyByNote[note] < 0)
+                mKeyByNote[note] = i;
+        }
+    }
+
+
+    /** Loads the layout from a dataset XML in the APK. Returns null if the
+     *  file cannot be read or parsed. */
+    public static KeyLayout loadFromApk(String fileName, AssetManager assets)
+    {
+        InputStream inputStream = null;
+        try
+        {
+            inputStream = assets.open(fileName, AssetManager.ACCESS_STREAMING);
+            return parse(inputStream);
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("Failed to load key layout '{}'.", fileName);
+            DebugLog.LOGI(e.getMessage());
+            return null;
+        }
+        finally
+        {
+            if (inputStream != null)
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing sensible left to do
+                }
+            }
+        }
+    }
+
+
+    /** Parses a dataset XML. The keys are the VirtualButton elements, each
+     *  on the ImageTarget before it. */
+    public static KeyLayout parse(InputStream inputStream) throws IOException
+    {
+        final ArrayList<String> targetNames = new ArrayList<String>();
+        final ArrayList<Integer> targetFirstKeys = new ArrayList<Integer>();
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<float[]> rectangles = new ArrayList<float[]>();
+
+        DefaultHandler handler = new DefaultHandler()
+        {
+            public void startElement(String uri, String localName,
+                                    String qName, Attributes attributes)
+                                                        throws SAXException
+            {
+                String element = localName.length() > 0 ? localName : qName;
+                if (element.equals("ImageTarget"))
+                {
+                    String name = attributes.getValue("name");
+                    if (name == null)
+                        throw new SAXException("ImageTarget without name");
+                    if (targetNames.contains(name))
+                        throw new SAXException("Duplicate ImageTarget " + name);
+                    if (targetNames.size() == MAX_TARGETS)
+                        throw new SAXException("More than " + MAX_TARGETS +
+                                                " ImageTargets");
+
+                    targetNames.add(name);
+                    targetFirstKeys.add(names.size());
+                }
+                else if (element.equals("VirtualButton"))
+                {
+                    String name = attributes.getValue("name");
+                    String rectangle = attributes.getValue("rectangle");
+                    if (name == null || rectangle == null)
+                        throw new SAXException("VirtualButton without name " +
+                                                "or rectangle");
+                    if (targetNames.isEmpty())
+                        throw new SAXException("VirtualButton " + name +
+                                                " without ImageTarget");
+
+                    int firstKey = targetFirstKeys.get(targetNames.size() - 1);
+                    if (names.subList(firstKey, names.size()).contains(name))
+                        throw new SAXException("Duplicate VirtualButton " + name);
+
+                    names.add(name);
+                    rectangles.add(parseRectangle(rectangle));
+                }
+            }
+        };
+
+        try
+        {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(inputStream, handler);
+        }
+        catch (ParserConfigurationException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        catch (SAXException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+
+        if (targetNames.isEmpty())
+            throw new IOException("No ImageTarget");
+
+        return new KeyLayout(targetNames, targetFirstKeys, names, rectangles);
+    }
+
+
+    private static float[] parseRectangle(String value) throws SAXException
+    {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length != 4)
+            throw new SAXException("Invalid rectangle '" + value + "'");
+
+        float[] rectangle = new float[4];
+        try
+        {
+            for (int i = 0; i < 4; ++i)
+                rectangle[i] = Float.parseFloat(parts[i]);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new SAXException("Invalid rectangle '" + value + "'");
+        }
+        return rectangle;
+    }
+
+
+    /** Returns the MIDI note of a name like "C4", "F#3", "Fs3" or "Bb2", or
+     *  -1 if the name is not a note. */
+    public static int parseNoteName(String name)
+    {
+        int length = name.length();
+        if (length < 2)
+            return -1;
+
+        char letter = Character.toUpperCase(name.charAt(0));
+        if (letter < 'A' || letter > 'G')
+            return -1;
+
+        int note = PITCH_CLASSES[letter - 'A'];
+        int position = 1;
+        char accidental = name.charAt(1);
+        if (accidental == '#' || accidental == 's')
+        {
+            note++;
+            position++;
+        }
+        else if (accidental == 'b')
+        {
+            note--;
+            position++;
+        }
+
+        if (position == length)
+            return -1;
+
+        int octave = 0;
+        for (int i = position; i < length; ++i)
+        {
+            char digit = name.charAt(i);
+            if (digit < '0' || digit > '9')
+                return -1;
+            octave = octave * 10 + (digit - '0');
+        }
+
+        note += (octave + 1) * 12;
+        return note >= 0 && note < NUM_NOTES ? note : -1;
+    }
+
+
+    private static int nextWhiteKey(int note)
+    {
+        int next = note + 1;
+        int pitchClass = next % 12;
+        if (pitchClass == 1 || pitchClass == 3 || pitchClass == 6 ||
+            pitchClass == 8 || pitchClass == 10)
+            next++;
+        return Math.min(next, NUM_NOTES - 1);
+    }
+
+
+    /** Returns the name of the first image target. */
+    public String getTargetName()
+    {
+        return mTargetNames[0];
+    }
+
+
+    public int getTargetCount()
+    {
+        return mTargetNames.length;
+    }
+
+
+    public String getTargetName(int target)
+    {
+        return mTargetNames[target];
+    }
+
+
+    /** Returns the first key of a target; its keys end at the first key of
+     *  the next one, or getKeyCount() for the last. */
+    public int getFirstKey(int target)
+    {
+        return mTargetFirstKeys[target];
+    }
+
+
+    /** Returns the target a key is on, or -1 if there is no such key. */
+    public int getTarget(int key)
+    {
+        if (key < 0 || key >= mNames.length)
+            return -1;
+
+        int target = 0;
+        while (key >= mTargetFirstKeys[target + 1])
+            target++;
+        return target;
+    }
+
+
+    public int getKeyCount()
+    {
+        return mNames.length;
+    }
+
+
+    public String getName(int key)
+    {
+        return mNames[key];
+    }
+
+
+    public int getNote(int key)
+    {
+        return mNotes[key];
+    }
+
+
+    /** Returns the left, top, right and bottom of a key on the target. */
+    public float getRectangle(int key, int side)
+    {
+        return mRectangles[key * 4 + side];
+    }
+
+
+    /** Returns the index of the named key on the first target having it,
+     *  or -1. Names may repeat on later targets, see indexOf(int, String)
+     *  for those. */
+    public int indexOf(String name)
+    {
+        Integer index = mIndexByName.get(name);
+        return index != null ? index : -1;
+    }
+
+
+    /** Returns the index of the named key on the given target, or -1. */
+    public int indexOf(int target, String name)
+    {
+        for (int i = mTargetFirstKeys[target];
+            i < mTargetFirstKeys[target + 1]; ++i)
+        {
+            if (mNames[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+
+    /** Returns the first key playing the given note, or -1. */
+    public int getKeyForNote(int note)
+    {
+        return note >= 0 && note < NUM_NOTES ? mKeyByNote[note] : -1;
+    }
+
+
+    /** Returns a copy of the key names, indexed by key. */
+    public String[] getNames()
+    {
+        return mNames.clone();
+    }
+
+
+    /** Returns a copy of the rectangles, four floats per key. */
+    public float[] getRectangles()
+    {
+        return mRectangles.clone();
+    }
+
+
+    /** Returns a copy of the notes, indexed by key. */
+    public int[] getNotes()
+    {
+        return mNotes.clone();
+    }
+
+
+    /** Returns a copy of the target names, indexed by target. */
+    public String[] getTargetNames()
+    {
+        return mTargetNames.clone();
+    }
+
+
+    /** Returns a copy of the first key of every target, followed by the
+     *  key count. */
+    public int[] getTargetFirstKeys()
+    {
+        return mTargetFirstKeys.clone();
+    }
+}
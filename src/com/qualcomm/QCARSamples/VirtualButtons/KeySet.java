@@ -0,0 +1,249 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+
+/** KeySet is the set of keys held at the same time, i.e. a chord.
+ *
+ *  Bit k of word k / 64 is set while key k of the layout is held, the
+ *  same layout as the pressed words of the key state snapshot. Comparing
+ *  two sets works a word at a time: only the bits that differ are visited,
+ *  each one found with Long.numberOfTrailingZeros(), so a full keyboard
+ *  costs two words and no call per key that did not change.
+ *
+ * */
+
+public class KeySet
+{
+    /** Receives the keys that differ between two sets. */
+    public interface DiffListener
+    {
+        public void onKeyAdded(int key);
+        public void onKeyRemoved(int key);
+    }
+
+    private final int mKeyCount;
+    private final long[] mWords;
+
+
+    /** Constructor, creates an empty set for keys 0 to keyCount - 1. */
+    public KeySet(int keyCount)
+    {
+        mKeyCount = keyCount;
+        mWords = new long[(keyCount + 63) >>> 6];
+    }
+
+
+    public int getKeyCount()
+    {
+        return mKeyCount;
+    }
+
+
+    /** Returns the backing words, bit k of word k / 64 for key k. */
+    public long[] getWords()
+    {
+        return mWords;
+    }
+
+
+    public boolean contains(int key)
+    {
+        return key >= 0 && key < mKeyCount &&
+               (mWords[key >>> 6] & (1L << key)) != 0;
+    }
+
+
+    /** Adds a key, keys outside 0 to keyCount - 1 are ignored. */
+    public void add(int key)
+    {
+        if (key >= 0 && key < mKeyCount)
+            mWords[key >>> 6] |= 1L << key;
+    }
+
+
+    /** Removes a key, keys outside 0 to keyCount - 1 are ignored. */
+    public void remove(int key)
+    {
+        if (key >= 0 && key < mKeyCount)
+            mWords[key >>> 6] &= ~(1L << key);
+    }
+
+
+    public void clear()
+    {
+        for (int w = 0; w < mWords.length; ++w)
+            mWords[w] = 0;
+    }
+
+
+    /** Copies another set of the same size. */
+    public void copyFrom(KeySet other)
+    {
+        System.arraycopy(other.mWords, 0, mWords, 0, mWords.length);
+    }
+
+
+    /** Copies words from a buffer in native byte order, reading the given
+     *  number of words at an absolute offset. Missing words are cleared. */
+    public void copyFrom(ByteBuffer buffer, int offset, int words)
+    {
+        int count = Math.min(words, mWords.length);
+        for (int w = 0; w < count; ++w)
+            mWords[w] = buffer.getLong(offset + 8 * w);
+        for (int w = count; w < mWords.length; ++w)
+            mWords[w] = 0;
+    }
+
+
+    public boolean isEmpty()
+    {
+        for (int w = 0; w < mWords.length; ++w)
+        {
+            if (mWords[w] != 0)
+                return false;
+        }
+        return true;
+    }
+
+
+    /** Returns the number of keys in the set. */
+    public int size()
+    {
+        int size = 0;
+        for (int w = 0; w < mWords.length; ++w)
+            size += Long.bitCount(mWords[w]);
+        return size;
+    }
+
+
+    /** Returns the first key at or after the given one, or -1. Iterate
+     *  with: for (k = set.next(0); k >= 0; k = set.next(k + 1)). */
+    public int next(int fromKey)
+    {
+        if (fromKey < 0)
+            fromKey = 0;
+        if (fromKey >= mKeyCount)
+            return -1;
+
+        int w = fromKey >>> 6;
+        long word = mWords[w] & (-1L << fromKey);
+        while (true)
+        {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == mWords.length)
+                return -1;
+            word = mWords[w];
+        }
+    }
+
+
+    /** Returns the lowest key of the set, or -1 if it is empty. */
+    public int lowest()
+    {
+        return next(0);
+    }
+
+
+    /** Returns the highest key of the set, or -1 if it is empty. */
+    public int highest()
+    {
+        for (int w = mWords.length - 1; w >= 0; --w)
+        {
+            if (mWords[w] != 0)
+                return (w << 6) + 63 - Long.numberOfLeadingZeros(mWords[w]);
+        }
+        return -1;
+    }
+
+
+    /** Reports the keys added and removed since the previous set, removals
+     *  first. Returns the number of keys that changed. */
+    public int diff(KeySet previous, DiffListener listener)
+    {
+        return diff(previous.mWords, mWords,
+                    Math.min(previous.mWords.length, mWords.length), listener);
+    }
+
+
+    /** Reports the differences of two word arrays, see diff(KeySet, ...).
+     *  The listener may be null to only count the changes. */
+    public static int diff(long[] previous, long[] current, int words,
+                            DiffListener listener)
+    {
+        int changes = 0;
+        for (int w = 0; w < words; ++w)
+        {
+            long changed = previous[w] ^ current[w];
+            if (changed == 0)
+                continue;
+
+            changes += Long.bitCount(changed);
+            if (listener == null)
+                continue;
+
+            long removed = changed & previous[w];
+            while (removed != 0)
+            {
+                listener.onKeyRemoved((w << 6) +
+                                    Long.numberOfTrailingZeros(removed));
+                removed &= removed - 1;
+            }
+
+            long added = changed & current[w];
+            while (added != 0)
+            {
+                listener.onKeyAdded((w << 6) +
+                                    Long.numberOfTrailingZeros(added));
+                added &= added - 1;
+            }
+        }
+        return changes;
+    }
+
+
+    public boolean equals(Object object)
+    {
+        if (!(object instanceof KeySet))
+            return false;
+
+        KeySet other = (KeySet) object;
+        if (other.mKeyCount != mKeyCount)
+            return false;
+
+        for (int w = 0; w < mWords.length; ++w)
+        {
+            if (mWords[w] != other.mWords[w])
+                return false;
+        }
+        return true;
+    }
+
+
+    public int hashCode()
+    {
+        long hash = mKeyCount;
+        for (int w = 0; w < mWords.length; ++w)
+            hash = hash * 31 + mWords[w];
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+
+    public String toString()
+    {
+        StringBuilder string = new StringBuilder("{");
+        for (int k = next(0); k >= 0; k = next(k + 1))
+        {
+            if (string.length() > 1)
+                string.append(' ');
+            string.append(k);
+        }
+        return string.append('}').toString();
+    }
+}
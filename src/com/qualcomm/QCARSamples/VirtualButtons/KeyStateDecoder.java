@@ -0,0 +1,286 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** KeyStateDecoder turns the per-frame key state snapshot written by native
+ *  renderFrame() into press / release callbacks.
+ *
+ *  The snapshot lives in a direct ByteBuffer in native byte order which is
+ *  registered with native code once. Its layout is:
+ *
+ *      int   sequence        incremented for every frame written
+ *      int   keyCount        number of valid keys
+ *      long  timestampNanos  System.nanoTime() clock
+ *      long  trackerNanos    QCAR_onUpdate() of the rendered frame, or 0
+ *      long  captureNanos    camera capture of the frame, or 0
+ *      long  pressed[words]  bit k set while key k is held
+ *      long  pressEdges[words]
+ *      long  releaseEdges[words]
+ *
+ *  Besides the individual edges the decoder keeps every key held in the
+ *  last frame as a KeySet, so that chords can be observed as a whole.
+ *
+ *  Decoding only uses absolute reads and does not allocate.
+ *
+ * */
+
+public class KeyStateDecoder
+{
+    public static final int OFFSET_SEQUENCE     = 0;
+    public static final int OFFSET_KEY_COUNT    = 4;
+    public static final int OFFSET_TIMESTAMP    = 8;
+    public static final int OFFSET_TRACKER      = 16;
+    public static final int OFFSET_CAPTURE      = 24;
+    public static final int OFFSET_WORDS        = 32;
+
+    /** Receives the decoded key edges. */
+    public interface Listener
+    {
+        public void onKeyPressed(int key, long timestampNanos);
+        public void onKeyReleased(int key, long timestampNanos);
+    }
+
+    /** Receives the held keys whenever they change. */
+    public interface ChordListener
+    {
+        /** The sets are owned by the decoder and only valid during the
+         *  call, use chord.diff(previous, ...) for the transition. */
+        public void onChordChanged(KeySet chord, KeySet previous,
+                                    long timestampNanos);
+    }
+
+    private final int mWords;
+    private final KeySet mChord;
+    private final KeySet mPreviousChord;
+
+    private Listener mListener;
+    private ChordListener mChordListener;
+    private LatencyMonitor mLatencyMonitor;
+    private int mLastSequence = -1;
+    private long mFramesDecoded = 0;
+    private long mFramesSkipped = 0;
+    private boolean mChordChanged = false;
+
+
+    /** Constructor. */
+    public KeyStateDecoder(int maxKeys)
+    {
+        mWords = wordCount(maxKeys);
+        mChord = new KeySet(maxKeys);
+        mPreviousChord = new KeySet(maxKeys);
+    }
+
+
+    /** Returns the number of 64 bit words needed for the given keys. */
+    public static int wordCount(int maxKeys)
+    {
+        return (maxKeys + 63) >>> 6;
+    }
+
+
+    /** Returns the size in bytes of a snapshot buffer for the given keys. */
+    public static int bufferSize(int maxKeys)
+    {
+        return OFFSET_WORDS + 3 * 8 * wordCount(maxKeys);
+    }
+
+
+    /** Allocates a snapshot buffer suitable for the native side. */
+    public static ByteBuffer allocateBuffer(int maxKeys)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize(maxKeys));
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+
+    public void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+
+    public void setChordListener(ChordListener listener)
+    {
+        mChordListener = listener;
+    }
+
+
+    /** Sets the monitor receiving the latencies of key presses. */
+    public void setLatencyMonitor(LatencyMonitor monitor)
+    {
+        mLatencyMonitor = monitor;
+    }
+
+
+    /** Decodes the snapshot and dispatches its edges.
+     *
+     *  Returns false if the buffer does not contain a new frame. */
+    public boolean decode(ByteBuffer buffer)
+    {
+        int sequence = buffer.getInt(OFFSET_SEQUENCE);
+        if (sequence == mLastSequence)
+            return false;
+
+        if (mLastSequence >= 0 && sequence - mLastSequence > 1)
+            mFramesSkipped += sequence - mLastSequence - 1;
+        mLastSequence = sequence;
+        mFramesDecoded++;
+
+        int words = Math.min(mWords,
+                    wordCount(buffer.getInt(OFFSET_KEY_COUNT)));
+        long timestamp = buffer.getLong(OFFSET_TIMESTAMP);
+
+        int pressedOffset = OFFSET_WORDS;
+        int pressOffset = pressedOffset + 8 * words;
+        int releaseOffset = pressOffset + 8 * words;
+
+        mPreviousChord.copyFrom(mChord);
+        mChord.copyFrom(buffer, pressedOffset, words);
+
+        LatencyMonitor monitor = mLatencyMonitor;
+        if (monitor != null)
+            recordLatencies(monitor, buffer, pressOffset, words, timestamp);
+
+        Listener listener = mListener;
+        for (int w = 0; w < words; ++w)
+        {
+            if (listener == null)
+                continue;
+
+            long released = buffer.getLong(releaseOffset + 8 * w);
+            while (released != 0)
+            {
+                int bit = Long.numberOfTrailingZeros(released);
+                listener.onKeyReleased((w << 6) + bit, timestamp);
+                released &= released - 1;
+            }
+
+            long pressed = buffer.getLong(pressOffset + 8 * w);
+            while (pressed != 0)
+            {
+                int bit = Long.numberOfTrailingZeros(pressed);
+                listener.onKeyPressed((w << 6) + bit, timestamp);
+                pressed &= pressed - 1;
+            }
+        }
+
+        mChordChanged = !mChord.equals(mPreviousChord);
+        ChordListener chordListener = mChordListener;
+        if (chordListener != null && mChordChanged)
+            chordListener.onChordChanged(mChord, mPreviousChord, timestamp);
+
+        return true;
+    }
+
+
+    /** Records the stages up to the dispatch for every key pressed in the
+     *  snapshot. */
+    private static void recordLatencies(LatencyMonitor monitor,
+                        ByteBuffer buffer, int pressOffset, int words,
+                        long timestamp)
+    {
+        int presses = 0;
+        for (int w = 0; w < words; ++w)
+            presses += Long.bitCount(buffer.getLong(pressOffset + 8 * w));
+        if (presses == 0)
+            return;
+
+        long tracker = buffer.getLong(OFFSET_TRACKER);
+        long capture = buffer.getLong(OFFSET_CAPTURE);
+        if (tracker != 0)
+        {
+            if (capture != 0)
+                monitor.record(LatencyMonitor.STAGE_CAPTURE_TO_TRACKER,
+                                tracker - capture, presses);
+            monitor.record(LatencyMonitor.STAGE_TRACKER_TO_RENDER,
+                            timestamp - tracker, presses);
+        }
+        monitor.record(LatencyMonitor.STAGE_RENDER_TO_DISPATCH,
+                        System.nanoTime() - timestamp, presses);
+    }
+
+
+    /** Writes a snapshot the same way native renderFrame() does.
+     *
+     *  Used to feed synthetic frames to the decoder without a device. The
+     *  edges are derived from the previous pressed words, which are updated
+     *  in place. */
+    public static void encode(ByteBuffer buffer, int sequence, int keyCount,
+                            long timestampNanos, long[] pressed,
+                            long[] previous)
+    {
+        encode(buffer, sequence, keyCount, timestampNanos, 0, 0, pressed,
+                previous);
+    }
+
+
+    /** Writes a snapshot including the stamps of the tracker update and
+     *  the camera capture of the frame, 0 if unknown. */
+    public static void encode(ByteBuffer buffer, int sequence, int keyCount,
+                            long timestampNanos, long trackerNanos,
+                            long captureNanos, long[] pressed, long[] previous)
+    {
+        int words = wordCount(keyCount);
+        int pressedOffset = OFFSET_WORDS;
+        int pressOffset = pressedOffset + 8 * words;
+        int releaseOffset = pressOffset + 8 * words;
+
+        for (int w = 0; w < words; ++w)
+        {
+            long changed = pressed[w] ^ previous[w];
+            buffer.putLong(pressedOffset + 8 * w, pressed[w]);
+            buffer.putLong(pressOffset + 8 * w, changed & pressed[w]);
+            buffer.putLong(releaseOffset + 8 * w, changed & previous[w]);
+            previous[w] = pressed[w];
+        }
+
+        buffer.putInt(OFFSET_KEY_COUNT, keyCount);
+        buffer.putLong(OFFSET_TIMESTAMP, timestampNanos);
+        buffer.putLong(OFFSET_TRACKER, trackerNanos);
+        buffer.putLong(OFFSET_CAPTURE, captureNanos);
+        buffer.putInt(OFFSET_SEQUENCE, sequence);
+    }
+
+
+    /** Returns true if the key was held in the last decoded frame. */
+    public boolean isPressed(int key)
+    {
+        return mChord.contains(key);
+    }
+
+
+    /** Returns true if the keys held changed in the last decoded frame. */
+    public boolean isChordChanged()
+    {
+        return mChordChanged;
+    }
+
+
+    /** Returns the keys held in the last decoded frame. The set is updated
+     *  in place by decode(). */
+    public KeySet getChord()
+    {
+        return mChord;
+    }
+
+
+    public long getFramesDecoded()
+    {
+        return mFramesDecoded;
+    }
+
+
+    /** Returns the number of frames written but never decoded. */
+    public long getFramesSkipped()
+    {
+        return mFramesSkipped;
+    }
+}
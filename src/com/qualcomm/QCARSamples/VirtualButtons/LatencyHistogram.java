@@ -0,0 +1,200 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** LatencyHistogram counts durations in log-linear buckets.
+ *
+ *  Values below 2^SUB_BUCKET_BITS nanoseconds get a bucket each. Above
+ *  that every power of two is split into 2^SUB_BUCKET_BITS linear buckets,
+ *  so a bucket is never wider than 1 / 32 of its value (about 3 %) while
+ *  the whole range up to 2^MAX_EXPONENT ns (18 minutes) fits into a fixed
+ *  array of BUCKET_COUNT counters. Larger values land in the last bucket.
+ *
+ *  Recording does not allocate or lock. There must be a single writer
+ *  thread per histogram; any thread may read percentiles concurrently and
+ *  sees each counter either before or after an update.
+ *
+ * */
+
+public class LatencyHistogram
+{
+    public static final int SUB_BUCKET_BITS = 5;
+    public static final int MAX_EXPONENT = 40;
+    public static final int BUCKET_COUNT =
+                        (MAX_EXPONENT - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    // Written by the recording thread only:
+    private volatile long mCount = 0;
+    private volatile long mSumNanos = 0;
+    private volatile long mMinNanos = Long.MAX_VALUE;
+    private volatile long mMaxNanos = 0;
+
+
+    /** Returns the bucket of a value, negative values count as zero. */
+    public static int bucketIndex(long nanos)
+    {
+        if (nanos < SUB_BUCKETS)
+            return nanos < 0 ? 0 : (int) nanos;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT)
+            return BUCKET_COUNT - 1;
+
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) |
+               (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+
+    /** Returns the smallest value of a bucket. */
+    public static long bucketLowerBound(int index)
+    {
+        int block = index >>> SUB_BUCKET_BITS;
+        long subBucket = index & (SUB_BUCKETS - 1);
+        if (block == 0)
+            return subBucket;
+        return (SUB_BUCKETS + subBucket) << (block - 1);
+    }
+
+
+    /** Returns the largest value of a bucket. */
+    public static long bucketUpperBound(int index)
+    {
+        int block = index >>> SUB_BUCKET_BITS;
+        return bucketLowerBound(index) + (block > 1 ? 1L << (block - 1) : 1) - 1;
+    }
+
+
+    /** Records a duration. Must only be called by the writer thread. */
+    public void record(long nanos)
+    {
+        record(nanos, 1);
+    }
+
+
+    /** Records the same duration several times, e.g. once per key of a
+     *  chord. Must only be called by the writer thread. */
+    public void record(long nanos, int times)
+    {
+        if (times <= 0)
+            return;
+        if (nanos < 0)
+            nanos = 0;
+
+        // A plain set(), lazySet() needs API level 9:
+        int index = bucketIndex(nanos);
+        mCounts.set(index, mCounts.get(index) + times);
+
+        mCount += times;
+        mSumNanos += nanos * times;
+        if (nanos < mMinNanos)
+            mMinNanos = nanos;
+        if (nanos > mMaxNanos)
+            mMaxNanos = nanos;
+    }
+
+
+    /** Clears all counters. Must only be called by the writer thread, or
+     *  while nothing is recorded. */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+            mCounts.set(i, 0);
+        mCount = 0;
+        mSumNanos = 0;
+        mMinNanos = Long.MAX_VALUE;
+        mMaxNanos = 0;
+    }
+
+
+    public long getCount()
+    {
+        return mCount;
+    }
+
+
+    public long getCount(int index)
+    {
+        return mCounts.get(index);
+    }
+
+
+    /** Returns the mean duration in nanoseconds. */
+    public long getMeanNanos()
+    {
+        long count = mCount;
+        return count > 0 ? mSumNanos / count : 0;
+    }
+
+
+    public long getMinNanos()
+    {
+        return mCount > 0 ? mMinNanos : 0;
+    }
+
+
+    public long getMaxNanos()
+    {
+        return mMaxNanos;
+    }
+
+
+    /** Returns the duration at or below which the given percentage of the
+     *  recorded values lie, e.g. 99.9. The result is the upper bound of the
+     *  bucket reached, limited to the largest value recorded. */
+    public long getPercentileNanos(double percentile)
+    {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+            total += mCounts.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0);
+        if (rank < 1)
+            rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+        {
+            seen += mCounts.get(i);
+            if (seen >= rank)
+                return Math.min(bucketUpperBound(i), mMaxNanos);
+        }
+        return mMaxNanos;
+    }
+
+
+    /** Writes a line per non-empty bucket: lower and upper bound in
+     *  nanoseconds, count and cumulative fraction. */
+    public void writeBuckets(PrintWriter writer)
+    {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+            total += mCounts.get(i);
+
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+        {
+            long count = mCounts.get(i);
+            if (count == 0)
+                continue;
+
+            seen += count;
+            writer.println(String.format("%d\t%d\t%d\t%.6f",
+                bucketLowerBound(i), bucketUpperBound(i), count,
+                (double) seen / total));
+        }
+    }
+}
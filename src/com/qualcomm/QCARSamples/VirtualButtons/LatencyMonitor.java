@@ -0,0 +1,156 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/** LatencyMonitor keeps a LatencyHistogram for every stage a key press
+ *  passes on its way from the camera to the speaker.
+ *
+ *  All stamps are System.nanoTime() / CLOCK_MONOTONIC. Native code stamps
+ *  every camera frame in QCAR_onUpdate() and passes the stamps on with the
+ *  note events and the key state snapshot, so each stage is measured from
+ *  the tracker update that saw the key:
+ *
+ *      capture -> tracker    frame time stamp to QCAR_onUpdate()
+ *      tracker -> render     QCAR_onUpdate() to renderFrame() of that frame
+ *      render  -> dispatch   renderFrame() to the KeyStateDecoder callback
+ *      tracker -> enqueue    QCAR_onUpdate() to the audio thread starting
+ *                            the voice
+ *      tracker -> sound      QCAR_onUpdate() to the first sample of the
+ *                            voice written to the audio output
+ *
+ *  The camera clock is not the monotonic clock. It is mapped onto it with
+ *  the smallest offset seen so far, so the capture stage is relative to
+ *  the fastest frame and a lower bound of the real delay.
+ *
+ *  The first three stages are recorded by the GL thread, the others by
+ *  the audio thread, one press at a time.
+ *
+ * */
+
+public class LatencyMonitor
+{
+    public static final int STAGE_CAPTURE_TO_TRACKER    = 0;
+    public static final int STAGE_TRACKER_TO_RENDER     = 1;
+    public static final int STAGE_RENDER_TO_DISPATCH    = 2;
+    public static final int STAGE_TRACKER_TO_ENQUEUE    = 3;
+    public static final int STAGE_TRACKER_TO_SOUND      = 4;
+    public static final int STAGE_COUNT                 = 5;
+
+    private static final String[] STAGE_NAMES = {
+        "capture->tracker",
+        "tracker->render",
+        "render->dispatch",
+        "tracker->enqueue",
+        "tracker->sound"
+    };
+
+    private final LatencyHistogram[] mStages =
+                                        new LatencyHistogram[STAGE_COUNT];
+
+
+    /** Constructor. */
+    public LatencyMonitor()
+    {
+        for (int stage = 0; stage < STAGE_COUNT; ++stage)
+            mStages[stage] = new LatencyHistogram();
+    }
+
+
+    public static String getStageName(int stage)
+    {
+        return STAGE_NAMES[stage];
+    }
+
+
+    /** Records the duration of a stage, see LatencyHistogram.record(). */
+    public void record(int stage, long nanos)
+    {
+        mStages[stage].record(nanos);
+    }
+
+
+    /** Records the duration of a stage for several keys at once. */
+    public void record(int stage, long nanos, int keys)
+    {
+        mStages[stage].record(nanos, keys);
+    }
+
+
+    public LatencyHistogram getHistogram(int stage)
+    {
+        return mStages[stage];
+    }
+
+
+    /** Returns the given percentile of a stage in nanoseconds. */
+    public long getPercentileNanos(int stage, double percentile)
+    {
+        return mStages[stage].getPercentileNanos(percentile);
+    }
+
+
+    /** Clears all stages. Only call this while nothing is recorded. */
+    public void reset()
+    {
+        for (int stage = 0; stage < STAGE_COUNT; ++stage)
+            mStages[stage].reset();
+    }
+
+
+    /** Returns p50, p99 and p99.9 of every stage. */
+    public String getReport()
+    {
+        StringBuilder report = new StringBuilder("Latency (ms):");
+        for (int stage = 0; stage < STAGE_COUNT; ++stage)
+        {
+            LatencyHistogram histogram = mStages[stage];
+            report.append(String.format(" %s n=%d p50 %.2f p99 %.2f p99.9 %.2f;",
+                STAGE_NAMES[stage], histogram.getCount(),
+                histogram.getPercentileNanos(50) / 1e6,
+                histogram.getPercentileNanos(99) / 1e6,
+                histogram.getPercentileNanos(99.9) / 1e6));
+        }
+        return report.toString();
+    }
+
+
+    /** Writes the percentiles and the buckets of every stage to a text
+     *  file, replacing it. */
+    public void dump(File file) throws IOException
+    {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try
+        {
+            for (int stage = 0; stage < STAGE_COUNT; ++stage)
+            {
+                LatencyHistogram histogram = mStages[stage];
+                writer.println(String.format(
+                    "# %s count %d mean %d min %d p50 %d p99 %d p99.9 %d " +
+                    "max %d ns", STAGE_NAMES[stage], histogram.getCount(),
+                    histogram.getMeanNanos(), histogram.getMinNanos(),
+                    histogram.getPercentileNanos(50),
+                    histogram.getPercentileNanos(99),
+                    histogram.getPercentileNanos(99.9),
+                    histogram.getMaxNanos()));
+                histogram.writeBuckets(writer);
+                writer.println();
+            }
+
+            if (writer.checkError())
+                throw new IOException("Failed to write " + file);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
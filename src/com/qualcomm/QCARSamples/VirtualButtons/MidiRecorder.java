@@ -0,0 +1,427 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** MidiRecorder streams the notes played into a Standard MIDI File.
+ *
+ *  The producer, the audio thread, encodes every event straight into a
+ *  preallocated byte ring as a delta time (variable-length quantity) and a
+ *  channel message. A flush thread writes the ring to a FileChannel in
+ *  large batches, every FLUSH_INTERVAL_NANOS or when the ring is half
+ *  full. Nothing is allocated per event and memory stays bounded however
+ *  long the session is; when the flush thread falls behind, new events are
+ *  dropped and counted.
+ *
+ *  Releases must not be lost, or the file would keep notes hanging. The
+ *  last RELEASE_RESERVE bytes of the ring only take releases, and the
+ *  release of a note not sounding in the file, e.g. because its press was
+ *  dropped, is left out. A note has at most one release outstanding, so
+ *  the reserve holds the releases of all notes.
+ *
+ *  The file is format 0 with one track, and a tick is a millisecond
+ *  (TICKS_PER_QUARTER ticks at a tempo of one quarter note per second).
+ *  stop() ends it with an all-notes-off and fills in the track length.
+ *
+ * */
+
+public class MidiRecorder implements Runnable
+{
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    public static final int TICKS_PER_QUARTER = 1000;
+    public static final long NANOS_PER_TICK = 1000000;
+
+    /** The ring is flushed at least this often while recording. */
+    public static final long FLUSH_INTERVAL_NANOS = 250000000L;
+
+    /** The largest delta time a variable-length quantity holds, longer
+     *  pauses are shortened to it (about 74 hours), the events after them
+     *  keep their spacing. */
+    public static final long MAX_DELTA_TICKS = 0x0fffffffL;
+
+    /** The bytes kept for releases, the largest release of every note. */
+    public static final int RELEASE_RESERVE = 128 * 7;
+
+    // Status bytes and the header:
+    private static final int NOTE_OFF = 0x80;
+    private static final int NOTE_ON = 0x90;
+    private static final int CONTROL_CHANGE = 0xb0;
+    private static final int ALL_NOTES_OFF = 123;
+    private static final int HEADER_SIZE = 22;
+    private static final int TRACK_LENGTH_OFFSET = 18;
+    private static final byte[] TEMPO = {
+        0, (byte) 0xff, 0x51, 0x03, 0x0f, 0x42, 0x40
+    };
+    private static final byte[] TRAILER = {
+        0, (byte) CONTROL_CHANGE, ALL_NOTES_OFF, 0, 0, (byte) 0xff, 0x2f, 0
+    };
+
+    private final byte[] mRing;
+    private final int mMask;
+    private final int mReserve;
+    private final ByteBuffer mRingBuffer;
+
+    // Byte sequence numbers of the next byte to flush and to write:
+    private final AtomicLong mHead = new AtomicLong(0);
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    // Producer state:
+    private long mTailPosition = 0;
+    private long mCachedHead = 0;
+    private long mLastTicks = 0;
+    private final boolean[] mSounding = new boolean[128];
+    private volatile long mStartNanos = 0;
+
+    // The flush thread and its file:
+    private Thread mThread;
+    private volatile Thread mFlushThread;
+    private FileChannel mChannel;
+    private RandomAccessFile mFile;
+    private volatile boolean mRecording = false;
+
+    // Statistics:
+    private volatile long mEvents = 0;
+    private volatile long mDropped = 0;
+    private volatile long mReleasesDropped = 0;
+    private volatile long mFlushes = 0;
+    private volatile long mBytesWritten = 0;
+    private volatile IOException mError;
+
+
+    /** Constructor using the default capacity. */
+    public MidiRecorder()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /** Constructor, the capacity in bytes is rounded up to a power of
+     *  two. An event takes 4 to 7 bytes. Rings of less than twice
+     *  RELEASE_RESERVE keep half of them for releases. */
+    public MidiRecorder(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+        mMask = size - 1;
+        mReserve = Math.min(RELEASE_RESERVE, size / 2);
+        mRing = new byte[size];
+        mRingBuffer = ByteBuffer.wrap(mRing);
+    }
+
+
+    /** Creates the file and starts recording. Ticks count from now. */
+    public synchronized void start(File file) throws IOException
+    {
+        if (mThread != null)
+            return;
+
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try
+        {
+            mChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE +
+                                                    TEMPO.length);
+            header.put(new byte[] { 'M', 'T', 'h', 'd' });
+            header.putInt(6);
+            header.putShort((short) 0);
+            header.putShort((short) 1);
+            header.putShort((short) TICKS_PER_QUARTER);
+            header.put(new byte[] { 'M', 'T', 'r', 'k' });
+            header.putInt(0);
+            header.put(TEMPO);
+            header.flip();
+            writeFully(header);
+        }
+        catch (IOException e)
+        {
+            mFile.close();
+            throw e;
+        }
+
+        mHead.set(0);
+        mTail.set(0);
+        mTailPosition = 0;
+        mCachedHead = 0;
+        mLastTicks = 0;
+        for (int note = 0; note < mSounding.length; ++note)
+            mSounding[note] = false;
+        mEvents = 0;
+        mDropped = 0;
+        mReleasesDropped = 0;
+        mFlushes = 0;
+        mBytesWritten = HEADER_SIZE + TEMPO.length;
+        mError = null;
+        mStartNanos = System.nanoTime();
+
+        mThread = new Thread(this, "MidiRecorder");
+        mFlushThread = mThread;
+        mRecording = true;
+        mThread.start();
+    }
+
+
+    /** Stops recording, flushes the remaining events and completes the
+     *  file. Throws the first write error of the session, if any. */
+    public synchronized void stop() throws IOException
+    {
+        if (mThread == null)
+            return;
+
+        mRecording = false;
+        LockSupport.unpark(mThread);
+        try
+        {
+            mThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mFlushThread = null;
+
+        if (mError != null)
+            throw mError;
+    }
+
+
+    /** Returns true while recording. */
+    public boolean isRecording()
+    {
+        return mRecording;
+    }
+
+
+    /** Records a key press. Must only be called by the producer thread.
+     *  Returns false if nothing is recorded or the event was dropped. */
+    public boolean noteOn(int note, int velocity, long timestampNanos)
+    {
+        return write(NOTE_ON, note, Math.max(1, velocity), timestampNanos);
+    }
+
+
+    /** Records a key release. Must only be called by the producer thread.
+     *  A note not sounding in the file is left out, true is returned. */
+    public boolean noteOff(int note, long timestampNanos)
+    {
+        return write(NOTE_OFF, note, 64, timestampNanos);
+    }
+
+
+    /** Encodes an event into the ring. */
+    private boolean write(int status, int data1, int data2,
+                            long timestampNanos)
+    {
+        if (!mRecording)
+            return false;
+
+        // Only notes sounding in the file need a release:
+        boolean release = status == NOTE_OFF;
+        int note = data1 & 0x7f;
+        if (release && !mSounding[note])
+            return true;
+
+        // Events older than the previous one, e.g. from before start(),
+        // keep the order they arrive in:
+        long ticks = (timestampNanos - mStartNanos) / NANOS_PER_TICK;
+        long delta = Math.min(Math.max(0, ticks - mLastTicks),
+                                MAX_DELTA_TICKS);
+        int deltaLength = 1;
+        while (deltaLength < 4 && (delta >>> (7 * deltaLength)) != 0)
+            deltaLength++;
+        int size = deltaLength + 3;
+
+        // Presses leave the reserved bytes to the releases:
+        long capacity = release ? mRing.length : mRing.length - mReserve;
+        long tail = mTailPosition;
+        if (tail + size - mCachedHead > capacity)
+        {
+            mCachedHead = mHead.get();
+            if (tail + size - mCachedHead > capacity)
+            {
+                if (release)
+                    mReleasesDropped++;
+                mDropped++;
+                return false;
+            }
+        }
+
+        byte[] ring = mRing;
+        int mask = mMask;
+        for (int i = deltaLength - 1; i > 0; --i)
+            ring[(int) tail++ & mask] = (byte) (0x80 |
+                                            ((delta >>> (7 * i)) & 0x7f));
+        ring[(int) tail++ & mask] = (byte) (delta & 0x7f);
+        ring[(int) tail++ & mask] = (byte) status;
+        ring[(int) tail++ & mask] = (byte) (data1 & 0x7f);
+        ring[(int) tail++ & mask] = (byte) (data2 & 0x7f);
+
+        mLastTicks = Math.max(mLastTicks, ticks);
+        mSounding[note] = !release;
+        mTailPosition = tail;
+        mEvents++;
+
+        // Publish the bytes to the flush thread (set(), as lazySet() is not
+        // on API level 8) and wake it once the ring is half full:
+        mTail.set(tail);
+        int half = mRing.length >> 1;
+        if (tail - mCachedHead >= half && tail - size - mCachedHead < half)
+        {
+            Thread thread = mFlushThread;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+
+    /** The flush thread. */
+    public void run()
+    {
+        long head = mHead.get();
+        try
+        {
+            while (true)
+            {
+                // Read the flag first, so the last pass sees every event:
+                boolean recording = mRecording;
+                long tail = mTail.get();
+                if (tail != head)
+                {
+                    flush(head, tail);
+                    head = tail;
+                    mHead.set(head);
+                }
+
+                if (!recording)
+                    break;
+
+                // Write again right away what came in meanwhile, otherwise
+                // wait for the interval or a half full ring:
+                if (mTail.get() != head)
+                    continue;
+                LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+            }
+
+            writeFully(ByteBuffer.wrap(TRAILER));
+            mBytesWritten += TRAILER.length;
+
+            ByteBuffer length = ByteBuffer.allocate(4);
+            length.putInt(0, (int) (mBytesWritten - HEADER_SIZE));
+            while (length.hasRemaining())
+                mChannel.write(length, TRACK_LENGTH_OFFSET + length.position());
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("MidiRecorder: failed to write the file");
+            DebugLog.LOGI(e.getMessage());
+            mError = e;
+
+            // Keep draining, so that the producer does not drop events:
+            while (mRecording)
+            {
+                mHead.set(mTail.get());
+                LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+            }
+        }
+        finally
+        {
+            try
+            {
+                mFile.close();
+            }
+            catch (IOException e)
+            {
+                if (mError == null)
+                    mError = e;
+            }
+        }
+    }
+
+
+    /** Writes the ring bytes from head to tail, in up to two pieces. */
+    private void flush(long head, long tail) throws IOException
+    {
+        ByteBuffer buffer = mRingBuffer;
+        while (head < tail)
+        {
+            int start = (int) head & mMask;
+            int length = (int) Math.min(tail - head, mRing.length - start);
+            buffer.limit(start + length);
+            buffer.position(start);
+            writeFully(buffer);
+            head += length;
+            mBytesWritten += length;
+        }
+        mFlushes++;
+    }
+
+
+    private void writeFully(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            mChannel.write(buffer);
+    }
+
+
+    /** Returns the clock time of tick 0 of the recording. */
+    public long getStartNanos()
+    {
+        return mStartNanos;
+    }
+
+
+    /** Returns the number of events recorded. */
+    public long getEvents()
+    {
+        return mEvents;
+    }
+
+
+    /** Returns the number of events dropped because the ring was full. */
+    public long getDropped()
+    {
+        return mDropped;
+    }
+
+
+    /** Returns the number of releases dropped, even the reserve was
+     *  full. */
+    public long getReleasesDropped()
+    {
+        return mReleasesDropped;
+    }
+
+
+    /** Returns the number of batches written. */
+    public long getFlushes()
+    {
+        return mFlushes;
+    }
+
+
+    /** Returns the size of the file written so far. */
+    public long getBytesWritten()
+    {
+        return mBytesWritten;
+    }
+
+
+    /** Returns the capacity of the ring in bytes. */
+    public int getCapacity()
+    {
+        return mRing.length;
+    }
+}
@@ -0,0 +1,242 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** NoteEventRing is a lock-free single-producer / single-consumer queue of
+ *  note events.
+ *
+ *  The producer is the QCAR tracking thread (via native code), the consumer
+ *  is the audio thread. Events are stored as primitives in preallocated
+ *  arrays, so neither offer() nor drain() allocates. When the ring is full
+ *  new events are dropped and counted.
+ *
+ *  The last RELEASE_RESERVE slots only take NOTE_OFF events, and the
+ *  release of a note whose NOTE_ON was dropped is dropped with it. As
+ *  every note has at most one release outstanding, releases are not lost
+ *  while fewer notes are held than slots are reserved, so an overloaded
+ *  consumer misses presses but does not leave notes stuck.
+ *
+ * */
+
+public class NoteEventRing
+{
+    public static final int NOTE_OFF = 0;
+    public static final int NOTE_ON  = 1;
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** The slots kept for releases, one per MIDI note, at most half the
+     *  capacity. */
+    public static final int RELEASE_RESERVE = 128;
+
+    /** Receives drained events on the consumer thread. */
+    public interface Handler
+    {
+        public void onNoteEvent(int type, int note, int velocity,
+                                long timestampNanos);
+    }
+
+    private final int mMask;
+    private final int mReserve;
+
+    // Event slots, type / note / velocity packed into one int:
+    private final int[] mEvents;
+    private final long[] mTimestamps;
+
+    // Sequence numbers of the next slot to read and to write:
+    private final AtomicLong mHead = new AtomicLong(0);
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    // Producer-side cache of mHead, avoids a volatile read per event:
+    private long mCachedHead = 0;
+
+    // Producer-side notes whose last NOTE_ON was dropped:
+    private final boolean[] mOnDropped = new boolean[256];
+
+    // Producer statistics:
+    private volatile long mDropped = 0;
+    private volatile long mReleasesDropped = 0;
+
+    // Consumer statistics:
+    private volatile long mDrained = 0;
+    private volatile long mMaxDepth = 0;
+    private volatile long mLatencySumNanos = 0;
+    private volatile long mLatencyMaxNanos = 0;
+    private volatile long mLatencyLastNanos = 0;
+
+
+    /** Constructor using the default capacity. */
+    public NoteEventRing()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /** Constructor, the capacity is rounded up to a power of two. */
+    public NoteEventRing(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mMask = size - 1;
+        mReserve = Math.min(RELEASE_RESERVE, size / 2);
+        mEvents = new int[size];
+        mTimestamps = new long[size];
+    }
+
+
+    /** Publishes an event. Must only be called by the producer thread.
+     *
+     *  Returns false if the ring was full and the event was dropped. The
+     *  release of a note whose press was dropped has nothing to release,
+     *  it is discarded and true is returned. */
+    public boolean offer(int type, int note, int velocity, long timestampNanos)
+    {
+        boolean release = type == NOTE_OFF;
+        if (release && mOnDropped[note & 0xff])
+        {
+            mOnDropped[note & 0xff] = false;
+            return true;
+        }
+
+        // Presses leave the reserved slots to the releases:
+        long limit = release ? mMask : mMask - mReserve;
+        long tail = mTail.get();
+        if (tail - mCachedHead > limit)
+        {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead > limit)
+            {
+                if (release)
+                    mReleasesDropped++;
+                else
+                    mOnDropped[note & 0xff] = true;
+                mDropped++;
+                return false;
+            }
+        }
+
+        if (!release)
+            mOnDropped[note & 0xff] = false;
+
+        int slot = (int) tail & mMask;
+        mEvents[slot] = (type << 16) | ((note & 0xff) << 8) | (velocity & 0xff);
+        mTimestamps[slot] = timestampNanos;
+
+        // Publish the slot to the consumer, with a volatile write as
+        // lazySet() is only available from API level 9:
+        mTail.set(tail + 1);
+        return true;
+    }
+
+
+    /** Hands all queued events to the handler. Must only be called by the
+     *  consumer thread. Returns the number of events drained. */
+    public int drain(Handler handler)
+    {
+        long head = mHead.get();
+        long tail = mTail.get();
+        if (head == tail)
+            return 0;
+
+        long depth = tail - head;
+        if (depth > mMaxDepth)
+            mMaxDepth = depth;
+
+        long now = System.nanoTime();
+        for (long sequence = head; sequence < tail; ++sequence)
+        {
+            int slot = (int) sequence & mMask;
+            int event = mEvents[slot];
+            long timestamp = mTimestamps[slot];
+
+            long latency = now - timestamp;
+            mLatencySumNanos += latency;
+            mLatencyLastNanos = latency;
+            if (latency > mLatencyMaxNanos)
+                mLatencyMaxNanos = latency;
+
+            handler.onNoteEvent(event >>> 16, (event >>> 8) & 0xff,
+                                event & 0xff, timestamp);
+        }
+
+        // Hand the slots back to the producer:
+        mHead.set(tail);
+        mDrained += depth;
+        return (int) depth;
+    }
+
+
+    /** Returns the capacity of the ring. */
+    public int getCapacity()
+    {
+        return mMask + 1;
+    }
+
+
+    /** Returns the number of events currently queued. */
+    public int getDepth()
+    {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+
+    /** Returns the largest depth seen by the consumer. */
+    public long getMaxDepth()
+    {
+        return mMaxDepth;
+    }
+
+
+    /** Returns the number of events published so far. */
+    public long getPublished()
+    {
+        return mTail.get();
+    }
+
+
+    /** Returns the number of events lost because the ring was full. */
+    public long getDropped()
+    {
+        return mDropped;
+    }
+
+
+    /** Returns the number of releases lost because even the reserved
+     *  slots were full. */
+    public long getReleasesDropped()
+    {
+        return mReleasesDropped;
+    }
+
+
+    /** Returns the number of events consumed so far. */
+    public long getDrained()
+    {
+        return mDrained;
+    }
+
+
+    /** Returns the mean producer-to-consumer latency in nanoseconds. */
+    public long getMeanLatencyNanos()
+    {
+        long drained = mDrained;
+        return drained > 0 ? mLatencySumNanos / drained : 0;
+    }
+
+
+    public long getMaxLatencyNanos()
+    {
+        return mLatencyMaxNanos;
+    }
+
+
+    public long getLastLatencyNanos()
+    {
+        return mLatencyLastNanos;
+    }
+}
@@ -0,0 +1,67 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** NullAudioSink discards everything it receives.
+ *
+ *  Used to measure the raw render cost of the AudioEngine headlessly.
+ *
+ * */
+
+public class NullAudioSink implements AudioSink
+{
+    private long mFramesWritten = 0;
+
+    // Keeps the JIT from proving the rendered samples dead:
+    private float mChecksum = 0.0f;
+
+
+    public void open(int sampleRate, int blockSize)
+    {
+        mFramesWritten = 0;
+        mChecksum = 0.0f;
+    }
+
+
+    public void write(float[] block, int numFrames)
+    {
+        if (numFrames <= 0)
+            return;
+
+        mChecksum += block[0] + block[numFrames - 1];
+        mFramesWritten += numFrames;
+    }
+
+
+    public void pause()
+    {
+    }
+
+
+    public void resume()
+    {
+    }
+
+
+    public void close()
+    {
+    }
+
+
+    /** Returns the number of frames written since open(). */
+    public long getFramesWritten()
+    {
+        return mFramesWritten;
+    }
+
+
+    /** Returns a value derived from the written samples. */
+    public float getChecksum()
+    {
+        return mChecksum;
+    }
+}
@@ -9,6 +9,8 @@ package com.qualcomm.QCARSamples.VirtualButtons;
 import com.qualcomm.QCAR.QCAR;
 import cz.marax.virtualpiano.R;
 
+import java.lang.reflect.Method;
+
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.egl.EGLContext;
@@ -25,8 +27,20 @@ import android.opengl.GLSurfaceView;
  *  
  * */
 public class QCARSampleGLView extends GLSurfaceView
+                              implements FrameGovernor.Pacer
 {
     private static boolean mUseOpenGLES2 = true;
+    private boolean mPreservesContext = false;
+    
+    // On-demand rendering for a FrameGovernor:
+    private boolean mContinuous = true;
+    private final Runnable mRequestRender = new Runnable()
+    {
+        public void run()
+        {
+            requestRender();
+        }
+    };
 
     /** Constructor. */
     public QCARSampleGLView(Context context)
@@ -72,9 +86,63 @@ public class QCARSampleGLView extends GLSurfaceView
         setEGLConfigChooser( translucent ?
                              new ConfigChooser(8, 8, 8, 8, depth, stencil) :
                              new ConfigChooser(5, 6, 5, 0, depth, stencil) );
+        
+        // Keep the context, and with it the textures and shaders, across
+        // onPause() so that a resume does not rebuild them. The renderer's
+        // onSurfaceCreated() only runs again if the context was lost:
+        preserveContextOnPause();
+    }
+
+    
+    /** Calls setPreserveEGLContextOnPause(), which exists from API 11. */
+    private void preserveContextOnPause()
+    {
+        try
+        {
+            Method method = GLSurfaceView.class.getMethod(
+                                "setPreserveEGLContextOnPause", boolean.class);
+            method.invoke(this, true);
+            mPreservesContext = true;
+        }
+        catch (Exception e)
+        {
+            DebugLog.LOGI("EGL context is recreated on every resume");
+        }
     }
 
     
+    /** Returns true if the context is kept while the view is paused. The
+     *  device may still lose it, e.g. to another app's context. */
+    public boolean preservesContext()
+    {
+        return mPreservesContext;
+    }
+
+    
+    /** Switches between continuous and on-demand rendering, called on the
+     *  GL thread. */
+    public void setContinuous(boolean continuous)
+    {
+        if (continuous == mContinuous)
+            return;
+        
+        mContinuous = continuous;
+        removeCallbacks(mRequestRender);
+        setRenderMode(continuous ? RENDERMODE_CONTINUOUSLY :
+                                   RENDERMODE_WHEN_DIRTY);
+    }
+    
+    
+    /** Requests a frame at the given time while rendering on demand, called
+     *  on the GL thread. Replaces an earlier request. */
+    public void requestFrameAt(long nanos)
+    {
+        long delayMillis = Math.max(0, (nanos - System.nanoTime()) / 1000000);
+        removeCallbacks(mRequestRender);
+        postDelayed(mRequestRender, delayMillis);
+    }
+    
+    
     /** Creates OpenGL contexts. */
     private static class ContextFactory implements GLSurfaceView.EGLContextFactory
     {
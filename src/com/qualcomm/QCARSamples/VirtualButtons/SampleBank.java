@@ -0,0 +1,684 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/** SampleBank holds the recorded piano notes the AudioEngine plays.
+ *
+ *  The bank is one file of 16 bit mono PCM, memory mapped rather than
+ *  decoded at start-up. A zone covers a range of notes and velocities
+ *  with one sample and its root note. The samples are split into blocks
+ *  of getBlockFrames() frames: the attack blocks of every zone are copied
+ *  out of the map when the bank is opened, all later blocks by a loader
+ *  thread, into a pool of preallocated slots whose least recently used
+ *  block is evicted. The pool size caps the resident PCM however many
+ *  notes ring, and nothing is allocated after open().
+ *
+ *  The audio thread never reads the map, which can fault on a page not in
+ *  memory. Each voice is a cursor: getBlock() publishes the block the
+ *  cursor plays and returns the block only if it is resident, otherwise
+ *  null, which the voice plays as silence, and a miss is counted. The
+ *  loader, woken whenever a cursor moves to another block, loads the
+ *  block of every cursor and PREFETCH_BLOCKS after it, and never evicts a
+ *  block a cursor plays: it unmaps the block first and then checks the
+ *  cursors, while getBlock() publishes the cursor first and then looks
+ *  the block up, so that one of the two sees the other.
+ *
+ *  File layout, little endian: a header of six ints (magic "VPSB", version,
+ *  sample rate, block frames, zone count, reserved), eight ints per zone
+ *  (low / high note, low / high velocity, root note, frames, attack frames,
+ *  byte offset of the PCM) and the PCM of every zone at a page aligned
+ *  offset. See write(). In the APK the bank must be stored uncompressed
+ *  (aapt -0 bank) to be mapped.
+ *
+ *  getBlock() and release() are only called by the audio thread, and
+ *  loadPending() only by the loader; the statistics may be read from any
+ *  thread.
+ *
+ * */
+
+public class SampleBank
+{
+    public static final int VERSION = 1;
+    public static final int PAGE_SIZE = 4096;
+    public static final int DEFAULT_BLOCK_FRAMES = 4096;
+    public static final int DEFAULT_BUDGET_BYTES = 4 * 1024 * 1024;
+
+    /** The number of cursors, voices with a higher index cannot play. */
+    public static final int MAX_CURSORS = 64;
+
+    /** The blocks loaded ahead of every cursor. */
+    public static final int PREFETCH_BLOCKS = 2;
+
+    /** The loader checks the cursors at least this often. */
+    public static final long LOADER_INTERVAL_NANOS = 20000000L;
+
+    private static final int MAGIC = 0x42535056;
+    private static final int HEADER_SIZE = 24;
+    private static final int ZONE_SIZE = 32;
+
+    /** A zone to write, see write(). */
+    public static class Zone
+    {
+        public int lowNote, highNote;
+        public int lowVelocity, highVelocity;
+        public int rootNote;
+        public int attackFrames;
+        public short[] pcm;
+    }
+
+    private final ShortBuffer mPcm;
+    private final long mMappedBytes;
+    private final int mSampleRate;
+    private final int mBlockFrames;
+    private final int mBlockShift;
+
+    // Per zone:
+    private final int mZoneCount;
+    private final int[] mZoneRoot;
+    private final int[] mZoneHighVelocity;
+    private final int[] mZoneFrames;
+    private final int[] mZoneOffset;
+    private final int[] mZoneFirstBlock;
+
+    // The zone of every block:
+    private final int[] mBlockZone;
+
+    // The zone of every note and velocity, -1 for none:
+    private final short[] mZoneTable = new short[128 * 128];
+
+    // The slot of every block, -1 if not resident, and the block of every
+    // cursor, -1 for none:
+    private final AtomicIntegerArray mBlockSlot;
+    private final AtomicIntegerArray mCursorBlock =
+        new AtomicIntegerArray(MAX_CURSORS);
+
+    // Slots hold a block and the first frame of the next one, so that
+    // voices can interpolate across the end. The pinned attack slots come
+    // first, the others form the LRU list of the loader:
+    private final short[][] mSlots;
+    private final int[] mSlotBlock;
+    private final int mPinnedSlots;
+    private final int[] mNewer;
+    private final int[] mOlder;
+    private int mNewest;
+    private int mOldest;
+
+    // The loader thread:
+    private Thread mThread;
+    private volatile Thread mLoaderThread;
+    private volatile boolean mLoading = false;
+
+    // Statistics, written by the audio thread:
+    private volatile long mHits = 0;
+    private volatile long mMisses = 0;
+
+    // Statistics, written by the loader:
+    private volatile int mResidentSlots = 0;
+    private volatile long mLoads = 0;
+    private volatile long mEvictions = 0;
+
+
+    /** Opens the bank in the given buffer, e.g. a mapped file. At most
+     *  budgetBytes of blocks beyond the attacks are kept resident, at
+     *  least two. Throws an IOException if the bank is invalid. */
+    public SampleBank(ByteBuffer bank, int budgetBytes) throws IOException
+    {
+        ByteBuffer buffer = bank.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(0);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC ||
+            buffer.getInt(4) != VERSION)
+            throw new IOException("Not a sample bank");
+
+        mSampleRate = buffer.getInt(8);
+        mBlockFrames = buffer.getInt(12);
+        mZoneCount = buffer.getInt(16);
+        if (mSampleRate <= 0 || mBlockFrames <= 0 ||
+            Integer.bitCount(mBlockFrames) != 1 || mZoneCount < 0 ||
+            mZoneCount > Short.MAX_VALUE ||
+            HEADER_SIZE + (long) mZoneCount * ZONE_SIZE > buffer.limit())
+            throw new IOException("Invalid sample bank header");
+        mBlockShift = Integer.numberOfTrailingZeros(mBlockFrames);
+        mMappedBytes = buffer.limit();
+        mPcm = buffer.asShortBuffer();
+
+        mZoneRoot = new int[mZoneCount];
+        mZoneHighVelocity = new int[mZoneCount];
+        mZoneFrames = new int[mZoneCount];
+        mZoneOffset = new int[mZoneCount];
+        mZoneFirstBlock = new int[mZoneCount + 1];
+        int[] attackBlocks = new int[mZoneCount];
+        int pinned = 0;
+
+        Arrays.fill(mZoneTable, (short) -1);
+        for (int z = 0; z < mZoneCount; ++z)
+        {
+            int entry = HEADER_SIZE + z * ZONE_SIZE;
+            int lowNote = buffer.getInt(entry);
+            int highNote = buffer.getInt(entry + 4);
+            int lowVelocity = buffer.getInt(entry + 8);
+            int highVelocity = buffer.getInt(entry + 12);
+            int frames = buffer.getInt(entry + 20);
+            int attackFrames = buffer.getInt(entry + 24);
+            int offset = buffer.getInt(entry + 28);
+            if (lowNote < 0 || highNote > 127 || lowNote > highNote ||
+                lowVelocity < 1 || highVelocity > 127 ||
+                lowVelocity > highVelocity || frames < 0 || offset < 0 ||
+                (offset & 1) != 0 ||
+                offset + 2L * frames > buffer.limit())
+                throw new IOException("Invalid sample bank zone " + z);
+
+            for (int note = lowNote; note <= highNote; ++note)
+                for (int velocity = lowVelocity; velocity <= highVelocity;
+                    ++velocity)
+                    mZoneTable[note << 7 | velocity] = (short) z;
+
+            mZoneRoot[z] = buffer.getInt(entry + 16);
+            mZoneHighVelocity[z] = highVelocity;
+            mZoneFrames[z] = frames;
+            mZoneOffset[z] = offset >> 1;
+            int blocks = (frames + mBlockFrames - 1) >> mBlockShift;
+            mZoneFirstBlock[z + 1] = mZoneFirstBlock[z] + blocks;
+            attackBlocks[z] = Math.min(blocks, (Math.max(0, attackFrames) +
+                                        mBlockFrames - 1) >> mBlockShift);
+            pinned += attackBlocks[z];
+        }
+
+        int blockCount = mZoneFirstBlock[mZoneCount];
+        mBlockZone = new int[blockCount];
+        mBlockSlot = new AtomicIntegerArray(blockCount);
+        for (int z = 0; z < mZoneCount; ++z)
+        {
+            for (int block = mZoneFirstBlock[z];
+                block < mZoneFirstBlock[z + 1]; ++block)
+            {
+                mBlockZone[block] = z;
+                mBlockSlot.set(block, -1);
+            }
+        }
+        for (int c = 0; c < MAX_CURSORS; ++c)
+            mCursorBlock.set(c, -1);
+
+        int lruSlots = Math.max(2, budgetBytes / getSlotBytes());
+        int slotCount = pinned + lruSlots;
+        mSlots = new short[slotCount][mBlockFrames + 1];
+        mSlotBlock = new int[slotCount];
+        mNewer = new int[slotCount];
+        mOlder = new int[slotCount];
+        mPinnedSlots = pinned;
+
+        // Copy the attacks out of the map:
+        int slot = 0;
+        for (int z = 0; z < mZoneCount; ++z)
+        {
+            for (int b = 0; b < attackBlocks[z]; ++b, ++slot)
+            {
+                load(mZoneFirstBlock[z] + b, slot);
+                mBlockSlot.set(mZoneFirstBlock[z] + b, slot);
+            }
+        }
+
+        // All other slots are free, oldest first:
+        for (int s = pinned; s < slotCount; ++s)
+        {
+            mSlotBlock[s] = -1;
+            mNewer[s] = s + 1 < slotCount ? s + 1 : -1;
+            mOlder[s] = s > pinned ? s - 1 : -1;
+        }
+        mOldest = pinned;
+        mNewest = slotCount - 1;
+        mResidentSlots = pinned;
+    }
+
+
+    /** Maps a bank file and opens it. */
+    public static SampleBank open(File file, int budgetBytes)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            return new SampleBank(channel.map(FileChannel.MapMode.READ_ONLY,
+                                            0, channel.size()), budgetBytes);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    /** Maps a bank stored uncompressed in the APK and opens it. Returns
+     *  null if the asset is missing, compressed or invalid. */
+    public static SampleBank loadFromApk(String fileName, AssetManager assets,
+                                        int budgetBytes)
+    {
+        AssetFileDescriptor descriptor = null;
+        try
+        {
+            descriptor = assets.openFd(fileName);
+            FileInputStream fileStream = descriptor.createInputStream();
+            return new SampleBank(fileStream.getChannel().map(
+                                        FileChannel.MapMode.READ_ONLY,
+                                        descriptor.getStartOffset(),
+                                        descriptor.getLength()), budgetBytes);
+        }
+        catch (FileNotFoundException e)
+        {
+            DebugLog.LOGI("No uncompressed sample bank '{}'.", fileName);
+            return null;
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("Failed to load sample bank '{}'.", fileName);
+            DebugLog.LOGI(e.getMessage());
+            return null;
+        }
+        finally
+        {
+            if (descriptor != null)
+            {
+                try
+                {
+                    descriptor.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing sensible left to do
+                }
+            }
+        }
+    }
+
+
+    /** Writes a bank of the given zones. The PCM of every zone starts at
+     *  a page boundary. */
+    public static void write(File file, int sampleRate, int blockFrames,
+                            Zone[] zones) throws IOException
+    {
+        long[] offsets = new long[zones.length];
+        long offset = HEADER_SIZE + (long) zones.length * ZONE_SIZE;
+        for (int z = 0; z < zones.length; ++z)
+        {
+            offset = (offset + PAGE_SIZE - 1) & ~(long) (PAGE_SIZE - 1);
+            offsets[z] = offset;
+            offset += 2L * zones[z].pcm.length;
+        }
+        if (offset > Integer.MAX_VALUE)
+            throw new IOException("Sample bank too large");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE +
+                                            zones.length * ZONE_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(sampleRate);
+            header.putInt(blockFrames).putInt(zones.length).putInt(0);
+            for (int z = 0; z < zones.length; ++z)
+            {
+                Zone zone = zones[z];
+                header.putInt(zone.lowNote).putInt(zone.highNote);
+                header.putInt(zone.lowVelocity).putInt(zone.highVelocity);
+                header.putInt(zone.rootNote).putInt(zone.pcm.length);
+                header.putInt(zone.attackFrames).putInt((int) offsets[z]);
+            }
+            header.flip();
+            writeFully(channel, header, 0);
+
+            for (int z = 0; z < zones.length; ++z)
+            {
+                ByteBuffer pcm = ByteBuffer.allocate(2 * zones[z].pcm.length);
+                pcm.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+                    .put(zones[z].pcm);
+                writeFully(channel, pcm, offsets[z]);
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+                                    long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+
+    /** Returns the zone playing the given note and velocity, or -1. */
+    public int findZone(int note, int velocity)
+    {
+        if (note < 0 || note > 127 || velocity < 1 || velocity > 127)
+            return -1;
+        return mZoneTable[note << 7 | velocity];
+    }
+
+
+    /** Starts the loader thread. */
+    public synchronized void start()
+    {
+        if (mThread != null)
+            return;
+
+        mLoading = true;
+        mThread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (mLoading)
+                {
+                    loadPending();
+                    LockSupport.parkNanos(LOADER_INTERVAL_NANOS);
+                }
+            }
+        }, "SampleBankLoader");
+        mLoaderThread = mThread;
+        mThread.start();
+    }
+
+
+    /** Stops the loader thread, the blocks loaded stay resident. */
+    public synchronized void stop()
+    {
+        if (mThread == null)
+            return;
+
+        mLoading = false;
+        LockSupport.unpark(mThread);
+        try
+        {
+            mThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mLoaderThread = null;
+    }
+
+
+    /** Returns block b of a zone for a cursor, with the first frame of the
+     *  next block (or 0) appended, or null if it is not resident yet. The
+     *  array is valid until the cursor moves to another block or is
+     *  released. Must only be called by the audio thread. */
+    public short[] getBlock(int cursor, int zone, int b)
+    {
+        // Publish the block before looking it up, see loadPending():
+        int block = mZoneFirstBlock[zone] + b;
+        if (mCursorBlock.get(cursor) != block)
+        {
+            mCursorBlock.set(cursor, block);
+            wakeLoader();
+        }
+
+        int slot = mBlockSlot.get(block);
+        if (slot < 0)
+        {
+            mMisses++;
+            wakeLoader();
+            return null;
+        }
+
+        mHits++;
+        return mSlots[slot];
+    }
+
+
+    /** Releases the block of a cursor, e.g. when its voice ends. Must only
+     *  be called by the audio thread. */
+    public void release(int cursor)
+    {
+        mCursorBlock.set(cursor, -1);
+    }
+
+
+    private void wakeLoader()
+    {
+        Thread thread = mLoaderThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+
+    /** Loads the block of every cursor and the blocks ahead of it. Called
+     *  by the loader thread, or by another thread if none is started, but
+     *  never by the audio thread. */
+    public void loadPending()
+    {
+        for (int c = 0; c < MAX_CURSORS; ++c)
+        {
+            int block = mCursorBlock.get(c);
+            if (block < 0)
+                continue;
+
+            int zone = mBlockZone[block];
+            int last = Math.min(block + PREFETCH_BLOCKS,
+                                mZoneFirstBlock[zone + 1] - 1);
+            for (int ahead = block; ahead <= last; ++ahead)
+                ensureResident(ahead);
+        }
+    }
+
+
+    /** Makes a block resident, evicting the least recently used block no
+     *  cursor plays. */
+    private void ensureResident(int block)
+    {
+        int slot = mBlockSlot.get(block);
+        if (slot >= 0)
+        {
+            if (slot >= mPinnedSlots)
+                touch(slot);
+            return;
+        }
+
+        // Unmap the oldest block, then make sure no cursor took it:
+        int slots = mSlots.length - mPinnedSlots;
+        for (int tries = 0; tries < slots; ++tries)
+        {
+            slot = mOldest;
+            int evicted = mSlotBlock[slot];
+            if (evicted >= 0)
+            {
+                mBlockSlot.set(evicted, -1);
+                if (isPlayed(evicted))
+                {
+                    mBlockSlot.set(evicted, slot);
+                    touch(slot);
+                    continue;
+                }
+                mEvictions++;
+            }
+            else
+            {
+                mResidentSlots++;
+            }
+
+            load(block, slot);
+            mBlockSlot.set(block, slot);
+            touch(slot);
+            mLoads++;
+            return;
+        }
+    }
+
+
+    /** Returns true if a cursor plays the block. */
+    private boolean isPlayed(int block)
+    {
+        for (int c = 0; c < MAX_CURSORS; ++c)
+        {
+            if (mCursorBlock.get(c) == block)
+                return true;
+        }
+        return false;
+    }
+
+
+    /** Copies a block out of the map into a slot. */
+    private void load(int block, int slot)
+    {
+        int zone = mBlockZone[block];
+        short[] data = mSlots[slot];
+        int first = (block - mZoneFirstBlock[zone]) << mBlockShift;
+        int count = Math.min(mBlockFrames + 1, mZoneFrames[zone] - first);
+
+        ShortBuffer pcm = mPcm;
+        pcm.position(mZoneOffset[zone] + first);
+        pcm.get(data, 0, count);
+        for (int i = count; i <= mBlockFrames; ++i)
+            data[i] = 0;
+
+        mSlotBlock[slot] = block;
+    }
+
+
+    /** Makes a slot the most recently used one. */
+    private void touch(int slot)
+    {
+        if (slot == mNewest)
+            return;
+
+        // Unlink:
+        int newer = mNewer[slot];
+        int older = mOlder[slot];
+        mOlder[newer] = older;
+        if (older >= 0)
+            mNewer[older] = newer;
+        else
+            mOldest = newer;
+
+        // Append:
+        mOlder[slot] = mNewest;
+        mNewer[slot] = -1;
+        mNewer[mNewest] = slot;
+        mNewest = slot;
+    }
+
+
+    public int getSampleRate()
+    {
+        return mSampleRate;
+    }
+
+
+    /** Returns the frames per block, a power of two. */
+    public int getBlockFrames()
+    {
+        return mBlockFrames;
+    }
+
+
+    public int getZoneCount()
+    {
+        return mZoneCount;
+    }
+
+
+    /** Returns the note a zone sounds at its recorded pitch. */
+    public int getRootNote(int zone)
+    {
+        return mZoneRoot[zone];
+    }
+
+
+    /** Returns the highest velocity of a zone, which its sample was
+     *  recorded at. */
+    public int getHighVelocity(int zone)
+    {
+        return mZoneHighVelocity[zone];
+    }
+
+
+    public int getFrames(int zone)
+    {
+        return mZoneFrames[zone];
+    }
+
+
+    /** Returns the bytes of a resident block. */
+    public int getSlotBytes()
+    {
+        return 2 * (mBlockFrames + 1);
+    }
+
+
+    /** Returns the size of the mapped bank. */
+    public long getMappedBytes()
+    {
+        return mMappedBytes;
+    }
+
+
+    /** Returns the bytes of PCM copied out of the map and still held. */
+    public long getResidentBytes()
+    {
+        return (long) mResidentSlots * getSlotBytes();
+    }
+
+
+    /** Returns the bytes held by the attack blocks. */
+    public long getPinnedBytes()
+    {
+        return (long) mPinnedSlots * getSlotBytes();
+    }
+
+
+    /** Returns the most bytes getResidentBytes() can reach. */
+    public long getCapacityBytes()
+    {
+        return (long) mSlots.length * getSlotBytes();
+    }
+
+
+    public long getHits()
+    {
+        return mHits;
+    }
+
+
+    public long getMisses()
+    {
+        return mMisses;
+    }
+
+
+    /** Returns the number of blocks the loader copied out of the map. */
+    public long getLoads()
+    {
+        return mLoads;
+    }
+
+
+    public long getEvictions()
+    {
+        return mEvictions;
+    }
+}
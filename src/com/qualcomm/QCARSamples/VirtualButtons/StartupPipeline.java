@@ -0,0 +1,363 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** StartupPipeline runs the application start-up work as a graph of stages.
+ *
+ *  Each stage names the stages it depends on and is submitted to a bounded
+ *  worker pool as soon as they have all finished, so independent work such
+ *  as texture decoding overlaps with QCAR initialization. Work that runs
+ *  elsewhere (e.g. in an AsyncTask) can be recorded as an external stage so
+ *  that it shows up in the timing report.
+ *
+ *  For every stage the report gives its start and end time relative to the
+ *  start of the pipeline and its critical path, i.e. the longest chain of
+ *  stage durations leading up to and including it.
+ *
+ * */
+
+public class StartupPipeline
+{
+    /** A single unit of start-up work. */
+    private static class Stage
+    {
+        final String mName;
+        final Runnable mWork;
+        final Stage[] mDependencies;
+        final ArrayList<Stage> mDependents = new ArrayList<Stage>();
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        int mPendingDependencies;
+        long mStartNanos;
+        long mEndNanos;
+        long mCriticalPathNanos;
+        volatile boolean mFailed;
+
+        Stage(String name, Runnable work, Stage[] dependencies)
+        {
+            mName = name;
+            mWork = work;
+            mDependencies = dependencies;
+            mPendingDependencies = dependencies.length;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final LinkedHashMap<String, Stage> mStages =
+                                        new LinkedHashMap<String, Stage>();
+    private long mStartNanos = 0;
+    private boolean mStarted = false;
+
+
+    /** Constructor, uses up to the given number of worker threads. */
+    public StartupPipeline(int maxWorkers)
+    {
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, maxWorkers),
+            new ThreadFactory()
+            {
+                private int mCount = 0;
+
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable,
+                                        "StartupWorker-" + (++mCount));
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+    }
+
+
+    /** Constructor, sizes the pool from the number of processors. */
+    public StartupPipeline()
+    {
+        this(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+
+    /** Adds a stage executed on the worker pool once its dependencies are
+     *  done. Dependencies must have been added before. */
+    public synchronized void addStage(String name, Runnable work,
+                                    String... dependencies)
+    {
+        Stage stage = new Stage(name, work, lookup(dependencies));
+        register(stage);
+
+        if (mStarted && stage.mPendingDependencies == 0)
+            submit(stage);
+    }
+
+
+    /** Adds a stage whose work is executed by the caller between
+     *  beginExternal() and endExternal(). */
+    public synchronized void addExternalStage(String name,
+                                            String... dependencies)
+    {
+        register(new Stage(name, null, lookup(dependencies)));
+    }
+
+
+    /** Starts executing all stages without dependencies. */
+    public synchronized void start()
+    {
+        if (mStarted)
+            return;
+
+        mStarted = true;
+        mStartNanos = System.nanoTime();
+        for (Stage stage : mStages.values())
+        {
+            if (stage.mWork != null && stage.mPendingDependencies == 0)
+                submit(stage);
+        }
+    }
+
+
+    /** Marks the start of an external stage. */
+    public synchronized void beginExternal(String name)
+    {
+        Stage stage = mStages.get(name);
+        if (stage != null)
+            stage.mStartNanos = System.nanoTime();
+    }
+
+
+    /** Marks the end of an external stage. */
+    public void endExternal(String name, boolean success)
+    {
+        Stage stage;
+        synchronized (this)
+        {
+            stage = mStages.get(name);
+        }
+
+        if (stage != null)
+            finish(stage, !success);
+    }
+
+
+    /** Blocks until the given stage is done. Returns false if it failed,
+     *  was skipped because a dependency failed, or the wait was
+     *  interrupted. */
+    public boolean await(String name)
+    {
+        Stage stage;
+        synchronized (this)
+        {
+            stage = mStages.get(name);
+        }
+
+        if (stage == null)
+            return false;
+
+        try
+        {
+            stage.mDone.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return !stage.mFailed;
+    }
+
+
+    /** Returns true if the given stage has finished successfully. */
+    public boolean isDone(String name)
+    {
+        Stage stage;
+        synchronized (this)
+        {
+            stage = mStages.get(name);
+        }
+
+        return stage != null && stage.mDone.getCount() == 0 && !stage.mFailed;
+    }
+
+
+    /** Returns the critical path of the stage in milliseconds, or -1 if it
+     *  has not finished yet. */
+    public synchronized long getCriticalPathMillis(String name)
+    {
+        Stage stage = mStages.get(name);
+        if (stage == null || stage.mDone.getCount() != 0)
+            return -1;
+
+        return TimeUnit.NANOSECONDS.toMillis(stage.mCriticalPathNanos);
+    }
+
+
+    /** Returns a human readable timing report of all finished stages. */
+    public synchronized String getReport()
+    {
+        StringBuilder report = new StringBuilder("Startup stages (ms):");
+        for (Stage stage : mStages.values())
+        {
+            if (stage.mDone.getCount() != 0)
+            {
+                report.append("\n  ").append(stage.mName).append(": pending");
+                continue;
+            }
+
+            report.append(String.format(
+                "\n  %-24s start %5d  end %5d  took %5d  critical path %5d%s",
+                stage.mName,
+                toMillis(stage.mStartNanos - mStartNanos),
+                toMillis(stage.mEndNanos - mStartNanos),
+                toMillis(stage.mEndNanos - stage.mStartNanos),
+                toMillis(stage.mCriticalPathNanos),
+                stage.mFailed ? "  FAILED" : ""));
+        }
+        return report.toString();
+    }
+
+
+    /** Stops the worker threads, running stages are allowed to finish. */
+    public void shutdown()
+    {
+        mExecutor.shutdown();
+    }
+
+
+    private static long toMillis(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos));
+    }
+
+
+    private Stage[] lookup(String[] names)
+    {
+        Stage[] stages = new Stage[names.length];
+        for (int i = 0; i < names.length; ++i)
+        {
+            stages[i] = mStages.get(names[i]);
+            if (stages[i] == null)
+                throw new IllegalArgumentException("Unknown stage " + names[i]);
+        }
+        return stages;
+    }
+
+
+    private void register(Stage stage)
+    {
+        if (mStages.containsKey(stage.mName))
+            throw new IllegalArgumentException("Duplicate stage " + stage.mName);
+
+        for (Stage dependency : stage.mDependencies)
+        {
+            if (dependency.mDone.getCount() == 0)
+            {
+                stage.mPendingDependencies--;
+                if (dependency.mFailed)
+                    stage.mFailed = true;
+            }
+            else
+            {
+                dependency.mDependents.add(stage);
+            }
+        }
+
+        mStages.put(stage.mName, stage);
+    }
+
+
+    private void submit(final Stage stage)
+    {
+        // Dependents of a failed stage are skipped:
+        if (stage.mFailed)
+        {
+            finish(stage, true);
+            return;
+        }
+
+        Runnable task = new Runnable()
+        {
+            public void run()
+            {
+                stage.mStartNanos = System.nanoTime();
+                boolean failed = false;
+                Tracer.begin(stage.mName);
+                try
+                {
+                    stage.mWork.run();
+                }
+                catch (RuntimeException e)
+                {
+                    DebugLog.LOGE("StartupPipeline: stage {} failed",
+                                    stage.mName);
+                    DebugLog.LOGI(String.valueOf(e.getMessage()));
+                    failed = true;
+                }
+                Tracer.end(stage.mName);
+                finish(stage, failed);
+            }
+        };
+
+        try
+        {
+            mExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The pipeline has been shut down
+            finish(stage, true);
+        }
+    }
+
+
+    private void finish(Stage stage, boolean failed)
+    {
+        ArrayList<Stage> ready = new ArrayList<Stage>();
+
+        synchronized (this)
+        {
+            if (stage.mDone.getCount() == 0)
+                return;
+
+            stage.mEndNanos = System.nanoTime();
+            if (stage.mStartNanos == 0)
+                stage.mStartNanos = stage.mEndNanos;
+            stage.mFailed |= failed;
+
+            long longestDependency = 0;
+            for (Stage dependency : stage.mDependencies)
+            {
+                longestDependency = Math.max(longestDependency,
+                                            dependency.mCriticalPathNanos);
+            }
+            stage.mCriticalPathNanos = longestDependency +
+                                    (stage.mEndNanos - stage.mStartNanos);
+
+            for (Stage dependent : stage.mDependents)
+            {
+                if (stage.mFailed)
+                    dependent.mFailed = true;
+
+                if (--dependent.mPendingDependencies == 0 &&
+                    dependent.mWork != null && mStarted)
+                    ready.add(dependent);
+            }
+        }
+
+        // Release waiters only once the bookkeeping is complete:
+        stage.mDone.countDown();
+
+        for (Stage dependent : ready)
+            submit(dependent);
+    }
+}
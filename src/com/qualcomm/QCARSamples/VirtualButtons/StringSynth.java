@@ -0,0 +1,294 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** StringSynth synthesizes the voices of the AudioEngine as plucked
+ *  strings, when there is no SampleBank to play them from.
+ *
+ *  Every note is one to three slightly detuned strings, each a
+ *  Karplus-Strong delay line of one period that is excited by a noise burst
+ *  (softer for low velocities) and fed back through a four tap loop
+ *  filter: a quadratic Lagrange interpolator for the fractional part of
+ *  the period, which keeps high notes in tune, and a one-zero low pass
+ *  that dulls low notes more than high ones. The loop gain makes up for
+ *  the loss of the filter at the fundamental. Since a string only reads
+ *  samples at least a period old, a block is computed in chunks of up to
+ *  a period by a loop without dependencies between iterations, which the
+ *  JIT can vectorize. The cost is about four multiplies and adds per
+ *  string and sample, independent of the pitch.
+ *
+ *  The quality level is the number of strings of new notes minus one;
+ *  dropStrings() takes strings from the notes already sounding, e.g. when
+ *  the engine runs over its budget. All state is preallocated.
+ *
+ * */
+
+public class StringSynth
+{
+    public static final int QUALITY_LOW = 0;
+    public static final int QUALITY_MEDIUM = 1;
+    public static final int QUALITY_HIGH = 2;
+
+    public static final int MAX_STRINGS = QUALITY_HIGH + 1;
+
+    /** The detuning of the unison strings, in cents. */
+    private static final float[] DETUNE = { 0.0f, 1.2f, -0.9f };
+
+    /** The lowest note a string is long enough for, A0. */
+    private static final int LOWEST_NOTE = 21;
+
+    /** The low pass zero of the loop filter, from the lowest to the
+     *  highest note. */
+    private static final float LOW_PASS_LOW = 0.2f;
+    private static final float LOW_PASS_HIGH = 0.02f;
+
+    /** The loop gain never reaches 1, so that nothing builds up. */
+    private static final float MAX_LOOP_GAIN = 0.99995f;
+
+    private static final int TAPS = 4;
+
+    private final int mSampleRate;
+    private final int mMaxLength;
+
+    // Per string, MAX_STRINGS consecutive entries per voice. A line holds
+    // the last length + 3 samples of its string, oldest first, tap k
+    // weights y[n - length - k]:
+    private final float[][] mLine;
+    private final int[] mLength;
+    private final float[] mTaps;
+
+    // Per voice:
+    private final int[] mStrings;
+
+    private final float[] mChunk;
+    private int mQuality = QUALITY_HIGH;
+    private int mRandom = 1;
+
+
+    /** Constructor. */
+    public StringSynth(int sampleRate, int blockSize, int maxVoices)
+    {
+        mSampleRate = sampleRate;
+        mMaxLength = (int) Math.ceil(sampleRate /
+                                    frequency(LOWEST_NOTE, DETUNE[2])) + 2;
+
+        int strings = maxVoices * MAX_STRINGS;
+        mLine = new float[strings][mMaxLength + TAPS - 1];
+        mLength = new int[strings];
+        mTaps = new float[strings * TAPS];
+
+        mStrings = new int[maxVoices];
+        mChunk = new float[blockSize];
+    }
+
+
+    /** Sets the quality level of the notes started from now on. */
+    public void setQuality(int quality)
+    {
+        mQuality = Math.max(QUALITY_LOW, Math.min(QUALITY_HIGH, quality));
+    }
+
+
+    public int getQuality()
+    {
+        return mQuality;
+    }
+
+
+    /** Returns the strings a voice is rendering. */
+    public int getStrings(int v)
+    {
+        return mStrings[v];
+    }
+
+
+    /** Strikes the strings of a voice. Low notes ring longer than high
+     *  notes, soft notes are darker than loud ones. */
+    public void start(int v, int note, int velocity, float sustainSeconds)
+    {
+        note = Math.max(LOWEST_NOTE, note);
+        int strings = mQuality + 1;
+        mStrings[v] = strings;
+
+        float lowPass = LOW_PASS_LOW + (LOW_PASS_HIGH - LOW_PASS_LOW) *
+                        Math.min(1.0f, (note - LOWEST_NOTE) / 87.0f);
+
+        int first = v * MAX_STRINGS;
+        for (int k = 0; k < strings; ++k)
+        {
+            int s = first + k;
+            float frequency = frequency(note, DETUNE[k]);
+
+            // The period is the line length, the delay d in [0.5, 1.5) of
+            // the interpolator and the half sample of the low pass:
+            float period = mSampleRate / frequency;
+            int length = Math.max(1, Math.min(mMaxLength,
+                                        (int) (period - lowPass - 0.5f)));
+            float d = Math.max(0.5f, Math.min(1.5f,
+                                        period - lowPass - length));
+            float h0 = 0.5f * (d - 1) * (d - 2);
+            float h1 = -d * (d - 2);
+            float h2 = 0.5f * d * (d - 1);
+
+            int t = s * TAPS;
+            mTaps[t] = (1 - lowPass) * h0;
+            mTaps[t + 1] = (1 - lowPass) * h1 + lowPass * h0;
+            mTaps[t + 2] = (1 - lowPass) * h2 + lowPass * h1;
+            mTaps[t + 3] = lowPass * h2;
+
+            // Loop gain per period for -60 dB after the sustain time, over
+            // the response of the filter at the fundamental:
+            double w = 2 * Math.PI * frequency / mSampleRate;
+            double re = 0, im = 0;
+            for (int tap = 0; tap < TAPS; ++tap)
+            {
+                re += mTaps[t + tap] * Math.cos(w * tap);
+                im -= mTaps[t + tap] * Math.sin(w * tap);
+            }
+            double decay = Math.pow(0.001, 1.0 / (frequency *
+                                                    sustainSeconds));
+            float gain = (float) Math.min(MAX_LOOP_GAIN,
+                                        decay / Math.sqrt(re * re + im * im));
+            for (int tap = 0; tap < TAPS; ++tap)
+                mTaps[t + tap] *= gain;
+            mLength[s] = length;
+        }
+
+        excite(first, strings, velocity);
+    }
+
+
+    /** Fills the strings of a voice with the same noise burst, low passed
+     *  once for a hard and up to four times for a soft strike. */
+    private void excite(int first, int strings, int velocity)
+    {
+        float[] line = mLine[first];
+        int size = mLength[first] + TAPS - 1;
+        int random = mRandom;
+        float mean = 0.0f;
+        for (int i = 0; i < size; ++i)
+        {
+            random = random * 1103515245 + 12345;
+            line[i] = ((random >> 8) & 0xffff) / 32768.0f - 1.0f;
+            mean += line[i];
+        }
+        mRandom = random;
+
+        mean /= size;
+        for (int i = 0; i < size; ++i)
+            line[i] -= mean;
+
+        int passes = 1 + (127 - velocity) / 32;
+        for (int pass = 0; pass < passes; ++pass)
+        {
+            float previous = line[size - 1];
+            for (int i = 0; i < size; ++i)
+            {
+                float current = line[i];
+                line[i] = 0.5f * (current + previous);
+                previous = current;
+            }
+        }
+
+        float amplitude = velocity / 127.0f;
+        for (int i = 0; i < size; ++i)
+            line[i] *= amplitude;
+
+        // The other strings start from the same burst, cut to their length:
+        for (int k = 1; k < strings; ++k)
+        {
+            float[] other = mLine[first + k];
+            int otherSize = mLength[first + k] + TAPS - 1;
+            for (int i = 0; i < otherSize; ++i)
+                other[i] = line[i % size];
+        }
+    }
+
+
+    /** Takes the last string from every voice with more than the given
+     *  number, returns the number of strings dropped. */
+    public int dropStrings(int maxVoices, int keep)
+    {
+        int dropped = 0;
+        for (int v = 0; v < maxVoices; ++v)
+        {
+            if (mStrings[v] > Math.max(1, keep))
+            {
+                mStrings[v]--;
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+
+    /** Renders one block of a voice into the buffer, overwriting it.
+     *  Returns the peak level of the block. */
+    public float render(int v, float[] buffer, int blockSize)
+    {
+        for (int i = 0; i < blockSize; ++i)
+            buffer[i] = 0.0f;
+
+        int first = v * MAX_STRINGS;
+        for (int s = first; s < first + mStrings[v]; ++s)
+            renderString(s, buffer, blockSize);
+
+        // The strings are mixed at equal parts, also after some were
+        // dropped:
+        float gain = 1.0f / mStrings[v];
+        float peak = 0.0f;
+        for (int i = 0; i < blockSize; ++i)
+        {
+            float sample = gain * buffer[i];
+            buffer[i] = sample;
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        return peak;
+    }
+
+
+    /** Adds one block of a string to the buffer. */
+    private void renderString(int s, float[] buffer, int blockSize)
+    {
+        float[] line = mLine[s];
+        float[] chunk = mChunk;
+        int length = mLength[s];
+        int size = length + TAPS - 1;
+        float tap0 = mTaps[s * TAPS];
+        float tap1 = mTaps[s * TAPS + 1];
+        float tap2 = mTaps[s * TAPS + 2];
+        float tap3 = mTaps[s * TAPS + 3];
+
+        int offset = 0;
+        while (offset < blockSize)
+        {
+            int n = Math.min(length, blockSize - offset);
+
+            // line[i + 3] is y[n-L] down to line[i], y[n-L-3]; no
+            // iteration depends on another:
+            for (int i = 0; i < n; ++i)
+                chunk[i] = tap3 * line[i] + tap2 * line[i + 1] +
+                           tap1 * line[i + 2] + tap0 * line[i + 3];
+
+            for (int i = 0; i < n; ++i)
+                buffer[offset + i] += chunk[i];
+
+            // Move the newest samples into the line:
+            System.arraycopy(line, n, line, 0, size - n);
+            System.arraycopy(chunk, 0, line, size - n, n);
+            offset += n;
+        }
+    }
+
+
+    /** Returns the frequency of a note detuned by the given cents. */
+    private static float frequency(int note, float cents)
+    {
+        return (float) (440.0 * Math.pow(2.0, (note - 69 + cents / 100.0) /
+                                                12.0));
+    }
+}
@@ -7,9 +7,15 @@
 package com.qualcomm.QCARSamples.VirtualButtons;
 
 import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -26,10 +32,14 @@ public class Texture
     public int mWidth;      /// The width of the texture.
     public int mHeight;     /// The height of the texture.
     public int mChannels;   /// The number of channels.
-    public byte[] mData;    /// The pixel data.
+    public ByteBuffer mData;/// The RGBA texels, bottom row first.
+    public int mCompressedFormat;   /// GL format of mData, 0 for RGBA.
     
-    /** Returns the raw data */
-    public byte[] getData()
+    // Pixel scratch array reused by the loads of each thread:
+    private static final ThreadLocal<int[]> sPixels = new ThreadLocal<int[]>();
+    
+    /** Returns the raw data as a direct buffer in OpenGL row order. */
+    public ByteBuffer getData()
     {
         return mData;
     }    
@@ -38,6 +48,16 @@ public class Texture
     /** Factory function to load a texture from the APK. */
     public static Texture loadTextureFromApk(String fileName,
                                                 AssetManager assets)
+    {
+        return loadTextureFromApk(fileName, assets, null);
+    }
+    
+    
+    /** Factory function to load a texture from the APK, reusing the given
+     *  texture object and its buffer if possible. */
+    public static Texture loadTextureFromApk(String fileName,
+                                                AssetManager assets,
+                                                Texture reuse)
     {
         InputStream inputStream = null;
         try
@@ -47,36 +67,161 @@ public class Texture
             BufferedInputStream bufferedStream = new BufferedInputStream(inputStream);
             Bitmap bitMap = BitmapFactory.decodeStream(bufferedStream);
             
-            int[] data = new int[bitMap.getWidth() * bitMap.getHeight()];
-            bitMap.getPixels(data, 0, bitMap.getWidth(), 0, 0,
-                                bitMap.getWidth(), bitMap.getHeight());
-            
-            // Convert:
-            byte[] dataBytes = new byte[bitMap.getWidth() *
-                                       bitMap.getHeight() * 4];
-            for (int p = 0; p < bitMap.getWidth() * bitMap.getHeight(); ++p)
+            return loadTextureFromBitmap(bitMap, reuse);
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("Failed to log texture '{}' from APK.", fileName);
+            DebugLog.LOGI(e.getMessage());
+            return null;
+        }
+        finally
+        {
+            if (inputStream != null)
             {
-                int colour = data[p];
-                dataBytes[p * 4]        = (byte)(colour >>> 16);    // R
-                dataBytes[p * 4 + 1]    = (byte)(colour >>> 8);     // G
-                dataBytes[p * 4 + 2]    = (byte) colour;            // B
-                dataBytes[p * 4 + 3]    = (byte)(colour >>> 24);    // A
+                try
+                {
+                    inputStream.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing sensible left to do
+                }
+            }
+        }
+    }
+    
+    
+    /** Factory function to load an ETC1 texture stored as a PKM file in
+     *  the APK. Returns null if the asset is missing or not a valid PKM.
+     *
+     *  The compressed blocks are handed to native code untouched. If the
+     *  asset is stored uncompressed in the APK (aapt -0 pkm) it is memory
+     *  mapped, otherwise it is read into a direct buffer. PKM files must be
+     *  encoded bottom row first (see Etc1Tool). */
+    public static Texture loadCompressedTextureFromApk(String fileName,
+                                                AssetManager assets)
+    {
+        ByteBuffer pkm = null;
+        InputStream inputStream = null;
+        try
+        {
+            try
+            {
+                AssetFileDescriptor descriptor = assets.openFd(fileName);
+                FileInputStream fileStream = descriptor.createInputStream();
+                inputStream = fileStream;
+                pkm = fileStream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                                descriptor.getStartOffset(),
+                                                descriptor.getLength());
+            }
+            catch (FileNotFoundException e)
+            {
+                // Compressed in the APK, openFd() is not available
+                inputStream = assets.open(fileName, AssetManager.ACCESS_STREAMING);
+                pkm = readDirect(inputStream);
             }
-            
-            Texture texture = new Texture();
-            texture.mWidth      = bitMap.getWidth();
-            texture.mHeight     = bitMap.getHeight();
-            texture.mChannels   = 4;
-            texture.mData       = dataBytes;
-            
-            return texture;
         }
         catch (IOException e)
         {
-            DebugLog.LOGE("Failed to log texture '" + fileName + "' from APK.");
-            DebugLog.LOGI(e.getMessage());
             return null;
         }
+        finally
+        {
+            if (inputStream != null)
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing sensible left to do
+                }
+            }
+        }
+        
+        return loadTextureFromPkm(pkm);
+    }
+    
+    
+    /** Wraps the blocks of a PKM buffer into a texture, or returns null if
+     *  the buffer is not a valid ETC1 PKM. */
+    static Texture loadTextureFromPkm(ByteBuffer pkm)
+    {
+        int width = Etc1Codec.getPkmWidth(pkm);
+        int height = Etc1Codec.getPkmHeight(pkm);
+        if (width < 0 || height < 0)
+            return null;
+        
+        ByteBuffer blocks = pkm.duplicate();
+        blocks.position(pkm.position() + Etc1Codec.PKM_HEADER_SIZE);
+        blocks = blocks.slice();
+        blocks.limit(Etc1Codec.encodedSize(width, height));
+        blocks.order(ByteOrder.nativeOrder());
+        
+        Texture texture = new Texture();
+        texture.mWidth              = width;
+        texture.mHeight             = height;
+        texture.mChannels           = 3;
+        texture.mData               = blocks;
+        texture.mCompressedFormat   = Etc1Codec.GL_ETC1_RGB8_OES;
+        return texture;
+    }
+    
+    
+    private static ByteBuffer readDirect(InputStream inputStream)
+                                                        throws IOException
+    {
+        byte[] chunk = new byte[16 * 1024];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunk.length * 4);
+        int count;
+        while ((count = inputStream.read(chunk)) > 0)
+        {
+            if (buffer.remaining() < count)
+            {
+                ByteBuffer larger = ByteBuffer.allocateDirect(
+                                        Math.max(buffer.capacity() * 2,
+                                                buffer.position() + count));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer.put(chunk, 0, count);
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    
+    /** Converts a decoded bitmap into a texture and recycles the bitmap. */
+    static Texture loadTextureFromBitmap(Bitmap bitMap, Texture reuse)
+    {
+        int width = bitMap.getWidth();
+        int height = bitMap.getHeight();
+        
+        int[] data = sPixels.get();
+        if (data == null || data.length < width * height)
+        {
+            data = new int[width * height];
+            sPixels.set(data);
+        }
+        bitMap.getPixels(data, 0, width, 0, 0, width, height);
+        bitMap.recycle();
+        
+        Texture texture = (reuse != null) ? reuse : new Texture();
+        
+        // Convert to RGBA and flip vertically in one pass:
+        ByteBuffer texels = TextureConverter.ensureCapacity(texture.mData,
+                                                            width, height);
+        TextureConverter.argbToRgbaFlipped(data, width, height, texels);
+        
+        texture.mWidth      = width;
+        texture.mHeight     = height;
+        texture.mChannels   = 4;
+        texture.mData       = texels;
+        texture.mCompressedFormat = 0;
+        
+        return texture;
     }
-
 }
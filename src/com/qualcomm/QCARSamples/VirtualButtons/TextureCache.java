@@ -0,0 +1,414 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/** TextureCache keeps converted textures in the application cache directory.
+ *
+ *  The first launch decodes the PNG assets as usual and stores the RGBA
+ *  texels, already in OpenGL row order, in one file per texture. Later
+ *  launches memory-map that file and hand the mapping to native code as the
+ *  texture data, so no PNG decoding and no copy takes place.
+ *
+ *  File layout (big endian header, 32 bytes):
+ *
+ *      int   magic           'VPTX'
+ *      int   version
+ *      int   width
+ *      int   height
+ *      long  sourceStamp     modification time of the APK
+ *      int   sourceLength    size of the PNG asset in bytes
+ *      int   texelChecksum   see checksum()
+ *      ...   texels          width * height * 4 bytes
+ *
+ *  A cache file is ignored and rewritten if the APK was replaced or the
+ *  asset size changed, or if the format version or the file size differs.
+ *  Only the header is read on a warm load; the texel checksum is verified
+ *  as well when setVerifyTexels() asks for it, e.g. in debug builds.
+ *
+ * */
+
+public class TextureCache
+{
+    public static final int MAGIC = 0x56505458;     // "VPTX"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 32;
+
+    private final File mDirectory;
+    private final long mSourceStamp;
+    private volatile boolean mVerifyTexels = false;
+
+    // Reusable asset read buffer of each thread:
+    private static final ThreadLocal<byte[]> sSource = new ThreadLocal<byte[]>();
+
+    // Statistics:
+    private int mHits = 0;
+    private int mMisses = 0;
+    private long mHitNanos = 0;
+    private long mMissNanos = 0;
+
+
+    /** Constructor, sourceStamp identifies the assets, e.g. the modification
+     *  time of the APK. */
+    public TextureCache(File directory, long sourceStamp)
+    {
+        mDirectory = directory;
+        mSourceStamp = sourceStamp;
+    }
+
+
+    /** Sets whether warm loads check the texels against their checksum,
+     *  which reads the whole file. Off by default. */
+    public void setVerifyTexels(boolean verify)
+    {
+        mVerifyTexels = verify;
+    }
+
+
+    /** Loads a texture from the cache, or from the PNG asset if there is no
+     *  valid cache entry, in which case the entry is (re)written. */
+    public Texture loadTexture(String fileName, AssetManager assets)
+    {
+        long startNanos = System.nanoTime();
+
+        // Uncompressed assets tell their size without being read:
+        File cacheFile = new File(mDirectory, fileName + ".rgba");
+        int assetLength = getAssetLength(fileName, assets);
+        if (assetLength >= 0)
+        {
+            Texture texture = map(cacheFile, mSourceStamp, assetLength,
+                                    mVerifyTexels);
+            if (texture != null)
+            {
+                recordLoad(true, System.nanoTime() - startNanos);
+                return texture;
+            }
+        }
+
+        // Read the asset, it is decoded from memory:
+        byte[] source;
+        int sourceLength;
+        InputStream inputStream = null;
+        try
+        {
+            inputStream = assets.open(fileName, AssetManager.ACCESS_BUFFER);
+            source = sSource.get();
+            if (source == null)
+                source = new byte[64 * 1024];
+
+            sourceLength = 0;
+            int count;
+            while ((count = inputStream.read(source, sourceLength,
+                                        source.length - sourceLength)) > 0)
+            {
+                sourceLength += count;
+                if (sourceLength == source.length)
+                {
+                    byte[] larger = new byte[source.length * 2];
+                    System.arraycopy(source, 0, larger, 0, sourceLength);
+                    source = larger;
+                }
+            }
+            sSource.set(source);
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("Failed to read texture '{}' from APK.", fileName);
+            DebugLog.LOGI(e.getMessage());
+            return null;
+        }
+        finally
+        {
+            closeQuietly(inputStream);
+        }
+
+        // Compressed assets are looked up by the length read:
+        if (assetLength < 0)
+        {
+            Texture texture = map(cacheFile, mSourceStamp, sourceLength,
+                                    mVerifyTexels);
+            if (texture != null)
+            {
+                recordLoad(true, System.nanoTime() - startNanos);
+                return texture;
+            }
+        }
+
+        // Cache miss, decode the PNG:
+        Bitmap bitMap = BitmapFactory.decodeByteArray(source, 0, sourceLength);
+        if (bitMap == null)
+        {
+            DebugLog.LOGE("Failed to decode texture '{}'.", fileName);
+            return null;
+        }
+        Texture texture = Texture.loadTextureFromBitmap(bitMap, null);
+
+        try
+        {
+            write(cacheFile, texture, mSourceStamp, sourceLength);
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("Failed to cache texture '{}'.", fileName);
+            DebugLog.LOGI(e.getMessage());
+        }
+
+        recordLoad(false, System.nanoTime() - startNanos);
+        return texture;
+    }
+
+
+    /** Returns the size of an uncompressed asset, -1 if it is compressed
+     *  and can only be measured by reading it. */
+    private static int getAssetLength(String fileName, AssetManager assets)
+    {
+        AssetFileDescriptor descriptor = null;
+        try
+        {
+            descriptor = assets.openFd(fileName);
+            long length = descriptor.getLength();
+            return length >= 0 && length <= Integer.MAX_VALUE ?
+                    (int) length : -1;
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+        finally
+        {
+            // Not a Closeable before API level 19:
+            if (descriptor != null)
+            {
+                try
+                {
+                    descriptor.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing sensible left to do
+                }
+            }
+        }
+    }
+
+
+    /** Memory-maps a cache file. Returns null if it is missing, stale or,
+     *  when verifying the texels, corrupt. Otherwise only the header is
+     *  read. */
+    public static Texture map(File file, long sourceStamp, int sourceLength,
+                            boolean verifyTexels)
+    {
+        if (!file.isFile())
+            return null;
+
+        RandomAccessFile randomAccessFile = null;
+        try
+        {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                return null;
+
+            // The mapping stays valid after the channel is closed:
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                    0, size);
+            mapped.order(ByteOrder.BIG_ENDIAN);
+
+            int width = mapped.getInt(8);
+            int height = mapped.getInt(12);
+            if (mapped.getInt(0) != MAGIC ||
+                mapped.getInt(4) != VERSION ||
+                mapped.getLong(16) != sourceStamp ||
+                mapped.getInt(24) != sourceLength ||
+                width <= 0 || height <= 0 ||
+                size != HEADER_SIZE + (long) width * height * 4)
+                return null;
+
+            int texelChecksum = mapped.getInt(28);
+
+            mapped.position(HEADER_SIZE);
+            ByteBuffer texels = mapped.slice();
+            texels.order(ByteOrder.nativeOrder());
+
+            // Corrupt file:
+            if (verifyTexels && checksum(texels) != texelChecksum)
+                return null;
+
+            Texture texture = new Texture();
+            texture.mWidth      = width;
+            texture.mHeight     = height;
+            texture.mChannels   = 4;
+            texture.mData       = texels;
+            return texture;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+
+    /** Writes a cache file atomically through a temporary file. */
+    public static void write(File file, Texture texture, long sourceStamp,
+                            int sourceLength) throws IOException
+    {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        ByteBuffer texels = texture.mData.duplicate();
+        texels.order(ByteOrder.nativeOrder());
+        texels.clear();
+        texels.limit(texture.mWidth * texture.mHeight * 4);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(texture.mWidth);
+        header.putInt(texture.mHeight);
+        header.putLong(sourceStamp);
+        header.putInt(sourceLength);
+        header.putInt(checksum(texels));
+        header.flip();
+
+        File temporary = new File(file.getPath() + ".tmp");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(temporary, "rw");
+        try
+        {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            while (header.hasRemaining())
+                channel.write(header);
+            while (texels.hasRemaining())
+                channel.write(texels);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+
+        if (!temporary.renameTo(file))
+        {
+            temporary.delete();
+            throw new IOException("Cannot rename " + temporary);
+        }
+    }
+
+
+    /** A cheap checksum over the texels, read as native order ints. */
+    public static int checksum(ByteBuffer texels)
+    {
+        ByteBuffer bytes = texels.duplicate();
+        bytes.order(ByteOrder.nativeOrder());
+        IntBuffer ints = bytes.asIntBuffer();
+
+        int a = 1;
+        int b = 0;
+        int count = ints.remaining();
+        for (int i = 0; i < count; ++i)
+        {
+            a += ints.get(i);
+            b += a;
+        }
+
+        // Trailing bytes of buffers that are not a multiple of four:
+        for (int i = bytes.position() + count * 4; i < bytes.limit(); ++i)
+        {
+            a += bytes.get(i);
+            b += a;
+        }
+
+        return a ^ (b * 31);
+    }
+
+
+    /** Removes all cache files. */
+    public void clear()
+    {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+            file.delete();
+    }
+
+
+    private synchronized void recordLoad(boolean hit, long nanos)
+    {
+        if (hit)
+        {
+            mHits++;
+            mHitNanos += nanos;
+        }
+        else
+        {
+            mMisses++;
+            mMissNanos += nanos;
+        }
+    }
+
+
+    public synchronized int getHits()
+    {
+        return mHits;
+    }
+
+
+    public synchronized int getMisses()
+    {
+        return mMisses;
+    }
+
+
+    /** Returns a summary of cold (decoded) and warm (mapped) load times. */
+    public synchronized String getReport()
+    {
+        return String.format(
+            "Texture cache: %d warm loads, %.2f ms each; " +
+            "%d cold loads, %.2f ms each",
+            mHits, mHits > 0 ? mHitNanos / 1e6 / mHits : 0.0,
+            mMisses, mMisses > 0 ? mMissNanos / 1e6 / mMisses : 0.0);
+    }
+
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing sensible left to do
+        }
+    }
+}
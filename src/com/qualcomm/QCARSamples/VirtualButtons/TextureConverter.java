@@ -0,0 +1,117 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/** TextureConverter turns decoded ARGB pixels into GL-ready RGBA texels.
+ *
+ *  The conversion is done in a single pass: every pixel is re-packed with
+ *  plain integer operations so that its bytes land as R, G, B, A in memory,
+ *  and rows are written bottom-up with bulk puts into a direct buffer. The
+ *  result can be handed to glTexImage2D() without any further copy.
+ *
+ * */
+
+public class TextureConverter
+{
+    private static final boolean LITTLE_ENDIAN =
+                        ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+
+    /** Allocates a direct buffer able to hold width x height RGBA texels. */
+    public static ByteBuffer allocate(int width, int height)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 4);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+
+    /** Returns the given buffer if it is writable and large enough,
+     *  otherwise a new one. */
+    public static ByteBuffer ensureCapacity(ByteBuffer buffer, int width,
+                                            int height)
+    {
+        if (buffer != null && !buffer.isReadOnly() &&
+            buffer.capacity() >= width * height * 4)
+        {
+            buffer.clear();
+            return buffer;
+        }
+
+        return allocate(width, height);
+    }
+
+
+    /** Converts ARGB pixels in top-down order into RGBA texels in bottom-up
+     *  (OpenGL) order.
+     *
+     *  The pixel array is converted in place and is used as scratch memory.
+     *  The destination must be a buffer in native byte order, its position
+     *  is left at zero. */
+    public static void argbToRgbaFlipped(int[] pixels, int width, int height,
+                                        ByteBuffer destination)
+    {
+        int count = width * height;
+
+        // Swizzle so that the native int representation reads R, G, B, A:
+        if (LITTLE_ENDIAN)
+        {
+            for (int p = 0; p < count; ++p)
+            {
+                int c = pixels[p];
+                pixels[p] = (c & 0xff00ff00) | ((c >>> 16) & 0xff) |
+                            ((c & 0xff) << 16);
+            }
+        }
+        else
+        {
+            for (int p = 0; p < count; ++p)
+            {
+                int c = pixels[p];
+                pixels[p] = (c << 8) | (c >>> 24);
+            }
+        }
+
+        // Copy the rows bottom-up:
+        destination.clear();
+        IntBuffer texels = destination.asIntBuffer();
+        for (int row = height - 1; row >= 0; --row)
+            texels.put(pixels, row * width, width);
+    }
+
+
+    /** The original conversion of Texture.loadTextureFromApk(), kept as a
+     *  reference: one byte store per channel into a new array, followed by
+     *  the per-row vertical flip done by native Texture::create(). */
+    public static byte[] argbToRgbaFlippedLegacy(int[] pixels, int width,
+                                                int height)
+    {
+        byte[] dataBytes = new byte[width * height * 4];
+        for (int p = 0; p < width * height; ++p)
+        {
+            int colour = pixels[p];
+            dataBytes[p * 4]        = (byte)(colour >>> 16);    // R
+            dataBytes[p * 4 + 1]    = (byte)(colour >>> 8);     // G
+            dataBytes[p * 4 + 2]    = (byte) colour;            // B
+            dataBytes[p * 4 + 3]    = (byte)(colour >>> 24);    // A
+        }
+
+        byte[] flipped = new byte[dataBytes.length];
+        int rowSize = width * 4;
+        for (int r = 0; r < height; ++r)
+        {
+            System.arraycopy(dataBytes, rowSize * (height - 1 - r),
+                            flipped, rowSize * r, rowSize);
+        }
+
+        return flipped;
+    }
+}
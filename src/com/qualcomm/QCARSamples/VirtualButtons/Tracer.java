@@ -0,0 +1,327 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/** Tracer records spans and counters of the start-up, frame and audio
+ *  paths and writes them as Chrome Trace Event JSON, which
+ *  chrome://tracing and Perfetto (ui.perfetto.dev) open.
+ *
+ *  begin() and end() mark a span on the calling thread and must nest;
+ *  asyncBegin() and asyncEnd() mark one that may start and end on
+ *  different threads, e.g. a state of the activity, and counter() a value
+ *  over time. Every thread records into a buffer of its own, created the
+ *  first time it records, with a single writer that publishes its count
+ *  with a volatile write, so recording takes no locks and does not
+ *  allocate. A full buffer drops further events of the session. Realtime
+ *  threads, e.g. the audio and GL threads, call register() before their
+ *  loop, so that the buffer is not allocated by their first event. The
+ *  buffers of threads that have ended are dropped by write().
+ *
+ *  While tracing is off, a call is a check of a volatile flag. Names must
+ *  be constants; they are only referenced until write().
+ *
+ * */
+
+public class Tracer
+{
+    public static final int DEFAULT_EVENTS_PER_THREAD = 8192;
+
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+    private static final byte PHASE_ASYNC_BEGIN = 'b';
+    private static final byte PHASE_ASYNC_END = 'e';
+    private static final byte PHASE_COUNTER = 'C';
+
+    /** The events of one thread. */
+    private static final class Buffer
+    {
+        final WeakReference<Thread> mThread;
+        final String mThreadName;
+        final long mThreadId;
+        final byte[] mPhase;
+        final String[] mName;
+        final long[] mTime;
+        final long[] mValue;
+
+        // Written by the thread only:
+        volatile int mCount = 0;
+        volatile int mSession = 0;
+        volatile long mDropped = 0;
+
+        Buffer(Thread thread, int capacity)
+        {
+            mThread = new WeakReference<Thread>(thread);
+            mThreadName = thread.getName();
+            mThreadId = thread.getId();
+            mPhase = new byte[capacity];
+            mName = new String[capacity];
+            mTime = new long[capacity];
+            mValue = new long[capacity];
+        }
+    }
+
+    private static volatile boolean sEnabled = false;
+    private static volatile int sSession = 0;
+    private static volatile long sStartNanos = 0;
+    private static volatile int sCapacity = DEFAULT_EVENTS_PER_THREAD;
+
+    private static final ThreadLocal<Buffer> sBuffer =
+                                                new ThreadLocal<Buffer>();
+    private static final ArrayList<Buffer> sBuffers = new ArrayList<Buffer>();
+
+
+    /** Starts a new trace. The events of the previous one are discarded. */
+    public static synchronized void start()
+    {
+        sSession++;
+        sStartNanos = System.nanoTime();
+        sEnabled = true;
+    }
+
+
+    /** Stops recording; the trace can be written afterwards. */
+    public static void stop()
+    {
+        sEnabled = false;
+    }
+
+
+    public static boolean isEnabled()
+    {
+        return sEnabled;
+    }
+
+
+    /** Sets the capacity of the buffers of threads that record the first
+     *  time from now on. */
+    public static void setEventsPerThread(int capacity)
+    {
+        sCapacity = capacity;
+    }
+
+
+    /** Begins a span on the calling thread. */
+    public static void begin(String name)
+    {
+        if (sEnabled)
+            record(PHASE_BEGIN, name, 0);
+    }
+
+
+    /** Ends the innermost span of the calling thread. */
+    public static void end(String name)
+    {
+        if (sEnabled)
+            record(PHASE_END, name, 0);
+    }
+
+
+    /** Begins a span identified by name and id, on any thread. */
+    public static void asyncBegin(String name, long id)
+    {
+        if (sEnabled)
+            record(PHASE_ASYNC_BEGIN, name, id);
+    }
+
+
+    /** Ends a span begun by asyncBegin(), on any thread. */
+    public static void asyncEnd(String name, long id)
+    {
+        if (sEnabled)
+            record(PHASE_ASYNC_END, name, id);
+    }
+
+
+    /** Records the value of a counter. */
+    public static void counter(String name, long value)
+    {
+        if (sEnabled)
+            record(PHASE_COUNTER, name, value);
+    }
+
+
+    private static void record(byte phase, String name, long value)
+    {
+        Buffer buffer = sBuffer.get();
+        if (buffer == null)
+            buffer = createBuffer();
+
+        // The first event of a session clears the previous one:
+        int count = buffer.mCount;
+        int session = sSession;
+        if (buffer.mSession != session)
+        {
+            buffer.mSession = session;
+            buffer.mDropped = 0;
+            count = 0;
+        }
+        if (count == buffer.mPhase.length)
+        {
+            buffer.mDropped++;
+            return;
+        }
+
+        buffer.mPhase[count] = phase;
+        buffer.mName[count] = name;
+        buffer.mTime[count] = System.nanoTime();
+        buffer.mValue[count] = value;
+        buffer.mCount = count + 1;
+    }
+
+
+    /** Creates the buffer of the calling thread, if it has none yet.
+     *  Threads that must not allocate while recording call this up front,
+     *  whether tracing is on or not. */
+    public static void register()
+    {
+        if (sBuffer.get() == null)
+            createBuffer();
+    }
+
+
+    private static Buffer createBuffer()
+    {
+        Buffer buffer = new Buffer(Thread.currentThread(), sCapacity);
+        sBuffer.set(buffer);
+        synchronized (sBuffers)
+        {
+            sBuffers.add(buffer);
+        }
+        return buffer;
+    }
+
+
+    /** Returns the number of events dropped by full buffers. */
+    public static long getDropped()
+    {
+        long dropped = 0;
+        synchronized (sBuffers)
+        {
+            for (Buffer buffer : sBuffers)
+            {
+                if (buffer.mSession == sSession)
+                    dropped += buffer.mDropped;
+            }
+        }
+        return dropped;
+    }
+
+
+    /** Writes the trace to a file, returns the number of events. */
+    public static int write(File file) throws IOException
+    {
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        try
+        {
+            return write(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+
+    /** Writes the events recorded in the current session as Chrome Trace
+     *  Event JSON, times in microseconds since start(). Events recorded
+     *  while writing may be missing. The buffers of threads that have
+     *  ended are written a last time and dropped. Returns the number of
+     *  events. */
+    public static int write(Writer writer) throws IOException
+    {
+        Buffer[] buffers;
+        synchronized (sBuffers)
+        {
+            buffers = sBuffers.toArray(new Buffer[sBuffers.size()]);
+            for (int i = sBuffers.size() - 1; i >= 0; --i)
+            {
+                Thread thread = sBuffers.get(i).mThread.get();
+                if (thread == null || !thread.isAlive())
+                    sBuffers.remove(i);
+            }
+        }
+
+        int session = sSession;
+        long startNanos = sStartNanos;
+        int events = 0;
+        StringBuilder line = new StringBuilder(128);
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        for (Buffer buffer : buffers)
+        {
+            int count = buffer.mCount;
+            if (buffer.mSession != session || count == 0)
+                continue;
+
+            line.setLength(0);
+            line.append(events > 0 ? ",\n" : "");
+            line.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,");
+            line.append("\"tid\":").append(buffer.mThreadId);
+            line.append(",\"args\":{\"name\":");
+            appendString(line, buffer.mThreadName);
+            line.append("}}");
+            writer.append(line);
+
+            for (int i = 0; i < count; ++i)
+            {
+                byte phase = buffer.mPhase[i];
+                long nanos = buffer.mTime[i] - startNanos;
+                long magnitude = Math.abs(nanos);
+                line.setLength(0);
+                line.append(",\n{\"name\":");
+                appendString(line, buffer.mName[i]);
+                line.append(",\"ph\":\"").append((char) phase);
+                line.append("\",\"ts\":").append(nanos < 0 ? "-" : "");
+                line.append(magnitude / 1000).append('.');
+                long fraction = magnitude % 1000;
+                line.append(fraction < 100 ? (fraction < 10 ? "00" : "0")
+                                           : "").append(fraction);
+                line.append(",\"pid\":1,\"tid\":").append(buffer.mThreadId);
+                if (phase == PHASE_ASYNC_BEGIN || phase == PHASE_ASYNC_END)
+                {
+                    line.append(",\"cat\":\"async\",\"id\":");
+                    line.append(buffer.mValue[i]);
+                }
+                else if (phase == PHASE_COUNTER)
+                {
+                    line.append(",\"args\":{");
+                    appendString(line, buffer.mName[i]);
+                    line.append(':').append(buffer.mValue[i]).append('}');
+                }
+                line.append('}');
+                writer.append(line);
+                events++;
+            }
+        }
+        writer.write("\n]}\n");
+        return events;
+    }
+
+
+    private static void appendString(StringBuilder line, String string)
+    {
+        line.append('"');
+        for (int i = 0; i < string.length(); ++i)
+        {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c < ' ')
+                line.append(' ');
+            else
+                line.append(c);
+        }
+        line.append('"');
+    }
+}
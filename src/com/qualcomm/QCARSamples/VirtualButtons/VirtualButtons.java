@@ -14,13 +14,17 @@
 
 package com.qualcomm.QCARSamples.VirtualButtons;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Vector;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
 import android.content.res.Configuration;
+import android.graphics.Color;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
@@ -32,6 +36,7 @@ import android.view.WindowManager;
 import android.view.View;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
+import android.widget.TextView;
 
 import com.qualcomm.QCAR.QCAR;
 import cz.marax.virtualpiano.R;
@@ -40,14 +45,20 @@ import cz.marax.virtualpiano.R;
 /** The main activity for the VirtualButtons sample. */
 public class VirtualButtons extends Activity
 {
-    // Menu constants:
-    private static final int MENU_RED = 0;
-    private static final int MENU_BLUE = 1;
-    private static final int MENU_YELLOW = 2;
-    private static final int MENU_GREEN = 3;
-    private static final int MENU_FOCUS_FLASH = 4;
-    private static final int MENU_TOGGLE_FLASH = 5;
-    private static final int MENU_AUTOFOCUS = 6;
+    // Menu constants, key i is toggled by MENU_KEY_BASE + i:
+    private static final int MENU_FOCUS_FLASH = 0;
+    private static final int MENU_TOGGLE_FLASH = 1;
+    private static final int MENU_AUTOFOCUS = 2;
+    private static final int MENU_KEYS = 3;
+    private static final int MENU_FRAME_STATS = 4;
+    private static final int MENU_OCCLUSION = 5;
+    private static final int MENU_RECORD = 6;
+    private static final int MENU_MIDI = 7;
+    private static final int MENU_TRACE = 8;
+    private static final int MENU_KEY_BASE = 100;
+    
+    // Layouts with more keys are toggled from a sub menu:
+    private static final int MAX_TOP_LEVEL_KEYS = 4;
     private int nic;
     // Application status constants:
     private static final int APPSTATUS_UNINITED         = -1;
@@ -60,6 +71,12 @@ public class VirtualButtons extends Activity
     private static final int APPSTATUS_CAMERA_STOPPED   = 6;
     private static final int APPSTATUS_CAMERA_RUNNING   = 7;
     
+    // Their names in the trace, indexed by status + 1:
+    private static final String[] APPSTATUS_NAMES = {
+        "UNINITED", "INIT_APP", "INIT_QCAR", "INIT_TRACKER", "INIT_APP_AR",
+        "LOAD_TRACKER", "INITED", "CAMERA_STOPPED", "CAMERA_RUNNING"
+    };
+    
     // Name of the native dynamic libraries to load:
     private static final String NATIVE_LIB_SAMPLE = "VirtualButtons";
     private static final String NATIVE_LIB_QCAR = "QCAR";
@@ -104,9 +121,85 @@ public class VirtualButtons extends Activity
     private int mQCARFlags = 0;
     
     // The textures we will use for rendering:
+    private static final String[] TEXTURE_FILES = {
+        "TextureTeapotBrass.png",
+        "TextureTeapotRed.png",
+        "TextureTeapotBlue.png",
+        "TextureTeapotYellow.png",
+        "TextureTeapotGreen.png"
+    };
     private Vector<Texture> mTextures;
     private int mSplashScreenImageResource = 0;
 
+    // Converted textures kept across launches:
+    private TextureCache mTextureCache;
+
+    // Start-up work overlapped with QCAR initialization:
+    private StartupPipeline mStartup;
+    private static final String STAGE_TEXTURES      = "textures";
+    private static final String STAGE_QCAR          = "qcar";
+    private static final String STAGE_TRACKER_DATA  = "trackerData";
+    private static final String STAGE_KEY_LAYOUT    = "keyLayout";
+    private static final String STAGE_SAMPLE_BANK   = "sampleBank";
+
+    // The dataset loaded by native loadTrackerData() and its keys:
+    private static final String DATASET_FILE = "Piano2.xml";
+    private volatile KeyLayout mKeyLayout;
+
+    // Virtual button reconfiguration, applied by the tracking thread:
+    private ButtonCommandQueue mButtonCommands = new ButtonCommandQueue();
+
+    // The piano synthesizer and its output:
+    private AudioEngine mAudioEngine;
+    private AudioTrackSink mAudioSink;
+
+    // The recorded piano notes, optional and stored uncompressed in the APK
+    // (aapt -0 bank), see tools/SampleBankTool:
+    private static final String SAMPLE_BANK_FILE = "piano.bank";
+    private volatile SampleBank mSampleBank;
+
+    // Note events from the tracking thread to the audio thread:
+    private NoteEventRing mNoteEventRing;
+
+    // Key press latencies from the camera to the audio output:
+    private LatencyMonitor mLatencyMonitor = new LatencyMonitor();
+    private static final String LATENCY_FILE = "latency.txt";
+
+    // Optional on-screen overlay of the render loop pacing:
+    private static final long FRAME_STATS_UPDATE_INTERVAL = 500;
+    private boolean mShowFrameStats = false;
+    private TextView mFrameStatsView;
+    private Handler mFrameStatsHandler;
+    private Runnable mFrameStatsRunnable;
+    private FrameStats.Snapshot mFrameStatsSnapshot = new FrameStats.Snapshot();
+
+    // Frames the keys stay at the extrapolated target pose after tracking
+    // is lost, e.g. while a hand covers the target, see PoseFilter.h:
+    private static final int POSE_HOLD_FRAMES = 10;
+    private long[] mPoseFilterStats = new long[4];
+
+    // Recording of camera frames for tools/FrameReplay, see FrameRecorder.h:
+    private static final String RECORDING_FILE = "frames.rec";
+    private boolean mRecording = false;
+    private long[] mRecordingStats = new long[3];
+
+    // Recording of the notes played as a Standard MIDI File:
+    private MidiRecorder mMidiRecorder = new MidiRecorder();
+
+    // The name of the chord held, found on the GL thread and shown on top
+    // of the camera view:
+    private ChordAnalyzer mChordAnalyzer;
+    private TextView mChordView;
+    private Runnable mChordRunnable;
+    private volatile String mChordName = "";
+
+    // Chrome traces, see Tracer. Debuggable builds trace the start-up
+    // until the camera has run for TRACE_STARTUP_TAIL ms:
+    private static final String STARTUP_TRACE_FILE = "startup-trace.json";
+    private static final long TRACE_STARTUP_TAIL = 2000;
+    private static final long TRACE_ID_STATUS = 1;
+    private boolean mTracingStartup = false;
+
     
     /** Static initializer block to load native libraries on start-up. */
     static
@@ -123,10 +216,25 @@ public class VirtualButtons extends Activity
         private int mProgressValue = -1;
         
         protected Boolean doInBackground(Void... params)
+        {
+            Tracer.begin("InitQCARTask");
+            try
+            {
+                return initialize();
+            }
+            finally
+            {
+                Tracer.end("InitQCARTask");
+            }
+        }
+        
+        
+        private Boolean initialize()
         {
             // Prevent the onDestroy() method to overlap with initialization:
             synchronized (mShutdownLock)
             {
+                mStartup.beginExternal(STAGE_QCAR);
                 QCAR.setInitParameters(VirtualButtons.this, mQCARFlags);
                 
                 do
@@ -148,8 +256,23 @@ public class VirtualButtons extends Activity
                     // regardless of the status of the component that started is.
                 } while (!isCancelled() && mProgressValue >= 0 && mProgressValue < 100);
                 
-                return (mProgressValue > 0);   
+                mStartup.endExternal(STAGE_QCAR, mProgressValue > 0);
             }
+            
+            // The AR initialization that follows registers the textures with
+            // native code, wait for them off the UI thread. Decoding has been
+            // running on the start-up workers in parallel to QCAR.init():
+            if (!mStartup.await(STAGE_TEXTURES))
+                DebugLog.LOGE("InitQCARTask: loading textures failed");
+            
+            // The key layout sizes the native per-frame buffers:
+            if (!mStartup.await(STAGE_KEY_LAYOUT))
+            {
+                DebugLog.LOGE("InitQCARTask: loading the key layout failed");
+                return false;
+            }
+            
+            return (mProgressValue > 0);
         }
 
         
@@ -223,7 +346,12 @@ public class VirtualButtons extends Activity
             synchronized (mShutdownLock)
             {
                 // Load the tracker data set:
-                return (loadTrackerData() > 0);
+                Tracer.begin("LoadTrackerTask");
+                mStartup.beginExternal(STAGE_TRACKER_DATA);
+                boolean result = (loadTrackerData() > 0);
+                mStartup.endExternal(STAGE_TRACKER_DATA, result);
+                Tracer.end("LoadTrackerTask");
+                return result;
             }
         }
         
@@ -276,13 +404,46 @@ public class VirtualButtons extends Activity
         DebugLog.LOGD("VirtualButtons::onCreate");
         super.onCreate(savedInstanceState);
         
+        if ((getApplicationInfo().flags &
+             ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+        {
+            Tracer.start();
+            mTracingStartup = true;
+        }
+        
         // Set the splash screen image to display during initialization:
         mSplashScreenImageResource = R.drawable.splash_screen_virtual_buttons;
         
-        // Load any sample specific textures:  
+        // Decode any sample specific textures in the background:  
         mTextures = new Vector<Texture>();
+        ApplicationInfo applicationInfo = getApplicationInfo();
+        long apkStamp = new File(applicationInfo.sourceDir).lastModified();
+        mTextureCache = new TextureCache(new File(getCacheDir(), "textures"),
+                                            apkStamp);
+        mTextureCache.setVerifyTexels(
+                (applicationInfo.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+        mStartup = new StartupPipeline();
         loadTextures();
+        loadKeyLayout();
+        mStartup.addExternalStage(STAGE_QCAR);
+        mStartup.addExternalStage(STAGE_TRACKER_DATA, STAGE_QCAR);
+        mStartup.start();
+        
+        // Create the synthesizer, it is started in onResume():
+        mNoteEventRing = new NoteEventRing();
+        mAudioEngine = new AudioEngine();
+        mAudioEngine.setNoteEventRing(mNoteEventRing);
+        mAudioEngine.setLatencyMonitor(mLatencyMonitor);
+        mAudioEngine.setMidiRecorder(mMidiRecorder);
         
+        // Notes without a sample are plucked strings, which together may
+        // take half of the time of a block:
+        mAudioEngine.setSynthesis(AudioEngine.SYNTHESIS_STRINGS);
+        mAudioEngine.setVoiceBudgetNanos(mAudioEngine.getBlockNanos() /
+                                        (2 * mAudioEngine.getMaxVoices()));
+        mAudioSink = new AudioTrackSink();
+        loadSampleBank();
+
         // Query the QCAR initialization flags:
         mQCARFlags = getInitializationFlags();
         
@@ -292,19 +453,86 @@ public class VirtualButtons extends Activity
 
     
     /** We want to load specific textures from the APK, which we will later
-    use for rendering. */
+    use for rendering. Each texture is loaded by its own start-up stage,
+    from its ETC1 version (same name, .pkm) if one is packaged, otherwise
+    from the texture cache if possible. */
     private void loadTextures()
     {
-        mTextures.add(Texture.loadTextureFromApk("TextureTeapotBrass.png",
-                getAssets()));
-        mTextures.add(Texture.loadTextureFromApk("TextureTeapotRed.png",
-                getAssets()));
-        mTextures.add(Texture.loadTextureFromApk("TextureTeapotBlue.png",
-                getAssets()));
-        mTextures.add(Texture.loadTextureFromApk("TextureTeapotYellow.png",
-                getAssets()));        
-        mTextures.add(Texture.loadTextureFromApk("TextureTeapotGreen.png",
-                getAssets()));
+        mTextures.setSize(TEXTURE_FILES.length);
+        
+        String[] textureStages = new String[TEXTURE_FILES.length];
+        for (int i = 0; i < TEXTURE_FILES.length; ++i)
+        {
+            final int index = i;
+            textureStages[i] = TEXTURE_FILES[i];
+            mStartup.addStage(textureStages[i], new Runnable()
+            {
+                public void run()
+                {
+                    String fileName = TEXTURE_FILES[index];
+                    Texture texture = Texture.loadCompressedTextureFromApk(
+                                        fileName.replace(".png", ".pkm"),
+                                        getAssets());
+                    if (texture == null)
+                        texture = mTextureCache.loadTexture(fileName,
+                                                            getAssets());
+                    if (texture == null)
+                        throw new RuntimeException("Failed to load " +
+                                                    fileName);
+                    
+                    mTextures.set(index, texture);
+                }
+            });
+        }
+        
+        // Joins all texture stages:
+        mStartup.addStage(STAGE_TEXTURES, new Runnable()
+        {
+            public void run()
+            {
+            }
+        }, textureStages);
+    }
+
+    
+    /** Reads the key layout from the dataset in the background. */
+    private void loadKeyLayout()
+    {
+        mStartup.addStage(STAGE_KEY_LAYOUT, new Runnable()
+        {
+            public void run()
+            {
+                mKeyLayout = KeyLayout.loadFromApk(DATASET_FILE, getAssets());
+                if (mKeyLayout == null)
+                    throw new RuntimeException("Failed to load " + DATASET_FILE);
+            }
+        });
+    }
+
+    
+    /** Maps the sample bank in the background. Until it is loaded, or if
+     *  there is none, the notes are synthesized. */
+    private void loadSampleBank()
+    {
+        mStartup.addStage(STAGE_SAMPLE_BANK, new Runnable()
+        {
+            public void run()
+            {
+                mSampleBank = SampleBank.loadFromApk(SAMPLE_BANK_FILE,
+                                    getAssets(),
+                                    SampleBank.DEFAULT_BUDGET_BYTES);
+                if (mSampleBank != null)
+                {
+                    DebugLog.LOGI("Sample bank: {} zones, {} kB mapped, {} " +
+                                    "kB of attacks resident",
+                                    mSampleBank.getZoneCount(),
+                                    mSampleBank.getMappedBytes() / 1024,
+                                    mSampleBank.getPinnedBytes() / 1024);
+                    mSampleBank.start();
+                    mAudioEngine.setSampleBank(mSampleBank);
+                }
+            }
+        });
     }
 
     
@@ -334,11 +562,22 @@ public class VirtualButtons extends Activity
     protected void onResume()
     {
         DebugLog.LOGD("VirtualButtons::onResume");
+        long resumeNanos = System.nanoTime();
         super.onResume();
         
         // QCAR-specific resume operation
         QCAR.onResume();
         
+        // Restart the audio output, it is only opened the first time:
+        if (mAudioEngine.isSuspended())
+            mAudioEngine.resume();
+        else
+            mAudioEngine.start(mAudioSink);
+        
+        // Measure the time to the first tracked frame:
+        if (mRenderer != null)
+            mRenderer.markResume(resumeNanos);
+        
         // We may start the camera only if the QCAR SDK has already been 
         // initialized
         if (mAppStatus == APPSTATUS_CAMERA_STOPPED)
@@ -349,7 +588,8 @@ public class VirtualButtons extends Activity
             if (mFlash)
             {
                 boolean result = activateFlash(mFlash);
-                DebugLog.LOGI("Turning flash "+(mFlash?"ON":"OFF")+" "+(result?"WORKED":"FAILED")+"!!");
+                DebugLog.LOGI("Turning flash {} {}!!", mFlash ? "ON" : "OFF",
+                                result ? "WORKED" : "FAILED");
             }
         }
         
@@ -359,6 +599,9 @@ public class VirtualButtons extends Activity
             mGlView.setVisibility(View.VISIBLE);
             mGlView.onResume();
         }        
+        
+        if (mShowFrameStats)
+            mFrameStatsHandler.post(mFrameStatsRunnable);
     }
     
     public void onConfigurationChanged(Configuration config)
@@ -388,10 +631,77 @@ public class VirtualButtons extends Activity
         if (mAppStatus == APPSTATUS_CAMERA_RUNNING)
         {
             updateApplicationStatus(APPSTATUS_CAMERA_STOPPED);
+            DebugLog.LOGD(mButtonCommands.getReport());
+            DebugLog.LOGD(mLatencyMonitor.getReport());
+            DebugLog.LOGD("Strings: quality {}, {} drops, {} strings " +
+                            "dropped", mAudioEngine.getStringQuality(),
+                            mAudioEngine.getQualityDrops(),
+                            mAudioEngine.getStringsDropped());
+            if (mSampleBank != null)
+            {
+                // In two messages, a message takes up to three arguments:
+                DebugLog.LOGD("Sample bank: {} kB resident, {} hits, {} " +
+                                "misses", mSampleBank.getResidentBytes() / 1024,
+                                mSampleBank.getHits(), mSampleBank.getMisses());
+                DebugLog.LOGD("Sample bank: {} loads, {} evictions",
+                                mSampleBank.getLoads(),
+                                mSampleBank.getEvictions());
+            }
+            dumpLatencies();
+            // Formatted now, the snapshot is reused:
+            DebugLog.LOGD("Frames: {}", mRenderer.getFrameStats().getSnapshot(
+                                            mFrameStatsSnapshot).toString());
+            DebugLog.LOGD("Audio resumed in {} us",
+                            mAudioEngine.getResumeLatencyNanos() / 1000);
+            FrameGovernor governor = mRenderer.getFrameGovernor();
+            DebugLog.LOGD("Frame governor: {} frames, {} refreshes saved, " +
+                            "{} rate changes", governor.getFrames(),
+                            governor.getFramesSaved(),
+                            governor.getModeChanges());
+            getPoseFilterStatistics(mPoseFilterStats);
+            DebugLog.LOGD("Pose filter: {} dropouts, {} frames lost",
+                            mPoseFilterStats[0], mPoseFilterStats[1]);
+            DebugLog.LOGD("Pose filter: {} extrapolated, {} presses recovered",
+                            mPoseFilterStats[2], mPoseFilterStats[3]);
         }
         
+        if (mRecording)
+            toggleRecording();
+        
+        if (mMidiRecorder.isRecording())
+            toggleMidiRecording();
+        
+        if (mFrameStatsHandler != null)
+            mFrameStatsHandler.removeCallbacks(mFrameStatsRunnable);
+        
+        // Release the held notes, so that the recorder sees them end, and
+        // park the engine, which cuts what still sounds. It keeps its sink
+        // until onDestroy(), for a quick resume:
+        mAudioEngine.allNotesOff();
+        mAudioEngine.suspend();
+        
         // QCAR-specific pause operation
         QCAR.onPause();
+        
+        // Write out what was logged, the process may not come back:
+        DebugLog.flush();
+    }
+    
+    
+    /** Writes the key press latencies collected so far to the files
+     *  directory, e.g. for adb pull. */
+    private void dumpLatencies()
+    {
+        File file = new File(getFilesDir(), LATENCY_FILE);
+        try
+        {
+            mLatencyMonitor.dump(file);
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("Failed to write '{}'.", file);
+            DebugLog.LOGI(e.getMessage());
+        }
     }
     
     
@@ -428,6 +738,13 @@ public class VirtualButtons extends Activity
             mLoadTrackerTask = null;
         }
         
+        // Stop the start-up workers, the audio output and the sample
+        // loader:
+        mStartup.shutdown();
+        mAudioEngine.stop();
+        if (mSampleBank != null)
+            mSampleBank.stop();
+        
         // Ensure that all asynchronous operations to initialize QCAR and loading
         // the tracker datasets do not overlap:
         synchronized (mShutdownLock) {
@@ -460,34 +777,56 @@ public class VirtualButtons extends Activity
         DebugLog.LOGD("VirtualButtons::onCreateOptionsMenu");
         super.onCreateOptionsMenu(menu);
 
-        // create menus with icons
+        // create menus with icons, one item per key of the layout
         //
-        menu.add(0, MENU_RED, 0, R.string.menu_red)
-            .setIcon(R.drawable.menu_red);
-        menu.add(0, MENU_BLUE, 0, R.string.menu_blue)
-            .setIcon(R.drawable.menu_blue);
-        menu.add(0, MENU_YELLOW, 0, R.string.menu_yellow)
-            .setIcon(R.drawable.menu_yellow);
-        menu.add(0, MENU_GREEN, 0, R.string.menu_green)
-            .setIcon(R.drawable.menu_green);
+        if (mKeyLayout != null)
+        {
+            int keyCount = mKeyLayout.getKeyCount();
+            Menu keyMenu = menu;
+            if (keyCount > MAX_TOP_LEVEL_KEYS)
+                keyMenu = menu.addSubMenu(0, MENU_KEYS, 0, "Toggle keys");
+            
+            for (int i = 0; i < keyCount; ++i)
+                addKeyMenuItem(keyMenu, i);
+        }
         
         SubMenu focusAndFlash = menu.addSubMenu(0, MENU_FOCUS_FLASH, 0,
                                                 "Focus/Flash");
         focusAndFlash.add(0, MENU_TOGGLE_FLASH, 0, "Toggle flash");
         focusAndFlash.add(0, MENU_AUTOFOCUS, 0, "Trigger autofocus");
+        
+        menu.add(0, MENU_FRAME_STATS, 0, "Frame stats");
+        menu.add(0, MENU_OCCLUSION, 0, "Toggle occlusion detector");
+        menu.add(0, MENU_RECORD, 0, "Record frames");
+        menu.add(0, MENU_MIDI, 0, "Record MIDI");
+        menu.add(0, MENU_TRACE, 0, "Trace");
 
         return true;
     }
 
 
-    /** Native function to create/destroy a Virtual Button.
-     *  Existing buttons will be destroyed and non-existing will be created. */
-    private native void addButtonToToggle(int virtualButtonIdx);
+    /** Adds the toggle item of a key, using the menu_<name> string and
+     *  drawable resources if there are any. */
+    private void addKeyMenuItem(Menu menu, int key)
+    {
+        String name = mKeyLayout.getName(key);
+        int titleId = getResources().getIdentifier("menu_" + name, "string",
+                                                    getPackageName());
+        int iconId = getResources().getIdentifier("menu_" + name, "drawable",
+                                                    getPackageName());
+        
+        MenuItem item = (titleId != 0)
+                        ? menu.add(0, MENU_KEY_BASE + key, 0, titleId)
+                        : menu.add(0, MENU_KEY_BASE + key, 0, "Toggle " + name);
+        if (iconId != 0)
+            item.setIcon(iconId);
+    }
+
 
     /** Invoked when the user selects an item from the Menu */
     public boolean onOptionsItemSelected(MenuItem item)
     {
-        DebugLog.LOGD("VirtualButtons::onOptionsItemSelected " +
+        DebugLog.LOGD("VirtualButtons::onOptionsItemSelected {}",
                         item.getItemId());
         
         // This flag gets only set to false if no item is handled or handline
@@ -497,46 +836,213 @@ public class VirtualButtons extends Activity
         // Handle menu items
         switch (item.getItemId())
         {
-            case MENU_RED:
-                addButtonToToggle(0);
-                break;
-
-            case MENU_BLUE:
-                addButtonToToggle(1);
-                break;
-
-            case MENU_YELLOW:
-                addButtonToToggle(2);
-                break;
-
-            case MENU_GREEN:
-                addButtonToToggle(3);
-                break;
-
             case MENU_TOGGLE_FLASH:
                 mFlash = !mFlash;
                 itemHandled = activateFlash(mFlash);
-                DebugLog.LOGI("Turning flash " + (mFlash?"ON":"OFF") + " " + 
-                                (itemHandled?"WORKED":"FAILED") + "!!");
+                DebugLog.LOGI("Turning flash {} {}!!", mFlash ? "ON" : "OFF",
+                                itemHandled ? "WORKED" : "FAILED");
                 break;
             
             case MENU_AUTOFOCUS:
                 itemHandled = autofocus();
-                DebugLog.LOGI("Autofocus requested" +
-                        (itemHandled ? " successfully." :
-                        ".  Not supported in current mode or on this device."));
+                DebugLog.LOGI("Autofocus requested{}", itemHandled ?
+                        " successfully." :
+                        ".  Not supported in current mode or on this device.");
+                break;
+                
+            case MENU_FRAME_STATS:
+                itemHandled = toggleFrameStats();
+                break;
+                
+            case MENU_OCCLUSION:
+                mOcclusionDetection = !mOcclusionDetection;
+                setOcclusionDetection(mOcclusionDetection);
+                DebugLog.LOGI("Key presses from the {}", mOcclusionDetection ?
+                                "occlusion detector" : "virtual buttons");
+                break;
+                
+            case MENU_RECORD:
+                itemHandled = toggleRecording();
+                break;
+                
+            case MENU_MIDI:
+                itemHandled = toggleMidiRecording();
+                break;
+                
+            case MENU_TRACE:
+                toggleTracing();
                 break;
                 
             default:
-                itemHandled = false;
+                int key = item.getItemId() - MENU_KEY_BASE;
+                if (mKeyLayout != null && key >= 0 &&
+                    key < mKeyLayout.getKeyCount())
+                    itemHandled = mButtonCommands.toggle(key);
+                else
+                    itemHandled = false;
                 break;
         }
 
         return itemHandled;
     }
     
+    /** Shows or hides the frame statistics overlay. It can only be shown
+     *  on top of the running camera view. */
+    private boolean toggleFrameStats()
+    {
+        if (!mShowFrameStats && mAppStatus != APPSTATUS_CAMERA_RUNNING)
+            return false;
+        
+        if (mFrameStatsView == null)
+        {
+            mFrameStatsView = new TextView(this);
+            mFrameStatsView.setTextColor(Color.WHITE);
+            mFrameStatsView.setBackgroundColor(Color.argb(128, 0, 0, 0));
+            addContentView(mFrameStatsView, new LayoutParams(
+                                            LayoutParams.FILL_PARENT,
+                                            LayoutParams.WRAP_CONTENT));
+            
+            mFrameStatsHandler = new Handler();
+            mFrameStatsRunnable = new Runnable()
+            {
+                public void run()
+                {
+                    mFrameStatsView.setText(mRenderer.getFrameStats()
+                                .getSnapshot(mFrameStatsSnapshot).toString());
+                    mFrameStatsHandler.postDelayed(this,
+                                                FRAME_STATS_UPDATE_INTERVAL);
+                }
+            };
+        }
+        
+        mShowFrameStats = !mShowFrameStats;
+        mFrameStatsHandler.removeCallbacks(mFrameStatsRunnable);
+        if (mShowFrameStats)
+            mFrameStatsHandler.post(mFrameStatsRunnable);
+        mFrameStatsView.setVisibility(mShowFrameStats ? View.VISIBLE
+                                                      : View.INVISIBLE);
+        return true;
+    }
+    
+    
+    /** Starts or stops recording the camera frames around the keys, the
+     *  poses and the button states. The file goes to the external files
+     *  directory if there is one, e.g. for adb pull. */
+    private boolean toggleRecording()
+    {
+        if (mRecording)
+        {
+            stopRecording(mRecordingStats);
+            mRecording = false;
+            DebugLog.LOGI("Recorded {} frames, {} dropped, {} kB",
+                            mRecordingStats[0], mRecordingStats[1],
+                            mRecordingStats[2] / 1024);
+            return true;
+        }
+        
+        if (mAppStatus != APPSTATUS_CAMERA_RUNNING)
+            return false;
+        
+        File directory = getExternalFilesDir(null);
+        if (directory == null)
+            directory = getFilesDir();
+        File file = new File(directory, RECORDING_FILE);
+        mRecording = startRecording(file.getAbsolutePath());
+        if (!mRecording)
+            DebugLog.LOGE("Failed to record to '{}'.", file);
+        return mRecording;
+    }
+    
+    
+    /** Starts a trace, or stops it and writes it to a new file next to the
+     *  recordings. */
+    private void toggleTracing()
+    {
+        mTracingStartup = false;
+        if (Tracer.isEnabled())
+            writeTrace("trace-" + System.currentTimeMillis() + ".json");
+        else
+            Tracer.start();
+    }
+    
+    
+    /** Stops tracing and writes the trace on a thread of its own. */
+    private void writeTrace(String fileName)
+    {
+        Tracer.stop();
+        File directory = getExternalFilesDir(null);
+        if (directory == null)
+            directory = getFilesDir();
+        final File file = new File(directory, fileName);
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    int events = Tracer.write(file);
+                    DebugLog.LOGI("Trace written to {}, {} events", file,
+                                    events);
+                }
+                catch (IOException e)
+                {
+                    DebugLog.LOGE("Failed to write '{}'.", file);
+                    DebugLog.LOGI(e.getMessage());
+                }
+            }
+        }, "Tracer").start();
+    }
+    
+    
+    /** Starts or stops recording the notes played into a new MIDI file per
+     *  session, next to the frame recordings. */
+    private boolean toggleMidiRecording()
+    {
+        if (mMidiRecorder.isRecording())
+        {
+            try
+            {
+                mMidiRecorder.stop();
+            }
+            catch (IOException e)
+            {
+                DebugLog.LOGE("Failed to write the MIDI file");
+                DebugLog.LOGI(e.getMessage());
+            }
+            DebugLog.LOGI("Recorded {} notes, {} dropped, {} bytes",
+                            mMidiRecorder.getEvents(),
+                            mMidiRecorder.getDropped(),
+                            mMidiRecorder.getBytesWritten());
+            return true;
+        }
+        
+        File directory = getExternalFilesDir(null);
+        if (directory == null)
+            directory = getFilesDir();
+        File file = new File(directory, "session-" +
+                                System.currentTimeMillis() + ".mid");
+        try
+        {
+            mMidiRecorder.start(file);
+        }
+        catch (IOException e)
+        {
+            DebugLog.LOGE("Failed to record to '{}'.", file);
+            DebugLog.LOGI(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+    
+    
     private MenuItem checked;
     private boolean mFlash = false;
+    private boolean mOcclusionDetection = true;
+    private native void setOcclusionDetection(boolean enabled);
+    private native void setPoseHoldFrames(int frames);
+    private native void getPoseFilterStatistics(long[] statistics);
+    private native boolean startRecording(String path);
+    private native void stopRecording(long[] statistics);
     private native boolean activateFlash(boolean flash);
     private native boolean autofocus();
 
@@ -548,6 +1054,15 @@ public class VirtualButtons extends Activity
         // Exit if there is no change in status
         if (mAppStatus == appStatus)
             return;
+        
+        // Every status is a span of its own in the trace, the transition
+        // one on the UI thread:
+        String statusName = APPSTATUS_NAMES[appStatus + 1];
+        if (mAppStatus != APPSTATUS_UNINITED)
+            Tracer.asyncEnd(APPSTATUS_NAMES[mAppStatus + 1],
+                            TRACE_ID_STATUS);
+        Tracer.asyncBegin(statusName, TRACE_ID_STATUS);
+        Tracer.begin(statusName);
 
         // Store new status value      
         mAppStatus = appStatus;
@@ -616,6 +1131,9 @@ public class VirtualButtons extends Activity
                 break;
                 
             case APPSTATUS_INITED:
+                DebugLog.LOGD(mStartup.getReport());
+                DebugLog.LOGD(mTextureCache.getReport());
+                
                 // Hint to the virtual machine that it would be a good time to
                 // run the garbage collector.
                 //
@@ -643,8 +1161,10 @@ public class VirtualButtons extends Activity
                             // Hide the splash screen
                             mSplashScreenView.setVisibility(View.INVISIBLE);
                             
-                            // Activate the renderer
+                            // Activate the renderer, it may wait for a
+                            // frame request:
                             mRenderer.mIsActive = true;
+                            mGlView.requestRender();
     
                             // Now add the GL surface view. It is important
                             // that the OpenGL ES surface view gets added
@@ -653,6 +1173,9 @@ public class VirtualButtons extends Activity
                             addContentView(mGlView, new LayoutParams(
                                             LayoutParams.FILL_PARENT,
                                             LayoutParams.FILL_PARENT));
+                            addContentView(mChordView, new LayoutParams(
+                                            LayoutParams.WRAP_CONTENT,
+                                            LayoutParams.WRAP_CONTENT));
                             
                             // Start the camera:
                             updateApplicationStatus(APPSTATUS_CAMERA_RUNNING);
@@ -672,11 +1195,29 @@ public class VirtualButtons extends Activity
                 // Call the native function to start the camera
                 startCamera(); 
                 setProjectionMatrix();
+                
+                // Include the first frames in the start-up trace:
+                if (mTracingStartup)
+                {
+                    new Handler().postDelayed(new Runnable()
+                    {
+                        public void run()
+                        {
+                            if (mTracingStartup)
+                            {
+                                mTracingStartup = false;
+                                writeTrace(STARTUP_TRACE_FILE);
+                            }
+                        }
+                    }, TRACE_STARTUP_TAIL);
+                }
                 break;
                 
             default:
                 throw new RuntimeException("Invalid application state");
         }
+        
+        Tracer.end(statusName);
     }
     
     
@@ -741,6 +1282,18 @@ public class VirtualButtons extends Activity
     private native void initApplicationNative(int width, int height);
 
 
+    /** Native function to register the ring receiving button presses from
+     *  the tracking thread. */
+    private native void setNoteEventRing(NoteEventRing ring);
+
+
+    /** Native function to register the key layout. All native per-frame
+     *  buffers are sized from it, see KeyLayout.getTargetFirstKeys(). */
+    private native void setKeyLayout(String[] names, float[] rectangles,
+                                    int[] notes, String[] targetNames,
+                                    int[] targetFirstKeys);
+
+
     /** Initializes AR application components. */
     private void initApplicationAR()
     {        
@@ -748,6 +1301,16 @@ public class VirtualButtons extends Activity
         // callbacks, etc.)
         initApplicationNative(mScreenWidth, mScreenHeight);
 
+        // Let the tracking thread publish button presses:
+        setNoteEventRing(mNoteEventRing);
+
+        // Share the key geometry of the dataset:
+        setKeyLayout(mKeyLayout.getNames(), mKeyLayout.getRectangles(),
+                    mKeyLayout.getNotes(), mKeyLayout.getTargetNames(),
+                    mKeyLayout.getTargetFirstKeys());
+        setOcclusionDetection(mOcclusionDetection);
+        setPoseHoldFrames(POSE_HOLD_FRAMES);
+
         // Create OpenGL ES view:
         int depthSize = 16;
         int stencilSize = 0;
@@ -756,12 +1319,52 @@ public class VirtualButtons extends Activity
         mGlView = new QCARSampleGLView(this);
         mGlView.init(mQCARFlags, translucent, depthSize, stencilSize);
         
-        mRenderer = new VirtualButtonsRenderer();
+        mRenderer = new VirtualButtonsRenderer(mKeyLayout.getKeyCount());
+        mRenderer.setLatencyMonitor(mLatencyMonitor);
+        initChordView();
+        float refreshRate =
+                    getWindowManager().getDefaultDisplay().getRefreshRate();
+        mRenderer.getFrameStats().setRefreshRate(refreshRate);
+        mRenderer.getFrameGovernor().setRefreshRate(refreshRate);
+        mRenderer.getFrameGovernor().setPacer(mGlView);
         mGlView.setRenderer(mRenderer);
  
     }
 
     
+    /** Creates the chord name view and names the held keys whenever they
+     *  change. The view is only posted to when the name changes. */
+    private void initChordView()
+    {
+        mChordView = new TextView(this);
+        mChordView.setTextColor(Color.WHITE);
+        mChordView.setTextSize(32);
+        mChordRunnable = new Runnable()
+        {
+            public void run()
+            {
+                mChordView.setText(mChordName);
+            }
+        };
+
+        mChordAnalyzer = new ChordAnalyzer(mKeyLayout.getNotes());
+        mRenderer.setChordListener(new KeyStateDecoder.ChordListener()
+        {
+            public void onChordChanged(KeySet chord, KeySet previous,
+                                        long timestampNanos)
+            {
+                mChordAnalyzer.analyze(chord);
+                String name = mChordAnalyzer.getName();
+                if (!name.equals(mChordName))
+                {
+                    mChordName = name;
+                    mChordView.post(mChordRunnable);
+                }
+            }
+        });
+    }
+
+    
     /** Returns the number of registered textures. */
     public int getTextureCount()
     {
@@ -14,6 +14,8 @@
 
 package com.qualcomm.QCARSamples.VirtualButtons;
 
+import java.nio.ByteBuffer;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -27,6 +29,92 @@ import cz.marax.virtualpiano.R;
 public class VirtualButtonsRenderer implements GLSurfaceView.Renderer
 {
     public boolean mIsActive = false;
+
+    // The key state snapshot written by native renderFrame():
+    private final ByteBuffer mKeyStateBuffer;
+    private final KeyStateDecoder mKeyStateDecoder;
+    
+    // Frame pacing and the cost of renderFrame():
+    private final FrameStats mFrameStats =
+                            new FrameStats(FrameStats.DEFAULT_REFRESH_RATE);
+    
+    // Lowers the frame rate while nothing is played:
+    private final FrameGovernor mFrameGovernor =
+                        new FrameGovernor(FrameStats.DEFAULT_REFRESH_RATE);
+    
+    // Set by markResume() until the first tracked frame after it:
+    private static final long TRACE_ID_RESUME = 2;
+    private volatile boolean mResuming = false;
+    
+    /** Native function to register the key state snapshot buffer. */
+    private native void setKeyStateBuffer(ByteBuffer buffer);
+    
+    
+    /** Constructor, the snapshot is sized for the keys of the layout. */
+    public VirtualButtonsRenderer(int keyCount)
+    {
+        mKeyStateBuffer = KeyStateDecoder.allocateBuffer(keyCount);
+        mKeyStateDecoder = new KeyStateDecoder(keyCount);
+        
+        // Share the key state snapshot buffer with native code once, before
+        // the GL thread starts rendering:
+        setKeyStateBuffer(mKeyStateBuffer);
+    }
+    
+    
+    /** Sets the listener receiving key presses and releases on the GL thread. */
+    public void setKeyStateListener(KeyStateDecoder.Listener listener)
+    {
+        mKeyStateDecoder.setListener(listener);
+    }
+    
+    
+    /** Sets the listener receiving every change of the held keys on the GL
+     *  thread. */
+    public void setChordListener(KeyStateDecoder.ChordListener listener)
+    {
+        mKeyStateDecoder.setChordListener(listener);
+    }
+    
+    
+    /** Sets the monitor receiving the latencies of key presses up to their
+     *  dispatch. */
+    public void setLatencyMonitor(LatencyMonitor monitor)
+    {
+        mKeyStateDecoder.setLatencyMonitor(monitor);
+    }
+    
+    
+    /** Returns the frame pacing statistics, recorded on the GL thread. */
+    public FrameStats getFrameStats()
+    {
+        return mFrameStats;
+    }
+    
+    
+    /** Returns the frame rate governor, which runs on the GL thread. */
+    public FrameGovernor getFrameGovernor()
+    {
+        return mFrameGovernor;
+    }
+    
+    
+    /** Marks the activity resumed at the given time; the time to the first
+     *  tracked frame is logged and kept in the frame statistics. */
+    public void markResume(long resumeNanos)
+    {
+        mFrameStats.restart(resumeNanos);
+        Tracer.asyncBegin("resume", TRACE_ID_RESUME);
+        mResuming = true;
+    }
+    
+    
+    /** Returns the decoder of the key state snapshot. */
+    public KeyStateDecoder getKeyStateDecoder()
+    {
+        return mKeyStateDecoder;
+    }
+    
     
     /** Native function for initializing the renderer. */
     public native void initRendering();
@@ -43,6 +131,8 @@ public class VirtualButtonsRenderer implements GLSurfaceView.Renderer
 
         // Call native function to initialize rendering:
         initRendering();
+        mFrameStats.restart();
+        Tracer.register();
         
         // Call QCAR function to (re)initialize rendering after first use
         // or after OpenGL ES context was lost (e.g. after onPause/onResume):
@@ -63,17 +153,47 @@ public class VirtualButtonsRenderer implements GLSurfaceView.Renderer
     }    
     
     
-    /** The native render function. */    
-    public native void renderFrame();
+    /** The native render function, returns the number of targets
+     *  tracked. */    
+    public native int renderFrame();
     
     
     /** Called to draw the current frame. */
     public void onDrawFrame(GL10 gl)
     {
+        // Nothing is drawn, so no frames are requested until activated:
         if (!mIsActive)
+        {
+            mFrameGovernor.onInactive();
             return;
+        }
 
+        Tracer.begin("onDrawFrame");
+        
         // Call our native function to render content
-        renderFrame();
+        long startNanos = System.nanoTime();
+        int targets = renderFrame();
+        boolean tracked = targets > 0;
+        mFrameStats.recordFrame(startNanos, System.nanoTime() - startNanos,
+                                targets);
+        if (tracked && mResuming)
+        {
+            mResuming = false;
+            Tracer.asyncEnd("resume", TRACE_ID_RESUME);
+            DebugLog.LOGI("GLRenderer: resumed in {} us",
+                            mFrameStats.getResumeLatencyNanos() / 1000);
+        }
+        
+        // Dispatch the key edges of this frame:
+        boolean keysChanged = mKeyStateDecoder.decode(mKeyStateBuffer) &&
+                              mKeyStateDecoder.isChordChanged();
+        
+        // Choose the time of the next frame, at full rate while resuming:
+        if (mResuming)
+            mFrameGovernor.restart();
+        mFrameStats.setFramePeriods(mFrameGovernor.onFrame(startNanos,
+                                                tracked, keysChanged));
+        
+        Tracer.end("onDrawFrame");
     }
 }
@@ -0,0 +1,142 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/** WavFileSink streams the engine output into a 16-bit mono WAV file.
+ *
+ *  The RIFF header is written with zero sizes up front and patched in
+ *  close() once the length of the data chunk is known.
+ *
+ * */
+
+public class WavFileSink implements AudioSink
+{
+    private static final int HEADER_SIZE = 44;
+
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private ByteBuffer mBuffer;
+    private int mSampleRate;
+    private long mDataBytes;
+
+
+    /** Constructor. */
+    public WavFileSink(File file)
+    {
+        mFile = file;
+    }
+
+
+    public void open(int sampleRate, int blockSize) throws IOException
+    {
+        mSampleRate = sampleRate;
+        mDataBytes = 0;
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+
+        mBuffer = ByteBuffer.allocateDirect(Math.max(blockSize * 2,
+                                                     HEADER_SIZE));
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        writeHeader();
+    }
+
+
+    public void write(float[] block, int numFrames) throws IOException
+    {
+        mBuffer.clear();
+        for (int i = 0; i < numFrames; ++i)
+        {
+            mBuffer.putShort(toPcm16(block[i]));
+        }
+        mBuffer.flip();
+
+        while (mBuffer.hasRemaining())
+            mChannel.write(mBuffer);
+
+        mDataBytes += numFrames * 2;
+    }
+
+
+    /** The file just has no samples for the time suspended. */
+    public void pause()
+    {
+    }
+
+
+    public void resume()
+    {
+    }
+
+
+    public void close() throws IOException
+    {
+        if (mChannel == null)
+            return;
+
+        try
+        {
+            writeHeader();
+        }
+        finally
+        {
+            mChannel.close();
+            mRandomAccessFile.close();
+            mChannel = null;
+            mRandomAccessFile = null;
+        }
+    }
+
+
+    /** Converts a float sample to 16-bit PCM with hard clipping. */
+    static short toPcm16(float sample)
+    {
+        if (sample > 1.0f)
+            sample = 1.0f;
+        else if (sample < -1.0f)
+            sample = -1.0f;
+
+        return (short) (sample * 32767.0f);
+    }
+
+
+    /** Writes the canonical 44 byte header at the start of the file. */
+    private void writeHeader() throws IOException
+    {
+        mBuffer.clear();
+        mBuffer.putInt(0x46464952);                     // "RIFF"
+        mBuffer.putInt((int) (36 + mDataBytes));
+        mBuffer.putInt(0x45564157);                     // "WAVE"
+        mBuffer.putInt(0x20746d66);                     // "fmt "
+        mBuffer.putInt(16);
+        mBuffer.putShort((short) 1);                    // PCM
+        mBuffer.putShort((short) 1);                    // Mono
+        mBuffer.putInt(mSampleRate);
+        mBuffer.putInt(mSampleRate * 2);                // Byte rate
+        mBuffer.putShort((short) 2);                    // Block align
+        mBuffer.putShort((short) 16);                   // Bits per sample
+        mBuffer.putInt(0x61746164);                     // "data"
+        mBuffer.putInt((int) mDataBytes);
+        mBuffer.flip();
+
+        long position = mChannel.position();
+        mChannel.position(0);
+        while (mBuffer.hasRemaining())
+            mChannel.write(mBuffer);
+        mChannel.position(Math.max(position, HEADER_SIZE));
+    }
+}
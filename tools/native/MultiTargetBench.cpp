@@ -0,0 +1,351 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    MultiTargetBench.cpp
+
+@brief
+    Desktop benchmark of key detection on several image targets at once.
+
+    It is not part of the APK. Build and run it on the desktop, e.g.:
+
+        g++ -O2 -Ijni -o bin/MultiTargetBench \
+            tools/native/MultiTargetBench.cpp jni/KeyTargets.cpp \
+            jni/OcclusionDetector.cpp
+        bin/MultiTargetBench [keys per target] [frames]
+
+    Up to KeyTargets::MAX_TARGETS printed octaves lie side by side in the
+    camera image, each with a finger pressing random keys of it. For 1 to
+    MAX_TARGETS visible targets, the work of the tracking thread per frame
+    is timed: the occlusion detector of every visible target and the merge
+    of its keys into the words of the layout. The cost per frame should
+    grow linearly with the targets. Merging and extracting the keys of
+    targets that straddle the words of the layout is checked first.
+
+==============================================================================*/
+
+// Include files
+#include "KeyTargets.h"
+#include "OcclusionDetector.h"
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+namespace
+{
+    const int WIDTH = 640;
+    const int HEIGHT = 480;
+    const float FOCAL = 600.0f;
+    const float DISTANCE = 600.0f;
+
+    /// The size of a printed target and the distance between two of them,
+    /// in millimeters.
+    const float TARGET_WIDTH = 140.0f;
+    const float TARGET_HEIGHT = 90.0f;
+    const float TARGET_SPACING = 150.0f;
+
+    /// Frames a press lasts, the longest pause between presses and the
+    /// frames every detector learns its keys first.
+    const int PRESS_FRAMES = 15;
+    const int MAX_PAUSE_FRAMES = 10;
+    const int LEARN_FRAMES = 30;
+
+    unsigned int sRandom = 1;
+
+    float
+    random01()
+    {
+        sRandom = sRandom * 1103515245u + 12345u;
+        return ((sRandom >> 8) & 0xffff) / 65536.0f;
+    }
+
+    long long
+    random64()
+    {
+        long long value = 0;
+        for (int i = 0; i < 4; ++i)
+            value = (value << 16) | (long long) (random01() * 65536.0f);
+        return value;
+    }
+
+    long long
+    nowNanos()
+    {
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return (long long) now.tv_sec * 1000000000LL + now.tv_nsec;
+    }
+
+    /// Luminance of the printed target at a point of the target plane.
+    float
+    targetLuminance(float x, float y)
+    {
+        int cellX = (int) floorf(x * 0.25f);
+        int cellY = (int) floorf(y * 0.25f);
+        unsigned int hash = (cellX * 73856093u) ^ (cellY * 19349663u);
+        return 120.0f + 50.0f * sinf(0.3f * x) * cosf(0.21f * y) +
+               (float) (hash % 41) - 20.0f;
+    }
+
+    /// The x offset of a target in the camera frame, in millimeters.
+    float
+    targetShift(int target)
+    {
+        return (target - 0.5f * (KeyTargets::MAX_TARGETS - 1)) *
+               TARGET_SPACING;
+    }
+
+    /// Builds the 3x4 pose of a target facing the camera from DISTANCE.
+    void
+    makePose(int target, float* pose)
+    {
+        const float facing[12] = { 1, 0, 0, targetShift(target),
+                                   0, -1, 0, 0,
+                                   0, 0, -1, DISTANCE };
+        memcpy(pose, facing, sizeof(facing));
+    }
+
+    /// Renders all targets, fingerKeys holds the key pressed on every
+    /// target or -1.
+    void
+    renderFrame(const float* rectangles, const int* fingerKeys,
+                unsigned char* image)
+    {
+        for (int v = 0; v < HEIGHT; ++v)
+        {
+            for (int u = 0; u < WIDTH; ++u)
+            {
+                float x = (u - WIDTH / 2) * DISTANCE / FOCAL;
+                float y = -(v - HEIGHT / 2) * DISTANCE / FOCAL;
+                float luminance = 60.0f;
+                for (int t = 0; t < KeyTargets::MAX_TARGETS; ++t)
+                {
+                    float tx = x - targetShift(t);
+                    if (fabsf(tx) > 0.5f * TARGET_WIDTH ||
+                        fabsf(y) > 0.5f * TARGET_HEIGHT)
+                        continue;
+
+                    luminance = targetLuminance(tx, y);
+                    if (fingerKeys[t] >= 0)
+                    {
+                        const float* r = &rectangles[fingerKeys[t] * 4];
+                        float fx = (tx - 0.5f * (r[0] + r[2])) /
+                                   (0.7f * fabsf(r[2] - r[0]));
+                        float fy = (y - 0.5f * (r[1] + r[3])) /
+                                   (0.7f * fabsf(r[3] - r[1]));
+                        if (fx * fx + fy * fy < 1.0f)
+                            luminance = 175.0f - 25.0f * (fx * fx + fy * fy);
+                    }
+                    break;
+                }
+
+                luminance += (random01() - 0.5f) * 10.0f;
+                image[v * WIDTH + u] = (unsigned char) (luminance < 0 ? 0 :
+                                        (luminance > 255 ? 255 : luminance));
+            }
+        }
+    }
+
+    /// Checks that merge() and extract() move exactly the keys of a target
+    /// for targets of 1 to 130 keys. Returns the number of failures.
+    int
+    checkMerge()
+    {
+        const char* names[KeyTargets::MAX_TARGETS] = { "a", "b", "c", "d" };
+        int failures = 0;
+        for (int keys = 1; keys <= 130; ++keys)
+        {
+            int firstKeys[KeyTargets::MAX_TARGETS + 1];
+            for (int t = 0; t <= KeyTargets::MAX_TARGETS; ++t)
+                firstKeys[t] = t * keys;
+
+            KeyTargets targets;
+            targets.init(KeyTargets::MAX_TARGETS, names, firstKeys);
+            int words = targets.getWords();
+            long long layout[9], expected[9], source[3], extracted[3];
+            for (int t = 0; t < KeyTargets::MAX_TARGETS; ++t)
+            {
+                for (int w = 0; w < words; ++w)
+                    layout[w] = expected[w] = random64();
+                for (int w = 0; w < targets.getTargetWords(t); ++w)
+                    source[w] = random64();
+
+                // Bit k of the target is key first + k of the layout:
+                for (int k = 0; k < keys; ++k)
+                {
+                    int key = firstKeys[t] + k;
+                    long long bit = (long long) 1 << (key & 63);
+                    if ((source[k >> 6] >> (k & 63)) & 1)
+                        expected[key >> 6] |= bit;
+                    else
+                        expected[key >> 6] &= ~bit;
+                }
+
+                targets.merge(layout, t, source);
+                targets.extract(layout, t, extracted);
+                if (memcmp(layout, expected, words * sizeof(long long)) != 0)
+                    failures++;
+                for (int k = 0; k < keys; ++k)
+                {
+                    if (((extracted[k >> 6] ^ source[k >> 6]) >> (k & 63)) & 1)
+                    {
+                        failures++;
+                        break;
+                    }
+                }
+            }
+        }
+        return failures;
+    }
+}
+
+
+int
+main(int argc, char** argv)
+{
+    int keyCount = argc > 1 ? atoi(argv[1]) : 12;
+    int frames = argc > 2 ? atoi(argv[2]) : 300;
+    if (keyCount <= 0 || frames <= 0)
+    {
+        fprintf(stderr, "Usage: MultiTargetBench [keys per target] "
+                        "[frames]\n");
+        return 1;
+    }
+
+    int failures = checkMerge();
+    printf("merge/extract of 1 to 130 keys per target: %s\n",
+            failures == 0 ? "ok" : "FAILED");
+
+    // The same octave printed on every target, keys in a row:
+    float keyWidth = TARGET_WIDTH / keyCount;
+    float* rectangles = new float[keyCount * 4];
+    for (int k = 0; k < keyCount; ++k)
+    {
+        float left = -0.5f * TARGET_WIDTH + k * keyWidth;
+        rectangles[k * 4 + 0] = left + 0.1f * keyWidth;
+        rectangles[k * 4 + 1] = 0.4f * TARGET_HEIGHT;
+        rectangles[k * 4 + 2] = left + 0.9f * keyWidth;
+        rectangles[k * 4 + 3] = -0.4f * TARGET_HEIGHT;
+    }
+
+    const char* names[KeyTargets::MAX_TARGETS] = { "octave_1", "octave_2",
+                                                    "octave_3", "octave_4" };
+    int firstKeys[KeyTargets::MAX_TARGETS + 1];
+    for (int t = 0; t <= KeyTargets::MAX_TARGETS; ++t)
+        firstKeys[t] = t * keyCount;
+
+    KeyTargets targets;
+    targets.init(KeyTargets::MAX_TARGETS, names, firstKeys);
+    int words = targets.getWords();
+    long long* pressedKeys = new long long[words];
+
+    OcclusionDetector detectors[KeyTargets::MAX_TARGETS];
+    float poses[KeyTargets::MAX_TARGETS][12];
+    for (int t = 0; t < KeyTargets::MAX_TARGETS; ++t)
+    {
+        detectors[t].init(keyCount, rectangles);
+        detectors[t].setCamera(FOCAL, FOCAL, WIDTH / 2, HEIGHT / 2);
+        makePose(t, poses[t]);
+    }
+
+    // The frames are rendered once, so that only the detection is timed:
+    int fingerKeys[KeyTargets::MAX_TARGETS];
+    int pressStarts[KeyTargets::MAX_TARGETS];
+    int nextPresses[KeyTargets::MAX_TARGETS];
+    int* frameFingers = new int[frames * KeyTargets::MAX_TARGETS];
+    unsigned char* images = new unsigned char[(LEARN_FRAMES + frames) *
+                                                WIDTH * HEIGHT];
+    for (int t = 0; t < KeyTargets::MAX_TARGETS; ++t)
+    {
+        fingerKeys[t] = -1;
+        nextPresses[t] = (int) (random01() * MAX_PAUSE_FRAMES);
+    }
+    for (int f = 0; f < LEARN_FRAMES + frames; ++f)
+    {
+        int frame = f - LEARN_FRAMES;
+        for (int t = 0; t < KeyTargets::MAX_TARGETS && frame >= 0; ++t)
+        {
+            if (fingerKeys[t] >= 0 && frame - pressStarts[t] == PRESS_FRAMES)
+            {
+                fingerKeys[t] = -1;
+                nextPresses[t] = frame + 2 +
+                                 (int) (random01() * MAX_PAUSE_FRAMES);
+            }
+            if (fingerKeys[t] < 0 && frame == nextPresses[t])
+            {
+                fingerKeys[t] = (int) (random01() * keyCount) % keyCount;
+                pressStarts[t] = frame;
+            }
+            frameFingers[frame * KeyTargets::MAX_TARGETS + t] = fingerKeys[t];
+        }
+        renderFrame(rectangles, fingerKeys, &images[f * WIDTH * HEIGHT]);
+    }
+
+    double oneTargetNanos = 0;
+    for (int visible = 1; visible <= KeyTargets::MAX_TARGETS; ++visible)
+    {
+        for (int t = 0; t < visible; ++t)
+            detectors[t].relearn();
+        for (int f = 0; f < LEARN_FRAMES; ++f)
+        {
+            for (int t = 0; t < visible; ++t)
+                detectors[t].update(&images[f * WIDTH * HEIGHT], WIDTH,
+                                    HEIGHT, WIDTH, poses[t]);
+        }
+
+        long long detectNanos = 0;
+        long long maxNanos = 0;
+        int hits = 0, pressedFrames = 0;
+        for (int f = 0; f < frames; ++f)
+        {
+            const unsigned char* image =
+                                &images[(LEARN_FRAMES + f) * WIDTH * HEIGHT];
+
+            // The per-frame work of the tracking thread:
+            long long start = nowNanos();
+            for (int t = 0; t < visible; ++t)
+            {
+                detectors[t].update(image, WIDTH, HEIGHT, WIDTH, poses[t]);
+                targets.merge(pressedKeys, t, detectors[t].getPressedKeys());
+            }
+            long long nanos = nowNanos() - start;
+            detectNanos += nanos;
+            if (nanos > maxNanos)
+                maxNanos = nanos;
+
+            // The keys of every target land at its place in the layout:
+            for (int t = 0; t < visible; ++t)
+            {
+                int finger = frameFingers[f * KeyTargets::MAX_TARGETS + t];
+                if (finger < 0)
+                    continue;
+
+                int key = targets.getFirstKey(t) + finger;
+                pressedFrames++;
+                if ((pressedKeys[key >> 6] >> (key & 63)) & 1)
+                    hits++;
+            }
+        }
+
+        double frameNanos = (double) detectNanos / frames;
+        if (visible == 1)
+            oneTargetNanos = frameNanos;
+        printf("%d target%s, %d keys each: %.1f us/frame (%.1f max), "
+                "%.1f us/target, %.2fx one target, pressed %d%% of the "
+                "finger frames\n", visible, visible > 1 ? "s" : "",
+                keyCount, frameNanos / 1e3, maxNanos / 1e3,
+                frameNanos / 1e3 / visible, frameNanos / oneTargetNanos,
+                pressedFrames > 0 ? 100 * hits / pressedFrames : 0);
+    }
+
+    delete[] images;
+    delete[] frameFingers;
+    delete[] pressedKeys;
+    delete[] rectangles;
+    return failures == 0 ? 0 : 1;
+}
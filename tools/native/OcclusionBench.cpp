@@ -0,0 +1,362 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    OcclusionBench.cpp
+
+@brief
+    Desktop benchmark of the OcclusionDetector.
+
+    It is not part of the APK. Build and run it on the desktop, e.g.:
+
+        g++ -O2 -Ijni -o bin/OcclusionBench tools/native/OcclusionBench.cpp \
+            jni/OcclusionDetector.cpp jni/FrameRecorder.cpp -lpthread
+        bin/OcclusionBench [keys] [frames] [recording]
+
+    Luminance frames of a textured target are rendered under a jittering
+    pose with sensor noise and a slow change of exposure, and a finger
+    covers random keys for a few frames at a time. The benchmark reports
+    how many frames a press takes to be detected, misses and false
+    presses, and the time the detector needs per frame and per key.
+
+    If a recording file is given, the frames are also written through the
+    FrameRecorder at 30 fps with the finger as the recorded key state, for
+    a test of the FrameReplay tool.
+
+    Finally a pressed key is moved out of the image, which must release
+    it. The exit status is 1 if it stays pressed.
+
+==============================================================================*/
+
+// Include files
+#include "OcclusionDetector.h"
+#include "FrameRecorder.h"
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+namespace
+{
+    const int WIDTH = 640;
+    const int HEIGHT = 480;
+    const float FOCAL = 600.0f;
+    const float DISTANCE = 250.0f;
+    const long long FRAME_NANOS = 33333333;
+    const int RECORD_MARGIN = 16;
+
+    /// Frames a press lasts, and the longest pause between presses.
+    const int PRESS_FRAMES = 15;
+    const int MAX_PAUSE_FRAMES = 10;
+
+    unsigned int sRandom = 1;
+
+    float
+    random01()
+    {
+        sRandom = sRandom * 1103515245u + 12345u;
+        return ((sRandom >> 8) & 0xffff) / 65536.0f;
+    }
+
+    long long
+    nowNanos()
+    {
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return (long long) now.tv_sec * 1000000000LL + now.tv_nsec;
+    }
+
+    /// Luminance of the printed target at a point of the target plane.
+    float
+    targetLuminance(float x, float y)
+    {
+        int cellX = (int) floorf(x * 0.25f);
+        int cellY = (int) floorf(y * 0.25f);
+        unsigned int hash = (cellX * 73856093u) ^ (cellY * 19349663u);
+        return 120.0f + 50.0f * sinf(0.3f * x) * cosf(0.21f * y) +
+               (float) (hash % 41) - 20.0f;
+    }
+
+    void
+    multiply3x3(const float* a, const float* b, float* result)
+    {
+        for (int row = 0; row < 3; ++row)
+            for (int column = 0; column < 3; ++column)
+                result[row * 3 + column] = a[row * 3] * b[column] +
+                                           a[row * 3 + 1] * b[3 + column] +
+                                           a[row * 3 + 2] * b[6 + column];
+    }
+
+    /// Builds a 3x4 pose looking at the target from DISTANCE, tilted by
+    /// the given angles and shifted in the image plane.
+    void
+    makePose(float tilt, float roll, float shiftX, float shiftY, float* pose)
+    {
+        float ct = cosf(tilt), st = sinf(tilt);
+        float cr = cosf(roll), sr = sinf(roll);
+
+        // Tilt about the target x axis, flip onto the camera axes (y down,
+        // z away from the camera) and roll about the viewing direction:
+        float tiltX[9] = { 1, 0, 0, 0, ct, -st, 0, st, ct };
+        float flip[9] = { 1, 0, 0, 0, -1, 0, 0, 0, -1 };
+        float rollZ[9] = { cr, -sr, 0, sr, cr, 0, 0, 0, 1 };
+        float flipped[9], r[9];
+        multiply3x3(flip, tiltX, flipped);
+        multiply3x3(rollZ, flipped, r);
+
+        for (int row = 0; row < 3; ++row)
+        {
+            pose[row * 4 + 0] = r[row * 3 + 0];
+            pose[row * 4 + 1] = r[row * 3 + 1];
+            pose[row * 4 + 2] = r[row * 3 + 2];
+        }
+        pose[3] = shiftX;
+        pose[7] = shiftY;
+        pose[11] = DISTANCE;
+    }
+
+    /// Renders the target with a finger on the given key (or none).
+    void
+    renderFrame(const float* pose, const float* rectangles, int fingerKey,
+                float gain, unsigned char* image)
+    {
+        // Invert the homography of the target plane:
+        float h[9] = {
+            FOCAL * pose[0] + WIDTH / 2 * pose[8],
+            FOCAL * pose[1] + WIDTH / 2 * pose[9],
+            FOCAL * pose[3] + WIDTH / 2 * pose[11],
+            FOCAL * pose[4] + HEIGHT / 2 * pose[8],
+            FOCAL * pose[5] + HEIGHT / 2 * pose[9],
+            FOCAL * pose[7] + HEIGHT / 2 * pose[11],
+            pose[8], pose[9], pose[11]
+        };
+        float inverse[9] = {
+            h[4] * h[8] - h[5] * h[7], h[2] * h[7] - h[1] * h[8],
+            h[1] * h[5] - h[2] * h[4],
+            h[5] * h[6] - h[3] * h[8], h[0] * h[8] - h[2] * h[6],
+            h[2] * h[3] - h[0] * h[5],
+            h[3] * h[7] - h[4] * h[6], h[1] * h[6] - h[0] * h[7],
+            h[0] * h[4] - h[1] * h[3]
+        };
+
+        float fingerX = 0, fingerY = 0, radiusX = 1, radiusY = 1;
+        if (fingerKey >= 0)
+        {
+            const float* r = &rectangles[fingerKey * 4];
+            fingerX = 0.5f * (r[0] + r[2]);
+            fingerY = 0.5f * (r[1] + r[3]);
+            radiusX = 0.7f * fabsf(r[2] - r[0]);
+            radiusY = 0.7f * fabsf(r[3] - r[1]);
+        }
+
+        for (int v = 0; v < HEIGHT; ++v)
+        {
+            for (int u = 0; u < WIDTH; ++u)
+            {
+                float w = inverse[6] * u + inverse[7] * v + inverse[8];
+                float x = (inverse[0] * u + inverse[1] * v + inverse[2]) / w;
+                float y = (inverse[3] * u + inverse[4] * v + inverse[5]) / w;
+
+                float luminance = targetLuminance(x, y);
+                if (fingerKey >= 0)
+                {
+                    float fx = (x - fingerX) / radiusX;
+                    float fy = (y - fingerY) / radiusY;
+                    if (fx * fx + fy * fy < 1.0f)
+                        luminance = 175.0f - 25.0f * (fx * fx + fy * fy);
+                }
+
+                luminance = luminance * gain + (random01() - 0.5f) * 10.0f;
+                image[v * WIDTH + u] = (unsigned char) (luminance < 0 ? 0 :
+                                        (luminance > 255 ? 255 : luminance));
+            }
+        }
+    }
+}
+
+
+int
+main(int argc, char** argv)
+{
+    int keyCount = argc > 1 ? atoi(argv[1]) : 88;
+    int frames = argc > 2 ? atoi(argv[2]) : 1000;
+    const char* recordingPath = argc > 3 ? argv[3] : 0;
+    if (keyCount <= 0 || frames <= 0)
+    {
+        fprintf(stderr, "Usage: OcclusionBench [keys] [frames] [recording]\n");
+        return 1;
+    }
+
+    // Keys in rows of up to 22 on the target:
+    int columns = keyCount < 22 ? keyCount : 22;
+    int rows = (keyCount + columns - 1) / columns;
+    float keyWidth = 140.0f / columns;
+    float keyHeight = 90.0f / rows;
+    float* rectangles = new float[keyCount * 4];
+    for (int k = 0; k < keyCount; ++k)
+    {
+        float left = -70.0f + (k % columns) * keyWidth;
+        float top = 45.0f - (k / columns) * keyHeight;
+        rectangles[k * 4 + 0] = left + 0.1f * keyWidth;
+        rectangles[k * 4 + 1] = top - 0.1f * keyHeight;
+        rectangles[k * 4 + 2] = left + 0.9f * keyWidth;
+        rectangles[k * 4 + 3] = top - 0.9f * keyHeight;
+    }
+
+    OcclusionDetector detector;
+    detector.init(keyCount, rectangles);
+    detector.setCamera(FOCAL, FOCAL, WIDTH / 2, HEIGHT / 2);
+
+    unsigned char* image = new unsigned char[WIDTH * HEIGHT];
+    float pose[12];
+
+    FrameRecorder recorder;
+    int words = (keyCount + 63) / 64;
+    long long* fingerKeys = new long long[words];
+    long long* allKeys = new long long[words];
+    memset(allKeys, 0xff, words * sizeof(long long));
+    if (recordingPath != 0)
+    {
+        int* notes = new int[keyCount];
+        for (int k = 0; k < keyCount; ++k)
+            notes[k] = 21 + k % 88;
+        bool started = recorder.start(recordingPath, keyCount, rectangles,
+                                        notes);
+        delete[] notes;
+        if (!started)
+        {
+            fprintf(stderr, "Cannot record to %s\n", recordingPath);
+            return 1;
+        }
+    }
+
+    int fingerKey = -1;
+    int lastFingerKey = -1;
+    int releaseFrame = 0;
+    int pressStart = 0;
+    int nextPress = 20;
+    bool detected = false;
+    int presses = 0, misses = 0, latencySum = 0, maxLatency = 0;
+    int falseFrames = 0;
+    long long detectNanos = 0;
+    long long evaluatedKeys = 0;
+
+    for (int f = 0; f < frames; ++f)
+    {
+        // Start or end the press of a random key:
+        if (fingerKey >= 0 && f - pressStart == PRESS_FRAMES)
+        {
+            if (!detected)
+                misses++;
+            lastFingerKey = fingerKey;
+            releaseFrame = f;
+            fingerKey = -1;
+            nextPress = f + 2 + (int) (random01() * MAX_PAUSE_FRAMES);
+        }
+        if (fingerKey < 0 && f == nextPress)
+        {
+            fingerKey = (int) (random01() * keyCount) % keyCount;
+            pressStart = f;
+            detected = false;
+            presses++;
+        }
+
+        float t = f * 0.01f;
+        makePose(0.3f + 0.05f * sinf(t) + 0.002f * (random01() - 0.5f),
+                0.1f * sinf(0.7f * t) + 0.002f * (random01() - 0.5f),
+                5.0f * sinf(0.3f * t), 3.0f * cosf(0.4f * t), pose);
+        renderFrame(pose, rectangles, fingerKey, 1.0f + 0.1f * sinf(0.5f * t),
+                    image);
+
+        long long start = nowNanos();
+        evaluatedKeys += detector.update(image, WIDTH, HEIGHT, WIDTH, pose);
+        detectNanos += nowNanos() - start;
+
+        if (recordingPath != 0)
+        {
+            const float camera[4] = { FOCAL, FOCAL, WIDTH / 2, HEIGHT / 2 };
+            int crop[4];
+            bool cropped = detector.getKeyBounds(WIDTH, HEIGHT, RECORD_MARGIN,
+                                                crop);
+            memset(fingerKeys, 0, words * sizeof(long long));
+            if (fingerKey >= 0)
+                fingerKeys[fingerKey >> 6] |= (long long) 1 << (fingerKey & 63);
+
+            recorder.record(f, f * FRAME_NANOS, true, pose, camera, WIDTH,
+                            HEIGHT, cropped ? image : 0, WIDTH,
+                            cropped ? crop : 0, fingerKeys, allKeys);
+        }
+
+        for (int k = 0; k < keyCount; ++k)
+        {
+            if (!detector.isPressed(k))
+                continue;
+
+            if (k == fingerKey)
+            {
+                if (!detected)
+                {
+                    int latency = f - pressStart;
+                    latencySum += latency;
+                    if (latency > maxLatency)
+                        maxLatency = latency;
+                    detected = true;
+                }
+            }
+            else if (k != lastFingerKey || f - releaseFrame > 1)
+            {
+                // Only the key just released may lag by a frame:
+                falseFrames++;
+            }
+        }
+    }
+
+    int hits = presses - misses - (fingerKey >= 0 && !detected ? 1 : 0);
+    printf("%d keys, %d frames %dx%d: %.1f us/frame, %.1f keys/frame, "
+            "%.0f ns/key\n", keyCount, frames, WIDTH, HEIGHT,
+            detectNanos / 1e3 / frames, (double) evaluatedKeys / frames,
+            evaluatedKeys > 0 ? (double) detectNanos / evaluatedKeys : 0.0);
+    printf("presses %d, detected %d, missed %d, latency %.2f frames mean, "
+            "%d max, false key-frames %d\n", presses, hits, misses,
+            hits > 0 ? (double) latencySum / hits : 0.0, maxLatency,
+            falseFrames);
+
+    // Press the first key and move the target until the key leaves the
+    // image, it must be released after a few frames:
+    makePose(0.3f, 0.0f, 0.0f, 0.0f, pose);
+    for (int f = 0; f < 30; ++f)
+    {
+        renderFrame(pose, rectangles, 0, 1.0f, image);
+        detector.update(image, WIDTH, HEIGHT, WIDTH, pose);
+    }
+    bool pressedInside = detector.isPressed(0);
+    makePose(0.3f, 0.0f, 200.0f, 0.0f, pose);
+    for (int f = 0; f < 30; ++f)
+    {
+        renderFrame(pose, rectangles, 0, 1.0f, image);
+        detector.update(image, WIDTH, HEIGHT, WIDTH, pose);
+    }
+    bool releasedOutside = !detector.isPressed(0);
+    printf("key leaving the image while pressed: %s\n",
+            !pressedInside ? "NOT PRESSED" :
+            (releasedOutside ? "released" : "STUCK"));
+
+    if (recordingPath != 0)
+    {
+        recorder.stop();
+        long long statistics[3];
+        recorder.getStatistics(statistics);
+        printf("recorded %lld frames, %lld dropped, %lld bytes to %s\n",
+                statistics[0], statistics[1], statistics[2], recordingPath);
+    }
+
+    delete[] fingerKeys;
+    delete[] allKeys;
+    delete[] image;
+    delete[] rectangles;
+    return pressedInside && releasedOutside ? 0 : 1;
+}
@@ -0,0 +1,275 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    PoseFilterBench.cpp
+
+@brief
+    Desktop benchmark of the PoseFilter on synthetic pose traces.
+
+    It is not part of the APK. Build and run it on the desktop, e.g.:
+
+        g++ -O2 -Ijni -o bin/PoseFilterBench \
+            tools/native/PoseFilterBench.cpp jni/PoseFilter.cpp
+        bin/PoseFilterBench [frames] [holdFrames]
+
+    A hand-held camera moves over the target at 30 fps and the tracker
+    measures its pose with noise. Tracking drops out for 1 to 20 frames at
+    random, and a key is pressed every few frames. The benchmark reports
+    the reprojection error of the key corners with and without the filter,
+    the error of the extrapolated poses, how many presses during dropouts
+    the filter recovered, i.e. how many it still placed within a quarter of
+    a key, and the time per update.
+
+==============================================================================*/
+
+// Include files
+#include "PoseFilter.h"
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+namespace
+{
+    const int WIDTH = 640;
+    const int HEIGHT = 480;
+    const float FOCAL = 600.0f;
+    const float DISTANCE = 250.0f;
+    const double FRAME_SECONDS = 1.0 / 30.0;
+
+    /// Keys in one row across the target.
+    const int KEY_COUNT = 22;
+    const float KEY_WIDTH = 140.0f / KEY_COUNT;
+
+    /// Tracker noise of the translation (target units) and the angles.
+    const float POSITION_NOISE = 0.4f;
+    const float ANGLE_NOISE = 0.003f;
+
+    /// Chance of a dropout starting in a tracked frame and its longest
+    /// length, and the frames between presses.
+    const float DROPOUT_CHANCE = 0.03f;
+    const int MAX_DROPOUT_FRAMES = 20;
+    const int PRESS_INTERVAL = 7;
+
+    unsigned int sRandom = 1;
+
+    float
+    random01()
+    {
+        sRandom = sRandom * 1103515245u + 12345u;
+        return ((sRandom >> 8) & 0xffff) / 65536.0f;
+    }
+
+    float
+    noise(float amplitude)
+    {
+        return (random01() + random01() + random01() - 1.5f) * amplitude;
+    }
+
+    long long
+    nowNanos()
+    {
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return (long long) now.tv_sec * 1000000000LL + now.tv_nsec;
+    }
+
+    void
+    multiply3x3(const float* a, const float* b, float* result)
+    {
+        for (int row = 0; row < 3; ++row)
+            for (int column = 0; column < 3; ++column)
+                result[row * 3 + column] = a[row * 3] * b[column] +
+                                           a[row * 3 + 1] * b[3 + column] +
+                                           a[row * 3 + 2] * b[6 + column];
+    }
+
+    /// Builds a 3x4 pose looking at the target, tilted by the given angles
+    /// and shifted in the image plane.
+    void
+    makePose(float tilt, float roll, float shiftX, float shiftY,
+            float distance, float* pose)
+    {
+        float ct = cosf(tilt), st = sinf(tilt);
+        float cr = cosf(roll), sr = sinf(roll);
+
+        // Tilt about the target x axis, flip onto the camera axes (y down,
+        // z away from the camera) and roll about the viewing direction:
+        float tiltX[9] = { 1, 0, 0, 0, ct, -st, 0, st, ct };
+        float flip[9] = { 1, 0, 0, 0, -1, 0, 0, 0, -1 };
+        float rollZ[9] = { cr, -sr, 0, sr, cr, 0, 0, 0, 1 };
+        float flipped[9], r[9];
+        multiply3x3(flip, tiltX, flipped);
+        multiply3x3(rollZ, flipped, r);
+
+        for (int row = 0; row < 3; ++row)
+        {
+            pose[row * 4 + 0] = r[row * 3 + 0];
+            pose[row * 4 + 1] = r[row * 3 + 1];
+            pose[row * 4 + 2] = r[row * 3 + 2];
+        }
+        pose[3] = shiftX;
+        pose[7] = shiftY;
+        pose[11] = distance;
+    }
+
+    /// The camera moving over the target at the given time.
+    void
+    truePose(double t, float* pose)
+    {
+        makePose(0.3f + 0.12f * sinf(1.1f * t), 0.1f * sinf(0.7f * t),
+                20.0f * sinf(0.9f * t), 12.0f * cosf(0.6f * t),
+                DISTANCE + 30.0f * sinf(0.4f * t), pose);
+    }
+
+    /// Projects a point of the target plane into the image.
+    void
+    project(const float* pose, float x, float y, float* u, float* v)
+    {
+        float cx = pose[0] * x + pose[1] * y + pose[3];
+        float cy = pose[4] * x + pose[5] * y + pose[7];
+        float cz = pose[8] * x + pose[9] * y + pose[11];
+        *u = FOCAL * cx / cz + WIDTH / 2;
+        *v = FOCAL * cy / cz + HEIGHT / 2;
+    }
+
+    /// Returns the distance between the projections of a point of the
+    /// target plane through both poses, in pixels.
+    float
+    pointError(const float* pose, const float* reference, float x, float y)
+    {
+        float u, v, referenceU, referenceV;
+        project(pose, x, y, &u, &v);
+        project(reference, x, y, &referenceU, &referenceV);
+        return sqrtf((u - referenceU) * (u - referenceU) +
+                     (v - referenceV) * (v - referenceV));
+    }
+
+    /// Returns the mean reprojection error of the target corners.
+    float
+    cornerError(const float* pose, const float* reference)
+    {
+        return 0.25f * (pointError(pose, reference, -70, 45) +
+                        pointError(pose, reference, 70, 45) +
+                        pointError(pose, reference, -70, -45) +
+                        pointError(pose, reference, 70, -45));
+    }
+
+    /// Returns the width of a key in the image, in pixels.
+    float
+    keyPixels(const float* pose, int key)
+    {
+        float left = -70.0f + key * KEY_WIDTH;
+        float u0, v0, u1, v1;
+        project(pose, left, 0, &u0, &v0);
+        project(pose, left + KEY_WIDTH, 0, &u1, &v1);
+        return sqrtf((u1 - u0) * (u1 - u0) + (v1 - v0) * (v1 - v0));
+    }
+}
+
+
+int
+main(int argc, char** argv)
+{
+    int frames = argc > 1 ? atoi(argv[1]) : 30000;
+    int holdFrames = argc > 2 ? atoi(argv[2]) : PoseFilter::DEFAULT_HOLD_FRAMES;
+    if (frames <= 0 || holdFrames < 0)
+    {
+        fprintf(stderr, "Usage: PoseFilterBench [frames] [holdFrames]\n");
+        return 1;
+    }
+
+    PoseFilter filter;
+    filter.setHoldFrames(holdFrames);
+
+    float truth[12], measured[12];
+    int dropoutFrames = 0;
+    int dropouts = 0, lostFrames = 0, predictedFrames = 0;
+    int pressesTracked = 0, pressesLost = 0, pressesRecovered = 0;
+    double rawError = 0, filteredError = 0, predictedError = 0;
+    float maxPredictedError = 0;
+    int trackedFrames = 0;
+    long long filterNanos = 0;
+
+    for (int f = 0; f < frames; ++f)
+    {
+        double t = f * FRAME_SECONDS;
+        truePose(t, truth);
+
+        if (dropoutFrames == 0 && f > 30 && random01() < DROPOUT_CHANCE)
+        {
+            dropoutFrames = 1 + (int) (random01() * MAX_DROPOUT_FRAMES);
+            dropouts++;
+        }
+        bool tracked = dropoutFrames == 0;
+        bool press = f % PRESS_INTERVAL == 0;
+        int key = (int) (random01() * KEY_COUNT) % KEY_COUNT;
+
+        long long start = nowNanos();
+        bool posed = true;
+        if (tracked)
+        {
+            makePose(0.3f + 0.12f * sinf(1.1f * t) + noise(ANGLE_NOISE),
+                    0.1f * sinf(0.7f * t) + noise(ANGLE_NOISE),
+                    truth[3] + noise(POSITION_NOISE),
+                    truth[7] + noise(POSITION_NOISE),
+                    truth[11] + noise(POSITION_NOISE), measured);
+            filter.update(measured, t);
+        }
+        else
+        {
+            posed = filter.predict(t);
+            dropoutFrames--;
+        }
+        filterNanos += nowNanos() - start;
+
+        if (tracked)
+        {
+            trackedFrames++;
+            rawError += cornerError(measured, truth);
+            filteredError += cornerError(filter.getPose(), truth);
+            if (press)
+                pressesTracked++;
+            continue;
+        }
+
+        lostFrames++;
+        if (press)
+            pressesLost++;
+        if (!posed)
+            continue;
+
+        predictedFrames++;
+        float error = cornerError(filter.getPose(), truth);
+        predictedError += error;
+        if (error > maxPredictedError)
+            maxPredictedError = error;
+
+        // The press lands on its key if the key's center is placed within a
+        // quarter of its width:
+        float center = -70.0f + (key + 0.5f) * KEY_WIDTH;
+        if (press && pointError(filter.getPose(), truth, center, 0) <
+                        0.25f * keyPixels(truth, key))
+            pressesRecovered++;
+    }
+
+    printf("%d frames, %d dropouts, %d frames lost, %d extrapolated "
+            "(hold %d)\n", frames, dropouts, lostFrames, predictedFrames,
+            holdFrames);
+    printf("tracked: raw error %.2f px, filtered %.2f px mean\n",
+            trackedFrames > 0 ? rawError / trackedFrames : 0.0,
+            trackedFrames > 0 ? filteredError / trackedFrames : 0.0);
+    printf("extrapolated: error %.2f px mean, %.2f px max\n",
+            predictedFrames > 0 ? predictedError / predictedFrames : 0.0,
+            maxPredictedError);
+    printf("presses: %d tracked, %d during dropouts, %d recovered (%.1f%%)\n",
+            pressesTracked, pressesLost, pressesRecovered,
+            pressesLost > 0 ? 100.0 * pressesRecovered / pressesLost : 0.0);
+    printf("%.0f ns per frame\n", (double) filterNanos / frames);
+    return 0;
+}
@@ -0,0 +1,114 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+
+@file
+    ReplayDetector.cpp
+
+@brief
+    JNI bridge of the OcclusionDetector for the desktop FrameReplay tool.
+
+    It is not part of the APK. Build it as a desktop library next to the
+    tool classes, e.g.:
+
+        g++ -O2 -shared -fPIC -Ijni -I$JAVA_HOME/include \
+            -I$JAVA_HOME/include/linux -o bin/libReplayDetector.so \
+            tools/native/ReplayDetector.cpp jni/OcclusionDetector.cpp
+
+==============================================================================*/
+
+// Include files
+#include <jni.h>
+
+#include "OcclusionDetector.h"
+
+namespace
+{
+    OcclusionDetector*
+    getDetector(jlong handle)
+    {
+        return reinterpret_cast<OcclusionDetector*>(handle);
+    }
+}
+
+
+extern "C"
+{
+
+JNIEXPORT jlong JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_ReplayDetector_create(
+    JNIEnv* env, jclass, jfloatArray rectangles)
+{
+    int keyCount = env->GetArrayLength(rectangles) / 4;
+    float* values = env->GetFloatArrayElements(rectangles, NULL);
+    OcclusionDetector* detector = new OcclusionDetector();
+    bool initialized = detector->init(keyCount, values);
+    env->ReleaseFloatArrayElements(rectangles, values, JNI_ABORT);
+
+    if (!initialized)
+    {
+        delete detector;
+        return 0;
+    }
+    return reinterpret_cast<jlong>(detector);
+}
+
+
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_ReplayDetector_destroy(
+    JNIEnv*, jclass, jlong handle)
+{
+    delete getDetector(handle);
+}
+
+
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_ReplayDetector_setCamera(
+    JNIEnv*, jclass, jlong handle, jfloat focalX, jfloat focalY,
+    jfloat principalX, jfloat principalY)
+{
+    getDetector(handle)->setCamera(focalX, focalY, principalX, principalY);
+}
+
+
+JNIEXPORT jint JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_ReplayDetector_update(
+    JNIEnv* env, jclass, jlong handle, jobject pixels, jint width,
+    jint height, jint stride, jfloatArray pose, jlongArray enabledKeys)
+{
+    const unsigned char* address =
+        static_cast<const unsigned char*>(env->GetDirectBufferAddress(pixels));
+    if (address == 0)
+        return 0;
+
+    float values[12];
+    env->GetFloatArrayRegion(pose, 0, 12, values);
+
+    jlong* enabled = env->GetLongArrayElements(enabledKeys, NULL);
+    int evaluated = getDetector(handle)->update(address, width, height,
+                        stride, values, reinterpret_cast<long long*>(enabled));
+    env->ReleaseLongArrayElements(enabledKeys, enabled, JNI_ABORT);
+    return evaluated;
+}
+
+
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_ReplayDetector_lost(
+    JNIEnv*, jclass, jlong handle)
+{
+    getDetector(handle)->lost();
+}
+
+
+JNIEXPORT void JNICALL
+Java_com_qualcomm_QCARSamples_VirtualButtons_ReplayDetector_getPressedKeys(
+    JNIEnv* env, jclass, jlong handle, jlongArray keys)
+{
+    OcclusionDetector* detector = getDetector(handle);
+    int words = (detector->getKeyCount() + 63) / 64;
+    env->SetLongArrayRegion(keys, 0, words,
+        reinterpret_cast<const jlong*>(detector->getPressedKeys()));
+}
+
+}
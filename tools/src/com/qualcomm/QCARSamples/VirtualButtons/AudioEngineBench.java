@@ -0,0 +1,123 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+
+/** AudioEngineBench measures the voice throughput of the AudioEngine and
+ *  the latency from a key press to its first sample, and renders the demo
+ *  arpeggio of PerfBench.
+ *
+ * */
+
+public class AudioEngineBench extends Benchmark
+{
+    /** Measures voice throughput and press-to-first-sample latency. */
+    public void run() throws IOException
+    {
+        System.out.println("AudioEngine throughput");
+
+        int[] voiceCounts = { 1, 4, 8, 16, 32, 64 };
+        for (int n = 0; n < voiceCounts.length; ++n)
+        {
+            int voices = voiceCounts[n];
+            AudioEngine engine = new AudioEngine(
+                    AudioEngine.DEFAULT_SAMPLE_RATE,
+                    AudioEngine.DEFAULT_BLOCK_SIZE, voices);
+            NullAudioSink sink = new NullAudioSink();
+            sink.open(engine.getSampleRate(), engine.getBlockSize());
+
+            for (int block = 0; block < WARMUP_BLOCKS + MEASURE_BLOCKS; ++block)
+            {
+                if (block == WARMUP_BLOCKS)
+                    engine.resetStatistics();
+
+                // Keep every voice busy by re-striking the chord regularly:
+                if (block % 200 == 0)
+                {
+                    for (int v = 0; v < voices; ++v)
+                        engine.noteOn(24 + v, 100);
+                }
+
+                engine.processBlock(sink);
+            }
+            sink.close();
+
+            System.out.println(String.format(
+                "  %2d voices: %8.1f voice-blocks/cpu-ms, " +
+                "%6.0f realtime voices, %6.2f us/block",
+                voices, engine.getVoiceBlocksPerCpuMs(),
+                engine.getRealtimeVoiceCapacity(),
+                engine.getRenderNanos() / 1000.0 /
+                    engine.getBlocksRendered()));
+        }
+
+        // Press-to-first-sample latency through a WAV sink:
+        AudioEngine engine = new AudioEngine();
+        File file = File.createTempFile("latency", ".wav");
+        WavFileSink sink = new WavFileSink(file);
+        sink.open(engine.getSampleRate(), engine.getBlockSize());
+        for (int press = 0; press < 1000; ++press)
+        {
+            engine.noteOn(60 + press % 12, 90);
+            engine.processBlock(sink);
+            engine.noteOff(60 + press % 12);
+            engine.processBlock(sink);
+        }
+        sink.close();
+        file.delete();
+
+        System.out.println(String.format(
+            "  latency: mean %.1f us, max %.1f us over %d presses " +
+            "(excluding output buffering)",
+            engine.getMeanLatencyNanos() / 1000.0,
+            engine.getMaxLatencyNanos() / 1000.0,
+            engine.getLatencyCount()));
+        expect(engine.getLatencyCount() == 1000,
+                "a latency for every press");
+    }
+
+
+    /** Renders blocks with every voice of the engine sounding. */
+    static void runVoices(AudioEngine engine, int blocks)
+    {
+        int voices = engine.getMaxVoices();
+        for (int block = 0; block < blocks; ++block)
+        {
+            if (block % 32 == 0)
+                for (int v = 0; v < voices; ++v)
+                    engine.startNote(36 + v, 64 + v % 64, 0);
+            engine.renderBlock();
+        }
+    }
+
+
+    /** Renders a short arpeggio into a WAV file for listening tests. */
+    static void renderDemo(File file) throws IOException
+    {
+        AudioEngine engine = new AudioEngine();
+        WavFileSink sink = new WavFileSink(file);
+        sink.open(engine.getSampleRate(), engine.getBlockSize());
+
+        int[] notes = { 60, 64, 67, 72, 67, 64, 60 };
+        int blocksPerNote = engine.getSampleRate() / 4 /
+                                engine.getBlockSize();
+        for (int i = 0; i < notes.length; ++i)
+        {
+            engine.noteOn(notes[i], 100);
+            for (int block = 0; block < blocksPerNote; ++block)
+                engine.processBlock(sink);
+            engine.noteOff(notes[i]);
+        }
+        for (int block = 0; block < 4 * blocksPerNote; ++block)
+            engine.processBlock(sink);
+
+        sink.close();
+        System.out.println("Demo written to " + file);
+    }
+}
@@ -0,0 +1,112 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/** Benchmark is the base of the benchmarks of one component each, which
+ *  PerfBench runs.
+ *
+ *  run() prints the measurements of the component and checks its results.
+ *  A check that fails is counted, and PerfBench exits with an error if any
+ *  benchmark has failures, so that a regression does not go unnoticed in
+ *  the output of the others.
+ *
+ * */
+
+public abstract class Benchmark
+{
+    protected static final int WARMUP_BLOCKS = 2000;
+    protected static final int MEASURE_BLOCKS = 4000;
+
+    private int mFailures = 0;
+
+
+    /** Measures the component and checks its results. */
+    public abstract void run() throws Exception;
+
+
+    /** Returns the name PerfBench selects the benchmark by. */
+    public String getName()
+    {
+        return getClass().getSimpleName();
+    }
+
+
+    /** Returns the number of failed checks. */
+    public int getFailures()
+    {
+        return mFailures;
+    }
+
+
+    /** Counts a failure and reports it. */
+    protected void fail(String what)
+    {
+        mFailures++;
+        System.out.println("  FAILED: " + what);
+    }
+
+
+    /** Fails with the given description unless ok. */
+    protected void expect(boolean ok, String what)
+    {
+        if (!ok)
+            fail(what);
+    }
+
+
+    /** Counts a failure unless ok, and returns the word to print for the
+     *  result. */
+    protected String check(boolean ok, String passed, String failed)
+    {
+        if (!ok)
+            mFailures++;
+        return ok ? passed : failed;
+    }
+
+
+    /** Returns the bytes allocated by the current thread, or -1 if the JVM
+     *  does not tell. */
+    static long getThreadAllocatedBytes()
+    {
+        try
+        {
+            // Through the exported interface, the implementation class is
+            // not accessible on newer JVMs:
+            Object bean = ManagementFactory.getThreadMXBean();
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                                .getMethod("getThreadAllocatedBytes",
+                                            long.class);
+            return (Long) method.invoke(bean,
+                                        Thread.currentThread().getId());
+        }
+        catch (Exception e)
+        {
+            return -1;
+        }
+    }
+
+
+    /** Returns the bytes allocated by the current thread since the given
+     *  getThreadAllocatedBytes(), less what that call allocates itself. */
+    static long allocatedSince(long allocated)
+    {
+        long now = getThreadAllocatedBytes();
+        if (allocated < 0 || now < 0)
+            return -1;
+
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 8; ++i)
+        {
+            long before = getThreadAllocatedBytes();
+            overhead = Math.min(overhead, getThreadAllocatedBytes() - before);
+        }
+        return now - allocated - overhead;
+    }
+}
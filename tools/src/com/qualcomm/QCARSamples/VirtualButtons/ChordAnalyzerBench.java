@@ -0,0 +1,220 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.util.Random;
+
+/** ChordAnalyzerBench names random voicings with the tables of the
+ *  ChordAnalyzer and with an interval matcher, which must agree.
+ *
+ * */
+
+public class ChordAnalyzerBench extends Benchmark
+{
+    /** Names random voicings on an 88 key layout with the lookup tables and
+     *  with a matcher trying the intervals of every quality and root, which
+     *  must agree. */
+    public void run()
+    {
+        System.out.println("ChordAnalyzer");
+
+        int keys = 88;
+        int firstNote = 21;
+        int[] notes = new int[keys];
+        for (int k = 0; k < keys; ++k)
+            notes[k] = firstNote + k;
+
+        // Chords of every quality voiced across octaves, with doublings,
+        // and random clusters:
+        int count = 100000;
+        KeySet[] voicings = new KeySet[count];
+        int[] generatedQuality = new int[count];
+        int[] generatedRoot = new int[count];
+        Random random = new Random(17);
+        for (int i = 0; i < count; ++i)
+        {
+            KeySet voicing = new KeySet(keys);
+            if (random.nextInt(10) < 7)
+            {
+                int quality = 2 + random.nextInt(
+                                ChordAnalyzer.QUALITY_COUNT - 2);
+                int root = random.nextInt(12);
+                int tones = ChordAnalyzer.getToneCount(quality);
+                int doublings = random.nextInt(3);
+                for (int t = 0; t < tones + doublings; ++t)
+                {
+                    int pitchClass = (root + ChordAnalyzer.getTone(quality,
+                                        t < tones ? t : random.nextInt(tones)))
+                                     % 12;
+                    int octave = 1 + random.nextInt(7);
+                    int note = Math.min(firstNote + keys - 1,
+                                        Math.max(firstNote,
+                                                12 * octave + pitchClass));
+                    if (note % 12 != pitchClass)
+                        note = 12 * 2 + pitchClass;
+                    voicing.add(note - firstNote);
+                }
+                generatedQuality[i] = quality;
+                generatedRoot[i] = root;
+            }
+            else
+            {
+                int size = 1 + random.nextInt(6);
+                for (int n = 0; n < size; ++n)
+                    voicing.add(random.nextInt(keys));
+                generatedQuality[i] = -1;
+            }
+            voicings[i] = voicing;
+        }
+
+        ChordAnalyzer analyzer = new ChordAnalyzer(notes);
+        int[] qualities = new int[count];
+        int[] roots = new int[count];
+        int[] inversions = new int[count];
+        long tableNanos = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int run = 0; run < 5; ++run)
+        {
+            allocated = getThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; ++i)
+            {
+                qualities[i] = analyzer.analyze(voicings[i]);
+                roots[i] = analyzer.getRoot();
+                inversions[i] = analyzer.getInversion();
+            }
+            tableNanos = Math.min(tableNanos, System.nanoTime() - start);
+            allocated = allocatedSince(allocated);
+        }
+
+        int[] held = new int[keys];
+        int[] result = new int[2];
+        int mismatches = 0;
+        long naiveNanos = Long.MAX_VALUE;
+        for (int run = 0; run < 5; ++run)
+        {
+            mismatches = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; ++i)
+            {
+                int quality = matchIntervals(voicings[i], notes, held, result);
+                if (quality != qualities[i] || result[0] != roots[i] ||
+                    result[1] != inversions[i])
+                    mismatches++;
+            }
+            naiveNanos = Math.min(naiveNanos, System.nanoTime() - start);
+        }
+
+        int named = 0;
+        int chords = 0;
+        int recovered = 0;
+        for (int i = 0; i < count; ++i)
+        {
+            if (qualities[i] != ChordAnalyzer.QUALITY_NONE)
+                named++;
+            if (generatedQuality[i] < 0)
+                continue;
+            chords++;
+            if (qualities[i] == generatedQuality[i] &&
+                roots[i] == generatedRoot[i])
+                recovered++;
+        }
+
+        analyzer.analyze(voicings[0]);
+        System.out.println(String.format(
+            "  %d voicings: tables %.1f ns, interval matching %.1f ns " +
+            "(%.1fx); %d mismatches, %d named, %d of %d chords as voiced " +
+            "(others another name of the same notes), %d bytes allocated, " +
+            "first %s",
+            count, (double) tableNanos / count, (double) naiveNanos / count,
+            (double) naiveNanos / tableNanos, mismatches, named, recovered,
+            chords, allocated, analyzer.getName()));
+        expect(mismatches == 0, "tables agree with the interval matching");
+        expect(allocated <= 0, "no allocation while naming chords");
+    }
+
+
+    /** Names the held keys by trying the intervals of every quality from
+     *  the bass and then from every pitch class above it, the way the
+     *  tables of ChordAnalyzer are built. Returns the quality, the root
+     *  and the inversion go to result. */
+    private static int matchIntervals(KeySet keys, int[] notes, int[] held,
+                                        int[] result)
+    {
+        int count = 0;
+        int bass = Integer.MAX_VALUE;
+        for (int k = keys.next(0); k >= 0; k = keys.next(k + 1))
+        {
+            held[count++] = notes[k];
+            bass = Math.min(bass, notes[k]);
+        }
+        if (count == 0)
+        {
+            result[0] = -1;
+            result[1] = 0;
+            return ChordAnalyzer.QUALITY_NONE;
+        }
+
+        for (int pass = 0; pass < 2; ++pass)
+        {
+            for (int quality = ChordAnalyzer.QUALITY_NOTE;
+                 quality < ChordAnalyzer.QUALITY_COUNT; ++quality)
+            {
+                int first = pass == 0 ? 0 : 1;
+                int last = pass == 0 ? 0 : 11;
+                for (int offset = first; offset <= last; ++offset)
+                {
+                    int root = (bass + offset) % 12;
+                    int inversion = inversion(held, count, root, quality,
+                                              bass);
+                    if (inversion >= 0)
+                    {
+                        result[0] = root;
+                        result[1] = inversion;
+                        return quality;
+                    }
+                }
+            }
+        }
+
+        result[0] = bass % 12;
+        result[1] = 0;
+        return ChordAnalyzer.QUALITY_NONE;
+    }
+
+
+    /** Returns the chord tone of the bass if the notes are exactly the
+     *  tones of the quality on the root, otherwise -1. */
+    private static int inversion(int[] held, int count, int root,
+                                    int quality, int bass)
+    {
+        int tones = ChordAnalyzer.getToneCount(quality);
+        for (int n = 0; n < count; ++n)
+        {
+            int interval = (held[n] - root + 120) % 12;
+            int t = 0;
+            while (t < tones && ChordAnalyzer.getTone(quality, t) != interval)
+                ++t;
+            if (t == tones)
+                return -1;
+        }
+
+        int inversion = -1;
+        for (int t = 0; t < tones; ++t)
+        {
+            int tone = ChordAnalyzer.getTone(quality, t);
+            int n = 0;
+            while (n < count && (held[n] - root + 120) % 12 != tone)
+                ++n;
+            if (n == count)
+                return -1;
+            if ((bass - root + 120) % 12 == tone)
+                inversion = t;
+        }
+        return inversion;
+    }
+}
@@ -0,0 +1,135 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** DebugLogBench counts the bytes logging allocates and checks that the
+ *  messages of concurrent threads arrive in order.
+ *
+ * */
+
+public class DebugLogBench extends Benchmark
+{
+    /** Counts the bytes a logging thread allocates with the level disabled
+     *  and enabled, against concatenating the message, and checks that
+     *  the messages of concurrent threads arrive complete and in order. */
+    public void run() throws InterruptedException
+    {
+        System.out.println("DebugLog");
+
+        final long[] written = new long[1];
+        DebugLog.setSink(new DebugLog.Sink()
+        {
+            public void write(int level, long timestampNanos, long threadId,
+                                CharSequence message)
+            {
+                written[0]++;
+            }
+        });
+
+        int calls = 2000000;
+        long disabledNanos = Long.MAX_VALUE;
+        long disabledBytes = 0;
+        long enabledNanos = Long.MAX_VALUE;
+        long enabledBytes = 0;
+        long concatBytes = 0;
+        String[] concatenated = new String[16];
+        for (int run = 0; run < 3; ++run)
+        {
+            DebugLog.setLevel(DebugLog.INFO);
+            long allocated = getThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; ++i)
+                DebugLog.LOGD("Key {} pressed", i);
+            disabledNanos = Math.min(disabledNanos, System.nanoTime() - start);
+            disabledBytes = allocatedSince(allocated);
+
+            // Every overload; the ring overflows, which must not allocate
+            // either:
+            DebugLog.setLevel(DebugLog.DEBUG);
+            allocated = getThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < calls; i += 4)
+            {
+                DebugLog.LOGD("Key {} pressed", i);
+                DebugLog.LOGD("Frame {}: {} ns, {} keys", i, i * 3L, 2);
+                DebugLog.LOGI("Load {}", i * 0.001);
+                DebugLog.LOGI("Key presses from the {}, {}", "camera", i);
+            }
+            enabledNanos = Math.min(enabledNanos, System.nanoTime() - start);
+            enabledBytes = allocatedSince(allocated);
+            DebugLog.flush();
+
+            allocated = getThreadAllocatedBytes();
+            for (int i = 0; i < calls / 100; ++i)
+                concatenated[i & 15] = "Key " + i + " pressed";
+            concatBytes = allocatedSince(allocated) /
+                          (calls / 100);
+        }
+
+        // Four threads logging numbered messages, each thread's must come
+        // out in order:
+        final int threads = 4;
+        final int messages = 200000;
+        final long[] next = new long[threads];
+        final long[] outOfOrder = new long[1];
+        written[0] = 0;
+        long dropped = DebugLog.getDropped();
+        DebugLog.setSink(new DebugLog.Sink()
+        {
+            public void write(int level, long timestampNanos, long threadId,
+                                CharSequence message)
+            {
+                // "t <thread> <sequence>":
+                int thread = message.charAt(2) - '0';
+                long sequence = 0;
+                for (int i = 4; i < message.length(); ++i)
+                    sequence = sequence * 10 + message.charAt(i) - '0';
+                if (sequence < next[thread])
+                    outOfOrder[0]++;
+                next[thread] = sequence + 1;
+                written[0]++;
+            }
+        });
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; ++t)
+        {
+            final int thread = t;
+            producers[t] = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < messages; ++i)
+                    {
+                        DebugLog.LOGD("t {} {}", thread, i);
+                        if ((i & 255) == 0)
+                            Thread.yield();
+                    }
+                }
+            };
+            producers[t].start();
+        }
+        for (Thread producer : producers)
+            producer.join();
+        DebugLog.flush();
+        dropped = DebugLog.getDropped() - dropped;
+
+        System.out.println(String.format(
+            "  disabled %.1f ns %d bytes, enabled %.1f ns %d bytes per " +
+            "call (concatenating %d bytes); %d threads: %d written + %d " +
+            "dropped of %d, %d out of order",
+            (double) disabledNanos / calls, disabledBytes,
+            (double) enabledNanos / calls, enabledBytes, concatBytes,
+            threads, written[0], dropped, threads * messages,
+            outOfOrder[0]));
+        expect(disabledBytes <= 0 && enabledBytes <= 0,
+                "no allocation while logging");
+        expect(outOfOrder[0] == 0 &&
+                written[0] + dropped == threads * messages,
+                "every message written or counted, in order");
+        DebugLog.setSink(new DebugLog.LogcatSink());
+    }
+}
@@ -0,0 +1,112 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Etc1CodecBench encodes a gradient to ETC1, measures its quality and
+ *  checks that the PKM container is parsed and invalid ones rejected.
+ *
+ * */
+
+public class Etc1CodecBench extends Benchmark
+{
+    /** Encodes a gradient, decodes it to measure the PSNR and parses the
+     *  container as the loader does. */
+    public void run()
+    {
+        System.out.println("Etc1Codec");
+
+        // Smooth gradients with some detail, like the teapot textures:
+        int size = 256;
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; ++y)
+        {
+            for (int x = 0; x < size; ++x)
+            {
+                int r = x;
+                int g = y;
+                int b = (int) (128 + 100 * Math.sin((x + y) / 9.0));
+                pixels[y * size + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        ByteBuffer pkm = ByteBuffer.allocate(Etc1Codec.PKM_HEADER_SIZE +
+                                        Etc1Codec.encodedSize(size, size));
+        long start = System.nanoTime();
+        Etc1Codec.writePkmHeader(pkm, size, size);
+        Etc1Codec.encodeImage(pixels, size, size, pkm);
+        long encodeNanos = System.nanoTime() - start;
+        pkm.flip();
+
+        // Decode and compare:
+        int[] decoded = new int[16];
+        double squaredError = 0;
+        int offset = Etc1Codec.PKM_HEADER_SIZE;
+        for (int by = 0; by < size; by += 4)
+        {
+            for (int bx = 0; bx < size; bx += 4)
+            {
+                Etc1Codec.decodeBlock(pkm.getLong(offset), decoded);
+                offset += Etc1Codec.BLOCK_SIZE;
+                for (int i = 0; i < 16; ++i)
+                {
+                    int a = pixels[(by + (i >> 2)) * size + bx + (i & 3)];
+                    for (int shift = 0; shift <= 16; shift += 8)
+                    {
+                        int d = ((a >> shift) & 0xff) -
+                                ((decoded[i] >> shift) & 0xff);
+                        squaredError += d * d;
+                    }
+                }
+            }
+        }
+        double psnr = 10 * Math.log10(255.0 * 255.0 /
+                                (squaredError / (size * size * 3.0)));
+
+        // Parse the container the way the loader does:
+        int iterations = 10000;
+        Texture texture = null;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            texture = Texture.loadTextureFromPkm(pkm);
+        long parseNanos = System.nanoTime() - start;
+
+        boolean parsed = texture != null && texture.mWidth == size &&
+                    texture.mHeight == size &&
+                    texture.mCompressedFormat == Etc1Codec.GL_ETC1_RGB8_OES &&
+                    texture.mData.remaining() == Etc1Codec.encodedSize(size, size);
+
+        // The header is big endian whatever the order of the buffer:
+        ByteBuffer littleEndian = pkm.duplicate();
+        littleEndian.order(ByteOrder.LITTLE_ENDIAN);
+        parsed &= Etc1Codec.getPkmWidth(littleEndian) == size &&
+                  Etc1Codec.getPkmHeight(littleEndian) == size;
+
+        // A bad magic and a truncated file must be rejected:
+        ByteBuffer bad = pkm.duplicate();
+        ByteBuffer badMagic = ByteBuffer.allocate(bad.remaining());
+        badMagic.put(bad);
+        badMagic.put(0, (byte) 'X');
+        badMagic.flip();
+        ByteBuffer truncated = pkm.duplicate();
+        truncated.limit(truncated.limit() - 1);
+        boolean rejected = Texture.loadTextureFromPkm(badMagic) == null &&
+                        Texture.loadTextureFromPkm(truncated) == null;
+
+        System.out.println(String.format(
+            "  %dx%d: encode %.1f ms (offline), PSNR %.2f dB, parse %.2f us, " +
+            "%d bytes vs %d RGBA (%.0fx smaller), parse %s, invalid %s",
+            size, size, encodeNanos / 1e6, psnr,
+            parseNanos / 1000.0 / iterations,
+            Etc1Codec.encodedSize(size, size), size * size * 4,
+            size * size * 4.0 / Etc1Codec.encodedSize(size, size),
+            check(parsed, "ok", "FAILED"),
+            check(rejected, "rejected", "ACCEPTED")));
+    }
+}
@@ -0,0 +1,131 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+/** Etc1Tool converts PNG textures into ETC1 PKM files on the desktop.
+ *
+ *  It is not part of the APK. Build and run it against the compiled
+ *  application classes, e.g.:
+ *
+ *      javac -cp bin/classes -d bin/tools tools/src/.../Etc1Tool.java
+ *      java -cp bin/classes:bin/tools \
+ *          com.qualcomm.QCARSamples.VirtualButtons.Etc1Tool assets/*.png
+ *
+ *  Each input.png is written next to it as input.pkm. The rows are encoded
+ *  bottom row first so the blocks can be uploaded without a flip, and the
+ *  alpha channel is dropped. Keep the .pkm files uncompressed in the APK
+ *  (aapt -0 pkm) so that they can be memory-mapped.
+ *
+ * */
+
+public class Etc1Tool
+{
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Usage: Etc1Tool image.png...");
+            System.exit(1);
+        }
+
+        for (String name : args)
+        {
+            File input = new File(name);
+            BufferedImage image = ImageIO.read(input);
+            if (image == null)
+            {
+                System.err.println("Cannot read " + input);
+                System.exit(1);
+            }
+
+            File output = new File(input.getParentFile(),
+                            input.getName().replaceFirst("\\.png$", "") + ".pkm");
+            double psnr = convert(image, output);
+            System.out.println(String.format("%s -> %s, %dx%d, PSNR %.2f dB%s",
+                input, output, image.getWidth(), image.getHeight(), psnr,
+                image.getColorModel().hasAlpha() ? ", alpha dropped" : ""));
+        }
+    }
+
+
+    /** Encodes the image into a PKM file and returns the PSNR of the
+     *  encoded image in dB. */
+    public static double convert(BufferedImage image, File output)
+                                                        throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        // Bottom row first, as expected by OpenGL:
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; ++y)
+            image.getRGB(0, height - 1 - y, width, 1, pixels, y * width, width);
+
+        ByteBuffer pkm = ByteBuffer.allocate(Etc1Codec.PKM_HEADER_SIZE +
+                                    Etc1Codec.encodedSize(width, height));
+        Etc1Codec.writePkmHeader(pkm, width, height);
+        Etc1Codec.encodeImage(pixels, width, height, pkm);
+
+        FileOutputStream stream = new FileOutputStream(output);
+        try
+        {
+            stream.write(pkm.array(), 0, pkm.position());
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        return psnr(pixels, width, height, pkm);
+    }
+
+
+    private static double psnr(int[] pixels, int width, int height,
+                                ByteBuffer pkm)
+    {
+        int[] decoded = new int[16];
+        double squaredError = 0;
+        int offset = Etc1Codec.PKM_HEADER_SIZE;
+
+        for (int by = 0; by < height; by += 4)
+        {
+            for (int bx = 0; bx < width; bx += 4)
+            {
+                Etc1Codec.decodeBlock(pkm.getLong(offset), decoded);
+                offset += Etc1Codec.BLOCK_SIZE;
+
+                for (int i = 0; i < 16; ++i)
+                {
+                    int x = bx + (i & 3);
+                    int y = by + (i >> 2);
+                    if (x >= width || y >= height)
+                        continue;
+
+                    int a = pixels[y * width + x];
+                    int b = decoded[i];
+                    for (int shift = 0; shift <= 16; shift += 8)
+                    {
+                        int d = ((a >> shift) & 0xff) - ((b >> shift) & 0xff);
+                        squaredError += d * d;
+                    }
+                }
+            }
+        }
+
+        double mse = squaredError / (width * height * 3.0);
+        return mse == 0 ? Double.POSITIVE_INFINITY
+                        : 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+}
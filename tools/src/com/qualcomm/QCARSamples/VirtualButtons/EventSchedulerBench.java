@@ -0,0 +1,129 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.util.Random;
+
+/** EventSchedulerBench keeps tens of thousands of events pending, checks
+ *  their delivery and measures the onset of scheduled notes.
+ *
+ * */
+
+public class EventSchedulerBench extends Benchmark
+{
+    /** Keeps tens of thousands of events pending over an hour of sample
+     *  time and checks each is delivered in its block and in order, then
+     *  measures the onset of scheduled notes in the rendered audio. */
+    public void run()
+    {
+        System.out.println("EventScheduler");
+
+        int sampleRate = 48000;
+        int blockSize = 256;
+        long duration = 3600L * sampleRate;
+        long window = 20L * 60 * sampleRate;
+        int capacity = 65536;
+        EventScheduler scheduler = new EventScheduler(capacity);
+        Random random = new Random(31);
+
+        // Half the slots taken up front, up to 20 minutes ahead, and an
+        // event scheduled for every one delivered until the last window:
+        long scheduleNanos = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < capacity / 2; ++i)
+            scheduler.schedule((long) (random.nextDouble() * window),
+                                i & 1, random.nextInt(128), 100);
+        scheduleNanos += System.nanoTime() - start;
+
+        long collectNanos = 0;
+        long errors = 0;
+        long blocks = duration / blockSize;
+        int due = 0;
+        for (long block = 0; block < blocks; ++block)
+        {
+            long blockStart = block * blockSize;
+            if (due > 0 && blockStart < duration - window)
+            {
+                start = System.nanoTime();
+                for (int i = 0; i < due; ++i)
+                    scheduler.schedule(blockStart +
+                            (long) (random.nextDouble() * window),
+                            i & 1, random.nextInt(128), 100);
+                scheduleNanos += System.nanoTime() - start;
+            }
+
+            start = System.nanoTime();
+            due = scheduler.collect(blockStart, blockSize);
+            collectNanos += System.nanoTime() - start;
+
+            long previous = blockStart;
+            for (int e = 0; e < due; ++e)
+            {
+                long time = scheduler.getTime(e);
+                if (time < previous || time >= blockStart + blockSize)
+                    errors++;
+                previous = time;
+            }
+        }
+
+        System.out.println(String.format(
+            "  %d events over %.1f h: schedule %.1f ns, collect %.1f ns " +
+            "per block; delivered %d, %d errors, %d late, %d dropped, " +
+            "max %d pending, %.2f cascades per event",
+            scheduler.getScheduled(), (double) blocks * blockSize /
+            sampleRate / 3600, (double) scheduleNanos /
+            scheduler.getScheduled(), (double) collectNanos / blocks,
+            scheduler.getDelivered(), errors, scheduler.getLate(),
+            scheduler.getDropped(), scheduler.getMaxPending(),
+            (double) scheduler.getCascaded() / scheduler.getScheduled()));
+        expect(errors == 0 && scheduler.getLate() == 0 &&
+                scheduler.getDropped() == 0,
+                "every event delivered in its block and in order");
+
+        // The first sample of a scheduled string note in the engine's
+        // output, against applying it at the start of its block:
+        int trials = 2000;
+        long maxError = 0;
+        long sumError = 0;
+        long maxBlockError = 0;
+        long sumBlockError = 0;
+        for (int trial = 0; trial < trials; ++trial)
+        {
+            AudioEngine engine = new AudioEngine(sampleRate, blockSize, 1);
+            engine.setSynthesis(AudioEngine.SYNTHESIS_STRINGS);
+            scheduler = new EventScheduler(4);
+            engine.setScheduler(scheduler);
+            long time = blockSize + random.nextInt(3 * blockSize);
+            scheduler.schedule(time, EventScheduler.NOTE_ON,
+                                40 + random.nextInt(48), 100);
+
+            long onset = -1;
+            for (int block = 0; block < 5 && onset < 0; ++block)
+            {
+                float[] mix = engine.renderBlock();
+                for (int i = 0; i < blockSize && onset < 0; ++i)
+                    if (mix[i] != 0.0f)
+                        onset = (long) block * blockSize + i;
+            }
+
+            long error = Math.abs(onset - time);
+            maxError = Math.max(maxError, error);
+            sumError += error;
+            long blockError = (time + blockSize - 1) / blockSize *
+                              blockSize - time;
+            maxBlockError = Math.max(maxBlockError, blockError);
+            sumBlockError += blockError;
+        }
+        System.out.println(String.format(
+            "  onset error over %d notes: mean %.2f max %d samples; at " +
+            "block starts mean %.1f max %d samples (%.2f ms)",
+            trials, (double) sumError / trials, maxError,
+            (double) sumBlockError / trials, maxBlockError,
+            maxBlockError * 1000.0 / sampleRate));
+        expect(maxError == 0, "notes start at their sample");
+    }
+}
@@ -0,0 +1,106 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.util.Random;
+
+/** FrameGovernorBench simulates sessions of playing, idling and losing
+ *  the target and counts the frames the FrameGovernor saves.
+ *
+ * */
+
+public class FrameGovernorBench extends Benchmark
+{
+    public void run()
+    {
+        System.out.println("FrameGovernor");
+
+        // A simulated session on a 60 Hz display: a minute of playing, two
+        // tracked but idle, one with the target out of view, repeated:
+        final long period = 1000000000L / 60;
+        final long second = 1000000000L;
+        long phase = 60 * second;
+        long session = 4 * phase * 5;
+        final long[] request = new long[2];
+        FrameGovernor governor = new FrameGovernor(60);
+        governor.setPacer(new FrameGovernor.Pacer()
+        {
+            public void setContinuous(boolean continuous)
+            {
+                request[0] = continuous ? 1 : 0;
+            }
+
+            public void requestFrameAt(long nanos)
+            {
+                request[1] = nanos;
+            }
+        });
+        request[0] = 1;
+
+        Random random = new Random(11);
+        long nextKey = 0;
+        long keyDelaySum = 0;
+        long maxKeyDelay = 0;
+        long keys = 0;
+        long foundAt = -1;
+        long maxFoundDelay = 0;
+        long frames = 0;
+        long elapsed = 0;
+        long time = period;
+        boolean wasTracked = false;
+        while (time < session)
+        {
+            int part = (int) ((time / phase) % 4);
+            boolean tracked = part != 3;
+            boolean playing = part == 0;
+
+            // Key changes every 100 to 600 ms while playing:
+            boolean keysChanged = false;
+            while (playing && nextKey <= time)
+            {
+                keysChanged = true;
+                long delay = time - nextKey;
+                keyDelaySum += delay;
+                maxKeyDelay = Math.max(maxKeyDelay, delay);
+                keys++;
+                nextKey += (100 + random.nextInt(500)) * 1000000L;
+            }
+            if (!playing)
+                nextKey = Math.max(nextKey, time);
+            if (tracked && !wasTracked && foundAt >= 0)
+                maxFoundDelay = Math.max(maxFoundDelay, time - foundAt);
+            if (!tracked)
+                foundAt = (time / phase + 1) * phase;
+            wasTracked = tracked;
+
+            long t0 = System.nanoTime();
+            governor.onFrame(time, tracked, keysChanged);
+            elapsed += System.nanoTime() - t0;
+            frames++;
+
+            // The next refresh, or the first at or after the request:
+            if (request[0] == 1)
+                time += period;
+            else
+                time += Math.max(1, (request[1] - time + period - 1) /
+                                    period) * period;
+        }
+
+        long refreshes = session / period;
+        System.out.println(String.format(
+            "  %d s: %d of %d refreshes rendered, %d saved (%.0f%%), " +
+            "%d rate changes, %.1f ns/frame",
+            session / second, frames, refreshes, governor.getFramesSaved(),
+            100.0 * governor.getFramesSaved() / refreshes,
+            governor.getModeChanges(), (double) elapsed / frames));
+        System.out.println(String.format(
+            "  key changes: %d seen after %.1f ms mean, %.1f ms max; " +
+            "target found after %.1f ms max",
+            keys, keyDelaySum / 1e6 / keys, maxKeyDelay / 1e6,
+            maxFoundDelay / 1e6));
+    }
+}
@@ -0,0 +1,503 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** FrameReplay pushes a frame recording through the key press pipeline on
+ *  the desktop.
+ *
+ *  It is not part of the APK. Record on the device with the "Record
+ *  frames" menu item, pull the file and run the tool against the compiled
+ *  application classes, with libReplayDetector built as described in
+ *  tools/native/ReplayDetector.cpp:
+ *
+ *      adb pull /sdcard/Android/data/<package>/files/frames.rec
+ *      javac -cp bin/classes -d bin/tools tools/src/.../FrameReplay.java \
+ *          tools/src/.../ReplayDetector.java
+ *      java -Djava.library.path=bin -cp bin/classes:bin/tools \
+ *          com.qualcomm.QCARSamples.VirtualButtons.FrameReplay \
+ *          [-realtime] [-truth] frames.rec
+ *
+ *  Every frame goes through the stages of the application: the occlusion
+ *  detector, the note events of the changed keys into a NoteEventRing,
+ *  the key state snapshot through KeyStateDecoder, and the AudioEngine
+ *  rendering into a NullAudioSink up to the recorded time of the frame.
+ *  By default frames are replayed as fast as possible; -realtime keeps
+ *  the recorded frame times. -truth, or a missing library, replaces the
+ *  detector by the recorded Virtual Button states.
+ *
+ *  The tool reports the replay rate, the cost of each stage per frame and
+ *  how well the detector agrees with the recorded Virtual Button states,
+ *  per key and frame and per press onset.
+ *
+ *  The file format is described in jni/FrameRecorder.h.
+ *
+ * */
+
+public class FrameReplay
+{
+    /** Detector onsets at most this many frames from a recorded onset
+     *  count as the same press. */
+    private static final int ONSET_WINDOW = 5;
+
+    private static final int VELOCITY = 100;
+
+
+    /** A recording mapped into memory. */
+    public static class Recording
+    {
+        public int keyCount;
+        public int words;
+        public float[] rectangles;
+        public int[] notes;
+        private ByteBuffer mBuffer;
+        private int mFirstFrame;
+
+
+        /** Maps the file and reads its header. */
+        public Recording(File file) throws IOException
+        {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try
+            {
+                FileChannel channel = input.getChannel();
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("Recording too large");
+                MappedByteBuffer buffer = channel.map(
+                            FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                mBuffer = buffer;
+            }
+            finally
+            {
+                input.close();
+            }
+
+            if (mBuffer.remaining() < 12 || mBuffer.get() != 'V' ||
+                mBuffer.get() != 'P' || mBuffer.get() != 'R' ||
+                mBuffer.get() != 'C')
+                throw new IOException("Not a frame recording: " + file);
+            int version = mBuffer.getInt();
+            if (version != 1)
+                throw new IOException("Unsupported version " + version);
+
+            keyCount = mBuffer.getInt();
+            words = (keyCount + 63) / 64;
+            rectangles = new float[keyCount * 4];
+            for (int i = 0; i < rectangles.length; ++i)
+                rectangles[i] = mBuffer.getFloat();
+            notes = new int[keyCount];
+            for (int i = 0; i < keyCount; ++i)
+                notes[i] = mBuffer.getInt();
+            mFirstFrame = mBuffer.position();
+        }
+
+
+        /** Starts reading frames from the beginning. */
+        public void rewind()
+        {
+            mBuffer.position(mFirstFrame);
+        }
+
+
+        /** Reads the next frame into the given one, returns false at the
+         *  end of the recording or at a frame cut short. */
+        public boolean next(Frame frame) throws IOException
+        {
+            ByteBuffer buffer = mBuffer;
+            int start = buffer.position();
+            int fixedSize = Frame.HEADER_SIZE + 16 * words;
+            if (buffer.remaining() < fixedSize)
+                return false;
+
+            if (buffer.get() != 'F' || buffer.get() != 'R' ||
+                buffer.get() != 'M' || buffer.get() != 'E')
+                throw new IOException("Corrupt frame at " + start);
+
+            frame.index = buffer.getInt();
+            frame.trackerNanos = buffer.getLong();
+            frame.tracked = buffer.getInt() != 0;
+            for (int i = 0; i < 12; ++i)
+                frame.pose[i] = buffer.getFloat();
+            for (int i = 0; i < 4; ++i)
+                frame.camera[i] = buffer.getFloat();
+            frame.imageWidth = buffer.getInt();
+            frame.imageHeight = buffer.getInt();
+            frame.cropX = buffer.getInt();
+            frame.cropY = buffer.getInt();
+            frame.cropWidth = buffer.getInt();
+            frame.cropHeight = buffer.getInt();
+            for (int w = 0; w < words; ++w)
+                frame.pressed[w] = buffer.getLong();
+            for (int w = 0; w < words; ++w)
+                frame.enabled[w] = buffer.getLong();
+
+            int pixelSize = frame.cropWidth * frame.cropHeight;
+            if (buffer.remaining() < ((pixelSize + 3) & ~3))
+            {
+                buffer.position(start);
+                return false;
+            }
+
+            // The mapping is direct, so is a slice of it:
+            frame.pixels = null;
+            if (pixelSize > 0)
+            {
+                int end = buffer.position() + pixelSize;
+                buffer.limit(end);
+                frame.pixels = buffer.slice();
+                buffer.limit(buffer.capacity());
+            }
+            buffer.position(buffer.position() + ((pixelSize + 3) & ~3));
+            return true;
+        }
+    }
+
+
+    /** A frame of a recording, reused for every frame. */
+    public static class Frame
+    {
+        /** The size of a frame without its key words and pixels. */
+        public static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 12 * 4 + 4 * 4 +
+                                              2 * 4 + 4 * 4;
+
+        public int index;
+        public long trackerNanos;
+        public boolean tracked;
+        public float[] pose = new float[12];
+        public float[] camera = new float[4];
+        public int imageWidth, imageHeight;
+        public int cropX, cropY, cropWidth, cropHeight;
+        public long[] pressed;
+        public long[] enabled;
+        public ByteBuffer pixels;
+
+
+        public Frame(int words)
+        {
+            pressed = new long[words];
+            enabled = new long[words];
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception
+    {
+        boolean realtime = false;
+        boolean truth = false;
+        String path = null;
+        for (String arg : args)
+        {
+            if (arg.equals("-realtime"))
+                realtime = true;
+            else if (arg.equals("-truth"))
+                truth = true;
+            else if (path == null && !arg.startsWith("-"))
+                path = arg;
+            else
+                path = null;
+        }
+        if (path == null)
+        {
+            System.err.println("Usage: FrameReplay [-realtime] [-truth] " +
+                                "frames.rec");
+            System.exit(1);
+        }
+
+        if (!truth)
+        {
+            try
+            {
+                ReplayDetector.loadLibrary();
+            }
+            catch (UnsatisfiedLinkError e)
+            {
+                System.err.println("No libReplayDetector (" + e.getMessage() +
+                                    "), replaying the recorded key states");
+                truth = true;
+            }
+        }
+
+        Recording recording = new Recording(new File(path));
+        new FrameReplay(recording, truth).run(realtime);
+    }
+
+
+    private final Recording mRecording;
+    private final boolean mTruth;
+    private final int mWords;
+
+    // The pipeline:
+    private ReplayDetector mDetector;
+    private NoteEventRing mRing = new NoteEventRing();
+    private AudioEngine mEngine = new AudioEngine();
+    private NullAudioSink mSink = new NullAudioSink();
+    private KeyStateDecoder mDecoder;
+    private ByteBuffer mKeyState;
+    private LatencyMonitor mMonitor = new LatencyMonitor();
+    private long[] mDetected;
+    private long[] mPrevious;
+    private long[] mEncoded;
+    private int mSequence;
+
+    // Stage costs:
+    private long mDetectNanos, mEdgeNanos, mKeyStateNanos, mAudioNanos;
+    private long mFrames, mTrackedFrames, mImageFrames, mEvaluatedKeys;
+
+    // Agreement with the recorded key states:
+    private long mTruePositives, mFalsePositives, mFalseNegatives,
+                 mTrueNegatives;
+    private long mTruthOnsets, mDetectedOnsets, mMatchedOnsets;
+    private long mOnsetOffsetSum;
+    private int[] mPendingTruth;
+    private int[] mPendingDetected;
+    private long[] mTruthPrevious;
+    private long[] mDetectedPrevious;
+
+
+    public FrameReplay(Recording recording, boolean truth)
+    {
+        mRecording = recording;
+        mTruth = truth;
+        mWords = recording.words;
+        mDetected = new long[mWords];
+        mPrevious = new long[mWords];
+        mEncoded = new long[mWords];
+        mTruthPrevious = new long[mWords];
+        mDetectedPrevious = new long[mWords];
+        mPendingTruth = new int[recording.keyCount];
+        mPendingDetected = new int[recording.keyCount];
+        for (int k = 0; k < recording.keyCount; ++k)
+        {
+            mPendingTruth[k] = -1;
+            mPendingDetected[k] = -1;
+        }
+
+        if (!truth)
+            mDetector = new ReplayDetector(recording.rectangles);
+        mDecoder = new KeyStateDecoder(recording.keyCount);
+        mDecoder.setLatencyMonitor(mMonitor);
+        mKeyState = KeyStateDecoder.allocateBuffer(recording.keyCount);
+        mEngine.setNoteEventRing(mRing);
+        mEngine.setLatencyMonitor(mMonitor);
+    }
+
+
+    /** Replays the whole recording and prints the report. */
+    public void run(boolean realtime) throws IOException, InterruptedException
+    {
+        Recording recording = mRecording;
+        Frame frame = new Frame(mWords);
+        recording.rewind();
+        mSink.open(mEngine.getSampleRate(), mEngine.getBlockSize());
+
+        long firstTrackerNanos = 0;
+        long lastTrackerNanos = 0;
+        long startNanos = System.nanoTime();
+        while (recording.next(frame))
+        {
+            if (mFrames == 0)
+                firstTrackerNanos = frame.trackerNanos;
+            lastTrackerNanos = frame.trackerNanos;
+            long recordedNanos = frame.trackerNanos - firstTrackerNanos;
+
+            if (realtime)
+            {
+                long wait = startNanos + recordedNanos - System.nanoTime();
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+
+            replayFrame(frame, recordedNanos);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        mSink.close();
+
+        report(elapsedNanos, lastTrackerNanos - firstTrackerNanos);
+    }
+
+
+    /** Runs one frame through all stages. */
+    private void replayFrame(Frame frame, long recordedNanos)
+                                                        throws IOException
+    {
+        mFrames++;
+        if (frame.tracked)
+            mTrackedFrames++;
+        if (frame.pixels != null)
+            mImageFrames++;
+
+        // The detector, falling back to the recorded states like the
+        // tracking thread does for frames without an image:
+        long detectStart = System.nanoTime();
+        if (!frame.tracked)
+        {
+            if (mDetector != null)
+                mDetector.lost();
+            for (int w = 0; w < mWords; ++w)
+                mDetected[w] = 0;
+        }
+        else if (mDetector != null && frame.pixels != null)
+        {
+            // The crop is an image of its own with the principal point moved:
+            mDetector.setCamera(frame.camera[0], frame.camera[1],
+                                frame.camera[2] - frame.cropX,
+                                frame.camera[3] - frame.cropY);
+            mEvaluatedKeys += mDetector.update(frame.pixels, frame.cropWidth,
+                                frame.cropHeight, frame.cropWidth, frame.pose,
+                                frame.enabled);
+            mDetector.getPressedKeys(mDetected);
+        }
+        else
+        {
+            System.arraycopy(frame.pressed, 0, mDetected, 0, mWords);
+        }
+        long trackerNanos = System.nanoTime();
+        mDetectNanos += trackerNanos - detectStart;
+
+        // Note events of the changed keys, as the tracking thread sends them:
+        int[] notes = mRecording.notes;
+        for (int w = 0; w < mWords; ++w)
+        {
+            long changed = mDetected[w] ^ mPrevious[w];
+            while (changed != 0)
+            {
+                int bit = Long.numberOfTrailingZeros(changed);
+                int type = ((mDetected[w] >>> bit) & 1) != 0
+                            ? NoteEventRing.NOTE_ON : NoteEventRing.NOTE_OFF;
+                mRing.offer(type, notes[(w << 6) + bit], VELOCITY,
+                            trackerNanos);
+                changed &= changed - 1;
+            }
+            mPrevious[w] = mDetected[w];
+        }
+        long edgeEnd = System.nanoTime();
+        mEdgeNanos += edgeEnd - trackerNanos;
+
+        // The snapshot renderFrame() writes and the UI thread decodes:
+        KeyStateDecoder.encode(mKeyState, ++mSequence, mRecording.keyCount,
+                                System.nanoTime(), trackerNanos, 0, mDetected,
+                                mEncoded);
+        mDecoder.decode(mKeyState);
+        long keyStateEnd = System.nanoTime();
+        mKeyStateNanos += keyStateEnd - edgeEnd;
+
+        // Audio up to the recorded time of the frame:
+        long sampleTime = recordedNanos * mEngine.getSampleRate() / 1000000000L;
+        while (mEngine.getSampleTime() < sampleTime)
+            mEngine.processBlock(mSink);
+        mAudioNanos += System.nanoTime() - keyStateEnd;
+
+        if (frame.tracked)
+            compare(frame.pressed, frame.enabled, (int) mFrames);
+    }
+
+
+    /** Counts the agreement of the detected keys with the recorded ones. */
+    private void compare(long[] truth, long[] enabled, int frameNumber)
+    {
+        for (int w = 0; w < mWords; ++w)
+        {
+            long detected = mDetected[w] & enabled[w];
+            long recorded = truth[w] & enabled[w];
+            mTruePositives += Long.bitCount(detected & recorded);
+            mFalsePositives += Long.bitCount(detected & ~recorded);
+            mFalseNegatives += Long.bitCount(~detected & recorded);
+            mTrueNegatives += Long.bitCount(~detected & ~recorded & enabled[w]);
+
+            long truthOnsets = recorded & ~mTruthPrevious[w];
+            long detectedOnsets = detected & ~mDetectedPrevious[w];
+            mTruthPrevious[w] = recorded;
+            mDetectedPrevious[w] = detected;
+            while (truthOnsets != 0)
+            {
+                int bit = Long.numberOfTrailingZeros(truthOnsets);
+                matchOnset(mPendingTruth, mPendingDetected, (w << 6) + bit,
+                            frameNumber, -1);
+                mTruthOnsets++;
+                truthOnsets &= truthOnsets - 1;
+            }
+            while (detectedOnsets != 0)
+            {
+                int bit = Long.numberOfTrailingZeros(detectedOnsets);
+                matchOnset(mPendingDetected, mPendingTruth, (w << 6) + bit,
+                            frameNumber, 1);
+                mDetectedOnsets++;
+                detectedOnsets &= detectedOnsets - 1;
+            }
+        }
+    }
+
+
+    /** Pairs an onset with a pending onset of the same key on the other
+     *  side within ONSET_WINDOW frames, or leaves it pending. The offset
+     *  is counted from the recorded onset to the detected one. */
+    private void matchOnset(int[] pending, int[] otherPending, int key,
+                            int frameNumber, int sign)
+    {
+        int other = otherPending[key];
+        if (other >= 0 && frameNumber - other <= ONSET_WINDOW)
+        {
+            mMatchedOnsets++;
+            mOnsetOffsetSum += sign * (frameNumber - other);
+            otherPending[key] = -1;
+        }
+        else
+        {
+            pending[key] = frameNumber;
+        }
+    }
+
+
+    /** Prints the replay rate, stage costs and agreement. */
+    private void report(long elapsedNanos, long recordedNanos)
+    {
+        long frames = Math.max(1, mFrames);
+        System.out.println(String.format(
+            "%d frames (%d tracked, %d with image), %d keys, %.1f s recorded",
+            mFrames, mTrackedFrames, mImageFrames, mRecording.keyCount,
+            recordedNanos / 1e9));
+        System.out.println(String.format(
+            "replay %.1f s, %.0f frames/s, %.1fx real time",
+            elapsedNanos / 1e9, mFrames * 1e9 / elapsedNanos,
+            recordedNanos > 0 ? (double) recordedNanos / elapsedNanos : 0.0));
+        System.out.println(String.format(
+            "per frame: detect %d ns (%s, %.1f keys), events %d ns, " +
+            "key state %d ns, audio %d ns",
+            mDetectNanos / frames, mTruth ? "recorded states" : "detector",
+            (double) mEvaluatedKeys / frames, mEdgeNanos / frames,
+            mKeyStateNanos / frames, mAudioNanos / frames));
+
+        long keyFrames = mTruePositives + mFalsePositives + mFalseNegatives +
+                         mTrueNegatives;
+        System.out.println(String.format(
+            "key-frames: agreement %.2f%%, pressed %d, false %d, missed %d, " +
+            "released %d",
+            keyFrames > 0 ? 100.0 * (mTruePositives + mTrueNegatives) /
+                            keyFrames : 0.0,
+            mTruePositives, mFalsePositives, mFalseNegatives, mTrueNegatives));
+        System.out.println(String.format(
+            "onsets: recorded %d, detected %d, matched %d (within %d " +
+            "frames), offset %+.2f frames mean",
+            mTruthOnsets, mDetectedOnsets, mMatchedOnsets, ONSET_WINDOW,
+            mMatchedOnsets > 0 ? (double) mOnsetOffsetSum / mMatchedOnsets
+                               : 0.0));
+        System.out.println(String.format(
+            "audio: %d blocks, %d ns/block, ring dropped %d",
+            mEngine.getBlocksRendered(),
+            mEngine.getRenderNanos() / Math.max(1, mEngine.getBlocksRendered()),
+            mRing.getDropped()));
+        System.out.println(mMonitor.getReport());
+    }
+}
@@ -0,0 +1,64 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.util.Random;
+
+/** FrameStatsBench replays a frame sequence with stalls and tracking
+ *  losses and checks the missed frames and losses found.
+ *
+ * */
+
+public class FrameStatsBench extends Benchmark
+{
+    /** Replays a 60 Hz frame sequence with stalls and tracking losses and
+     *  checks the missed frames found. */
+    public void run()
+    {
+        System.out.println("FrameStats");
+
+        long period = 1000000000L / 60;
+        int frames = 100000;
+        Random random = new Random(5);
+        FrameStats stats = new FrameStats(60);
+
+        long start = 0;
+        long expectedMissed = 0;
+        long expectedLost = 0;
+        boolean tracked = false;
+        long elapsed = 0;
+        for (int f = 0; f < frames; ++f)
+        {
+            // Every 50th frame stalls for one to three refreshes, the others
+            // jitter by up to a fifth of a period:
+            int missed = (f > 0 && f % 50 == 0) ? 1 + random.nextInt(3) : 0;
+            start += period * (1 + missed) +
+                     (long) ((random.nextFloat() - 0.5f) * 0.4f * period);
+            if (f > 0)
+                expectedMissed += missed;
+
+            boolean nowTracked = random.nextInt(100) != 0;
+            if (tracked && !nowTracked)
+                expectedLost++;
+            tracked = nowTracked;
+
+            long t0 = System.nanoTime();
+            stats.recordFrame(start, 4000000 + random.nextInt(2000000), tracked);
+            elapsed += System.nanoTime() - t0;
+        }
+
+        FrameStats.Snapshot snapshot = stats.getSnapshot(new FrameStats.Snapshot());
+        System.out.println(String.format(
+            "  %d frames: record %.1f ns/frame, missed %d/%d, lost %d/%d",
+            frames, (double) elapsed / frames, snapshot.missedFrames,
+            expectedMissed, snapshot.trackingLost, expectedLost));
+        expect(snapshot.missedFrames == expectedMissed &&
+                snapshot.trackingLost == expectedLost,
+                "every missed frame and tracking loss found");
+        System.out.println("  window: " + snapshot);
+    }
+}
@@ -0,0 +1,110 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/** KeyLayoutBench parses the shipped dataset and a full keyboard, checks
+ *  the notes of the keys and times the lookups.
+ *
+ * */
+
+public class KeyLayoutBench extends Benchmark
+{
+    public void run() throws IOException
+    {
+        System.out.println("KeyLayout");
+
+        // The shipped dataset, when run from the project directory:
+        File dataset = new File("assets/Piano2.xml");
+        if (dataset.isFile())
+        {
+            FileInputStream stream = new FileInputStream(dataset);
+            KeyLayout layout;
+            try
+            {
+                layout = KeyLayout.parse(stream);
+            }
+            finally
+            {
+                stream.close();
+            }
+
+            StringBuilder keys = new StringBuilder();
+            for (int k = 0; k < layout.getKeyCount(); ++k)
+                keys.append(' ').append(layout.getName(k)).append('=')
+                    .append(layout.getNote(k));
+            System.out.println("  " + dataset + ": target " +
+                                layout.getTargetName() + "," + keys);
+        }
+
+        // A full keyboard, A0 to C8, with the rectangles laid out in a row:
+        String[] names = { "A", "As", "B", "C", "Cs", "D", "Ds", "E", "F",
+                            "Fs", "G", "Gs" };
+        StringBuilder xml = new StringBuilder(
+            "<QCARConfig><Tracking><ImageTarget size=\"1230 150\" " +
+            "name=\"keyboard\"/>");
+        for (int k = 0; k < 88; ++k)
+        {
+            int octave = (k + 9) / 12;
+            xml.append(String.format("<VirtualButton name=\"%s%d\" " +
+                "rectangle=\"%.1f 70 %.1f -70\" enabled=\"true\"/>",
+                names[k % 12], octave, k * 14 - 616.0, k * 14 - 604.0));
+        }
+        xml.append("</Tracking></QCARConfig>");
+        byte[] bytes = xml.toString().getBytes("UTF-8");
+
+        int iterations = 200;
+        KeyLayout layout = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            layout = KeyLayout.parse(new ByteArrayInputStream(bytes));
+        long parseNanos = System.nanoTime() - start;
+
+        boolean notes = layout.getKeyCount() == 88;
+        for (int k = 0; k < layout.getKeyCount(); ++k)
+        {
+            notes &= layout.getNote(k) == 21 + k &&
+                    layout.getKeyForNote(21 + k) == k &&
+                    layout.indexOf(layout.getName(k)) == k;
+        }
+
+        // Name and note lookups as done per frame before and after:
+        int lookups = 1000000;
+        int sum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; ++i)
+            sum += layout.getKeyForNote(21 + i % 88);
+        long noteNanos = System.nanoTime() - start;
+
+        String[] keyNames = layout.getNames();
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; ++i)
+        {
+            String name = keyNames[i % 88];
+            for (int k = 0; k < keyNames.length; ++k)
+            {
+                if (keyNames[k].equals(name))
+                {
+                    sum += k;
+                    break;
+                }
+            }
+        }
+        long scanNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(
+            "  88 keys: parse %.2f ms, notes %s, index lookup %.1f ns, " +
+            "name scan %.1f ns (%d), key state buffer %d bytes",
+            parseNanos / 1e6 / iterations, check(notes, "A0..C8 ok", "WRONG"),
+            (double) noteNanos / lookups, (double) scanNanos / lookups,
+            sum & 1, KeyStateDecoder.bufferSize(layout.getKeyCount())));
+    }
+}
@@ -0,0 +1,158 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/** KeySetBench compares the word diff of KeySet with a per-key scan and
+ *  checks the chord changes reported by the KeyStateDecoder.
+ *
+ * */
+
+public class KeySetBench extends Benchmark
+{
+    /** Per-key state query of the naive chord scan. */
+    private interface KeyQuery
+    {
+        boolean isHeld(int key);
+    }
+
+
+    public void run()
+    {
+        System.out.println("KeySet");
+
+        int keys = 88;
+        int frames = 4096;
+        Random random = new Random(3);
+
+        // Chords of up to ten fingers, changing every few frames:
+        KeySet[] chords = new KeySet[frames];
+        for (int f = 0; f < frames; ++f)
+        {
+            chords[f] = new KeySet(keys);
+            if (f > 0 && random.nextInt(4) != 0)
+            {
+                chords[f].copyFrom(chords[f - 1]);
+                continue;
+            }
+            int fingers = random.nextInt(11);
+            for (int i = 0; i < fingers; ++i)
+                chords[f].add(random.nextInt(keys));
+        }
+
+        final int[] counts = new int[2];
+        KeySet.DiffListener listener = new KeySet.DiffListener()
+        {
+            public void onKeyAdded(int key)
+            {
+                counts[0]++;
+            }
+
+            public void onKeyRemoved(int key)
+            {
+                counts[1]++;
+            }
+        };
+
+        int rounds = 200;
+        long wordNanos = Long.MAX_VALUE;
+        int wordChanges = 0;
+        for (int r = 0; r < rounds; ++r)
+        {
+            counts[0] = counts[1] = 0;
+            wordChanges = 0;
+            long start = System.nanoTime();
+            for (int f = 1; f < frames; ++f)
+                wordChanges += chords[f].diff(chords[f - 1], listener);
+            wordNanos = Math.min(wordNanos, System.nanoTime() - start);
+        }
+        int added = counts[0];
+        int removed = counts[1];
+
+        // The same through one interface call per key and frame:
+        long naiveNanos = Long.MAX_VALUE;
+        int naiveChanges = 0;
+        for (int r = 0; r < rounds; ++r)
+        {
+            naiveChanges = 0;
+            long start = System.nanoTime();
+            for (int f = 1; f < frames; ++f)
+            {
+                final KeySet current = chords[f];
+                final KeySet previous = chords[f - 1];
+                KeyQuery now = new KeyQuery()
+                {
+                    public boolean isHeld(int key)
+                    {
+                        return current.contains(key);
+                    }
+                };
+                KeyQuery before = new KeyQuery()
+                {
+                    public boolean isHeld(int key)
+                    {
+                        return previous.contains(key);
+                    }
+                };
+                for (int k = 0; k < keys; ++k)
+                {
+                    if (now.isHeld(k) != before.isHeld(k))
+                        naiveChanges++;
+                }
+            }
+            naiveNanos = Math.min(naiveNanos, System.nanoTime() - start);
+        }
+
+        // The decoder must report a chord change once per changed frame:
+        KeyStateDecoder decoder = new KeyStateDecoder(keys);
+        final int[] chordChanges = new int[1];
+        decoder.setChordListener(new KeyStateDecoder.ChordListener()
+        {
+            public void onChordChanged(KeySet chord, KeySet previous,
+                                        long timestampNanos)
+            {
+                chordChanges[0]++;
+            }
+        });
+        ByteBuffer buffer = KeyStateDecoder.allocateBuffer(keys);
+        long[] previousWords = new long[KeyStateDecoder.wordCount(keys)];
+        int expectedChanges = 0;
+        for (int f = 0; f < frames; ++f)
+        {
+            if (f > 0 ? !chords[f].equals(chords[f - 1]) : !chords[f].isEmpty())
+                expectedChanges++;
+            KeyStateDecoder.encode(buffer, f + 1, keys, f,
+                                    chords[f].getWords(), previousWords);
+            decoder.decode(buffer);
+        }
+
+        // Keys beyond the set must not wrap onto the keys it has:
+        KeySet bounded = new KeySet(keys);
+        bounded.add(keys);
+        bounded.add(64 + keys);
+        bounded.add(-1);
+        bounded.add(3);
+        bounded.remove(-61);
+        boolean inBounds = bounded.size() == 1 && bounded.contains(3);
+
+        System.out.println(String.format(
+            "  %d keys, %d frames: word diff %.1f ns/frame, per-key scan " +
+            "%.1f ns/frame (%.1fx); changes %d/%d (+%d -%d), " +
+            "chord callbacks %d/%d, last chord %s, out of range keys %s",
+            keys, frames, (double) wordNanos / (frames - 1),
+            (double) naiveNanos / (frames - 1), (double) naiveNanos / wordNanos,
+            wordChanges, naiveChanges, added, removed, chordChanges[0],
+            expectedChanges, decoder.getChord(),
+            check(inBounds, "ignored", "WRAPPED")));
+        expect(wordChanges == naiveChanges && added + removed == wordChanges,
+                "the word diff finds the changes of the per-key scan");
+        expect(chordChanges[0] == expectedChanges,
+                "a chord callback for every changed frame");
+    }
+}
@@ -0,0 +1,83 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/** KeyStateDecoderBench decodes synthetic key state snapshots and checks
+ *  the presses and releases reported.
+ *
+ * */
+
+public class KeyStateDecoderBench extends Benchmark
+{
+    /** Decodes synthetic key state snapshots and checks the edges. */
+    public void run()
+    {
+        System.out.println("KeyStateDecoder");
+
+        final int keys = 88;
+        final int frames = 1000000;
+        final long[] edges = new long[2];
+
+        ByteBuffer buffer = KeyStateDecoder.allocateBuffer(keys);
+        KeyStateDecoder decoder = new KeyStateDecoder(keys);
+        decoder.setListener(new KeyStateDecoder.Listener()
+        {
+            public void onKeyPressed(int key, long timestampNanos)
+            {
+                edges[0]++;
+            }
+
+            public void onKeyReleased(int key, long timestampNanos)
+            {
+                edges[1]++;
+            }
+        });
+
+        // Random chords held for a few frames each:
+        Random random = new Random(1);
+        int words = KeyStateDecoder.wordCount(keys);
+        long[] pressed = new long[words];
+        long[] previous = new long[words];
+        long expectedPresses = 0;
+        long expectedReleases = 0;
+        long nanos = 0;
+
+        for (int frame = 1; frame <= frames; ++frame)
+        {
+            if (frame % 4 == 0)
+            {
+                for (int w = 0; w < words; ++w)
+                    pressed[w] = random.nextLong() & random.nextLong() &
+                                    random.nextLong();
+                pressed[words - 1] &= (1L << (keys & 63)) - 1;
+            }
+
+            for (int w = 0; w < words; ++w)
+            {
+                long changed = pressed[w] ^ previous[w];
+                expectedPresses += Long.bitCount(changed & pressed[w]);
+                expectedReleases += Long.bitCount(changed & previous[w]);
+            }
+
+            KeyStateDecoder.encode(buffer, frame, keys, frame, pressed,
+                                    previous);
+
+            long start = System.nanoTime();
+            decoder.decode(buffer);
+            nanos += System.nanoTime() - start;
+        }
+
+        System.out.println(String.format(
+            "  %d frames of %d keys: %.1f ns/frame, presses %s, releases %s",
+            frames, keys, (double) nanos / frames,
+            check(edges[0] == expectedPresses, "ok", "MISMATCH"),
+            check(edges[1] == expectedReleases, "ok", "MISMATCH")));
+    }
+}
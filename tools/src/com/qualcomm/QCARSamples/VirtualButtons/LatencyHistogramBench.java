@@ -0,0 +1,115 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/** LatencyHistogramBench compares the histogram percentiles with the
+ *  exact ones and checks that the decoder records every key press.
+ *
+ * */
+
+public class LatencyHistogramBench extends Benchmark
+{
+    /** Compares histogram percentiles with the exact ones and checks that
+     *  the decoder records a latency for every key press. */
+    public void run() throws IOException
+    {
+        System.out.println("LatencyHistogram");
+
+        // Log-normal latencies around 2 ms with a long tail:
+        int samples = 1000000;
+        Random random = new Random(11);
+        long[] values = new long[samples];
+        for (int i = 0; i < samples; ++i)
+            values[i] = (long) (2e6 * Math.exp(0.8 * random.nextGaussian()));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        long recordNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; ++round)
+        {
+            histogram.reset();
+            long start = System.nanoTime();
+            for (int i = 0; i < samples; ++i)
+                histogram.record(values[i]);
+            recordNanos = Math.min(recordNanos, System.nanoTime() - start);
+        }
+
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double[] percentiles = { 50, 99, 99.9 };
+        StringBuilder errors = new StringBuilder();
+        boolean precise = true;
+        for (double percentile : percentiles)
+        {
+            long exact = sorted[(int) Math.ceil(samples * percentile / 100) - 1];
+            long estimate = histogram.getPercentileNanos(percentile);
+            errors.append(String.format(" p%s %.3f/%.3f ms (%+.2f%%)",
+                percentile == 99.9 ? "99.9" : String.valueOf((int) percentile),
+                estimate / 1e6, exact / 1e6,
+                100.0 * (estimate - exact) / exact));
+            precise &= Math.abs(estimate - exact) <= exact / 32 + 1;
+        }
+
+        // One latency per stage for every key pressed through the decoder:
+        int keys = 88;
+        int frames = 4096;
+        LatencyMonitor monitor = new LatencyMonitor();
+        KeyStateDecoder decoder = new KeyStateDecoder(keys);
+        decoder.setLatencyMonitor(monitor);
+        ByteBuffer buffer = KeyStateDecoder.allocateBuffer(keys);
+        long[] pressed = new long[KeyStateDecoder.wordCount(keys)];
+        long[] previous = new long[pressed.length];
+        long presses = 0;
+        for (int f = 0; f < frames; ++f)
+        {
+            for (int w = 0; w < pressed.length; ++w)
+                pressed[w] = random.nextLong() & random.nextLong() &
+                             random.nextLong();
+            pressed[pressed.length - 1] &= (1L << (keys & 63)) - 1;
+            for (int w = 0; w < pressed.length; ++w)
+                presses += Long.bitCount(pressed[w] & ~previous[w]);
+
+            long render = System.nanoTime();
+            KeyStateDecoder.encode(buffer, f + 1, keys, render,
+                                    render - 4000000, render - 40000000,
+                                    pressed, previous);
+            decoder.decode(buffer);
+        }
+
+        File file = File.createTempFile("latency", ".txt");
+        monitor.dump(file);
+        long dumpSize = file.length();
+        file.delete();
+
+        System.out.println(String.format(
+            "  %d samples: record %.1f ns,%s; %d buckets (%d KB)",
+            samples, (double) recordNanos / samples, errors,
+            LatencyHistogram.BUCKET_COUNT,
+            LatencyHistogram.BUCKET_COUNT * 8 / 1024));
+        System.out.println(String.format(
+            "  decoder: %d presses, recorded %d/%d/%d, tracker->render p50 " +
+            "%.2f ms, dump %d bytes",
+            presses,
+            monitor.getHistogram(LatencyMonitor.STAGE_CAPTURE_TO_TRACKER).getCount(),
+            monitor.getHistogram(LatencyMonitor.STAGE_TRACKER_TO_RENDER).getCount(),
+            monitor.getHistogram(LatencyMonitor.STAGE_RENDER_TO_DISPATCH).getCount(),
+            monitor.getPercentileNanos(LatencyMonitor.STAGE_TRACKER_TO_RENDER,
+                                        50) / 1e6,
+            dumpSize));
+        expect(precise, "percentiles within a bucket of the exact ones");
+        for (int stage = LatencyMonitor.STAGE_CAPTURE_TO_TRACKER;
+             stage <= LatencyMonitor.STAGE_RENDER_TO_DISPATCH; ++stage)
+            expect(monitor.getHistogram(stage).getCount() == presses,
+                    "a " + LatencyMonitor.getStageName(stage) +
+                    " latency for every press");
+    }
+}
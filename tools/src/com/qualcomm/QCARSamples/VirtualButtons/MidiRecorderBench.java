@@ -0,0 +1,219 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/** MidiRecorderBench records hours of notes as fast as possible, reads
+ *  the file back and checks every event, its tick and that no note hangs.
+ *
+ * */
+
+public class MidiRecorderBench extends Benchmark
+{
+    /** A recorded session and the events expected in its file. */
+    private static class MidiSession
+    {
+        byte[] status;
+        byte[] notes;
+        byte[] velocities;
+        long[] ticks;
+        int accepted = 0;
+        long nanos;
+        long allocated;
+
+
+        MidiSession(int events)
+        {
+            status = new byte[events + 128];
+            notes = new byte[events + 128];
+            velocities = new byte[events + 128];
+            ticks = new long[events + 128];
+        }
+
+
+        /** Plays the events into the recorder as fast as possible. */
+        void record(MidiRecorder recorder, File file, int events, long seed)
+            throws IOException
+        {
+            Random random = new Random(seed);
+
+            // The keys held by the player, up to ten, and the notes
+            // sounding in the file:
+            boolean[] held = new boolean[128];
+            int[] heldNotes = new int[128];
+            int heldCount = 0;
+            boolean[] sounding = new boolean[128];
+
+            recorder.start(file);
+            long time = recorder.getStartNanos();
+            long lastTicks = 0;
+            long expectedTicks = 0;
+            long allocated = getThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < events || heldCount > 0; ++i)
+            {
+                // Mostly a few ms apart, now and then a pause of minutes,
+                // once a pause longer than a delta time holds:
+                if (i == events / 2)
+                    time += 100L * 3600 * 1000000000L;
+                else if (random.nextInt(10000) == 0)
+                    time += random.nextInt(600) * 1000000000L;
+                else
+                    time += random.nextInt(10000000);
+
+                // Press a free key or release a held one, all at the end:
+                boolean on = i < events && (heldCount == 0 ||
+                                (heldCount < 10 && random.nextBoolean()));
+                int note;
+                if (on)
+                {
+                    do
+                        note = random.nextInt(128);
+                    while (held[note]);
+                    held[note] = true;
+                    heldNotes[heldCount++] = note;
+                }
+                else
+                {
+                    int k = random.nextInt(heldCount);
+                    note = heldNotes[k];
+                    heldNotes[k] = heldNotes[--heldCount];
+                    held[note] = false;
+                }
+
+                // The release of a note whose press was dropped is left
+                // out:
+                int velocity = 1 + random.nextInt(127);
+                boolean wasSounding = sounding[note];
+                if (!(on ? recorder.noteOn(note, velocity, time)
+                         : recorder.noteOff(note, time)) ||
+                    (!on && !wasSounding))
+                    continue;
+                sounding[note] = on;
+
+                // Pauses too long for a delta time are shortened, the
+                // events after them keep their spacing:
+                long eventTicks = (time - recorder.getStartNanos()) /
+                                  MidiRecorder.NANOS_PER_TICK;
+                expectedTicks += Math.min(Math.max(0, eventTicks - lastTicks),
+                                            MidiRecorder.MAX_DELTA_TICKS);
+                lastTicks = Math.max(lastTicks, eventTicks);
+                status[accepted] = (byte) (on ? 0x90 : 0x80);
+                notes[accepted] = (byte) note;
+                velocities[accepted] = (byte) (on ? velocity : 64);
+                ticks[accepted] = expectedTicks;
+                accepted++;
+            }
+            nanos = System.nanoTime() - start;
+            this.allocated = allocatedSince(allocated);
+            recorder.stop();
+        }
+    }
+
+
+    /** Records a session of several hours of notes as fast as possible,
+     *  reads the file back and checks every event and its tick. */
+    public void run() throws IOException
+    {
+        System.out.println("MidiRecorder");
+
+        int events = 4000000;
+        MidiRecorder recorder = new MidiRecorder(1 << 14);
+        File file = File.createTempFile("session", ".mid");
+
+        // Warm up, a loop compiled on the fly can allocate when it
+        // deoptimizes:
+        new MidiSession(events / 4).record(recorder, file, events / 4, 16);
+
+        MidiSession session = new MidiSession(events);
+        session.record(recorder, file, events, 17);
+        byte[] status = session.status;
+        byte[] notes = session.notes;
+        byte[] velocities = session.velocities;
+        long[] ticks = session.ticks;
+        int accepted = session.accepted;
+        long nanos = session.nanos;
+        long allocated = session.allocated;
+
+        // Read the file back:
+        ByteBuffer in = ByteBuffer.allocate((int) file.length());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            raf.getChannel().read(in, 0);
+        }
+        finally
+        {
+            raf.close();
+        }
+        file.delete();
+        in.flip();
+
+        int errors = 0;
+        if (in.getInt() != 0x4d546864 || in.getInt() != 6 ||
+            in.getShort() != 0 || in.getShort() != 1 ||
+            in.getShort() != MidiRecorder.TICKS_PER_QUARTER ||
+            in.getInt() != 0x4d54726b || in.getInt() != in.limit() - 22)
+            errors++;
+        in.position(in.position() + 7);
+
+        long readTicks = 0;
+        int read = 0;
+        boolean[] playing = new boolean[128];
+        while (in.remaining() > 8)
+        {
+            int value;
+            long delta = 0;
+            do
+            {
+                value = in.get();
+                delta = (delta << 7) | (value & 0x7f);
+            } while ((value & 0x80) != 0);
+            readTicks += delta;
+
+            int readStatus = in.get();
+            int readNote = in.get();
+            if (read >= accepted || readStatus != status[read] ||
+                readNote != notes[read] || in.get() != velocities[read] ||
+                readTicks != ticks[read])
+                errors++;
+            playing[readNote & 0x7f] = readStatus == (byte) 0x90;
+            read++;
+        }
+        if (read != accepted || in.remaining() != 8)
+            errors++;
+
+        // Every note must be released before the final all-notes-off:
+        int hung = 0;
+        for (int note = 0; note < playing.length; ++note)
+        {
+            if (playing[note])
+                hung++;
+        }
+
+        System.out.println(String.format(
+            "  %d events in %.1f ms (%.1f M/s, %.1f ns/event), %d dropped " +
+            "(%d releases), %d flushes, %s allocated",
+            events, nanos / 1e6, events * 1e3 / nanos, (double) nanos / events,
+            recorder.getDropped(), recorder.getReleasesDropped(),
+            recorder.getFlushes(), allocated < 0 ? "?" : allocated + " bytes"));
+        System.out.println(String.format(
+            "  %.1f hours, %d KB written, read back %d/%d events, %d errors, " +
+            "%d hung notes",
+            ticks[accepted - 1] / 3.6e6, recorder.getBytesWritten() / 1024,
+            read, accepted, errors, hung));
+        expect(errors == 0, "every event read back as recorded");
+        expect(hung == 0 && recorder.getReleasesDropped() == 0,
+                "every note released");
+        expect(allocated <= 0, "no allocation while recording");
+    }
+}
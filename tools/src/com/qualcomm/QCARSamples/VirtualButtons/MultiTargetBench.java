@@ -0,0 +1,144 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/** MultiTargetBench checks the notes of layouts of several targets and
+ *  decodes and names the chords held on them.
+ *
+ * */
+
+public class MultiTargetBench extends Benchmark
+{
+    public void run() throws IOException
+    {
+        System.out.println("Multiple targets");
+
+        // Once to warm up, once measured:
+        for (int targets = 1; targets <= KeyLayout.MAX_TARGETS; ++targets)
+            measureMultiTarget(targets);
+        for (int targets = 1; targets <= KeyLayout.MAX_TARGETS; ++targets)
+            System.out.println(measureMultiTarget(targets));
+        System.out.println("  native cost per target: " +
+                            "tools/native/MultiTargetBench.cpp");
+    }
+
+
+    /** Decodes and names the chords held on several targets, returns the
+     *  result line. */
+    private String measureMultiTarget(int targets) throws IOException
+    {
+        // An octave sheet per target, named from C4 upwards:
+        String[] names = { "C", "Cs", "D", "Ds", "E", "F", "Fs",
+                            "G", "Gs", "A", "As", "B" };
+        StringBuilder xml = new StringBuilder("<QCARConfig><Tracking>");
+        for (int t = 0; t < targets; ++t)
+        {
+            xml.append("<ImageTarget size=\"140 90\" name=\"octave_");
+            xml.append(t).append("\"/>");
+            for (int k = 0; k < names.length; ++k)
+                xml.append(String.format("<VirtualButton name=\"%s%d\" " +
+                    "rectangle=\"%.1f 40 %.1f -40\" enabled=\"true\"/>",
+                    names[k], 4 + t, k * 11.5 - 69.0, k * 11.5 - 60.0));
+        }
+
+        // Unnamed keys of a second target start an octave higher, named
+        // ones play their note:
+        KeyLayout unnamed = KeyLayout.parse(new ByteArrayInputStream((
+            "<QCARConfig><Tracking><ImageTarget name=\"a\"/>" +
+            "<VirtualButton name=\"red\" rectangle=\"0 1 1 0\"/>" +
+            "<ImageTarget name=\"b\"/>" +
+            "<VirtualButton name=\"red\" rectangle=\"0 1 1 0\"/>" +
+            "<VirtualButton name=\"E4\" rectangle=\"0 1 1 0\"/>" +
+            "</Tracking></QCARConfig>").getBytes("UTF-8")));
+        boolean offsets = unnamed.getNote(0) == 60 &&
+                            unnamed.getNote(1) == 72 &&
+                            unnamed.getNote(2) == 64 &&
+                            unnamed.indexOf("red") == 0 &&
+                            unnamed.indexOf(1, "red") == 1 &&
+                            unnamed.indexOf(0, "E4") == -1;
+        xml.append("</Tracking></QCARConfig>");
+        KeyLayout layout = KeyLayout.parse(new ByteArrayInputStream(
+                                    xml.toString().getBytes("UTF-8")));
+
+        // Every target named an octave above the one before it:
+        int keys = layout.getKeyCount();
+        boolean notes = layout.getTargetCount() == targets &&
+                        layout.getTargetFirstKeys()[targets] == keys;
+        for (int k = 0; k < keys; ++k)
+            notes &= layout.getNote(k) == 60 + k &&
+                    layout.getTarget(k) == k / names.length &&
+                    layout.getFirstKey(layout.getTarget(k)) ==
+                        k - k % names.length;
+        notes &= layout.getTarget(-1) == -1 && layout.getTarget(keys) == -1;
+        notes &= offsets;
+
+        // A chord held on every target, changing every 4 frames, as
+        // decoded and named on the GL thread:
+        final ChordAnalyzer analyzer = new ChordAnalyzer(
+                                                layout.getNotes());
+        final int[] chords = new int[1];
+        ByteBuffer buffer = KeyStateDecoder.allocateBuffer(keys);
+        KeyStateDecoder decoder = new KeyStateDecoder(keys);
+        decoder.setChordListener(new KeyStateDecoder.ChordListener()
+        {
+            public void onChordChanged(KeySet chord, KeySet previous,
+                                        long timestampNanos)
+            {
+                analyzer.analyze(chord);
+                chords[0]++;
+            }
+        });
+
+        FrameStats stats = new FrameStats(60);
+        Random random = new Random(5);
+        int words = KeyStateDecoder.wordCount(keys);
+        long[] pressed = new long[words];
+        long[] previous = new long[words];
+        int frames = 400000;
+        long nanos = 0;
+        long time = 0;
+        for (int frame = 1; frame <= frames; ++frame)
+        {
+            if (frame % 4 == 0)
+            {
+                Arrays.fill(pressed, 0);
+                for (int t = 0; t < targets; ++t)
+                {
+                    for (int n = 0; n < 3; ++n)
+                    {
+                        int key = t * names.length +
+                                    random.nextInt(names.length);
+                        pressed[key >> 6] |= 1L << (key & 63);
+                    }
+                }
+            }
+            KeyStateDecoder.encode(buffer, frame, keys, frame, pressed,
+                                    previous);
+
+            long start = System.nanoTime();
+            decoder.decode(buffer);
+            long end = System.nanoTime();
+            nanos += end - start;
+            stats.recordFrame(time += 16666667, end - start, targets);
+        }
+
+        FrameStats.Snapshot snapshot = stats.getSnapshot(
+                                            new FrameStats.Snapshot());
+        return String.format(
+            "  %d target%s, %d keys: decode and chord %.0f ns/frame, " +
+            "%d chords, notes %s, frames by targets %s",
+            targets, targets > 1 ? "s" : "", keys,
+            (double) nanos / frames, chords[0], check(notes, "ok", "WRONG"),
+            check(snapshot.targetFrames[targets] == frames, "ok", "WRONG"));
+    }
+}
@@ -0,0 +1,120 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.util.Random;
+
+/** NoteEventRingBench pushes note events through a NoteEventRing between
+ *  two threads and checks that an overloaded ring leaves no note sounding.
+ *
+ * */
+
+public class NoteEventRingBench extends Benchmark
+{
+    /** Pushes events through a NoteEventRing between two threads. */
+    public void run()
+    {
+        System.out.println("NoteEventRing");
+
+        final int events = 1000000;
+        final NoteEventRing ring = new NoteEventRing(1024);
+        final long[] received = new long[1];
+        final NoteEventRing.Handler handler = new NoteEventRing.Handler()
+        {
+            public void onNoteEvent(int type, int note, int velocity,
+                                    long timestampNanos)
+            {
+                received[0]++;
+            }
+        };
+
+        Thread consumer = new Thread("NoteEventRingConsumer")
+        {
+            public void run()
+            {
+                while (received[0] < events)
+                {
+                    if (ring.drain(handler) == 0)
+                        Thread.yield();
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+        consumer.start();
+        for (int i = 0; i < events; ++i)
+        {
+            // Pace the producer at one event per 200 ns:
+            long now = System.nanoTime();
+            while (System.nanoTime() - now < 200)
+                ;
+
+            // Back off instead of losing events when the consumer lags:
+            while (!ring.offer(i & 1, 60, 100, System.nanoTime()))
+                Thread.yield();
+        }
+        try
+        {
+            consumer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        long nanos = System.nanoTime() - start;
+
+        System.out.println(String.format(
+            "  %d events in %.1f ms (%.1f M/s), %d full, max depth %d, " +
+            "latency mean %.2f us max %.1f us",
+            events, nanos / 1e6, events * 1e3 / nanos, ring.getDropped(),
+            ring.getMaxDepth(), ring.getMeanLatencyNanos() / 1000.0,
+            ring.getMaxLatencyNanos() / 1000.0));
+
+        // Overload a small ring with a consumer that drains rarely, no note
+        // may be left sounding:
+        final NoteEventRing small = new NoteEventRing();
+        final boolean[] held = new boolean[128];
+        final NoteEventRing.Handler tracker = new NoteEventRing.Handler()
+        {
+            public void onNoteEvent(int type, int note, int velocity,
+                                    long timestampNanos)
+            {
+                held[note] = type == NoteEventRing.NOTE_ON;
+            }
+        };
+
+        Random random = new Random(7);
+        boolean[] pressed = new boolean[88];
+        for (int i = 0; i < events; ++i)
+        {
+            int key = random.nextInt(pressed.length);
+            pressed[key] = !pressed[key];
+            small.offer(pressed[key] ? NoteEventRing.NOTE_ON :
+                        NoteEventRing.NOTE_OFF, 21 + key, 100, 0);
+            if (random.nextInt(1000) == 0)
+                small.drain(tracker);
+        }
+        for (int key = 0; key < pressed.length; ++key)
+        {
+            if (pressed[key])
+                small.offer(NoteEventRing.NOTE_OFF, 21 + key, 100, 0);
+        }
+        small.drain(tracker);
+
+        int stuck = 0;
+        for (int note = 0; note < held.length; ++note)
+        {
+            if (held[note])
+                stuck++;
+        }
+        System.out.println(String.format(
+            "  overloaded ring: %d of %d events dropped, %d releases " +
+            "dropped, %d notes stuck %s", small.getDropped(), events,
+            small.getReleasesDropped(), stuck,
+            check(stuck == 0, "ok", "STUCK")));
+    }
+}
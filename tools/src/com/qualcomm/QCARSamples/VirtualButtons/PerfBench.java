@@ -0,0 +1,116 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+
+/** PerfBench is a headless benchmark harness for the QCAR samples
+ *  applications.
+ *
+ *  It is not part of the APK. It only touches classes that do not depend
+ *  on the Android framework and runs on a plain desktop JVM against the
+ *  compiled application classes:
+ *
+ *      javac -cp bin/classes -d bin/tools tools/src/.../Benchmark.java \
+ *          tools/src/.../*Bench.java
+ *      java -cp bin/classes:bin/tools \
+ *          com.qualcomm.QCARSamples.VirtualButtons.PerfBench
+ *
+ *  Every component has a Benchmark of its own. The arguments may name the
+ *  benchmarks to run, e.g. SampleBankBench, all run otherwise, and a .wav
+ *  file to render a demo into. The exit status is 1 if a check of any
+ *  benchmark failed.
+ *
+ * */
+
+public class PerfBench
+{
+    public static void main(String[] args) throws IOException
+    {
+        Benchmark[] benchmarks = {
+            new AudioEngineBench(),
+            new NoteEventRingBench(),
+            new KeyStateDecoderBench(),
+            new TextureConverterBench(),
+            new TextureCacheBench(),
+            new Etc1CodecBench(),
+            new KeyLayoutBench(),
+            new KeySetBench(),
+            new LatencyHistogramBench(),
+            new FrameStatsBench(),
+            new MidiRecorderBench(),
+            new SampleBankBench(),
+            new StringSynthBench(),
+            new EventSchedulerBench(),
+            new ChordAnalyzerBench(),
+            new DebugLogBench(),
+            new TracerBench(),
+            new ResumeBench(),
+            new FrameGovernorBench(),
+            new MultiTargetBench()
+        };
+
+        // The benchmarks named and the demo file:
+        boolean[] selected = new boolean[benchmarks.length];
+        boolean all = true;
+        File demo = null;
+        for (String arg : args)
+        {
+            if (arg.endsWith(".wav"))
+            {
+                demo = new File(arg);
+                continue;
+            }
+
+            boolean found = false;
+            for (int b = 0; b < benchmarks.length; ++b)
+            {
+                if (benchmarks[b].getName().equals(arg))
+                {
+                    selected[b] = true;
+                    found = true;
+                }
+            }
+            if (!found)
+            {
+                System.out.println("Unknown benchmark " + arg);
+                System.exit(2);
+            }
+            all = false;
+        }
+
+        StringBuilder failed = new StringBuilder();
+        for (int b = 0; b < benchmarks.length; ++b)
+        {
+            Benchmark benchmark = benchmarks[b];
+            if (!all && !selected[b])
+                continue;
+
+            try
+            {
+                benchmark.run();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace(System.out);
+                benchmark.fail(e.toString());
+            }
+            if (benchmark.getFailures() > 0)
+                failed.append(' ').append(benchmark.getName());
+        }
+
+        if (demo != null)
+            AudioEngineBench.renderDemo(demo);
+
+        if (failed.length() > 0)
+        {
+            System.out.println("FAILED:" + failed);
+            System.exit(1);
+        }
+    }
+}
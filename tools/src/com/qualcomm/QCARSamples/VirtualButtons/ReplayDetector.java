@@ -0,0 +1,96 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+
+/** ReplayDetector runs the native OcclusionDetector on the desktop.
+ *
+ *  It wraps tools/native/ReplayDetector.cpp, which is built into
+ *  libReplayDetector.so from the same jni/OcclusionDetector.cpp as the
+ *  application. Instances are not thread-safe.
+ *
+ * */
+
+public class ReplayDetector
+{
+    private long mHandle;
+
+
+    /** Loads libReplayDetector from java.library.path. Throws an
+     *  UnsatisfiedLinkError if it has not been built. */
+    public static void loadLibrary()
+    {
+        System.loadLibrary("ReplayDetector");
+    }
+
+
+    /** Creates a detector for the given keys, four floats (left, top,
+     *  right, bottom) per key. */
+    public ReplayDetector(float[] rectangles)
+    {
+        mHandle = create(rectangles);
+        if (mHandle == 0)
+            throw new IllegalArgumentException("No keys");
+    }
+
+
+    /** Sets the focal length and principal point, in pixels of the images
+     *  passed to update(). */
+    public void setCamera(float focalX, float focalY, float principalX,
+                            float principalY)
+    {
+        setCamera(mHandle, focalX, focalY, principalX, principalY);
+    }
+
+
+    /** Detects the pressed keys of the enabled keys in a luminance image,
+     *  which must be a direct buffer. Returns the number of keys
+     *  evaluated. */
+    public int update(ByteBuffer pixels, int width, int height, int stride,
+                        float[] pose, long[] enabledKeys)
+    {
+        return update(mHandle, pixels, width, height, stride, pose,
+                        enabledKeys);
+    }
+
+
+    /** Releases all keys while the target is not tracked. */
+    public void lost()
+    {
+        lost(mHandle);
+    }
+
+
+    /** Copies the pressed keys, bit k of word k / 64 for key k. */
+    public void getPressedKeys(long[] keys)
+    {
+        getPressedKeys(mHandle, keys);
+    }
+
+
+    /** Releases the native detector. */
+    public void release()
+    {
+        if (mHandle != 0)
+        {
+            destroy(mHandle);
+            mHandle = 0;
+        }
+    }
+
+
+    private static native long create(float[] rectangles);
+    private static native void destroy(long handle);
+    private static native void setCamera(long handle, float focalX,
+                            float focalY, float principalX, float principalY);
+    private static native int update(long handle, ByteBuffer pixels,
+                            int width, int height, int stride, float[] pose,
+                            long[] enabledKeys);
+    private static native void lost(long handle);
+    private static native void getPressedKeys(long handle, long[] keys);
+}
@@ -0,0 +1,130 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** ResumeBench measures how fast the audio engine and the frame
+ *  statistics resume after a pause.
+ *
+ * */
+
+public class ResumeBench extends Benchmark
+{
+    public void run() throws InterruptedException
+    {
+        System.out.println("Resume");
+
+        // The engine, from start() or resume() to the first block written,
+        // which must be silent although a note sounded at suspend():
+        final int[] pauses = new int[2];
+        final float[] resumePeak = new float[1];
+        NullAudioSink sink = new NullAudioSink()
+        {
+            private boolean mResumed = false;
+
+            public void write(float[] block, int numFrames)
+            {
+                if (mResumed)
+                {
+                    for (int i = 0; i < numFrames; ++i)
+                        resumePeak[0] = Math.max(resumePeak[0],
+                                                    Math.abs(block[i]));
+                    mResumed = false;
+                }
+                super.write(block, numFrames);
+            }
+
+            public void pause()
+            {
+                pauses[0]++;
+            }
+
+            public void resume()
+            {
+                pauses[1]++;
+                mResumed = true;
+            }
+        };
+        AudioEngine.BlockListener suspender = new AudioEngine.BlockListener()
+        {
+            public void onBlock(AudioEngine engine, long sampleTime)
+            {
+                if (engine.getActiveVoiceCount() == 0)
+                    return;
+                engine.setBlockListener(null);
+                engine.allNotesOff();
+                engine.suspend();
+            }
+        };
+        int cycles = 200;
+        long coldNanos = 0;
+        long warmNanos = 0;
+        long maxWarmNanos = 0;
+        long blocksWhileSuspended = 0;
+        for (int c = 0; c < cycles; ++c)
+        {
+            AudioEngine engine = new AudioEngine();
+            long start = System.nanoTime();
+            engine.start(sink);
+            while (engine.getBlocksRendered() == 0)
+                Thread.yield();
+            coldNanos += System.nanoTime() - start;
+
+            // As onPause() does, once the note sounds; the thread parks
+            // after the block it is rendering:
+            engine.setBlockListener(suspender);
+            engine.noteOn(60, 100);
+            while (pauses[0] == c)
+                Thread.yield();
+            long blocks = engine.getBlocksRendered();
+            Thread.sleep(1);
+            blocksWhileSuspended += engine.getBlocksRendered() - blocks;
+
+            engine.resume();
+            while (engine.getResumeLatencyNanos() == 0)
+                Thread.yield();
+            warmNanos += engine.getResumeLatencyNanos();
+            maxWarmNanos = Math.max(maxWarmNanos,
+                                    engine.getResumeLatencyNanos());
+            engine.stop();
+        }
+        System.out.println(String.format(
+            "  engine: start %.1f us, resume %.1f us (max %.1f), %d blocks " +
+            "while suspended, %d/%d sink pauses/resumes, peak %.4f after " +
+            "resume", coldNanos / 1e3 / cycles, warmNanos / 1e3 / cycles,
+            maxWarmNanos / 1e3, blocksWhileSuspended, pauses[0], pauses[1],
+            resumePeak[0]));
+        expect(blocksWhileSuspended == 0 && pauses[0] == cycles &&
+                pauses[1] == cycles, "no blocks rendered while suspended");
+        expect(resumePeak[0] == 0.0f, "the first block after resume() is " +
+                "silent");
+
+        // Frames: the pause is no missed frame, the resume ends with the
+        // first tracked frame:
+        long period = 1000000000L / 60;
+        FrameStats stats = new FrameStats(60);
+        long time = 0;
+        for (int f = 0; f < 100; ++f)
+            stats.recordFrame(time += period, 4000000, true);
+        long resume = time + 5000000000L;
+        stats.restart(resume);
+        time = resume + 30000000;
+        for (int f = 0; f < 3; ++f)
+            stats.recordFrame(time += period, 4000000, false);
+        stats.recordFrame(time += period, 4000000, true);
+        stats.recordFrame(time += period, 4000000, true);
+        FrameStats.Snapshot snapshot = stats.getSnapshot(
+                                                new FrameStats.Snapshot());
+        double expected = (time - period + 4000000 - resume) / 1e6;
+        System.out.println(String.format(
+            "  frames: resume %.1f ms (expected %.1f), %d resumes, missed %d",
+            snapshot.resumeLatencyMs, expected, snapshot.resumes,
+            snapshot.missedFrames));
+        expect(Math.abs(snapshot.resumeLatencyMs - expected) < 0.1 &&
+                snapshot.resumes == 1 && snapshot.missedFrames == 0,
+                "the pause is no missed frame");
+    }
+}
@@ -0,0 +1,159 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/** SampleBankBench opens a generated sample bank, checks its blocks and
+ *  plays random notes from it.
+ *
+ * */
+
+public class SampleBankBench extends Benchmark
+{
+    /** Opens a generated bank, checks every block read through a small
+     *  LRU pool and plays random notes from it under the default budget,
+     *  loading the blocks between the audio blocks as the loader would. */
+    public void run() throws IOException
+    {
+        System.out.println("SampleBank");
+
+        // 10 roots with 3 velocity layers of 4 s each:
+        int sampleRate = 44100;
+        int layers = 3;
+        SampleBank.Zone[] zones = new SampleBank.Zone[10 * layers];
+        for (int z = 0; z < zones.length; ++z)
+        {
+            SampleBank.Zone zone = new SampleBank.Zone();
+            int root = 36 + (z / layers) * 5;
+            zone.lowNote = root - 2;
+            zone.highNote = root + 2;
+            zone.lowVelocity = 1 + (z % layers) * 43;
+            zone.highVelocity = Math.min(127, zone.lowVelocity + 42);
+            zone.rootNote = root;
+            zone.attackFrames = sampleRate / 4;
+            zone.pcm = new short[4 * sampleRate + z];
+            for (int i = 0; i < zone.pcm.length; ++i)
+                zone.pcm[i] = (short) ((i * 31 + z * 977) ^ (i >> 7));
+            zones[z] = zone;
+        }
+        File file = File.createTempFile("piano", ".bank");
+        SampleBank.write(file, sampleRate, SampleBank.DEFAULT_BLOCK_FRAMES,
+                        zones);
+
+        // Opening only copies the attacks, compared to reading it all:
+        long start = System.nanoTime();
+        SampleBank bank = SampleBank.open(file, 64 * 1024);
+        long openNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        byte[] all = new byte[(int) file.length()];
+        FileInputStream input = new FileInputStream(file);
+        try
+        {
+            int offset = 0;
+            while (offset < all.length)
+                offset += input.read(all, offset, all.length - offset);
+        }
+        finally
+        {
+            input.close();
+        }
+        long readNanos = System.nanoTime() - start;
+
+        // Every block in random order, with the frame after it:
+        int blockFrames = bank.getBlockFrames();
+        int errors = 0;
+        int checked = 0;
+        int unloaded = 0;
+        Random random = new Random(23);
+        for (int round = 0; round < 4; ++round)
+        {
+            for (int z = 0; z < zones.length; ++z)
+            {
+                short[] pcm = zones[z].pcm;
+                int blocks = (pcm.length + blockFrames - 1) / blockFrames;
+                for (int n = 0; n < blocks; ++n)
+                {
+                    int b = random.nextInt(blocks);
+                    short[] data = bank.getBlock(0, z, b);
+                    if (data == null)
+                    {
+                        bank.loadPending();
+                        data = bank.getBlock(0, z, b);
+                        if (data == null)
+                        {
+                            unloaded++;
+                            continue;
+                        }
+                    }
+                    for (int i = 0; i <= blockFrames; ++i)
+                    {
+                        int frame = b * blockFrames + i;
+                        if (data[i] != (frame < pcm.length ? pcm[frame] : 0))
+                            errors++;
+                    }
+                    checked++;
+                }
+            }
+        }
+        System.out.println(String.format(
+            "  %d zones, %d kB mapped: open %.2f ms (%d kB attacks), read " +
+            "all %.2f ms; %d blocks checked, %d errors, %d not loaded, %d " +
+            "evictions", zones.length, bank.getMappedBytes() / 1024,
+            openNanos / 1e6, bank.getPinnedBytes() / 1024, readNanos / 1e6,
+            checked, errors, unloaded, bank.getEvictions()));
+        expect(errors == 0 && unloaded == 0, "every block loaded as written");
+
+        // A note every 50 ms on 16 voices, with and without the bank:
+        for (int pass = 0; pass < 2; ++pass)
+        {
+            AudioEngine engine = new AudioEngine(sampleRate, 256, 16);
+            if (pass == 1)
+            {
+                bank = SampleBank.open(file, SampleBank.DEFAULT_BUDGET_BYTES);
+                engine.setSampleBank(bank);
+            }
+            random = new Random(29);
+            for (int block = 0; block < 20000; ++block)
+            {
+                if (block % 9 == 0)
+                    engine.startNote(34 + random.nextInt(50),
+                                    1 + random.nextInt(127), 0);
+                if (block % 9 == 4)
+                    engine.releaseNote(34 + random.nextInt(50));
+                if (block == 5000)
+                    engine.resetStatistics();
+                engine.renderBlock();
+                if (pass == 1 && block % 4 == 0)
+                    bank.loadPending();
+            }
+            if (pass == 0)
+            {
+                System.out.println(String.format(
+                    "  synthesized: %.0f voice blocks/ms, %.0f voices in " +
+                    "real time", engine.getVoiceBlocksPerCpuMs(),
+                    engine.getRealtimeVoiceCapacity()));
+                continue;
+            }
+            long lookups = bank.getHits() + bank.getMisses();
+            System.out.println(String.format(
+                "  sampled: %.0f voice blocks/ms, %.0f voices in real time, " +
+                "%d/%d kB resident, hit rate %.2f%% (%d misses, %d loads, " +
+                "%d evictions)", engine.getVoiceBlocksPerCpuMs(),
+                engine.getRealtimeVoiceCapacity(),
+                bank.getResidentBytes() / 1024,
+                bank.getCapacityBytes() / 1024,
+                lookups > 0 ? 100.0 * bank.getHits() / lookups : 0.0,
+                bank.getMisses(), bank.getLoads(), bank.getEvictions()));
+            expect(bank.getMisses() == 0, "every block loaded ahead");
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,133 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+
+/** SampleBankTool renders the synthesized piano into a SampleBank on the
+ *  desktop.
+ *
+ *  It is not part of the APK. Build and run it against the compiled
+ *  application classes, e.g.:
+ *
+ *      javac -cp bin/classes -d bin/tools tools/src/.../SampleBankTool.java
+ *      java -cp bin/classes:bin/tools \
+ *          com.qualcomm.QCARSamples.VirtualButtons.SampleBankTool \
+ *          assets/piano.bank [sampleRate] [seconds]
+ *
+ *  Every third key of the 88 is rendered at three velocities and covers
+ *  its neighbours by resampling. A note is rendered until it is silent or
+ *  for at most the given seconds; its first quarter second is the attack
+ *  kept resident. The bank stands in for recorded samples, to try the
+ *  memory budget on a device. Keep it uncompressed in the APK
+ *  (aapt -0 bank) so that it can be memory-mapped.
+ *
+ * */
+
+public class SampleBankTool
+{
+    private static final int FIRST_NOTE = 21;
+    private static final int LAST_NOTE = 108;
+    private static final int NOTE_STEP = 3;
+    private static final int[] VELOCITY_LAYERS = { 50, 95, 127 };
+    private static final float ATTACK_SECONDS = 0.25f;
+    private static final int BLOCK_SIZE = 256;
+
+    /** Peak level of the loudest sample. */
+    private static final float PEAK = 0.9f;
+
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Usage: SampleBankTool output.bank " +
+                                "[sampleRate] [seconds]");
+            System.exit(1);
+        }
+
+        File output = new File(args[0]);
+        int sampleRate = args.length > 1 ? Integer.parseInt(args[1])
+                                         : AudioEngine.DEFAULT_SAMPLE_RATE;
+        float seconds = args.length > 2 ? Float.parseFloat(args[2]) : 6.0f;
+
+        int roots = (LAST_NOTE - FIRST_NOTE) / NOTE_STEP + 1;
+        SampleBank.Zone[] zones =
+            new SampleBank.Zone[roots * VELOCITY_LAYERS.length];
+        float[][] renders = new float[zones.length][];
+        float peak = 0;
+        int z = 0;
+        for (int r = 0; r < roots; ++r)
+        {
+            int root = FIRST_NOTE + r * NOTE_STEP + NOTE_STEP / 2;
+            for (int layer = 0; layer < VELOCITY_LAYERS.length; ++layer, ++z)
+            {
+                SampleBank.Zone zone = new SampleBank.Zone();
+                zone.lowNote = Math.max(0, root - NOTE_STEP / 2);
+                zone.highNote = Math.min(127, root + NOTE_STEP / 2);
+                zone.lowVelocity = layer > 0 ? VELOCITY_LAYERS[layer - 1] + 1
+                                             : 1;
+                zone.highVelocity = VELOCITY_LAYERS[layer];
+                zone.rootNote = root;
+                zone.attackFrames = (int) (ATTACK_SECONDS * sampleRate);
+                zones[z] = zone;
+
+                renders[z] = render(root, zone.highVelocity, sampleRate,
+                                    seconds);
+                for (float sample : renders[z])
+                    peak = Math.max(peak, Math.abs(sample));
+            }
+        }
+
+        long frames = 0;
+        for (z = 0; z < zones.length; ++z)
+        {
+            float[] render = renders[z];
+            short[] pcm = new short[render.length];
+            for (int i = 0; i < render.length; ++i)
+                pcm[i] = (short) Math.round(render[i] * PEAK / peak * 32767);
+            zones[z].pcm = pcm;
+            frames += pcm.length;
+        }
+
+        SampleBank.write(output, sampleRate, SampleBank.DEFAULT_BLOCK_FRAMES,
+                        zones);
+        SampleBank bank = SampleBank.open(output,
+                                        SampleBank.DEFAULT_BUDGET_BYTES);
+        System.out.println(String.format(
+            "%s: %d zones, %.1f s of PCM, %d kB, %d kB of attacks",
+            output, zones.length, (double) frames / sampleRate,
+            bank.getMappedBytes() / 1024, bank.getPinnedBytes() / 1024));
+    }
+
+
+    /** Renders a note of the synthesizer until it is silent. */
+    private static float[] render(int note, int velocity, int sampleRate,
+                                    float seconds)
+    {
+        AudioEngine engine = new AudioEngine(sampleRate, BLOCK_SIZE, 1);
+        engine.startNote(note, velocity, 0);
+
+        int maxBlocks = (int) (seconds * sampleRate / BLOCK_SIZE);
+        float[] render = new float[maxBlocks * BLOCK_SIZE];
+        int blocks = 0;
+        while (blocks < maxBlocks)
+        {
+            float[] block = engine.renderBlock();
+            System.arraycopy(block, 0, render, blocks * BLOCK_SIZE,
+                            BLOCK_SIZE);
+            blocks++;
+            if (engine.getActiveVoiceCount() == 0)
+                break;
+        }
+
+        float[] result = new float[blocks * BLOCK_SIZE];
+        System.arraycopy(render, 0, result, 0, result.length);
+        return result;
+    }
+}
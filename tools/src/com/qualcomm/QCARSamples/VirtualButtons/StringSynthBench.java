@@ -0,0 +1,112 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+/** StringSynthBench checks the tuning of the string voices, measures the
+ *  voices one core sustains and lets the engine degrade them to a budget.
+ *
+ * */
+
+public class StringSynthBench extends Benchmark
+{
+    /** Checks the tuning of the string voices and measures how many voices
+     *  of each kind one core sustains at 48 kHz, then lets the engine
+     *  degrade the strings to a budget. */
+    public void run()
+    {
+        System.out.println("StringSynth");
+
+        int sampleRate = 48000;
+        int blockSize = 256;
+
+        // The pitch from the autocorrelation of half a second of a single
+        // string, after its first 50 ms:
+        int[] tuningNotes = { 21, 33, 45, 57, 69, 81, 93, 105 };
+        StringBuilder tuning = new StringBuilder();
+        double maxCents = 0;
+        for (int note : tuningNotes)
+        {
+            AudioEngine engine = new AudioEngine(sampleRate, blockSize, 1);
+            engine.setSynthesis(AudioEngine.SYNTHESIS_STRINGS);
+            engine.setMaxStringQuality(StringSynth.QUALITY_LOW);
+            engine.startNote(note, 100, 0);
+            float[] signal = new float[sampleRate / 2];
+            for (int i = -sampleRate / 20; i < signal.length; i += blockSize)
+            {
+                float[] block = engine.renderBlock();
+                for (int j = 0; j < blockSize; ++j)
+                    if (i + j >= 0 && i + j < signal.length)
+                        signal[i + j] = block[j];
+            }
+
+            double period = sampleRate / (440.0 * Math.pow(2.0,
+                                                    (note - 69) / 12.0));
+            int minLag = (int) (0.8 * period);
+            int maxLag = (int) (1.25 * period) + 2;
+            double[] correlation = new double[maxLag + 2];
+            int best = minLag;
+            for (int lag = minLag - 1; lag <= maxLag + 1; ++lag)
+            {
+                double sum = 0;
+                for (int i = 0; i + lag < signal.length; ++i)
+                    sum += signal[i] * signal[i + lag];
+                correlation[lag] = sum / (signal.length - lag);
+                if (lag >= minLag && lag <= maxLag &&
+                    correlation[lag] > correlation[best])
+                    best = lag;
+            }
+            double a = correlation[best - 1];
+            double b = correlation[best];
+            double c = correlation[best + 1];
+            double lag = best + 0.5 * (a - c) / (a - 2 * b + c);
+            double cents = 1200 * Math.log(period / lag) / Math.log(2);
+            maxCents = Math.max(maxCents, Math.abs(cents));
+            tuning.append(String.format(" %d:%+.1f", note, cents));
+        }
+        System.out.println(String.format(
+            "  tuning (cents):%s, max %.1f", tuning, maxCents));
+        expect(maxCents < 5, "strings in tune within 5 cents");
+
+        // 64 voices kept sounding by striking them again every 32 blocks:
+        String[] names = { "partials", "1 string", "2 strings", "3 strings" };
+        double[] capacity = new double[names.length];
+        StringBuilder voices = new StringBuilder();
+        for (int kind = 0; kind < names.length; ++kind)
+        {
+            AudioEngine engine = new AudioEngine(sampleRate, blockSize, 64);
+            if (kind > 0)
+            {
+                engine.setSynthesis(AudioEngine.SYNTHESIS_STRINGS);
+                engine.setMaxStringQuality(kind - 1);
+            }
+            AudioEngineBench.runVoices(engine, WARMUP_BLOCKS);
+            engine.resetStatistics();
+            AudioEngineBench.runVoices(engine, MEASURE_BLOCKS);
+            capacity[kind] = engine.getRealtimeVoiceCapacity();
+            voices.append(String.format("%s %s %.0f", kind > 0 ? "," : "",
+                                        names[kind], capacity[kind]));
+        }
+        System.out.println("  voices per core at 48 kHz:" + voices);
+
+        // A budget between the cost of two and three strings:
+        long blockNanos = 1000000000L * blockSize / sampleRate;
+        long budget = (long) (blockNanos / Math.sqrt(capacity[2] *
+                                                     capacity[3]));
+        AudioEngine engine = new AudioEngine(sampleRate, blockSize, 64);
+        engine.setSynthesis(AudioEngine.SYNTHESIS_STRINGS);
+        engine.setVoiceBudgetNanos(budget);
+        AudioEngineBench.runVoices(engine, WARMUP_BLOCKS);
+        engine.resetStatistics();
+        AudioEngineBench.runVoices(engine, MEASURE_BLOCKS);
+        System.out.println(String.format(
+            "  budget %d ns per voice block: quality %d, %d quality drops, " +
+            "%d strings dropped, %.0f ns per voice block",
+            budget, engine.getStringQuality(), engine.getQualityDrops(),
+            engine.getStringsDropped(),
+            1e6 / engine.getVoiceBlocksPerCpuMs()));
+    }
+}
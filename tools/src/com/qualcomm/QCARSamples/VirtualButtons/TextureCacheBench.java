@@ -0,0 +1,89 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/** TextureCacheBench compares converting texels with mapping them from
+ *  the cache, and checks that stale and corrupt files are rejected.
+ *
+ * */
+
+public class TextureCacheBench extends Benchmark
+{
+    /** Compares converting texels with mapping them from the cache. */
+    public void run() throws IOException
+    {
+        System.out.println("TextureCache");
+
+        int size = 256;
+        int[] source = new int[size * size];
+        Random random = new Random(7);
+        for (int p = 0; p < source.length; ++p)
+            source[p] = random.nextInt();
+
+        int[] pixels = new int[source.length];
+        Texture texture = new Texture();
+        texture.mWidth = size;
+        texture.mHeight = size;
+        texture.mChannels = 4;
+        texture.mData = TextureConverter.allocate(size, size);
+
+        File file = File.createTempFile("texture", ".rgba");
+        int iterations = 200;
+        long convertNanos = 0;
+        long mapNanos = 0;
+        long verifyNanos = 0;
+        int misses = 0;
+        for (int i = 0; i < iterations; ++i)
+        {
+            long start = System.nanoTime();
+            System.arraycopy(source, 0, pixels, 0, source.length);
+            TextureConverter.argbToRgbaFlipped(pixels, size, size,
+                                                texture.mData);
+            convertNanos += System.nanoTime() - start;
+
+            if (i == 0)
+                TextureCache.write(file, texture, 1234L, 5678);
+
+            start = System.nanoTime();
+            if (TextureCache.map(file, 1234L, 5678, false) == null)
+                misses++;
+            mapNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            if (TextureCache.map(file, 1234L, 5678, true) == null)
+                misses++;
+            verifyNanos += System.nanoTime() - start;
+        }
+
+        boolean stale = TextureCache.map(file, 4321L, 5678, false) == null &&
+                        TextureCache.map(file, 1234L, 5679, false) == null;
+
+        // Flip one texel byte, the checksum must reject the file:
+        RandomAccessFile corrupt = new RandomAccessFile(file, "rw");
+        corrupt.seek(TextureCache.HEADER_SIZE + 1000);
+        int value = corrupt.read();
+        corrupt.seek(TextureCache.HEADER_SIZE + 1000);
+        corrupt.write(value ^ 0x10);
+        corrupt.close();
+        boolean corrupted = TextureCache.map(file, 1234L, 5678, true) == null;
+        file.delete();
+
+        System.out.println(String.format(
+            "  %dx%d: convert %.1f us (excluding PNG decode), map %.1f us, " +
+            "map and verify %.1f us, %d misses, stale %s, corrupt %s",
+            size, size, convertNanos / 1000.0 / iterations,
+            mapNanos / 1000.0 / iterations, verifyNanos / 1000.0 / iterations,
+            misses, check(stale, "rejected", "ACCEPTED"),
+            check(corrupted, "rejected", "ACCEPTED")));
+        expect(misses == 0, "every map of the cached texture hits");
+    }
+}
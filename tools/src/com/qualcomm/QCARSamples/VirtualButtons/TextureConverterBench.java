@@ -0,0 +1,77 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/** TextureConverterBench compares the legacy and the bulk conversion of
+ *  the texture pixels, which must give the same texels.
+ *
+ * */
+
+public class TextureConverterBench extends Benchmark
+{
+    /** Compares the legacy and the bulk texture conversion. */
+    public void run()
+    {
+        System.out.println("TextureConverter");
+
+        int[] sizes = { 256, 1024 };
+        for (int n = 0; n < sizes.length; ++n)
+        {
+            int size = sizes[n];
+            int[] source = new int[size * size];
+            Random random = new Random(size);
+            for (int p = 0; p < source.length; ++p)
+                source[p] = random.nextInt();
+
+            int[] pixels = new int[source.length];
+            ByteBuffer texels = TextureConverter.allocate(size, size);
+            int iterations = 64 * 1024 * 1024 / source.length;
+
+            long legacyNanos = Long.MAX_VALUE;
+            long bulkNanos = Long.MAX_VALUE;
+            byte[] legacy = null;
+            for (int round = 0; round < 5; ++round)
+            {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; ++i)
+                    legacy = TextureConverter.argbToRgbaFlippedLegacy(
+                                                    source, size, size);
+                legacyNanos = Math.min(legacyNanos,
+                                        System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; ++i)
+                {
+                    System.arraycopy(source, 0, pixels, 0, source.length);
+                    TextureConverter.argbToRgbaFlipped(pixels, size, size,
+                                                        texels);
+                }
+                bulkNanos = Math.min(bulkNanos, System.nanoTime() - start);
+            }
+
+            boolean identical = true;
+            for (int b = 0; b < legacy.length; ++b)
+            {
+                if (legacy[b] != texels.get(b))
+                {
+                    identical = false;
+                    break;
+                }
+            }
+
+            System.out.println(String.format(
+                "  %4dx%-4d legacy %8.1f us, bulk %8.1f us (%.1fx), %s",
+                size, size, legacyNanos / 1000.0 / iterations,
+                bulkNanos / 1000.0 / iterations,
+                (double) legacyNanos / bulkNanos,
+                check(identical, "identical", "MISMATCH")));
+        }
+    }
+}
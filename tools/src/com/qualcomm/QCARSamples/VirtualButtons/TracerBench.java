@@ -0,0 +1,168 @@
+/*==============================================================================
+            Copyright (c) 2012 QUALCOMM Austria Research Center GmbH.
+            All Rights Reserved.
+            Qualcomm Confidential and Proprietary
+==============================================================================*/
+
+package com.qualcomm.QCARSamples.VirtualButtons;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/** TracerBench times spans with tracing off and on and checks the trace
+ *  written of an audio and a GL thread.
+ *
+ * */
+
+public class TracerBench extends Benchmark
+{
+    /** Measures a span with tracing off and on, then traces render
+     *  blocks on an audio thread and frames on another, registered up
+     *  front, and checks the JSON written and that the buffers of the
+     *  ended threads are dropped. */
+    public void run() throws IOException, InterruptedException
+    {
+        System.out.println("Tracer");
+
+        int spans = 10000000;
+        long disabledNanos = Long.MAX_VALUE;
+        for (int run = 0; run < 3; ++run)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < spans; ++i)
+            {
+                Tracer.begin("onDrawFrame");
+                Tracer.end("onDrawFrame");
+            }
+            disabledNanos = Math.min(disabledNanos, System.nanoTime() - start);
+        }
+
+        // Recording is bounded by the buffer, so spans are timed in runs
+        // that fit:
+        int fit = Tracer.DEFAULT_EVENTS_PER_THREAD / 2;
+        long enabledNanos = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int run = 0; run < 20; ++run)
+        {
+            Tracer.start();
+            allocated = getThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < fit; ++i)
+            {
+                Tracer.begin("onDrawFrame");
+                Tracer.end("onDrawFrame");
+            }
+            enabledNanos = Math.min(enabledNanos, System.nanoTime() - start);
+            allocated = allocatedSince(allocated);
+            Tracer.stop();
+        }
+
+        // A second of audio blocks and frames:
+        Tracer.start();
+        final int blocks = AudioEngine.DEFAULT_SAMPLE_RATE /
+                           AudioEngine.DEFAULT_BLOCK_SIZE;
+        final int frames = 60;
+        final long[] glAllocated = new long[1];
+        Thread audio = new Thread("AudioEngine")
+        {
+            public void run()
+            {
+                Tracer.register();
+                AudioEngine engine = new AudioEngine();
+                engine.startNote(60, 100, 0);
+                NullAudioSink sink = new NullAudioSink();
+                try
+                {
+                    sink.open(engine.getSampleRate(), engine.getBlockSize());
+                    for (int b = 0; b < blocks; ++b)
+                    {
+                        engine.processBlock(sink);
+                        Tracer.counter("voices",
+                                        engine.getActiveVoiceCount());
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        Thread gl = new Thread("GLThread")
+        {
+            public void run()
+            {
+                Tracer.register();
+                long allocated = getThreadAllocatedBytes();
+                for (int f = 0; f < frames; ++f)
+                {
+                    Tracer.begin("onDrawFrame");
+                    Tracer.end("onDrawFrame");
+                }
+                glAllocated[0] = allocatedSince(allocated);
+            }
+        };
+        Tracer.asyncBegin("CAMERA_RUNNING", 1);
+        audio.start();
+        gl.start();
+        audio.join();
+        gl.join();
+        Tracer.asyncEnd("CAMERA_RUNNING", 1);
+        Tracer.stop();
+
+        File file = File.createTempFile("trace", ".json");
+        int events = Tracer.write(file);
+        byte[] json = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            int read = 0;
+            while (read < json.length)
+                read += in.read(json, read, json.length - read);
+        }
+        finally
+        {
+            in.close();
+        }
+        file.delete();
+
+        // Only the main thread is left:
+        int remaining = Tracer.write(new StringWriter());
+
+        // Braces balance and every span begins and ends:
+        int depth = 0;
+        int begins = 0;
+        int ends = 0;
+        String text = new String(json, "UTF-8");
+        for (int i = 0; i < text.length(); ++i)
+        {
+            char c = text.charAt(i);
+            depth += c == '{' ? 1 : c == '}' ? -1 : 0;
+        }
+        for (int i = text.indexOf("\"ph\":\"B\""); i >= 0;
+             i = text.indexOf("\"ph\":\"B\"", i + 1))
+            begins++;
+        for (int i = text.indexOf("\"ph\":\"E\""); i >= 0;
+             i = text.indexOf("\"ph\":\"E\"", i + 1))
+            ends++;
+
+        System.out.println(String.format(
+            "  span off %.1f ns, on %.1f ns (%d bytes); %d events " +
+            "expected %d, %d spans begun %d ended, depth %d, %d bytes " +
+            "of JSON, %d dropped",
+            (double) disabledNanos / spans, (double) enabledNanos / fit,
+            allocated, events, 2 + blocks * 5 + frames * 2, begins, ends,
+            depth, json.length, Tracer.getDropped()));
+        System.out.println(String.format(
+            "  first frames of a registered thread %d bytes, %d events " +
+            "left after the threads ended (expected 2)", glAllocated[0],
+            remaining));
+        expect(events == 2 + blocks * 5 + frames * 2 && begins == ends &&
+                depth == 0 && Tracer.getDropped() == 0,
+                "every event written as valid JSON");
+        expect(allocated <= 0 && glAllocated[0] <= 0,
+                "no allocation while tracing");
+        expect(remaining == 2, "buffers of ended threads dropped");
+    }
+}